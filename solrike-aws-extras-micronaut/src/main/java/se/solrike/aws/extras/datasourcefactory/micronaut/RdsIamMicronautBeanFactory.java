@@ -0,0 +1,54 @@
+/*
+ * Copyright © 2022 Lucas Persson. All Rights Reserved.
+ */
+package se.solrike.aws.extras.datasourcefactory.micronaut;
+
+import io.micronaut.context.annotation.Bean;
+import io.micronaut.context.annotation.Factory;
+import io.micronaut.context.annotation.Requires;
+import jakarta.inject.Singleton;
+import se.solrike.aws.extras.datasourcefactory.RdsIamAuthenticationTokenRegistry;
+import se.solrike.aws.extras.datasourcefactory.RdsIamTokenRefreshScheduler;
+import software.amazon.awssdk.auth.credentials.AwsCredentialsProvider;
+import software.amazon.awssdk.auth.credentials.DefaultCredentialsProvider;
+
+/**
+ * Default beans of {@link RdsIamMicronautDatasourceFactory}. Each of them is only created if the application doesn't
+ * have a bean of the same type.
+ */
+@Factory
+public class RdsIamMicronautBeanFactory {
+
+  /**
+   * @return the shared scheduler, it is not closed with the application context since it is shared
+   */
+  @Singleton
+  @Requires(missingBeans = RdsIamTokenRefreshScheduler.class)
+  public RdsIamTokenRefreshScheduler rdsIamTokenRefreshScheduler() {
+    return RdsIamTokenRefreshScheduler.getSharedInstance();
+  }
+
+  /**
+   * @param scheduler
+   *          - scheduler of the token refreshers
+   * @return the shared registry if the scheduler is the shared one, otherwise a registry on the scheduler
+   */
+  @Singleton
+  @Requires(missingBeans = RdsIamAuthenticationTokenRegistry.class)
+  public RdsIamAuthenticationTokenRegistry rdsIamAuthenticationTokenRegistry(RdsIamTokenRefreshScheduler scheduler) {
+    return scheduler == RdsIamTokenRefreshScheduler.getSharedInstance()
+        ? RdsIamAuthenticationTokenRegistry.getSharedInstance()
+        : new RdsIamAuthenticationTokenRegistry(scheduler);
+  }
+
+  /**
+   * @return the default credentials provider chain
+   */
+  @Singleton
+  @Bean(preDestroy = "close")
+  @Requires(missingBeans = AwsCredentialsProvider.class)
+  public DefaultCredentialsProvider rdsIamCredentialsProvider() {
+    return DefaultCredentialsProvider.builder().build();
+  }
+
+}
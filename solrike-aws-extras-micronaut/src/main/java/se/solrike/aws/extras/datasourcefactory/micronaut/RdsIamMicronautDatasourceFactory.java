@@ -0,0 +1,219 @@
+/*
+ * Copyright © 2022 Lucas Persson. All Rights Reserved.
+ */
+package se.solrike.aws.extras.datasourcefactory.micronaut;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import javax.annotation.PreDestroy;
+import javax.sql.DataSource;
+
+import com.zaxxer.hikari.HikariDataSource;
+
+import io.micronaut.configuration.jdbc.hikari.DatasourceConfiguration;
+import io.micronaut.configuration.jdbc.hikari.DatasourceFactory;
+import io.micronaut.context.ApplicationContext;
+import io.micronaut.context.annotation.Context;
+import io.micronaut.context.annotation.EachBean;
+import io.micronaut.context.annotation.Factory;
+import io.micronaut.context.annotation.Property;
+import io.micronaut.context.annotation.Replaces;
+import io.micronaut.context.annotation.Value;
+import io.micronaut.core.annotation.Nullable;
+import se.solrike.aws.extras.datasourcefactory.AbstractRdsIamDatasourceFactory;
+import se.solrike.aws.extras.datasourcefactory.RdsIamAuthenticationTokenRegistry;
+import se.solrike.aws.extras.datasourcefactory.RdsIamConnectionThrottle;
+import se.solrike.aws.extras.datasourcefactory.RdsIamDatasourceOptions;
+import se.solrike.aws.extras.datasourcefactory.RdsIamDeferredDataSource;
+import software.amazon.awssdk.auth.credentials.AwsCredentialsProvider;
+
+/**
+ * Datasource factory that supports IAM DB authentication when using Hikari connection pool. It replaces the default
+ * Hikari datasource factory of Micronaut, datasources without IAM authentication are created by the default factory.
+ * <p>
+ * The bean definitions are generated by Micronaut's annotation processor when this module is built, so no reflection
+ * is needed at runtime. The token refreshers, the AWS credentials provider and the token metrics come from
+ * {@link RdsIamMicronautBeanFactory} unless the application defines its own beans of them.
+ */
+@Factory
+@Replaces(factory = DatasourceFactory.class)
+public class RdsIamMicronautDatasourceFactory extends AbstractRdsIamDatasourceFactory<DatasourceConfiguration>
+    implements AutoCloseable {
+
+  /**
+   * true to enable IAM authentication. Default false.
+   */
+  public static final String IAM_AUTHENTICATION = "iam-authentication";
+
+  /**
+   * Max token refresh interval in minutes. Default 14.
+   */
+  public static final String TOKEN_REFRESH_INTERVAL_IN_MINUTES = IAM_AUTHENTICATION
+      + "-token-refresh-interval-in-minutes";
+
+  /**
+   * true to generate the token when a connection is created instead of refreshing it at regular intervals. Default
+   * false.
+   */
+  public static final String TOKEN_ON_DEMAND = IAM_AUTHENTICATION + "-token-on-demand";
+
+  /**
+   * true to create the datasource in the background, see {@link RdsIamDeferredDataSource}. Default false.
+   */
+  public static final String DEFERRED = IAM_AUTHENTICATION + "-deferred";
+
+  /**
+   * Max time in seconds the first connection waits for a deferred datasource to be ready. Default 30.
+   */
+  public static final String READINESS_TIMEOUT_IN_SECONDS = IAM_AUTHENTICATION + "-readiness-timeout-in-seconds";
+
+  private final DatasourceFactory mDatasourceFactory;
+  private final AwsCredentialsProvider mCredentialsProvider;
+  private final List<HikariDataSource> mDatasources = new CopyOnWriteArrayList<>();
+  private final List<RdsIamDeferredDataSource> mDeferredDatasources = new CopyOnWriteArrayList<>();
+
+  /**
+   * @param applicationContext
+   *          - the application context
+   * @param credentialsProvider
+   *          - credentials used to sign the tokens
+   * @param tokenRegistry
+   *          - registry of the token refreshers
+   * @param connectionThrottle
+   *          - throttle on the creation of physical connections, null if none
+   * @param connectionMetricsEnabled
+   *          - true to record the connection latencies, see
+   *          {@link RdsIamDatasourceOptions#setConnectionMetricsEnabled(boolean)}
+   * @param sharedSslContextEnabled
+   *          - true to use the shared TLS context, see
+   *          {@link RdsIamDatasourceOptions#setSharedSslContextEnabled(boolean)}
+   * @param connectionRecyclingWindow
+   *          - window the retirements of the connections are spread over, null if the connections aren't recycled, see
+   *          {@link RdsIamDatasourceOptions#setConnectionRecyclingWindow(Duration)}
+   */
+  public RdsIamMicronautDatasourceFactory(ApplicationContext applicationContext,
+      AwsCredentialsProvider credentialsProvider, RdsIamAuthenticationTokenRegistry tokenRegistry,
+      @Nullable RdsIamConnectionThrottle connectionThrottle,
+      @Value("${solrike.rds-iam.connection-metrics:false}") boolean connectionMetricsEnabled,
+      @Value("${solrike.rds-iam.shared-ssl-context:false}") boolean sharedSslContextEnabled,
+      @Nullable @Property(name = "solrike.rds-iam.connection-recycling-window") Duration connectionRecyclingWindow) {
+    mDatasourceFactory = new DatasourceFactory(applicationContext);
+    mCredentialsProvider = credentialsProvider;
+    setTokenRegistry(tokenRegistry);
+    RdsIamDatasourceOptions options = getOptions();
+    options.setConnectionThrottle(connectionThrottle);
+    options.setConnectionMetricsEnabled(connectionMetricsEnabled);
+    options.setSharedSslContextEnabled(sharedSslContextEnabled);
+    options.setConnectionRecyclingWindow(connectionRecyclingWindow);
+  }
+
+  /**
+   * The extra properties are added to the generic "data-source-properties:" section on the named datasource under the
+   * "datasources" section. They are removed from the section before the datasource is created since they are only for
+   * this factory.
+   * <p>
+   *
+   * <pre class="code">
+   * <code class="yaml">
+   * datasources:
+   *   default:
+   *     url: jdbc:mysql://database1.crux4711.eu-north-1.rds.amazonaws.com:3306/database1
+   *     username: myAppDbUser
+   *     password: ''
+   *     driverClassName: com.mysql.cj.jdbc.Driver
+   *     # hikari specific section
+   *     data-source-properties:
+   *       iam-authentication: true
+   *       iam-authentication-token-refresh-interval-in-minutes: 14
+   *       # generate the token when a connection is created instead of refreshing it at regular intervals
+   *       iam-authentication-token-on-demand: false
+   *       # create the datasource in the background and let the first connection wait at most 30 s for it
+   *       iam-authentication-deferred: false
+   *       iam-authentication-readiness-timeout-in-seconds: 30
+   * </code>
+   * </pre>
+   *
+   * @param datasourceConfiguration
+   *          - Micronaut datasource configuration
+   * @return datasource
+   */
+  @Context
+  @EachBean(DatasourceConfiguration.class)
+  public DataSource dataSource(DatasourceConfiguration datasourceConfiguration) {
+    Properties properties = datasourceConfiguration.getDataSourceProperties();
+    // the values are strings or typed depending on where the configuration comes from
+    boolean iamAuthentication = Boolean.parseBoolean(String.valueOf(properties.get(IAM_AUTHENTICATION)));
+    boolean tokenOnDemand = Boolean.parseBoolean(String.valueOf(properties.get(TOKEN_ON_DEMAND)));
+    int refreshIntervalInMinutes = Integer.parseInt(String
+        .valueOf(properties.getOrDefault(TOKEN_REFRESH_INTERVAL_IN_MINUTES, DEFAULT_REFRESH_INTERVAL_IN_MINUTES)));
+    boolean deferred = Boolean.parseBoolean(String.valueOf(properties.get(DEFERRED)));
+    int readinessTimeoutInSeconds = Integer.parseInt(String.valueOf(properties.getOrDefault(
+        READINESS_TIMEOUT_IN_SECONDS, RdsIamDeferredDataSource.DEFAULT_READINESS_TIMEOUT.getSeconds())));
+    properties.keySet().removeIf(key -> key.toString().startsWith(IAM_AUTHENTICATION));
+
+    if (iamAuthentication && deferred) {
+      RdsIamDeferredDataSource datasource = createDeferredDatasource(
+          () -> createDatasource(datasourceConfiguration, tokenOnDemand, refreshIntervalInMinutes),
+          Duration.ofSeconds(readinessTimeoutInSeconds));
+      mDeferredDatasources.add(datasource);
+      return datasource;
+    }
+    if (iamAuthentication) {
+      return createDatasource(datasourceConfiguration, tokenOnDemand, refreshIntervalInMinutes);
+    }
+    HikariDataSource datasource = doCreateDatasource(datasourceConfiguration);
+    mDatasources.add(datasource);
+    return datasource;
+  }
+
+  /**
+   * @return the datasources created by this factory, the deferred ones once they are created
+   */
+  public List<HikariDataSource> getDatasources() {
+    return mDatasources;
+  }
+
+  /**
+   * @return the deferred datasources created by this factory
+   */
+  public List<RdsIamDeferredDataSource> getDeferredDatasources() {
+    return mDeferredDatasources;
+  }
+
+  @Override
+  protected HikariDataSource doCreateDatasource(DatasourceConfiguration datasourceConfiguration) {
+    return (HikariDataSource) mDatasourceFactory.dataSource(datasourceConfiguration);
+  }
+
+  @Override
+  protected void setPassword(String password, DatasourceConfiguration datasourceConfiguration) {
+    datasourceConfiguration.setPassword(password);
+  }
+
+  @Override
+  @PreDestroy
+  public void close() {
+    mDeferredDatasources.forEach(RdsIamDeferredDataSource::close);
+    mDatasourceFactory.close();
+  }
+
+  private HikariDataSource createDatasource(DatasourceConfiguration datasourceConfiguration, boolean tokenOnDemand,
+      int refreshIntervalInMinutes) {
+    HikariDataSource datasource;
+    // the region is taken from the RDS hostname in the URL
+    if (tokenOnDemand) {
+      datasource = createOnDemandTokenDatasource(mCredentialsProvider, null, datasourceConfiguration.getUrl(),
+          datasourceConfiguration.getConfiguredUsername(), datasourceConfiguration);
+    }
+    else {
+      datasource = createDatasource(mCredentialsProvider, null, datasourceConfiguration.getUrl(),
+          datasourceConfiguration.getConfiguredUsername(), refreshIntervalInMinutes, datasourceConfiguration);
+    }
+    mDatasources.add(datasource);
+    return datasource;
+  }
+
+}
@@ -0,0 +1,36 @@
+/*
+ * Copyright © 2022 Lucas Persson. All Rights Reserved.
+ */
+package se.solrike.aws.extras.datasourcefactory.micronaut;
+
+import io.micrometer.core.instrument.binder.MeterBinder;
+import io.micronaut.context.annotation.Factory;
+import io.micronaut.context.annotation.Requires;
+import jakarta.inject.Singleton;
+import se.solrike.aws.extras.datasourcefactory.RdsIamAuthenticatingDataSource;
+import se.solrike.aws.extras.datasourcefactory.RdsIamAuthenticationTokenMetricsBinder;
+
+/**
+ * Token metrics for Micrometer, bound by the Micronaut Micrometer module. Only if Micrometer is on the classpath.
+ */
+@Factory
+@Requires(classes = MeterBinder.class)
+public class RdsIamMicronautMetricsFactory {
+
+  /**
+   * @param datasourceFactory
+   *          - factory of the IAM authenticated datasources
+   * @return binder of the token metrics of all IAM authenticated datasources
+   */
+  @Singleton
+  public MeterBinder rdsIamAuthenticationTokenMetrics(RdsIamMicronautDatasourceFactory datasourceFactory) {
+    return registry -> datasourceFactory.getDatasources().forEach(dataSource -> {
+      if (dataSource.getDataSource() instanceof RdsIamAuthenticatingDataSource) {
+        new RdsIamAuthenticationTokenMetricsBinder(
+            ((RdsIamAuthenticatingDataSource) dataSource.getDataSource()).getRefresher(), dataSource.getPoolName())
+                .bindTo(registry);
+      }
+    });
+  }
+
+}
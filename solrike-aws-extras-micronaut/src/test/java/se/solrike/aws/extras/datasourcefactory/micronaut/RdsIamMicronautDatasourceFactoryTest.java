@@ -0,0 +1,114 @@
+/*
+ * Copyright © 2022 Lucas Persson. All Rights Reserved.
+ */
+package se.solrike.aws.extras.datasourcefactory.micronaut;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.sql.DataSource;
+
+import org.junit.jupiter.api.Test;
+
+import com.zaxxer.hikari.HikariDataSource;
+
+import io.micronaut.context.ApplicationContext;
+import se.solrike.aws.extras.datasourcefactory.RdsIamAuthenticatingDataSource;
+import se.solrike.aws.extras.datasourcefactory.RdsIamAuthenticationTokenRegistry;
+import se.solrike.aws.extras.datasourcefactory.RdsIamDeferredDataSource;
+import se.solrike.aws.extras.datasourcefactory.StubJdbcDriver;
+import software.amazon.awssdk.auth.credentials.AwsBasicCredentials;
+import software.amazon.awssdk.auth.credentials.StaticCredentialsProvider;
+
+/**
+ *
+ */
+class RdsIamMicronautDatasourceFactoryTest {
+
+  @Test
+  void testIamAuthentication() throws SQLException {
+    // given
+    Map<String, Object> properties = getProperties();
+    properties.put("datasources.default.data-source-properties.iam-authentication", "true");
+    properties.put("datasources.default.data-source-properties.iam-authentication-token-on-demand", "true");
+
+    // when
+    try (ApplicationContext context = start(properties)) {
+      RdsIamMicronautDatasourceFactory factory = context.getBean(RdsIamMicronautDatasourceFactory.class);
+
+      // then
+      assertThat(factory.getDatasources()).hasSize(1);
+      HikariDataSource dataSource = factory.getDatasources().get(0);
+      assertThat(dataSource.getDataSource()).isInstanceOf(RdsIamAuthenticatingDataSource.class);
+      assertThat(dataSource.getDataSourceProperties()).containsEntry("sslmode", "verify-full")
+          .doesNotContainKeys("iam-authentication", "iam-authentication-token-on-demand");
+      assertThat(factory.getTokenRegistry()).isSameAs(RdsIamAuthenticationTokenRegistry.getSharedInstance());
+      try (Connection connection = dataSource.getConnection()) {
+        assertThat(connection).isNotNull();
+      }
+    }
+  }
+
+  @Test
+  void testDeferredIamAuthentication() throws SQLException {
+    // given
+    Map<String, Object> properties = getProperties();
+    properties.put("datasources.default.data-source-properties.iam-authentication", "true");
+    properties.put("datasources.default.data-source-properties.iam-authentication-token-on-demand", "true");
+    properties.put("datasources.default.data-source-properties.iam-authentication-deferred", "true");
+    properties.put("datasources.default.data-source-properties.iam-authentication-readiness-timeout-in-seconds", "5");
+
+    // when
+    try (ApplicationContext context = start(properties)) {
+      RdsIamMicronautDatasourceFactory factory = context.getBean(RdsIamMicronautDatasourceFactory.class);
+      DataSource dataSource = context.getBean(DataSource.class);
+
+      // then
+      assertThat(dataSource).isInstanceOfSatisfying(RdsIamDeferredDataSource.class,
+          deferredDataSource -> assertThat(deferredDataSource.getReadinessTimeout()).hasSeconds(5));
+      assertThat(factory.getDeferredDatasources()).containsExactly((RdsIamDeferredDataSource) dataSource);
+      try (Connection connection = dataSource.getConnection()) {
+        assertThat(connection).isNotNull();
+      }
+      assertThat(factory.getDatasources()).hasSize(1);
+      assertThat(factory.getDatasources().get(0).getDataSource()).isInstanceOf(RdsIamAuthenticatingDataSource.class);
+    }
+  }
+
+  @Test
+  void testNoIamAuthentication() {
+    // given
+    Map<String, Object> properties = getProperties();
+
+    // when
+    try (ApplicationContext context = start(properties)) {
+      RdsIamMicronautDatasourceFactory factory = context.getBean(RdsIamMicronautDatasourceFactory.class);
+
+      // then
+      assertThat(factory.getDatasources()).hasSize(1);
+      assertThat(factory.getDatasources().get(0).getDataSource()).isNull();
+    }
+  }
+
+  private static Map<String, Object> getProperties() {
+    Map<String, Object> properties = new HashMap<>();
+    properties.put("datasources.default.url",
+        "jdbc:stub://database1.crux4711.eu-north-1.rds.amazonaws.com:3306/database1");
+    properties.put("datasources.default.username", "myAppDbUser");
+    properties.put("datasources.default.driver-class-name", StubJdbcDriver.class.getName());
+    properties.put("datasources.default.data-source-properties.sslmode", "verify-full");
+    return properties;
+  }
+
+  private static ApplicationContext start(Map<String, Object> properties) {
+    return ApplicationContext.builder()
+        .properties(properties)
+        .singletons(StaticCredentialsProvider.create(AwsBasicCredentials.create("accessKeyId", "secretAccessKey")))
+        .start();
+  }
+
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright © 2022 Lucas Persson. All Rights Reserved.
+ */
+package se.solrike.aws.extras.datasourcefactory.spring;
+
+import javax.sql.DataSource;
+
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.boot.autoconfigure.AutoConfiguration;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnClass;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnMissingBean;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.autoconfigure.jdbc.DataSourceAutoConfiguration;
+import org.springframework.boot.autoconfigure.jdbc.DataSourceProperties;
+import org.springframework.boot.context.properties.EnableConfigurationProperties;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.core.env.Environment;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabaseType;
+
+import com.zaxxer.hikari.HikariDataSource;
+
+import io.micrometer.core.instrument.binder.MeterBinder;
+import se.solrike.aws.extras.datasourcefactory.RdsIamAuthenticatingDataSource;
+import se.solrike.aws.extras.datasourcefactory.RdsIamAuthenticationTokenMetricsBinder;
+import se.solrike.aws.extras.datasourcefactory.RdsIamAuthenticationTokenRegistry;
+import se.solrike.aws.extras.datasourcefactory.RdsIamConnectionThrottle;
+import se.solrike.aws.extras.datasourcefactory.RdsIamTokenRefreshScheduler;
+import software.amazon.awssdk.auth.credentials.AwsCredentialsProvider;
+import software.amazon.awssdk.auth.credentials.DefaultCredentialsProvider;
+
+/**
+ * Auto-configuration of a Hikari datasource with IAM DB authentication. It is enabled by
+ * <code>spring.datasource.hikari.data-source-properties.iam-authentication: true</code> and replaces the datasource of
+ * Spring Boot's DataSourceAutoConfiguration, see {@link RdsIamSpringDatasourceFactory} for the properties.
+ * <p>
+ * The token refreshers run on the shared {@link RdsIamTokenRefreshScheduler} and are kept in the shared
+ * {@link RdsIamAuthenticationTokenRegistry}, unless the application defines its own beans of them. The application
+ * can also define the AWS credentials provider, default is the default credentials provider chain, and a
+ * {@link RdsIamConnectionThrottle}. If Micrometer is on the classpath the token metrics are bound to the meter
+ * registry.
+ * <p>
+ * The bean definitions are plain factory methods without proxies or classpath scanning, so they work with Spring's
+ * ahead-of-time processing.
+ */
+@AutoConfiguration(before = DataSourceAutoConfiguration.class)
+@ConditionalOnClass({ HikariDataSource.class, EmbeddedDatabaseType.class })
+@ConditionalOnProperty(name = RdsIamSpringDatasourceFactory.IAM_AUTHENTICATION, havingValue = "true")
+@EnableConfigurationProperties(DataSourceProperties.class)
+public class RdsIamDataSourceAutoConfiguration {
+
+  /**
+   * @return the shared scheduler, it is not closed with the application context since it is shared
+   */
+  @Bean(destroyMethod = "")
+  @ConditionalOnMissingBean
+  public RdsIamTokenRefreshScheduler rdsIamTokenRefreshScheduler() {
+    return RdsIamTokenRefreshScheduler.getSharedInstance();
+  }
+
+  /**
+   * @param scheduler
+   *          - scheduler of the token refreshers
+   * @return the shared registry if the scheduler is the shared one, otherwise a registry on the scheduler
+   */
+  @Bean
+  @ConditionalOnMissingBean
+  public RdsIamAuthenticationTokenRegistry rdsIamAuthenticationTokenRegistry(RdsIamTokenRefreshScheduler scheduler) {
+    return scheduler == RdsIamTokenRefreshScheduler.getSharedInstance()
+        ? RdsIamAuthenticationTokenRegistry.getSharedInstance()
+        : new RdsIamAuthenticationTokenRegistry(scheduler);
+  }
+
+  /**
+   * @return the default credentials provider chain
+   */
+  @Bean
+  @ConditionalOnMissingBean
+  public AwsCredentialsProvider rdsIamCredentialsProvider() {
+    return DefaultCredentialsProvider.builder().build();
+  }
+
+  /**
+   * @param credentialsProvider
+   *          - credentials used to sign the tokens
+   * @param tokenRegistry
+   *          - registry of the token refreshers
+   * @param connectionThrottle
+   *          - throttle on the creation of physical connections, if the application has one
+   * @param environment
+   *          - Spring environment
+   * @return the datasource factory
+   */
+  @Bean
+  @ConditionalOnMissingBean
+  public RdsIamSpringDatasourceFactory rdsIamDatasourceFactory(AwsCredentialsProvider credentialsProvider,
+      RdsIamAuthenticationTokenRegistry tokenRegistry, ObjectProvider<RdsIamConnectionThrottle> connectionThrottle,
+      Environment environment) {
+    RdsIamSpringDatasourceFactory factory = new RdsIamSpringDatasourceFactory(credentialsProvider, environment);
+    factory.setTokenRegistry(tokenRegistry);
+    connectionThrottle.ifAvailable(factory.getOptions()::setConnectionThrottle);
+    return factory;
+  }
+
+  /**
+   * @param datasourceFactory
+   *          - the datasource factory
+   * @param dataSourceProperties
+   *          - Spring datasource properties
+   * @return the IAM authenticated datasource
+   */
+  @Bean
+  @ConditionalOnMissingBean(DataSource.class)
+  public HikariDataSource dataSource(RdsIamSpringDatasourceFactory datasourceFactory,
+      DataSourceProperties dataSourceProperties) {
+    return datasourceFactory.createDatasource(dataSourceProperties);
+  }
+
+  /**
+   * Token metrics for Micrometer, bound by Spring Boot's metrics auto-configuration.
+   */
+  @Configuration(proxyBeanMethods = false)
+  @ConditionalOnClass(MeterBinder.class)
+  static class TokenMetricsConfiguration {
+
+    @Bean
+    MeterBinder rdsIamAuthenticationTokenMetrics(ObjectProvider<HikariDataSource> dataSources) {
+      return registry -> dataSources.forEach(dataSource -> {
+        if (dataSource.getDataSource() instanceof RdsIamAuthenticatingDataSource) {
+          new RdsIamAuthenticationTokenMetricsBinder(
+              ((RdsIamAuthenticatingDataSource) dataSource.getDataSource()).getRefresher(), dataSource.getPoolName())
+                  .bindTo(registry);
+        }
+      });
+    }
+
+  }
+
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright © 2022 Lucas Persson. All Rights Reserved.
+ */
+package se.solrike.aws.extras.datasourcefactory.spring;
+
+import java.time.Duration;
+
+import org.springframework.boot.autoconfigure.jdbc.DataSourceProperties;
+import org.springframework.boot.context.properties.bind.Bindable;
+import org.springframework.boot.context.properties.bind.Binder;
+import org.springframework.core.env.Environment;
+
+import com.zaxxer.hikari.HikariDataSource;
+
+import se.solrike.aws.extras.datasourcefactory.AbstractRdsIamDatasourceFactory;
+import se.solrike.aws.extras.datasourcefactory.RdsIamDatasourceOptions;
+import software.amazon.awssdk.auth.credentials.AwsCredentialsProvider;
+
+/**
+ * Datasource factory that supports IAM DB authentication for the Spring Boot datasource, see
+ * {@link RdsIamDataSourceAutoConfiguration}.
+ * <p>
+ * The properties under <code>spring.datasource.hikari</code> are bound to the datasource before the IAM authentication
+ * is installed, so the data source properties, e.g. the TLS settings, reach the driver. The
+ * <code>iam-authentication*</code> properties are removed from the data source properties since they are only for
+ * this factory.
+ */
+public class RdsIamSpringDatasourceFactory extends AbstractRdsIamDatasourceFactory<DataSourceProperties> {
+
+  /**
+   * Prefix of the Hikari properties.
+   */
+  public static final String HIKARI_PREFIX = "spring.datasource.hikari";
+
+  /**
+   * true to enable IAM authentication. Default false.
+   */
+  public static final String IAM_AUTHENTICATION = HIKARI_PREFIX + ".data-source-properties.iam-authentication";
+
+  /**
+   * Max token refresh interval in minutes. Default 14.
+   */
+  public static final String TOKEN_REFRESH_INTERVAL_IN_MINUTES = IAM_AUTHENTICATION
+      + "-token-refresh-interval-in-minutes";
+
+  /**
+   * true to generate the token when a connection is created instead of refreshing it at regular intervals. Default
+   * false.
+   */
+  public static final String TOKEN_ON_DEMAND = IAM_AUTHENTICATION + "-token-on-demand";
+
+  /**
+   * true to record the connection latencies, see {@link RdsIamDatasourceOptions#setConnectionMetricsEnabled(boolean)}. Default false.
+   */
+  public static final String CONNECTION_METRICS = "solrike.rds-iam.connection-metrics";
+
+  /**
+   * true to use the shared TLS context, see {@link RdsIamDatasourceOptions#setSharedSslContextEnabled(boolean)}.
+   * Default false.
+   */
+  public static final String SHARED_SSL_CONTEXT = "solrike.rds-iam.shared-ssl-context";
+
+  /**
+   * Window the retirements of the connections are spread over, e.g. 5m, see
+   * {@link RdsIamDatasourceOptions#setConnectionRecyclingWindow(Duration)}. Default none, the connections aren't
+   * recycled.
+   */
+  public static final String CONNECTION_RECYCLING_WINDOW = "solrike.rds-iam.connection-recycling-window";
+
+  private static final String IAM_PROPERTY_PREFIX = "iam-authentication";
+
+  private final AwsCredentialsProvider mCredentialsProvider;
+  private final Environment mEnvironment;
+
+  /**
+   * @param credentialsProvider
+   *          - credentials used to sign the tokens
+   * @param environment
+   *          - Spring environment with the datasource properties
+   */
+  public RdsIamSpringDatasourceFactory(AwsCredentialsProvider credentialsProvider, Environment environment) {
+    mCredentialsProvider = credentialsProvider;
+    mEnvironment = environment;
+    RdsIamDatasourceOptions options = getOptions();
+    options.setConnectionMetricsEnabled(environment.getProperty(CONNECTION_METRICS, Boolean.class, false));
+    options.setSharedSslContextEnabled(environment.getProperty(SHARED_SSL_CONTEXT, Boolean.class, false));
+    options.setConnectionRecyclingWindow(environment.getProperty(CONNECTION_RECYCLING_WINDOW, Duration.class, null));
+  }
+
+  /**
+   * Create the IAM authenticated datasource.
+   *
+   * <pre class="code">
+   * <code>
+   * spring.datasource.url: jdbc:mysql://database1.crux4711.eu-north-1.rds.amazonaws.com:3306/database1
+   * spring.datasource.username: myAppDbUser
+   * spring.datasource.driver-class-name: com.mysql.cj.jdbc.Driver
+   * spring.datasource.hikari.data-source-properties.iam-authentication: true
+   * spring.datasource.hikari.data-source-properties.iam-authentication-token-refresh-interval-in-minutes: 14
+   * spring.datasource.hikari.data-source-properties.iam-authentication-token-on-demand: false
+   * </code>
+   * </pre>
+   *
+   * @param dataSourceProperties
+   *          - Spring datasource properties
+   * @return datasource
+   */
+  public HikariDataSource createDatasource(DataSourceProperties dataSourceProperties) {
+    String jdbcUrl = dataSourceProperties.determineUrl();
+    String username = dataSourceProperties.determineUsername();
+    // the region is taken from the RDS hostname in the URL
+    if (mEnvironment.getProperty(TOKEN_ON_DEMAND, Boolean.class, false)) {
+      return createOnDemandTokenDatasource(mCredentialsProvider, null, jdbcUrl, username, dataSourceProperties);
+    }
+    return createDatasource(mCredentialsProvider, null, jdbcUrl, username,
+        mEnvironment.getProperty(TOKEN_REFRESH_INTERVAL_IN_MINUTES, Integer.class, DEFAULT_REFRESH_INTERVAL_IN_MINUTES),
+        dataSourceProperties);
+  }
+
+  @Override
+  protected HikariDataSource doCreateDatasource(DataSourceProperties dataSourceProperties) {
+    HikariDataSource datasource = dataSourceProperties.initializeDataSourceBuilder()
+        .type(HikariDataSource.class)
+        .build();
+    Binder.get(mEnvironment).bind(HIKARI_PREFIX, Bindable.ofInstance(datasource));
+    datasource.getDataSourceProperties().keySet().removeIf(key -> key.toString().startsWith(IAM_PROPERTY_PREFIX));
+    return datasource;
+  }
+
+  @Override
+  protected boolean isStartedOnCreation() {
+    // the DataSourceBuilder creates a datasource that isn't started until the first connection, so with token on
+    // demand no token is generated until then
+    return false;
+  }
+
+  @Override
+  protected void setPassword(String password, DataSourceProperties dataSourceProperties) {
+    dataSourceProperties.setPassword(password);
+  }
+
+}
@@ -0,0 +1,68 @@
+/*
+ * Copyright © 2022 Lucas Persson. All Rights Reserved.
+ */
+package se.solrike.aws.extras.datasourcefactory.spring;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.boot.autoconfigure.AutoConfigurations;
+import org.springframework.boot.autoconfigure.jdbc.DataSourceAutoConfiguration;
+import org.springframework.boot.test.context.runner.ApplicationContextRunner;
+
+import com.zaxxer.hikari.HikariDataSource;
+
+import se.solrike.aws.extras.datasourcefactory.RdsIamAuthenticatingDataSource;
+import se.solrike.aws.extras.datasourcefactory.RdsIamAuthenticationTokenRegistry;
+import se.solrike.aws.extras.datasourcefactory.StubJdbcDriver;
+import software.amazon.awssdk.auth.credentials.AwsBasicCredentials;
+import software.amazon.awssdk.auth.credentials.AwsCredentialsProvider;
+import software.amazon.awssdk.auth.credentials.StaticCredentialsProvider;
+
+/**
+ *
+ */
+class RdsIamDataSourceAutoConfigurationTest {
+
+  private final ApplicationContextRunner mContextRunner = new ApplicationContextRunner()
+      .withConfiguration(
+          AutoConfigurations.of(RdsIamDataSourceAutoConfiguration.class, DataSourceAutoConfiguration.class))
+      .withBean(AwsCredentialsProvider.class,
+          () -> StaticCredentialsProvider.create(AwsBasicCredentials.create("accessKeyId", "secretAccessKey")))
+      .withPropertyValues(
+          "spring.datasource.url=jdbc:stub://database1.crux4711.eu-north-1.rds.amazonaws.com:3306/database1",
+          "spring.datasource.username=myAppDbUser",
+          "spring.datasource.driver-class-name=" + StubJdbcDriver.class.getName(),
+          "spring.datasource.hikari.pool-name=database1",
+          "spring.datasource.hikari.data-source-properties.sslMode=VERIFY_IDENTITY");
+
+  @Test
+  void testIamAuthentication() {
+    mContextRunner
+        .withPropertyValues(RdsIamSpringDatasourceFactory.IAM_AUTHENTICATION + "=true",
+            RdsIamSpringDatasourceFactory.TOKEN_ON_DEMAND + "=true")
+        .run(context -> {
+          HikariDataSource dataSource = context.getBean(HikariDataSource.class);
+
+          // the Hikari properties shall be bound before the IAM authentication is installed
+          assertThat(dataSource.getPoolName()).isEqualTo("database1");
+          assertThat(dataSource.getDataSource()).isInstanceOf(RdsIamAuthenticatingDataSource.class);
+          assertThat(((RdsIamAuthenticatingDataSource) dataSource.getDataSource()).isTokenOnDemand()).isTrue();
+          assertThat(dataSource.getDataSourceProperties()).containsEntry("sslMode", "VERIFY_IDENTITY")
+              .doesNotContainKeys("iam-authentication", "iam-authentication-token-on-demand");
+          // and the shared token registry shall be used
+          assertThat(context.getBean(RdsIamSpringDatasourceFactory.class).getTokenRegistry())
+              .isSameAs(RdsIamAuthenticationTokenRegistry.getSharedInstance());
+          assertThat(dataSource.getConnection()).isNotNull();
+        });
+  }
+
+  @Test
+  void testNoIamAuthentication() {
+    mContextRunner.run(context -> {
+      assertThat(context).doesNotHaveBean(RdsIamSpringDatasourceFactory.class);
+      assertThat(context.getBean(HikariDataSource.class).getDataSource()).isNull();
+    });
+  }
+
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright © 2022 Lucas Persson. All Rights Reserved.
+ */
+package se.solrike.aws.extras.datasourcefactory;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.zaxxer.hikari.HikariConfig;
+import com.zaxxer.hikari.HikariDataSource;
+import com.zaxxer.hikari.metrics.IMetricsTracker;
+
+/**
+ * Cost of recording the connection latencies with {@link RdsIamConnectionMetricsTrackerFactory}, from 4 threads so
+ * contention on the histogram is included. Compare the runs with and without metrics, the difference shall be within
+ * the error of the measurement.
+ * <ul>
+ * <li>getConnection - borrow and return a connection from a pool that connects to the {@link StubJdbcDriver}, what the
+ * application pays</li>
+ * <li>recordAcquire - only the recording of one acquire time</li>
+ * </ul>
+ */
+@BenchmarkMode({ Mode.AverageTime, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(2)
+@Threads(4)
+@State(Scope.Benchmark)
+public class ConnectionMetricsBenchmark {
+
+  private static final String ENDPOINT = "database1.crux4711.eu-north-1.rds.amazonaws.com:3306";
+
+  @Param({ "false", "true" })
+  public boolean metrics;
+
+  private HikariDataSource mDatasource;
+  private IMetricsTracker mTracker;
+
+  @Setup
+  public void setUp() {
+    HikariConfig config = new HikariConfig();
+    config.setJdbcUrl("jdbc:stub://" + ENDPOINT + "/database1");
+    config.setDriverClassName(StubJdbcDriver.class.getName());
+    config.setMaximumPoolSize(4);
+    if (metrics) {
+      config.setMetricsTrackerFactory(new RdsIamConnectionMetricsTrackerFactory(ENDPOINT, null, false));
+    }
+    mDatasource = new HikariDataSource(config);
+    // the no-op tracker is what Hikari uses when there is no metrics tracker factory
+    mTracker = metrics ? new RdsIamConnectionMetricsTrackerFactory(ENDPOINT, null, false).create("benchmark", null)
+        : new IMetricsTracker() {
+          // no-op
+        };
+  }
+
+  @TearDown
+  public void tearDown() {
+    mTracker.close();
+    mDatasource.close();
+  }
+
+  @Benchmark
+  public boolean getConnection() throws SQLException {
+    try (Connection connection = mDatasource.getConnection()) {
+      return connection.getAutoCommit();
+    }
+  }
+
+  @Benchmark
+  public void recordAcquire() {
+    mTracker.recordConnectionAcquiredNanos(System.nanoTime() & 0xFFFFF);
+  }
+
+}
@@ -0,0 +1,56 @@
+/*
+ * Copyright © 2022 Lucas Persson. All Rights Reserved.
+ */
+package se.solrike.aws.extras.datasourcefactory;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of getting the hosts, ports and region from the JDBC URL, which is done every time a datasource is created.
+ * <ul>
+ * <li>parseJdbcUrl - a URL that has been parsed before, what all but the first datasource for a URL pays</li>
+ * <li>parseJdbcUrlUncached - the first time a URL is parsed</li>
+ * </ul>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@State(Scope.Benchmark)
+public class JdbcUrlParsingBenchmark {
+
+  @Param({ "jdbc:mysql://database1.crux4711.eu-north-1.rds.amazonaws.com:3306/database1",
+      "jdbc:postgresql://database1.crux4711.eu-north-1.rds.amazonaws.com:5432/database1?sslmode=verify-full",
+      "jdbc:mysql://database1.crux4711.eu-north-1.rds.amazonaws.com:3306,"
+          + "database2.crux4711.eu-north-1.rds.amazonaws.com:3306/database1" })
+  public String jdbcUrl;
+
+  @Benchmark
+  public RdsIamJdbcUrl parseJdbcUrl() {
+    return RdsIamJdbcUrl.parse(jdbcUrl);
+  }
+
+  @Benchmark
+  public RdsIamJdbcUrl parseJdbcUrlUncached() {
+    return RdsIamJdbcUrl.parseUncached(jdbcUrl);
+  }
+
+  @Benchmark
+  public String parseRegion() {
+    return RdsIamAuthenticationTokenRegistry
+        .getRegionFromHostname(RdsIamJdbcUrl.parse(jdbcUrl).getHost().getHostname());
+  }
+
+}
@@ -0,0 +1,231 @@
+/*
+ * Copyright © 2022 Lucas Persson. All Rights Reserved.
+ */
+package se.solrike.aws.extras.datasourcefactory;
+
+import java.lang.management.ManagementFactory;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.zaxxer.hikari.HikariConfig;
+import com.zaxxer.hikari.HikariDataSource;
+
+/**
+ * Soak and load harness that runs the library at fleet scale against local stand-ins only: {@link FakeRdsUtilities}
+ * signs tokens with a lifetime of seconds and {@link StubJdbcDriver} creates the connections.
+ * <p>
+ * It creates N pools through {@link AbstractRdsIamDatasourceFactory}, lets worker threads take connections from random
+ * pools and evicts all connections of all pools at an interval to simulate a reconnect storm, e.g. after a failover.
+ * At every report interval it prints the thread count, used heap, token refresh lag and the connection acquisition
+ * latency percentiles for the interval.
+ * <p>
+ * Run with <code>./gradlew loadTest -PloadTestArgs="--pools=1000 --duration-seconds=600"</code>. Options and defaults:
+ * <ul>
+ * <li>--pools=200 - number of pools</li>
+ * <li>--users=200 - number of distinct database users, i.e. token refreshers. Pools share refreshers if fewer.</li>
+ * <li>--max-pool-size=2 - connections per pool</li>
+ * <li>--on-demand=false - supply the token on demand instead of the scheduled refresh</li>
+ * <li>--duration-seconds=120 - how long to run</li>
+ * <li>--token-lifetime-seconds=20 - lifetime of the fake tokens</li>
+ * <li>--sign-latency-millis=5 - time to sign a token</li>
+ * <li>--sign-failure-rate=0.01 - probability that signing fails</li>
+ * <li>--connect-latency-millis=2 - time to create a connection</li>
+ * <li>--connections-per-second=0 - throttle the creation of connections to the endpoint, 0 for no throttle</li>
+ * <li>--workers=32 - threads that take connections</li>
+ * <li>--hold-millis=1 - time a connection is used</li>
+ * <li>--eviction-interval-seconds=30 - interval between the evictions of all connections, 0 to disable</li>
+ * <li>--report-interval-seconds=5 - interval between the reports</li>
+ * </ul>
+ * The refresh lag is how much older than expected the oldest token is. A token is expected to be refreshed at
+ * {@link RdsIamAuthenticationTokenCache#DEFAULT_REFRESH_FRACTION} of its lifetime and the signing time has second
+ * resolution, so a lag of up to a second is normal.
+ */
+public final class RdsIamLoadHarness {
+
+  private static final String JDBC_URL = "jdbc:stub://database1.crux4711.eu-north-1.rds.amazonaws.com:3306/database1";
+
+  private final Map<String, String> mOptions;
+  private final FakeRdsUtilities mRdsUtilities = new FakeRdsUtilities();
+  private final List<HikariDataSource> mPools = new ArrayList<>();
+  private final RdsIamLatencyHistogram mAcquireLatency = new RdsIamLatencyHistogram();
+  private final AtomicLong mAcquireFailures = new AtomicLong();
+  private final AtomicLong mEvictions = new AtomicLong();
+  private final RdsIamConnectionThrottle mConnectionThrottle = new RdsIamConnectionThrottle();
+  private final long mStartNanos = System.nanoTime();
+  private volatile boolean mRunning = true;
+
+  private RdsIamLoadHarness(Map<String, String> options) {
+    mOptions = options;
+  }
+
+  public static void main(String[] args) throws InterruptedException {
+    Map<String, String> options = new HashMap<>();
+    for (String arg : args) {
+      int separator = arg.indexOf('=');
+      if (!arg.startsWith("--") || separator < 0) {
+        throw new IllegalArgumentException("Options must be given as --name=value: " + arg);
+      }
+      options.put(arg.substring(2, separator), arg.substring(separator + 1));
+    }
+    new RdsIamLoadHarness(options).run();
+  }
+
+  private void run() throws InterruptedException {
+    int poolCount = getInt("pools", 200);
+    mRdsUtilities.setTokenLifetime(Duration.ofSeconds(getInt("token-lifetime-seconds", 20)));
+    mRdsUtilities.setLatency(Duration.ofMillis(getInt("sign-latency-millis", 5)));
+    StubJdbcDriver.setConnectLatency(Duration.ofMillis(getInt("connect-latency-millis", 2)));
+
+    createPools(poolCount);
+    // the failures are injected after the start, a failure to get the first token fails the start like in production
+    mRdsUtilities.setFailureRate(getDouble("sign-failure-rate", 0.01));
+
+    ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(2);
+    int reportInterval = getInt("report-interval-seconds", 5);
+    scheduler.scheduleAtFixedRate(this::report, reportInterval, reportInterval, TimeUnit.SECONDS);
+    int evictionInterval = getInt("eviction-interval-seconds", 30);
+    if (evictionInterval > 0) {
+      scheduler.scheduleAtFixedRate(this::evictAllConnections, evictionInterval, evictionInterval, TimeUnit.SECONDS);
+    }
+
+    int workerCount = getInt("workers", 32);
+    long holdMillis = getInt("hold-millis", 1);
+    ExecutorService workers = Executors.newFixedThreadPool(workerCount);
+    for (int i = 0; i < workerCount; i++) {
+      workers.execute(() -> work(holdMillis));
+    }
+
+    Thread.sleep(TimeUnit.SECONDS.toMillis(getInt("duration-seconds", 120)));
+    mRunning = false;
+    workers.shutdown();
+    workers.awaitTermination(1, TimeUnit.MINUTES);
+    scheduler.shutdownNow();
+    report();
+    mPools.forEach(HikariDataSource::close);
+  }
+
+  private void createPools(int poolCount) {
+    int userCount = getInt("users", poolCount);
+    int maxPoolSize = getInt("max-pool-size", 2);
+    boolean onDemand = Boolean.parseBoolean(mOptions.getOrDefault("on-demand", "false"));
+    // started right away like in Micronaut
+    HikariConfigDatasourceFactory factory = new HikariConfigDatasourceFactory(true);
+    int connectionsPerSecond = getInt("connections-per-second", 0);
+    if (connectionsPerSecond > 0) {
+      mConnectionThrottle.setEndpointLimit(connectionsPerSecond, connectionsPerSecond);
+      factory.getOptions().setConnectionThrottle(mConnectionThrottle);
+    }
+    long start = System.nanoTime();
+    for (int i = 0; i < poolCount; i++) {
+      String username = "app_user_" + (i % userCount);
+      HikariConfig config = new HikariConfig();
+      config.setJdbcUrl(JDBC_URL);
+      config.setDriverClassName(StubJdbcDriver.class.getName());
+      config.setUsername(username);
+      config.setPoolName("load-" + i);
+      config.setMaximumPoolSize(maxPoolSize);
+      config.setConnectionTimeout(5_000);
+      mPools.add(onDemand ? factory.createOnDemandTokenDatasource(mRdsUtilities, JDBC_URL, username, config)
+          : factory.createDatasource(mRdsUtilities, JDBC_URL, username,
+              AbstractRdsIamDatasourceFactory.DEFAULT_REFRESH_INTERVAL_IN_MINUTES, config));
+    }
+    System.out.printf("Created %d pools for %d users in %d ms (on demand token: %b)%n", poolCount,
+        Math.min(userCount, poolCount), TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), onDemand);
+  }
+
+  private void work(long holdMillis) {
+    while (mRunning) {
+      HikariDataSource pool = mPools.get(ThreadLocalRandom.current().nextInt(mPools.size()));
+      long start = System.nanoTime();
+      try {
+        Connection connection = pool.getConnection();
+        mAcquireLatency.record(System.nanoTime() - start);
+        try {
+          Thread.sleep(holdMillis);
+        }
+        finally {
+          connection.close();
+        }
+      }
+      catch (SQLException e) {
+        mAcquireFailures.incrementAndGet();
+      }
+      catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return;
+      }
+    }
+  }
+
+  private void evictAllConnections() {
+    for (HikariDataSource pool : mPools) {
+      if (pool.getHikariPoolMXBean() != null) {
+        pool.getHikariPoolMXBean().softEvictConnections();
+      }
+    }
+    mEvictions.incrementAndGet();
+  }
+
+  private void report() {
+    Set<RdsIamAuthenticationTokenRefresher> refreshers = Collections.newSetFromMap(new IdentityHashMap<>());
+    for (HikariDataSource pool : mPools) {
+      if (pool.getDataSource() instanceof RdsIamAuthenticatingDataSource) {
+        refreshers.add(((RdsIamAuthenticatingDataSource) pool.getDataSource()).getRefresher());
+      }
+    }
+    Instant now = Instant.now();
+    long maxTokenAgeMillis = 0;
+    long expectedRefreshAgeMillis = 0;
+    int staleCount = 0;
+    for (RdsIamAuthenticationTokenRefresher refresher : refreshers) {
+      RdsIamAuthenticationToken token = refresher.getTokenCache().getCurrentToken();
+      if (token != null) {
+        maxTokenAgeMillis = Math.max(maxTokenAgeMillis, Duration.between(token.getIssuedAt(), now).toMillis());
+        expectedRefreshAgeMillis = (long) (Duration.between(token.getIssuedAt(), token.getExpiresAt()).toMillis()
+            * RdsIamAuthenticationTokenCache.DEFAULT_REFRESH_FRACTION);
+      }
+      if (refresher.isTokenStale()) {
+        staleCount++;
+      }
+    }
+    RdsIamLatencyHistogram.Snapshot acquire = mAcquireLatency.getSnapshot();
+    mAcquireLatency.reset();
+    RdsIamLatencyHistogram.Snapshot throttleWait = mConnectionThrottle.getWaitTime().getSnapshot();
+    mConnectionThrottle.getWaitTime().reset();
+    System.out.printf(
+        "%5ds threads=%d heapMB=%d refreshers=%d stale=%d refreshLagMs=%d tokens=%d signFailures=%d connects=%d "
+            + "evictions=%d acquires=%d acquireP50Ms=%.2f acquireP99Ms=%.2f acquireMaxMs=%.2f acquireFailures=%d "
+            + "throttleWaitP99Ms=%.2f%n",
+        TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - mStartNanos),
+        ManagementFactory.getThreadMXBean().getThreadCount(),
+        ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed() / (1024 * 1024), refreshers.size(),
+        staleCount, Math.max(0, maxTokenAgeMillis - expectedRefreshAgeMillis), mRdsUtilities.getTokenCount(),
+        mRdsUtilities.getFailureCount(), StubJdbcDriver.getConnectCount(), mEvictions.get(), acquire.getCount(),
+        acquire.getP50Nanos() / 1e6, acquire.getP99Nanos() / 1e6, acquire.getMaxNanos() / 1e6,
+        mAcquireFailures.getAndSet(0), throttleWait.getP99Nanos() / 1e6);
+  }
+
+  private int getInt(String name, int defaultValue) {
+    return Integer.parseInt(mOptions.getOrDefault(name, Integer.toString(defaultValue)));
+  }
+
+  private double getDouble(String name, double defaultValue) {
+    return Double.parseDouble(mOptions.getOrDefault(name, Double.toString(defaultValue)));
+  }
+
+}
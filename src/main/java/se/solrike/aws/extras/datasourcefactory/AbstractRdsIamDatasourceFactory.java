@@ -3,10 +3,26 @@
  */
 package se.solrike.aws.extras.datasourcefactory;
 
-import java.net.URI;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.function.Supplier;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.zaxxer.hikari.HikariConfig;
 import com.zaxxer.hikari.HikariDataSource;
 
+import software.amazon.awssdk.auth.credentials.AwsCredentialsProvider;
+import software.amazon.awssdk.regions.Region;
+import software.amazon.awssdk.regions.providers.DefaultAwsRegionProviderChain;
 import software.amazon.awssdk.services.rds.RdsUtilities;
 
 /**
@@ -15,20 +31,102 @@ import software.amazon.awssdk.services.rds.RdsUtilities;
  */
 @SuppressWarnings("java:S1610")
 public abstract class AbstractRdsIamDatasourceFactory<C> {
+  private static final Logger sLogger = LoggerFactory.getLogger(AbstractRdsIamDatasourceFactory.class);
+
+  /**
+   * Token refresh interval used when nothing else is specified.
+   */
+  public static final int DEFAULT_REFRESH_INTERVAL_IN_MINUTES = 14;
+
+  private volatile RdsIamDatasourceOptions mOptions = new RdsIamDatasourceOptions();
+  private volatile RdsIamAuthenticationTokenRegistry mTokenRegistry = RdsIamAuthenticationTokenRegistry
+      .getSharedInstance();
+  private volatile RdsIamDataSourceCloseWatcher mCloseWatcher = new RdsIamDataSourceCloseWatcher();
+  // guarded by itself, one RdsUtilities per credentials provider and region so the datasources can share tokens
+  private final Map<AwsCredentialsProvider, Map<Region, SharedRdsUtilities>> mRdsUtilities = new IdentityHashMap<>();
+
+  /**
+   * Give the datasources created by this factory from now on the optional features of the given options, e.g. a
+   * throttle on the creation of the physical connections or the shared TLS context. A datasource gets the options as
+   * they are when it is created.
+   *
+   * @param options
+   *          - the optional features. Default none of them.
+   */
+  public void setOptions(RdsIamDatasourceOptions options) {
+    mOptions = options;
+  }
+
+  /**
+   * @return the optional features of the datasources, change them through this object
+   */
+  public RdsIamDatasourceOptions getOptions() {
+    return mOptions;
+  }
+
+  /**
+   * Take the token refreshers of the datasources created by this factory from now on from the given registry, e.g. one
+   * that is managed by a dependency injection container.
+   *
+   * @param tokenRegistry
+   *          - registry of the refreshers. Default the shared registry.
+   */
+  public void setTokenRegistry(RdsIamAuthenticationTokenRegistry tokenRegistry) {
+    mTokenRegistry = tokenRegistry;
+  }
+
+  /**
+   * @return registry of the token refreshers
+   */
+  public RdsIamAuthenticationTokenRegistry getTokenRegistry() {
+    return mTokenRegistry;
+  }
+
+  /**
+   * Stop the token refresh of the datasources created by this factory from now on through the given watcher when they
+   * are closed.
+   *
+   * @param closeWatcher
+   *          - watcher of the datasources. Default a watcher of this factory on the shared scheduler.
+   */
+  public void setCloseWatcher(RdsIamDataSourceCloseWatcher closeWatcher) {
+    mCloseWatcher = closeWatcher;
+  }
+
+  /**
+   * @return watcher that cleans up after the datasources created by this factory when they are closed
+   */
+  public RdsIamDataSourceCloseWatcher getCloseWatcher() {
+    return mCloseWatcher;
+  }
 
   /**
    * Create the datasource and but first reconfigure it to support IAM DB authentication and enable password/token
    * refresh using Hikari's MXBean.
+   * <p>
+   * The token refresh runs on the shared {@link RdsIamTokenRefreshScheduler} and is stopped by the
+   * {@link RdsIamDataSourceCloseWatcher} when the returned datasource is closed. Datasources that connect to the same
+   * database with the same user share the same token, see {@link RdsIamAuthenticationTokenRegistry}.
+   * <p>
+   * If the datasource configuration is a HikariConfig, or the created datasource isn't started yet, the physical
+   * connections are created through a {@link RdsIamAuthenticatingDataSource} which regenerates the token and retries
+   * once if the database rejects the token.
+   * <p>
+   * Note that the given datasource configuration is modified: the token is set as its password and a HikariConfig
+   * also gets the authenticating datasource, and the features that are enabled in the {@link #getOptions() options}.
+   * Use a copy, e.g. from <code>HikariConfig.copyStateTo()</code>, to create several datasources from the same
+   * configuration.
    *
    * @param rdsUtilities
-   *          - AWS SDK utilities class. Get it from RdsClient.create().utilities()
+   *          - AWS SDK utilities class. Get it from RdsUtilities.builder() or RdsClient.create().utilities()
    * @param jdbcUrl
    *          - e.g. jdbc:mysql://database1.crux4711.eu-north-1.rds.amazonaws.com:3306/database1. The hostname must be
    *          know to AWS RDS so it can't be from a private DNS. The URL must also have a port defined.
    * @param dbUsername
    *          - database username for the application
    * @param refreshIntervalInMinutes
-   *          - auth token refresh interval. Token only valid for 15 min so it must be refreshed like every 14 min.
+   *          - max auth token refresh interval. Token only valid for 15 min so it must be refreshed like every 14 min.
+   *          The refresh is normally done earlier, at a fraction of the token's remaining lifetime with some jitter.
    * @param datasourceConfiguration
    *          - datasource configuration properties.
    * @return a datasource
@@ -36,22 +134,276 @@ public abstract class AbstractRdsIamDatasourceFactory<C> {
   protected HikariDataSource createDatasource(RdsUtilities rdsUtilities, String jdbcUrl, String dbUsername,
       int refreshIntervalInMinutes, C datasourceConfiguration) {
 
-    String dbHostname = getUriFromJdbcUrl(jdbcUrl).getHost();
-    int dbPort = getUriFromJdbcUrl(jdbcUrl).getPort();
+    List<RdsIamAuthenticationTokenRefresher> refreshers = getRefreshers(rdsUtilities, jdbcUrl, dbUsername);
+    RdsIamAuthenticationTokenRefresher refresher = refreshers.get(0);
 
-    RdsIamAuthenticationTokenRefresher refresher = new RdsIamAuthenticationTokenRefresher(rdsUtilities, dbHostname,
-        dbPort, dbUsername);
+    RdsIamDatasourceOptions.Installer installer = mOptions.newInstaller(jdbcUrl, refresher);
+    HikariDataSource datasource;
+    try {
+      if (datasourceConfiguration instanceof HikariConfig) {
+        install((HikariConfig) datasourceConfiguration, refreshers, false, installer);
+      }
 
-    // unfortunately the Hikari datasource tries to connect to the DB directly when it is created so the token needs
-    // to be generated from start in case of Micronaut
-    setPassword(refresher.getAuthenticationToken(), datasourceConfiguration);
+      // unfortunately the Hikari datasource tries to connect to the DB directly when it is created so the token needs
+      // to be generated from start in case of Micronaut
+      setPassword(refresher.getAuthenticationToken(), datasourceConfiguration);
 
-    HikariDataSource datasource = doCreateDatasource(datasourceConfiguration);
-    refresher.start(datasource.getHikariConfigMXBean(), refreshIntervalInMinutes);
+      datasource = doCreateDatasource(datasourceConfiguration);
+      installer.setDatasource(datasource);
+      if (!datasource.isRunning() && !datasource.isClosed()) {
+        install(datasource, refreshers, false, installer);
+      }
+    }
+    catch (RuntimeException e) {
+      refreshers.forEach(RdsIamAuthenticationTokenRefresher::release);
+      throw e;
+    }
+    mCloseWatcher.watch(datasource, refresher.start(datasource.getHikariConfigMXBean(), refreshIntervalInMinutes));
+    startFailoverRefreshers(datasource, refreshers, refreshIntervalInMinutes);
+    installer.start(datasource, mCloseWatcher);
     return datasource;
 
   }
 
+  /**
+   * Same as {@link #createDatasource(RdsUtilities, String, String, int, Object)} but without the need for a RdsClient.
+   * The token is signed by a RdsUtilities that only has the credentials provider and the region, which avoids
+   * creating a HTTP client and all the other things a RdsClient needs. The RdsUtilities is shared by the datasources
+   * of this factory with the same credentials provider and region so they can share tokens. Its credentials are
+   * prefetched by a {@link RdsIamPrefetchingCredentialsProvider} until the last of those datasources is closed.
+   *
+   * @param credentialsProvider
+   *          - credentials used to sign the token, e.g. DefaultCredentialsProvider.create()
+   * @param region
+   *          - region of the database. If null it is taken from the RDS hostname or from the default region provider
+   *          chain.
+   * @param jdbcUrl
+   *          - e.g. jdbc:mysql://database1.crux4711.eu-north-1.rds.amazonaws.com:3306/database1. The hostname must be
+   *          know to AWS RDS so it can't be from a private DNS. The URL must also have a port defined.
+   * @param dbUsername
+   *          - database username for the application
+   * @param refreshIntervalInMinutes
+   *          - max auth token refresh interval.
+   * @param datasourceConfiguration
+   *          - datasource configuration properties.
+   * @return a datasource
+   */
+  protected HikariDataSource createDatasource(AwsCredentialsProvider credentialsProvider, Region region,
+      String jdbcUrl, String dbUsername, int refreshIntervalInMinutes, C datasourceConfiguration) {
+    return createDatasource(credentialsProvider, region, jdbcUrl, rdsUtilities -> createDatasource(rdsUtilities,
+        jdbcUrl, dbUsername, refreshIntervalInMinutes, datasourceConfiguration));
+  }
+
+  /**
+   * Create the datasource but first reconfigure it to support IAM DB authentication where the token is supplied on
+   * demand when the pool creates a physical connection, instead of being pushed to the pool at regular intervals.
+   * <p>
+   * The token is cached and only generated when a connection is created and the cached token has expired, so pools
+   * without connection churn cost nothing. This requires that the physical connections can be created through a
+   * {@link RdsIamAuthenticatingDataSource}, i.e. that the datasource configuration is a HikariConfig or that the
+   * created datasource isn't started yet. Otherwise it falls back to a scheduled refresh.
+   * <p>
+   * The given datasource configuration is modified in the same way as by
+   * {@link #createDatasource(RdsUtilities, String, String, int, Object)}.
+   *
+   * @param rdsUtilities
+   *          - AWS SDK utilities class. Get it from RdsUtilities.builder() or RdsClient.create().utilities()
+   * @param jdbcUrl
+   *          - e.g. jdbc:mysql://database1.crux4711.eu-north-1.rds.amazonaws.com:3306/database1. The hostname must be
+   *          know to AWS RDS so it can't be from a private DNS. The URL must also have a port defined.
+   * @param dbUsername
+   *          - database username for the application
+   * @param datasourceConfiguration
+   *          - datasource configuration properties.
+   * @return a datasource
+   */
+  protected HikariDataSource createOnDemandTokenDatasource(RdsUtilities rdsUtilities, String jdbcUrl,
+      String dbUsername, C datasourceConfiguration) {
+
+    List<RdsIamAuthenticationTokenRefresher> refreshers = getRefreshers(rdsUtilities, jdbcUrl, dbUsername);
+    RdsIamAuthenticationTokenRefresher refresher = refreshers.get(0);
+
+    boolean installed = false;
+    RdsIamDatasourceOptions.Installer installer = mOptions.newInstaller(jdbcUrl, refresher);
+    HikariDataSource datasource;
+    try {
+      if (datasourceConfiguration instanceof HikariConfig) {
+        installed = install((HikariConfig) datasourceConfiguration, refreshers, true, installer);
+      }
+      if (!installed && isStartedOnCreation()) {
+        // the datasource connects directly when it is created
+        setPassword(refresher.getAuthenticationToken(), datasourceConfiguration);
+      }
+
+      datasource = doCreateDatasource(datasourceConfiguration);
+      installer.setDatasource(datasource);
+      if (!datasource.isRunning() && !datasource.isClosed()) {
+        installed = install(datasource, refreshers, true, installer) || installed;
+      }
+    }
+    catch (RuntimeException e) {
+      refreshers.forEach(RdsIamAuthenticationTokenRefresher::release);
+      throw e;
+    }
+    if (!installed) {
+      sLogger.info("Can't supply the authentication token on demand for database pool '{}', use scheduled refresh",
+          datasource.getPoolName());
+      datasource.getHikariConfigMXBean().setPassword(refresher.getAuthenticationToken());
+      mCloseWatcher.watch(datasource,
+          refresher.start(datasource.getHikariConfigMXBean(), DEFAULT_REFRESH_INTERVAL_IN_MINUTES));
+      startFailoverRefreshers(datasource, refreshers, DEFAULT_REFRESH_INTERVAL_IN_MINUTES);
+    }
+    else {
+      releaseOnClose(datasource, refreshers);
+    }
+    installer.start(datasource, mCloseWatcher);
+    return datasource;
+  }
+
+  /**
+   * Same as {@link #createOnDemandTokenDatasource(RdsUtilities, String, String, Object)} but without the need for a
+   * RdsClient. The token is signed by a RdsUtilities that only has the credentials provider and the region, shared by
+   * the datasources of this factory with the same credentials provider and region.
+   *
+   * @param credentialsProvider
+   *          - credentials used to sign the token, e.g. DefaultCredentialsProvider.create()
+   * @param region
+   *          - region of the database. If null it is taken from the RDS hostname or from the default region provider
+   *          chain.
+   * @param jdbcUrl
+   *          - e.g. jdbc:mysql://database1.crux4711.eu-north-1.rds.amazonaws.com:3306/database1. The hostname must be
+   *          know to AWS RDS so it can't be from a private DNS. The URL must also have a port defined.
+   * @param dbUsername
+   *          - database username for the application
+   * @param datasourceConfiguration
+   *          - datasource configuration properties.
+   * @return a datasource
+   */
+  protected HikariDataSource createOnDemandTokenDatasource(AwsCredentialsProvider credentialsProvider, Region region,
+      String jdbcUrl, String dbUsername, C datasourceConfiguration) {
+    return createDatasource(credentialsProvider, region, jdbcUrl, rdsUtilities -> createOnDemandTokenDatasource(
+        rdsUtilities, jdbcUrl, dbUsername, datasourceConfiguration));
+  }
+
+  /**
+   * Return a datasource right away and create the real datasource in the background. Use it to create many
+   * datasources in parallel and to keep the token signing and the first connects out of the application startup, e.g.
+   * <code>createDeferredDatasource(() -&gt; createDatasource(rdsUtilities, jdbcUrl, user, 14, config), timeout)</code>
+   * <p>
+   * The first call to getConnection() blocks until the datasource is ready or the readiness timeout has passed. Note
+   * that configuration errors are then reported at first use instead of at startup, use
+   * {@link RdsIamDeferredDataSource#awaitReady(Duration)} to check them in e.g. a readiness probe.
+   *
+   * @param datasourceCreator
+   *          - creates the datasource, typically by calling one of the createDatasource methods
+   * @param readinessTimeout
+   *          - max time getConnection() waits for the datasource to be ready
+   * @return a datasource that is created and started in the background
+   */
+  protected RdsIamDeferredDataSource createDeferredDatasource(Supplier<HikariDataSource> datasourceCreator,
+      Duration readinessTimeout) {
+    RdsIamDeferredDataSource datasource = new RdsIamDeferredDataSource(datasourceCreator);
+    datasource.setReadinessTimeout(readinessTimeout);
+    return datasource;
+  }
+
+  /**
+   * Create a datasource that sends read-only work to the readers and everything else to the writer, with one IAM
+   * authenticated pool per endpoint, e.g.
+   * <code>createRoutingDatasource(writerUrl, readerUrls, url -&gt; createOnDemandTokenDatasource(rdsUtilities, url,
+   * user, configFor(url)))</code>
+   * <p>
+   * The endpoints have to be instance endpoints or the writer and reader endpoints of a cluster, each JDBC URL gets its
+   * own token since the token is signed for the hostname. The endpoints are named after the JDBC URLs in the routing
+   * datasource, the pools keep the names given by the creator. The pools are closed when the routing datasource is
+   * closed, or right away if the creator fails for one of them.
+   *
+   * @param writerJdbcUrl
+   *          - JDBC URL of the writer
+   * @param readerJdbcUrls
+   *          - JDBC URLs of the readers
+   * @param datasourceCreator
+   *          - creates the pool for a JDBC URL, typically by calling one of the createDatasource methods
+   * @return a routing datasource
+   */
+  protected RdsIamRoutingDataSource createRoutingDatasource(String writerJdbcUrl, Collection<String> readerJdbcUrls,
+      Function<String, HikariDataSource> datasourceCreator) {
+    RdsIamRoutingDataSource datasource = new RdsIamRoutingDataSource(writerJdbcUrl,
+        datasourceCreator.apply(writerJdbcUrl));
+    try {
+      for (String readerJdbcUrl : readerJdbcUrls) {
+        datasource.addReader(readerJdbcUrl, datasourceCreator.apply(readerJdbcUrl));
+      }
+    }
+    catch (RuntimeException e) {
+      datasource.close();
+      throw e;
+    }
+    return datasource;
+  }
+
+  /**
+   * Create a routing datasource with one IAM authenticated pool per instance of a cluster, which follows the topology
+   * of the cluster, e.g. <code>createClusterDatasource(new RdsIamDescribeClusterTopologyProvider(rdsClient, cluster),
+   * member -&gt; createOnDemandTokenDatasource(rdsUtilities, member.getJdbcUrl(clusterUrl), user,
+   * configFor(member)), RdsIamClusterPoolManager.DEFAULT_DISCOVERY_INTERVAL).getDataSource()</code>
+   * <p>
+   * Pools are added for new instances and drained and closed for removed ones, and the writer pool is switched on
+   * failover, see {@link RdsIamClusterPoolManager}. Close the returned manager to close all pools.
+   *
+   * @param topologyProvider
+   *          - discovers the instances of the cluster
+   * @param datasourceCreator
+   *          - creates the pool for an instance, typically by calling one of the createDatasource methods
+   * @param discoveryInterval
+   *          - interval between the discoveries of the topology
+   * @return the started manager of the pools
+   */
+  protected RdsIamClusterPoolManager createClusterDatasource(RdsIamClusterTopologyProvider topologyProvider,
+      Function<RdsIamClusterMember, HikariDataSource> datasourceCreator, Duration discoveryInterval) {
+    RdsIamClusterPoolManager manager = new RdsIamClusterPoolManager(topologyProvider, datasourceCreator);
+    manager.start(discoveryInterval);
+    return manager;
+  }
+
+  /**
+   * Create a registry with one pool per tenant that creates the pools on first use and evicts the idle ones, e.g.
+   * <code>createTenantDatasourceRegistry(user -&gt; createOnDemandTokenDatasource(rdsUtilities, jdbcUrl, user,
+   * configFor(user)))</code>. With token on demand no refresh task is scheduled per tenant and the token is only
+   * generated when a connection is created.
+   *
+   * @param <K>
+   *          tenant key
+   * @param datasourceCreator
+   *          - creates the pool for a tenant, typically by calling one of the createDatasource methods
+   * @return the registry, close it to close all pools
+   */
+  protected <K> RdsIamTenantDataSourceRegistry<K> createTenantDatasourceRegistry(
+      Function<K, HikariDataSource> datasourceCreator) {
+    return new RdsIamTenantDataSourceRegistry<>(datasourceCreator);
+  }
+
+  /**
+   * Create the RdsUtilities that signs the tokens without creating a RdsClient. Give it a
+   * {@link RdsIamPrefetchingCredentialsProvider} so signing a token doesn't block on network I/O.
+   *
+   * @param credentialsProvider
+   *          - credentials used to sign the token
+   * @param region
+   *          - region of the database. If null it is taken from the RDS hostname in the JDBC URL or from the default
+   *          region provider chain.
+   * @param jdbcUrl
+   *          - JDBC URL of the database
+   * @return the RdsUtilities
+   */
+  protected static RdsUtilities createRdsUtilities(AwsCredentialsProvider credentialsProvider, Region region,
+      String jdbcUrl) {
+    return RdsUtilities.builder()
+        .credentialsProvider(credentialsProvider)
+        .region(getSigningRegion(region, jdbcUrl))
+        .build();
+  }
+
   /**
    * Actually create the datasource using the platform (e.g. Spring/Micronaut etc) specific factory.
    *
@@ -61,6 +413,19 @@ public abstract class AbstractRdsIamDatasourceFactory<C> {
    */
   protected abstract HikariDataSource doCreateDatasource(C datasourceConfiguration);
 
+  /**
+   * Tell if the datasource created by {@link #doCreateDatasource(Object)} might already be started, i.e. connect to the
+   * database when it is created. The on demand mode then has to generate a token before the datasource is created,
+   * unless the datasource configuration is a HikariConfig. Return false if the datasource is never started on
+   * creation, e.g. when it is created by Spring's DataSourceBuilder, so no token is generated until the first
+   * connection is created.
+   *
+   * @return true if the created datasource might be started. Default true.
+   */
+  protected boolean isStartedOnCreation() {
+    return true;
+  }
+
   /**
    * Update the password on the configuration.
    *
@@ -71,9 +436,163 @@ public abstract class AbstractRdsIamDatasourceFactory<C> {
    */
   protected abstract void setPassword(String password, C datasourceConfiguration);
 
-  private URI getUriFromJdbcUrl(String url) {
-    // peal off 'jdbc:' so the parser works
-    return URI.create(url.substring(5));
+  /*
+   * The registry only shares refreshers between datasources with the same RdsUtilities instance. The RdsUtilities and
+   * the prefetch of its credentials are released when the last datasource that uses it is closed.
+   */
+  private HikariDataSource createDatasource(AwsCredentialsProvider credentialsProvider, Region region, String jdbcUrl,
+      Function<RdsUtilities, HikariDataSource> datasourceCreator) {
+    SharedRdsUtilities rdsUtilities = acquireRdsUtilities(credentialsProvider, getSigningRegion(region, jdbcUrl));
+    HikariDataSource datasource;
+    try {
+      datasource = datasourceCreator.apply(rdsUtilities.mRdsUtilities);
+    }
+    catch (RuntimeException e) {
+      releaseRdsUtilities(rdsUtilities);
+      throw e;
+    }
+    mCloseWatcher.watch(datasource, () -> releaseRdsUtilities(rdsUtilities));
+    return datasource;
+  }
+
+  private SharedRdsUtilities acquireRdsUtilities(AwsCredentialsProvider credentialsProvider, Region signingRegion) {
+    synchronized (mRdsUtilities) {
+      SharedRdsUtilities rdsUtilities = mRdsUtilities.computeIfAbsent(credentialsProvider, key -> new HashMap<>())
+          .computeIfAbsent(signingRegion, key -> new SharedRdsUtilities(credentialsProvider, key));
+      rdsUtilities.mReferenceCount++;
+      return rdsUtilities;
+    }
+  }
+
+  private void releaseRdsUtilities(SharedRdsUtilities rdsUtilities) {
+    synchronized (mRdsUtilities) {
+      if (--rdsUtilities.mReferenceCount > 0) {
+        return;
+      }
+      Map<Region, SharedRdsUtilities> byRegion = mRdsUtilities.get(rdsUtilities.mCredentialsProvider);
+      byRegion.remove(rdsUtilities.mRegion);
+      if (byRegion.isEmpty()) {
+        mRdsUtilities.remove(rdsUtilities.mCredentialsProvider);
+      }
+    }
+    if (rdsUtilities.mPrefetchingCredentialsProvider != null) {
+      rdsUtilities.mPrefetchingCredentialsProvider.close();
+    }
+  }
+
+  private static Region getSigningRegion(Region region, String jdbcUrl) {
+    if (region != null) {
+      return region;
+    }
+    String regionFromHostname = RdsIamAuthenticationTokenRegistry
+        .getRegionFromHostname(RdsIamJdbcUrl.parse(jdbcUrl).getHost().getHostname());
+    return regionFromHostname != null ? Region.of(regionFromHostname) : new DefaultAwsRegionProviderChain().getRegion();
+  }
+
+  /*
+   * The refreshers of the failover hosts are started like the one of the primary host, but without setting the
+   * password, so their tokens are fresh when the datasource fails over. If the datasource doesn't connect to the hosts
+   * separately their references are only released when it is closed.
+   */
+  private void startFailoverRefreshers(HikariDataSource datasource, List<RdsIamAuthenticationTokenRefresher> refreshers,
+      int refreshIntervalInMinutes) {
+    List<RdsIamAuthenticationTokenRefresher> failoverRefreshers = refreshers.subList(1, refreshers.size());
+    if (failoverRefreshers.isEmpty()) {
+      return;
+    }
+    if (datasource.getDataSource() instanceof RdsIamAuthenticatingDataSource
+        && ((RdsIamAuthenticatingDataSource) datasource.getDataSource()).getFailoverRefreshers()
+            .equals(failoverRefreshers)) {
+      for (RdsIamAuthenticationTokenRefresher refresher : failoverRefreshers) {
+        mCloseWatcher.watch(datasource,
+            refresher.startForFailover(datasource.getHikariConfigMXBean(), refreshIntervalInMinutes));
+      }
+    }
+    else {
+      releaseOnClose(datasource, failoverRefreshers);
+    }
+  }
+
+  /*
+   * The references to the refreshers that aren't started for the datasource are released when it is closed.
+   */
+  private void releaseOnClose(HikariDataSource datasource, List<RdsIamAuthenticationTokenRefresher> refreshers) {
+    for (RdsIamAuthenticationTokenRefresher refresher : refreshers) {
+      mCloseWatcher.watch(datasource, refresher::release);
+    }
+  }
+
+  /*
+   * One refresher per host if the JDBC URL has several hosts for failover, the first is for the primary host.
+   */
+  private List<RdsIamAuthenticationTokenRefresher> getRefreshers(RdsUtilities rdsUtilities, String jdbcUrl,
+      String dbUsername) {
+    RdsIamJdbcUrl parsedJdbcUrl = RdsIamJdbcUrl.parse(jdbcUrl);
+    List<RdsIamJdbcUrl.Host> hosts = parsedJdbcUrl.isFailover() ? parsedJdbcUrl.getHosts()
+        : Collections.singletonList(parsedJdbcUrl.getHost());
+    RdsIamAuthenticationTokenRegistry tokenRegistry = mTokenRegistry;
+    List<RdsIamAuthenticationTokenRefresher> refreshers = new ArrayList<>(hosts.size());
+    for (RdsIamJdbcUrl.Host host : hosts) {
+      refreshers.add(tokenRegistry.getRefresher(rdsUtilities, host.getHostname(), host.getPort(), dbUsername));
+    }
+    return refreshers;
+  }
+
+  /*
+   * The one place where a configuration that isn't started yet is changed: the options around the authenticating
+   * datasource, see the installer, and the authenticating datasource itself.
+   */
+  private static boolean install(HikariConfig hikariConfig, List<RdsIamAuthenticationTokenRefresher> refreshers,
+      boolean tokenOnDemand, RdsIamDatasourceOptions.Installer installer) {
+    installer.installSslContext(hikariConfig);
+    boolean installed = installAuthenticatingDataSource(hikariConfig, refreshers, tokenOnDemand);
+    installer.install(hikariConfig);
+    return installed;
+  }
+
+  /*
+   * Only possible when Hikari creates the connections from a JDBC URL and the configuration isn't sealed yet. The
+   * tokens of the failover hosts are generated right away so they are ready when the primary host fails.
+   */
+  private static boolean installAuthenticatingDataSource(HikariConfig hikariConfig,
+      List<RdsIamAuthenticationTokenRefresher> refreshers, boolean tokenOnDemand) {
+    if (hikariConfig.getDataSource() == null && hikariConfig.getDataSourceClassName() == null
+        && hikariConfig.getJdbcUrl() != null) {
+      RdsIamAuthenticatingDataSource authenticatingDataSource = RdsIamAuthenticatingDataSource
+          .fromHikariConfig(hikariConfig, refreshers, tokenOnDemand);
+      authenticatingDataSource.getFailoverRefreshers()
+          .forEach(RdsIamAuthenticationTokenRefresher::getAuthenticationToken);
+      hikariConfig.setDataSource(authenticatingDataSource);
+      return true;
+    }
+    return hikariConfig.getDataSource() instanceof RdsIamAuthenticatingDataSource
+        && ((RdsIamAuthenticatingDataSource) hikariConfig.getDataSource()).isTokenOnDemand() == tokenOnDemand;
+  }
+
+  /*
+   * The credentials are prefetched in the background so signing a token doesn't block on network I/O.
+   */
+  private static final class SharedRdsUtilities {
+    private final AwsCredentialsProvider mCredentialsProvider;
+    private final Region mRegion;
+    private final RdsIamPrefetchingCredentialsProvider mPrefetchingCredentialsProvider;
+    private final RdsUtilities mRdsUtilities;
+    // guarded by the map of the factory
+    private int mReferenceCount;
+
+    SharedRdsUtilities(AwsCredentialsProvider credentialsProvider, Region region) {
+      mCredentialsProvider = credentialsProvider;
+      mRegion = region;
+      // a prefetching provider from the caller is the caller's to close
+      if (credentialsProvider instanceof RdsIamPrefetchingCredentialsProvider) {
+        mPrefetchingCredentialsProvider = null;
+        mRdsUtilities = createRdsUtilities(credentialsProvider, region, null);
+      }
+      else {
+        mPrefetchingCredentialsProvider = RdsIamPrefetchingCredentialsProvider.prefetching(credentialsProvider);
+        mRdsUtilities = createRdsUtilities(mPrefetchingCredentialsProvider, region, null);
+      }
+    }
   }
 
 }
@@ -0,0 +1,458 @@
+/*
+ * Copyright © 2022 Lucas Persson. All Rights Reserved.
+ */
+package se.solrike.aws.extras.datasourcefactory;
+
+import java.io.PrintWriter;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Supplier;
+import java.util.logging.Logger;
+
+import javax.sql.DataSource;
+
+import com.zaxxer.hikari.HikariConfig;
+import com.zaxxer.hikari.util.DriverDataSource;
+
+/**
+ * DataSource that Hikari uses to create its physical connections. It is installed by
+ * {@link AbstractRdsIamDatasourceFactory} in front of the JDBC driver.
+ * <p>
+ * If the database rejects the token, e.g. after clock skew, credential rotation or a missed refresh, a new token is
+ * generated right away (only once for many concurrent failures) and the connect is retried once with the new token.
+ * The new token is also set on the pool so the next connections use it directly.
+ * <p>
+ * With token on demand the password given by the pool is ignored and the token is taken from the refresher's cache
+ * when the connection is created. A token is then only generated when a physical connection is created and the cached
+ * token has expired, so a pool without connection churn doesn't need any scheduled refresh.
+ * <p>
+ * With a {@link RdsIamConnectionThrottle} every connection attempt, including the retry, first waits for a permit so
+ * a reconnect storm doesn't exceed the rate of new connections that the database accepts.
+ * <p>
+ * A token is only valid for the host it was signed for, so a driver that fails over to another host of a multi-host
+ * JDBC URL would authenticate with the wrong token. Instead each host is connected to separately, each with the token
+ * from its own refresher, see {@link #addFailoverHost(Supplier, RdsIamAuthenticationTokenRefresher)}. The next host is
+ * only tried when the host can't be reached, see {@link #isConnectionFailure(SQLException)}. The last host that could
+ * be reached is tried first, so the connections after a failover don't wait for the failed host each time.
+ * <p>
+ * With a {@link RdsIamConnectionRecycler} the created connections are tracked by it so it can retire them at an even
+ * pace.
+ */
+public class RdsIamAuthenticatingDataSource implements DataSource {
+
+  // MySQL/MariaDB: access denied (1045) is reported with SQL state 28000
+  private static final String SQL_STATE_INVALID_AUTHORIZATION = "28000";
+  // PostgreSQL: invalid_password
+  private static final String SQL_STATE_INVALID_PASSWORD = "28P01";
+  private static final int MYSQL_ACCESS_DENIED = 1045;
+  // SQL state class of the connection exceptions, e.g. 08001 unable to connect and 08S01 communication link failure
+  private static final String SQL_STATE_CLASS_CONNECTION_EXCEPTION = "08";
+
+  private final Supplier<DataSource> mDelegateSupplier;
+  private final RdsIamAuthenticationTokenRefresher mRefresher;
+  private final boolean mTokenOnDemand;
+  private final List<FailoverHost> mFailoverHosts = new CopyOnWriteArrayList<>();
+  private volatile DataSource mDelegate;
+  private volatile RdsIamConnectionThrottle mConnectionThrottle;
+  private volatile RdsIamConnectionRecycler mConnectionRecycler;
+  // the host that was connected to last, 0 for the first host and then the failover hosts in the order they were added
+  private volatile int mCurrentHost;
+
+  /**
+   * @param delegate
+   *          - the datasource that creates the physical connections, typically a driver based datasource
+   * @param refresher
+   *          - refresher that holds the token for the database user
+   */
+  public RdsIamAuthenticatingDataSource(DataSource delegate, RdsIamAuthenticationTokenRefresher refresher) {
+    this(() -> delegate, refresher);
+  }
+
+  /**
+   * @param delegateSupplier
+   *          - creates the datasource that creates the physical connections. Called once when the first connection is
+   *          created.
+   * @param refresher
+   *          - refresher that holds the token for the database user
+   */
+  public RdsIamAuthenticatingDataSource(Supplier<DataSource> delegateSupplier,
+      RdsIamAuthenticationTokenRefresher refresher) {
+    this(delegateSupplier, refresher, false);
+  }
+
+  /**
+   * @param delegateSupplier
+   *          - creates the datasource that creates the physical connections. Called once when the first connection is
+   *          created.
+   * @param refresher
+   *          - refresher that holds the token for the database user
+   * @param tokenOnDemand
+   *          - true to ignore the password from the pool and take the token from the refresher's cache instead
+   */
+  public RdsIamAuthenticatingDataSource(Supplier<DataSource> delegateSupplier,
+      RdsIamAuthenticationTokenRefresher refresher, boolean tokenOnDemand) {
+    mDelegateSupplier = delegateSupplier;
+    mRefresher = refresher;
+    mTokenOnDemand = tokenOnDemand;
+  }
+
+  /**
+   * Create a datasource that connects using the JDBC driver configuration from a Hikari configuration. The driver
+   * configuration is copied so later changes to it have no effect, and the Hikari configuration isn't modified.
+   *
+   * @param hikariConfig
+   *          - configuration with JDBC URL, driver class name and datasource properties
+   * @param refresher
+   *          - refresher that holds the token for the database user
+   * @return the datasource
+   */
+  public static RdsIamAuthenticatingDataSource fromHikariConfig(HikariConfig hikariConfig,
+      RdsIamAuthenticationTokenRefresher refresher) {
+    return fromHikariConfig(hikariConfig, refresher, false);
+  }
+
+  /**
+   * Create a datasource that connects using the JDBC driver configuration from a Hikari configuration. The driver
+   * configuration is copied so later changes to it have no effect, and the Hikari configuration isn't modified.
+   *
+   * @param hikariConfig
+   *          - configuration with JDBC URL, driver class name and datasource properties
+   * @param refresher
+   *          - refresher that holds the token for the database user
+   * @param tokenOnDemand
+   *          - true to ignore the password from the pool and take the token from the refresher's cache instead
+   * @return the datasource
+   */
+  public static RdsIamAuthenticatingDataSource fromHikariConfig(HikariConfig hikariConfig,
+      RdsIamAuthenticationTokenRefresher refresher, boolean tokenOnDemand) {
+    String jdbcUrl = hikariConfig.getJdbcUrl();
+    String driverClassName = hikariConfig.getDriverClassName();
+    Properties properties = new Properties();
+    properties.putAll(hikariConfig.getDataSourceProperties());
+    String username = hikariConfig.getUsername();
+    return new RdsIamAuthenticatingDataSource(
+        () -> new DriverDataSource(jdbcUrl, driverClassName, properties, username, null), refresher, tokenOnDemand);
+  }
+
+  /**
+   * Same as {@link #fromHikariConfig(HikariConfig, RdsIamAuthenticationTokenRefresher, boolean)} but if the JDBC URL
+   * has several hosts for failover each host is connected to separately with the token from its own refresher.
+   *
+   * @param hikariConfig
+   *          - configuration with JDBC URL, driver class name and datasource properties
+   * @param refreshers
+   *          - one refresher per host of the JDBC URL, in the same order
+   * @param tokenOnDemand
+   *          - true to ignore the password from the pool and take the token from the refresher's cache instead
+   * @return the datasource
+   */
+  public static RdsIamAuthenticatingDataSource fromHikariConfig(HikariConfig hikariConfig,
+      List<RdsIamAuthenticationTokenRefresher> refreshers, boolean tokenOnDemand) {
+    RdsIamJdbcUrl jdbcUrl = RdsIamJdbcUrl.parse(hikariConfig.getJdbcUrl());
+    if (!jdbcUrl.isFailover() || refreshers.size() != jdbcUrl.getHosts().size()) {
+      return fromHikariConfig(hikariConfig, refreshers.get(0), tokenOnDemand);
+    }
+    String driverClassName = hikariConfig.getDriverClassName();
+    Properties properties = new Properties();
+    properties.putAll(hikariConfig.getDataSourceProperties());
+    String username = hikariConfig.getUsername();
+    List<Supplier<DataSource>> delegateSuppliers = new ArrayList<>();
+    for (RdsIamJdbcUrl.Host host : jdbcUrl.getHosts()) {
+      String hostJdbcUrl = jdbcUrl.withHost(host.getHostname(), host.getPort());
+      delegateSuppliers.add(() -> new DriverDataSource(hostJdbcUrl, driverClassName, properties, username, null));
+    }
+    RdsIamAuthenticatingDataSource datasource = new RdsIamAuthenticatingDataSource(delegateSuppliers.get(0),
+        refreshers.get(0), tokenOnDemand);
+    for (int i = 1; i < delegateSuppliers.size(); i++) {
+      datasource.addFailoverHost(delegateSuppliers.get(i), refreshers.get(i));
+    }
+    return datasource;
+  }
+
+  /**
+   * Check if a connection failed because the database didn't accept the credentials.
+   *
+   * @param e
+   *          - exception from the connection attempt
+   * @return true if it is an authentication failure
+   */
+  public static boolean isAuthenticationFailure(SQLException e) {
+    for (Throwable t = e; t != null; t = t.getCause()) {
+      if (t instanceof SQLException) {
+        SQLException sqlException = (SQLException) t;
+        if (SQL_STATE_INVALID_AUTHORIZATION.equals(sqlException.getSQLState())
+            || SQL_STATE_INVALID_PASSWORD.equals(sqlException.getSQLState())
+            || sqlException.getErrorCode() == MYSQL_ACCESS_DENIED) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Check if a connection failed because the database couldn't be reached, i.e. the SQL state is of the connection
+   * exception class 08, and not because it rejected the connection.
+   *
+   * @param e
+   *          - exception from the connection attempt
+   * @return true if another host may accept the connection
+   */
+  public static boolean isConnectionFailure(SQLException e) {
+    if (isAuthenticationFailure(e)) {
+      return false;
+    }
+    for (Throwable t = e; t != null; t = t.getCause()) {
+      if (t instanceof SQLException) {
+        String sqlState = ((SQLException) t).getSQLState();
+        if (sqlState != null && sqlState.startsWith(SQL_STATE_CLASS_CONNECTION_EXCEPTION)) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Connect as the refresher's database user with the token from the refresher's cache.
+   */
+  @Override
+  public Connection getConnection() throws SQLException {
+    return getConnection(mRefresher.getDbUsername(), null);
+  }
+
+  /**
+   * Connect with the token from the refresher's cache if the token is taken on demand or no password is given,
+   * otherwise with the given password. The failover hosts are always connected to with the token from their own
+   * refresher's cache.
+   */
+  @Override
+  public Connection getConnection(String username, String password) throws SQLException {
+    int hostCount = mFailoverHosts.size() + 1;
+    int firstHost = mCurrentHost;
+    SQLException failure = null;
+    for (int i = 0; i < hostCount; i++) {
+      int host = (firstHost + i) % hostCount;
+      try {
+        Connection connection = getConnection(host, username, password);
+        mCurrentHost = host;
+        return track(connection);
+      }
+      catch (SQLException e) {
+        if (failure != null) {
+          e.addSuppressed(failure);
+        }
+        failure = e;
+        if (!isConnectionFailure(e)) {
+          break;
+        }
+      }
+    }
+    throw failure;
+  }
+
+  /**
+   * Add a host to connect to when the connect to the first host, and to the failover hosts added before it, fails. The
+   * token for the host is always taken from its refresher's cache. Get the token once from the refresher beforehand so
+   * it is ready when the failover happens.
+   *
+   * @param delegateSupplier
+   *          - creates the datasource that creates the physical connections to the host. Called once when the first
+   *          connection to the host is created.
+   * @param refresher
+   *          - refresher that holds the token for the database user on the host
+   */
+  public void addFailoverHost(Supplier<DataSource> delegateSupplier, RdsIamAuthenticationTokenRefresher refresher) {
+    mFailoverHosts.add(new FailoverHost(delegateSupplier, refresher));
+  }
+
+  /**
+   * @return the refreshers of the failover hosts in the order they are tried
+   */
+  public List<RdsIamAuthenticationTokenRefresher> getFailoverRefreshers() {
+    List<RdsIamAuthenticationTokenRefresher> refreshers = new ArrayList<>();
+    mFailoverHosts.forEach(host -> refreshers.add(host.mRefresher));
+    return refreshers;
+  }
+
+  /**
+   * @return index of the host that was connected to last, 0 for the first host of the JDBC URL and then the failover
+   *         hosts in the order they were added
+   */
+  public int getCurrentHost() {
+    return mCurrentHost;
+  }
+
+  /**
+   * @return true if the token is taken from the refresher's cache instead of the password from the pool
+   */
+  public boolean isTokenOnDemand() {
+    return mTokenOnDemand;
+  }
+
+  /**
+   * @param connectionThrottle
+   *          - throttle on the creation of connections, null for no throttle
+   */
+  public void setConnectionThrottle(RdsIamConnectionThrottle connectionThrottle) {
+    mConnectionThrottle = connectionThrottle;
+  }
+
+  /**
+   * @return throttle on the creation of connections or null if there is none
+   */
+  public RdsIamConnectionThrottle getConnectionThrottle() {
+    return mConnectionThrottle;
+  }
+
+  /**
+   * Track the connections created from now on by a recycler, see {@link RdsIamConnectionRecycler}.
+   *
+   * @param connectionRecycler
+   *          - the recycler, null for none
+   */
+  public void setConnectionRecycler(RdsIamConnectionRecycler connectionRecycler) {
+    mConnectionRecycler = connectionRecycler;
+  }
+
+  /**
+   * @return the recycler that tracks the connections or null if there is none
+   */
+  public RdsIamConnectionRecycler getConnectionRecycler() {
+    return mConnectionRecycler;
+  }
+
+  /**
+   * @return the refresher that holds the token for the database user
+   */
+  public RdsIamAuthenticationTokenRefresher getRefresher() {
+    return mRefresher;
+  }
+
+  @Override
+  public PrintWriter getLogWriter() throws SQLException {
+    return getDelegate().getLogWriter();
+  }
+
+  @Override
+  public void setLogWriter(PrintWriter out) throws SQLException {
+    getDelegate().setLogWriter(out);
+  }
+
+  @Override
+  public void setLoginTimeout(int seconds) throws SQLException {
+    getDelegate().setLoginTimeout(seconds);
+  }
+
+  @Override
+  public int getLoginTimeout() throws SQLException {
+    return getDelegate().getLoginTimeout();
+  }
+
+  @Override
+  public Logger getParentLogger() throws SQLFeatureNotSupportedException {
+    throw new SQLFeatureNotSupportedException();
+  }
+
+  @Override
+  public <T> T unwrap(Class<T> iface) throws SQLException {
+    if (iface.isInstance(this)) {
+      return iface.cast(this);
+    }
+    return getDelegate().unwrap(iface);
+  }
+
+  @Override
+  public boolean isWrapperFor(Class<?> iface) throws SQLException {
+    return iface.isInstance(this) || getDelegate().isWrapperFor(iface);
+  }
+
+  private Connection getConnection(int host, String username, String password) throws SQLException {
+    if (host == 0) {
+      String token = mTokenOnDemand || password == null ? mRefresher.getAuthenticationToken() : password;
+      return getConnection(getDelegate(), mRefresher, username, token);
+    }
+    FailoverHost failoverHost = mFailoverHosts.get(host - 1);
+    return getConnection(failoverHost.getDelegate(), failoverHost.mRefresher, username,
+        failoverHost.mRefresher.getAuthenticationToken());
+  }
+
+  private Connection getConnection(DataSource delegate, RdsIamAuthenticationTokenRefresher refresher, String username,
+      String token) throws SQLException {
+    try {
+      acquireConnectionPermit(refresher);
+      return delegate.getConnection(username, token);
+    }
+    catch (SQLException e) {
+      if (!isAuthenticationFailure(e)) {
+        throw e;
+      }
+      String newToken = refresher.regenerateAuthenticationToken(token);
+      try {
+        acquireConnectionPermit(refresher);
+        return delegate.getConnection(username, newToken);
+      }
+      catch (SQLException retryException) {
+        retryException.addSuppressed(e);
+        throw retryException;
+      }
+    }
+  }
+
+  private Connection track(Connection connection) {
+    RdsIamConnectionRecycler connectionRecycler = mConnectionRecycler;
+    return connectionRecycler == null ? connection : connectionRecycler.track(connection);
+  }
+
+  private void acquireConnectionPermit(RdsIamAuthenticationTokenRefresher refresher) throws SQLException {
+    RdsIamConnectionThrottle connectionThrottle = mConnectionThrottle;
+    if (connectionThrottle != null) {
+      connectionThrottle.acquire(refresher.getDbHostname(), refresher.getDbPort());
+    }
+  }
+
+  private DataSource getDelegate() {
+    DataSource delegate = mDelegate;
+    if (delegate == null) {
+      synchronized (this) {
+        delegate = mDelegate;
+        if (delegate == null) {
+          delegate = mDelegateSupplier.get();
+          mDelegate = delegate;
+        }
+      }
+    }
+    return delegate;
+  }
+
+  private static final class FailoverHost {
+    private final Supplier<DataSource> mDelegateSupplier;
+    private final RdsIamAuthenticationTokenRefresher mRefresher;
+    private volatile DataSource mDelegate;
+
+    FailoverHost(Supplier<DataSource> delegateSupplier, RdsIamAuthenticationTokenRefresher refresher) {
+      mDelegateSupplier = delegateSupplier;
+      mRefresher = refresher;
+    }
+
+    DataSource getDelegate() {
+      DataSource delegate = mDelegate;
+      if (delegate == null) {
+        synchronized (this) {
+          delegate = mDelegate;
+          if (delegate == null) {
+            delegate = mDelegateSupplier.get();
+            mDelegate = delegate;
+          }
+        }
+      }
+      return delegate;
+    }
+  }
+
+}
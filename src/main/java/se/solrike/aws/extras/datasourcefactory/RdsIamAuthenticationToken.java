@@ -0,0 +1,129 @@
+/*
+ * Copyright © 2022 Lucas Persson. All Rights Reserved.
+ */
+package se.solrike.aws.extras.datasourcefactory;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+
+/**
+ * An authentication token together with when it was signed and when it expires.
+ * <p>
+ * The token generated by RdsUtilities is a presigned URL so the signing time and lifetime are read from the
+ * <code>X-Amz-Date</code> and <code>X-Amz-Expires</code> query parameters. If they can't be found the token is assumed
+ * to be signed now and valid for the default 15 minutes.
+ */
+public final class RdsIamAuthenticationToken {
+
+  /**
+   * Lifetime of a token generated by AWS RDS.
+   */
+  public static final Duration DEFAULT_LIFETIME = Duration.ofMinutes(15);
+
+  private static final DateTimeFormatter AMZ_DATE_FORMAT = DateTimeFormatter.ofPattern("yyyyMMdd'T'HHmmss'Z'")
+      .withZone(ZoneOffset.UTC);
+  private static final String AMZ_DATE = "X-Amz-Date";
+  private static final String AMZ_EXPIRES = "X-Amz-Expires";
+
+  private final String mToken;
+  private final Instant mIssuedAt;
+  private final Instant mExpiresAt;
+
+  private RdsIamAuthenticationToken(String token, Instant issuedAt, Instant expiresAt) {
+    mToken = token;
+    mIssuedAt = issuedAt;
+    mExpiresAt = expiresAt;
+  }
+
+  /**
+   * Parse the signing parameters from a token.
+   *
+   * @param token
+   *          - token as returned by RdsUtilities.generateAuthenticationToken
+   * @param now
+   *          - used as signing time if the token doesn't have a X-Amz-Date parameter
+   * @return the token
+   */
+  public static RdsIamAuthenticationToken parse(String token, Instant now) {
+    Instant issuedAt = now;
+    Duration lifetime = DEFAULT_LIFETIME;
+    int queryStart = token.indexOf('?');
+    if (queryStart >= 0) {
+      for (String parameter : token.substring(queryStart + 1).split("&")) {
+        int separator = parameter.indexOf('=');
+        if (separator < 0) {
+          continue;
+        }
+        String name = parameter.substring(0, separator);
+        String value = parameter.substring(separator + 1);
+        try {
+          if (AMZ_DATE.equals(name)) {
+            issuedAt = Instant.from(AMZ_DATE_FORMAT.parse(value));
+          }
+          else if (AMZ_EXPIRES.equals(name)) {
+            lifetime = Duration.ofSeconds(Long.parseLong(value));
+          }
+        }
+        catch (DateTimeParseException | NumberFormatException e) {
+          // not a token we understand, fall back to the defaults
+        }
+      }
+    }
+    return new RdsIamAuthenticationToken(token, issuedAt, issuedAt.plus(lifetime));
+  }
+
+  /**
+   * @return the token to be used as password
+   */
+  public String getToken() {
+    return mToken;
+  }
+
+  /**
+   * @return when the token was signed
+   */
+  public Instant getIssuedAt() {
+    return mIssuedAt;
+  }
+
+  /**
+   * @return when the token expires
+   */
+  public Instant getExpiresAt() {
+    return mExpiresAt;
+  }
+
+  /**
+   * Time left until the token expires.
+   *
+   * @param now
+   *          - current time
+   * @return remaining lifetime, negative if the token has expired
+   */
+  public Duration getRemainingLifetime(Instant now) {
+    return Duration.between(now, mExpiresAt);
+  }
+
+  /**
+   * Check if the token can still be used.
+   *
+   * @param now
+   *          - current time
+   * @param margin
+   *          - the token must be valid at least this long
+   * @return true if the token is valid for longer than the margin
+   */
+  public boolean isValid(Instant now, Duration margin) {
+    return now.plus(margin).isBefore(mExpiresAt);
+  }
+
+  @Override
+  public String toString() {
+    // never log the token itself
+    return "RdsIamAuthenticationToken[issuedAt=" + mIssuedAt + ", expiresAt=" + mExpiresAt + "]";
+  }
+
+}
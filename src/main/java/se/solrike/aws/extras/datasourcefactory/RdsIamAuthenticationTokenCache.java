@@ -0,0 +1,152 @@
+/*
+ * Copyright © 2022 Lucas Persson. All Rights Reserved.
+ */
+package se.solrike.aws.extras.datasourcefactory;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Supplier;
+
+/**
+ * Holds the current authentication token and knows when it expires.
+ * <p>
+ * A new token is only generated when there is no token or the current one is about to expire, or when a refresh is
+ * forced. The cache also calculates when the next proactive refresh shall happen: at a fraction of the remaining
+ * lifetime with some random jitter so that instances deployed together don't all sign at the same moment.
+ */
+public class RdsIamAuthenticationTokenCache {
+
+  /**
+   * Default fraction of the remaining lifetime to wait before the next refresh.
+   */
+  public static final double DEFAULT_REFRESH_FRACTION = 0.8;
+  /**
+   * Default max fraction of the refresh delay that is randomly subtracted from it.
+   */
+  public static final double DEFAULT_JITTER_FRACTION = 0.1;
+  /**
+   * A cached token is not handed out if it expires within this margin.
+   */
+  public static final Duration EXPIRY_MARGIN = Duration.ofSeconds(30);
+
+  private final Supplier<String> mTokenGenerator;
+  private final Clock mClock;
+  private volatile double mRefreshFraction = DEFAULT_REFRESH_FRACTION;
+  private volatile double mJitterFraction = DEFAULT_JITTER_FRACTION;
+  private volatile RdsIamAuthenticationToken mToken;
+
+  /**
+   * @param tokenGenerator
+   *          - generates a new token, e.g. calls RdsUtilities.generateAuthenticationToken
+   */
+  public RdsIamAuthenticationTokenCache(Supplier<String> tokenGenerator) {
+    this(tokenGenerator, Clock.systemUTC());
+  }
+
+  /**
+   * @param tokenGenerator
+   *          - generates a new token, e.g. calls RdsUtilities.generateAuthenticationToken
+   * @param clock
+   *          - clock used to check the expiry of the token
+   */
+  public RdsIamAuthenticationTokenCache(Supplier<String> tokenGenerator, Clock clock) {
+    mTokenGenerator = tokenGenerator;
+    mClock = clock;
+  }
+
+  /**
+   * Get the cached token if it is still valid otherwise generate a new one.
+   *
+   * @return a valid token
+   */
+  public String getToken() {
+    RdsIamAuthenticationToken token = mToken;
+    if (token != null && token.isValid(mClock.instant(), EXPIRY_MARGIN)) {
+      return token.getToken();
+    }
+    synchronized (this) {
+      token = mToken;
+      if (token != null && token.isValid(mClock.instant(), EXPIRY_MARGIN)) {
+        return token.getToken();
+      }
+      return refresh().getToken();
+    }
+  }
+
+  /**
+   * Generate a new token regardless of the state of the cached token.
+   *
+   * @return the new token
+   */
+  public synchronized RdsIamAuthenticationToken refresh() {
+    RdsIamAuthenticationToken token = RdsIamAuthenticationToken.parse(mTokenGenerator.get(), mClock.instant());
+    mToken = token;
+    return token;
+  }
+
+  /**
+   * Generate a new token unless the token that failed has already been replaced. When many connection attempts fail
+   * at the same time with the same token only the first one generates a new token and the others get that token.
+   *
+   * @param failedToken
+   *          - the token that was rejected by the database
+   * @return the new token
+   */
+  public synchronized RdsIamAuthenticationToken refreshIfCurrent(String failedToken) {
+    RdsIamAuthenticationToken token = mToken;
+    if (token != null && !token.getToken().equals(failedToken)) {
+      return token;
+    }
+    return refresh();
+  }
+
+  /**
+   * @return the cached token or null if no token has been generated yet
+   */
+  public RdsIamAuthenticationToken getCurrentToken() {
+    return mToken;
+  }
+
+  /**
+   * Calculate the delay until the next proactive refresh. It is the refresh fraction of the remaining lifetime of the
+   * cached token minus a random jitter.
+   *
+   * @return the delay, zero if there is no token or it has expired
+   */
+  public Duration getNextRefreshDelay() {
+    RdsIamAuthenticationToken token = mToken;
+    if (token == null) {
+      return Duration.ZERO;
+    }
+    Duration remaining = token.getRemainingLifetime(mClock.instant());
+    if (remaining.isNegative()) {
+      return Duration.ZERO;
+    }
+    double jitter = ThreadLocalRandom.current().nextDouble() * mJitterFraction;
+    return Duration.ofMillis((long) (remaining.toMillis() * mRefreshFraction * (1 - jitter)));
+  }
+
+  /**
+   * @param refreshFraction
+   *          - fraction (0-1] of the remaining lifetime to wait before the next refresh. Default 0.8.
+   */
+  public void setRefreshFraction(double refreshFraction) {
+    if (refreshFraction <= 0 || refreshFraction > 1) {
+      throw new IllegalArgumentException("refreshFraction must be in the range (0, 1]");
+    }
+    mRefreshFraction = refreshFraction;
+  }
+
+  /**
+   * @param jitterFraction
+   *          - max fraction [0-1) of the refresh delay that is randomly subtracted from it. Default 0.1.
+   */
+  public void setJitterFraction(double jitterFraction) {
+    if (jitterFraction < 0 || jitterFraction >= 1) {
+      throw new IllegalArgumentException("jitterFraction must be in the range [0, 1)");
+    }
+    mJitterFraction = jitterFraction;
+  }
+
+}
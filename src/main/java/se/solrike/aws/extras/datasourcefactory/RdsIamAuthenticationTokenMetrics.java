@@ -0,0 +1,183 @@
+/*
+ * Copyright © 2022 Lucas Persson. All Rights Reserved.
+ */
+package se.solrike.aws.extras.datasourcefactory;
+
+import java.lang.management.ManagementFactory;
+import java.time.Instant;
+import java.util.List;
+import java.util.Objects;
+import java.util.stream.Collectors;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Token lifecycle metrics of a {@link RdsIamAuthenticationTokenRefresher} for one database pool or for the database
+ * endpoint.
+ * <p>
+ * The refresher registers the metrics of the endpoint as an MBean if any of its pools has <code>registerMbeans</code>
+ * enabled in the Hikari configuration. The pools share the token so there is one MBean per refresher, named
+ * <code>se.solrike.aws.extras:type=RdsIamAuthenticationTokenEndpoint,name="user@host:port",id=id</code>, which lists
+ * the names of the pools. The id of the refresher is in the name since the token registry has one refresher per
+ * endpoint and user for each AWS credentials and region, e.g. two factories with different credentials. The metrics
+ * of one pool are used to tag the Micrometer meters of the pool.
+ */
+public class RdsIamAuthenticationTokenMetrics implements RdsIamAuthenticationTokenMetricsMXBean {
+  private static final Logger sLogger = LoggerFactory.getLogger(RdsIamAuthenticationTokenMetrics.class);
+
+  private static final String DOMAIN = "se.solrike.aws.extras";
+  private static final double NANOS_PER_MILLI = 1_000_000.0;
+
+  private final RdsIamAuthenticationTokenRefresher mRefresher;
+  private final String mPoolName;
+
+  /**
+   * @param refresher
+   *          - refresher that generates the tokens
+   * @param poolName
+   *          - name of the Hikari pool, null for the metrics of the endpoint
+   */
+  public RdsIamAuthenticationTokenMetrics(RdsIamAuthenticationTokenRefresher refresher, String poolName) {
+    mRefresher = refresher;
+    mPoolName = poolName;
+  }
+
+  /**
+   * @return the name of the MBean
+   * @throws MalformedObjectNameException
+   *           if the pool name can't be used in an object name
+   */
+  public ObjectName getObjectName() throws MalformedObjectNameException {
+    if (mPoolName != null) {
+      return new ObjectName(DOMAIN + ":type=RdsIamAuthenticationToken (" + mPoolName + ")");
+    }
+    return new ObjectName(DOMAIN + ":type=RdsIamAuthenticationTokenEndpoint,name=" + ObjectName.quote(getEndpoint())
+        + ",id=" + mRefresher.getId());
+  }
+
+  @Override
+  public String getPoolName() {
+    return mPoolName;
+  }
+
+  @Override
+  public List<String> getPoolNames() {
+    return mRefresher.getPoolNames().stream().filter(Objects::nonNull).collect(Collectors.toList());
+  }
+
+  @Override
+  public String getEndpoint() {
+    return mRefresher.getEndpoint();
+  }
+
+  @Override
+  public int getPoolCount() {
+    return mRefresher.getPoolCount();
+  }
+
+  @Override
+  public long getRefreshSuccessCount() {
+    return mRefresher.getRefreshSuccessCount();
+  }
+
+  @Override
+  public long getRefreshFailureCount() {
+    return mRefresher.getRefreshFailureCount();
+  }
+
+  @Override
+  public int getConsecutiveFailureCount() {
+    return mRefresher.getConsecutiveFailureCount();
+  }
+
+  @Override
+  public String getLastFailure() {
+    Throwable lastFailure = mRefresher.getLastFailure();
+    return lastFailure == null ? null : lastFailure.toString();
+  }
+
+  @Override
+  public boolean isTokenStale() {
+    return mRefresher.isTokenStale();
+  }
+
+  @Override
+  public long getTokenAgeMillis() {
+    RdsIamAuthenticationToken token = mRefresher.getTokenCache().getCurrentToken();
+    return token == null ? -1 : Instant.now().toEpochMilli() - token.getIssuedAt().toEpochMilli();
+  }
+
+  @Override
+  public long getTokenTimeToExpiryMillis() {
+    RdsIamAuthenticationToken token = mRefresher.getTokenCache().getCurrentToken();
+    return token == null ? -1 : token.getRemainingLifetime(Instant.now()).toMillis();
+  }
+
+  @Override
+  public long getTokenGenerationCount() {
+    return mRefresher.getTokenGenerationLatency().getCount();
+  }
+
+  @Override
+  public double getTokenGenerationMeanMillis() {
+    return mRefresher.getTokenGenerationLatency().getMeanNanos() / NANOS_PER_MILLI;
+  }
+
+  @Override
+  public double getTokenGenerationP50Millis() {
+    return mRefresher.getTokenGenerationLatency().getPercentileNanos(0.5) / NANOS_PER_MILLI;
+  }
+
+  @Override
+  public double getTokenGenerationP99Millis() {
+    return mRefresher.getTokenGenerationLatency().getPercentileNanos(0.99) / NANOS_PER_MILLI;
+  }
+
+  @Override
+  public double getTokenGenerationMaxMillis() {
+    return mRefresher.getTokenGenerationLatency().getMaxNanos() / NANOS_PER_MILLI;
+  }
+
+  /*
+   * Failures are only logged, missing metrics shall never stop the datasource from working.
+   */
+  ObjectName registerMBean() {
+    try {
+      ObjectName objectName = getObjectName();
+      MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+      if (mBeanServer.isRegistered(objectName)) {
+        sLogger.warn("MBean '{}' is already registered, the token metrics are not registered", objectName);
+        return null;
+      }
+      mBeanServer.registerMBean(this, objectName);
+      return objectName;
+    }
+    catch (JMException e) {
+      sLogger.warn("Failed to register token metrics MBean for '{}'", mPoolName != null ? mPoolName : getEndpoint(),
+          e);
+      return null;
+    }
+  }
+
+  static void unregisterMBean(ObjectName objectName) {
+    if (objectName == null) {
+      return;
+    }
+    try {
+      MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+      if (mBeanServer.isRegistered(objectName)) {
+        mBeanServer.unregisterMBean(objectName);
+      }
+    }
+    catch (JMException e) {
+      sLogger.warn("Failed to unregister MBean '{}'", objectName, e);
+    }
+  }
+
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright © 2022 Lucas Persson. All Rights Reserved.
+ */
+package se.solrike.aws.extras.datasourcefactory;
+
+import java.util.concurrent.TimeUnit;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.FunctionTimer;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.TimeGauge;
+import io.micrometer.core.instrument.binder.MeterBinder;
+
+/**
+ * Micrometer binder for the token lifecycle metrics of a {@link RdsIamAuthenticationTokenRefresher}.
+ * <p>
+ * The meters are tagged with the database endpoint and user and, if given, with the pool name in the same
+ * <code>pool</code> tag that Hikari's own Micrometer metrics use. Micrometer is an optional dependency so it must be on
+ * the classpath of the application to use the binder, e.g. in Spring:
+ *
+ * <pre>
+ * &#64;Bean
+ * MeterBinder tokenMetrics(HikariDataSource dataSource) {
+ *   RdsIamAuthenticatingDataSource authenticating = (RdsIamAuthenticatingDataSource) dataSource.getDataSource();
+ *   return new RdsIamAuthenticationTokenMetricsBinder(authenticating.getRefresher(), dataSource.getPoolName());
+ * }
+ * </pre>
+ */
+public class RdsIamAuthenticationTokenMetricsBinder implements MeterBinder {
+
+  private final RdsIamAuthenticationTokenMetrics mMetrics;
+  private final RdsIamAuthenticationTokenRefresher mRefresher;
+  private final Tags mTags;
+
+  /**
+   * @param refresher
+   *          - refresher that generates the tokens
+   * @param poolName
+   *          - name of the Hikari pool, null to only tag the meters with the endpoint
+   */
+  public RdsIamAuthenticationTokenMetricsBinder(RdsIamAuthenticationTokenRefresher refresher, String poolName) {
+    mRefresher = refresher;
+    mMetrics = new RdsIamAuthenticationTokenMetrics(refresher, poolName);
+    Tags tags = Tags.of("endpoint", refresher.getEndpoint());
+    mTags = poolName != null ? tags.and("pool", poolName) : tags;
+  }
+
+  @Override
+  public void bindTo(MeterRegistry registry) {
+    FunctionTimer
+        .builder("rds.iam.token.generation", mRefresher.getTokenGenerationLatency(), RdsIamLatencyHistogram::getCount,
+            RdsIamLatencyHistogram::getTotalNanos, TimeUnit.NANOSECONDS)
+        .tags(mTags)
+        .description("Time to generate an authentication token")
+        .register(registry);
+    TimeGauge
+        .builder("rds.iam.token.generation.max", mRefresher.getTokenGenerationLatency(), TimeUnit.NANOSECONDS,
+            RdsIamLatencyHistogram::getMaxNanos)
+        .tags(mTags)
+        .description("Max time to generate an authentication token")
+        .register(registry);
+    TimeGauge
+        .builder("rds.iam.token.generation.p99", mRefresher.getTokenGenerationLatency(), TimeUnit.NANOSECONDS,
+            histogram -> histogram.getPercentileNanos(0.99))
+        .tags(mTags)
+        .description("99th percentile of the time to generate an authentication token")
+        .register(registry);
+    // Micrometer only keeps a weak reference to the gauged object so gauge the refresher and not the metrics
+    TimeGauge
+        .builder("rds.iam.token.age", mRefresher, TimeUnit.MILLISECONDS, refresher -> mMetrics.getTokenAgeMillis())
+        .tags(mTags)
+        .description("Time since the current token was signed")
+        .register(registry);
+    TimeGauge
+        .builder("rds.iam.token.expiry", mRefresher, TimeUnit.MILLISECONDS,
+            refresher -> mMetrics.getTokenTimeToExpiryMillis())
+        .tags(mTags)
+        .description("Time until the current token expires")
+        .register(registry);
+    FunctionCounter
+        .builder("rds.iam.token.refresh", mRefresher, RdsIamAuthenticationTokenRefresher::getRefreshSuccessCount)
+        .tags(mTags.and("result", "success"))
+        .description("Number of scheduled token refreshes")
+        .register(registry);
+    FunctionCounter
+        .builder("rds.iam.token.refresh", mRefresher, RdsIamAuthenticationTokenRefresher::getRefreshFailureCount)
+        .tags(mTags.and("result", "failure"))
+        .description("Number of scheduled token refreshes")
+        .register(registry);
+    Gauge
+        .builder("rds.iam.token.refresh.consecutive.failures", mRefresher,
+            RdsIamAuthenticationTokenRefresher::getConsecutiveFailureCount)
+        .tags(mTags)
+        .description("Number of failed token refreshes since the last successful one")
+        .register(registry);
+    Gauge.builder("rds.iam.token.stale", mRefresher, refresher -> refresher.isTokenStale() ? 1 : 0)
+        .tags(mTags)
+        .description("1 if the last refresh failed or the current token has expired")
+        .register(registry);
+    Gauge.builder("rds.iam.token.pools", mRefresher, RdsIamAuthenticationTokenRefresher::getPoolCount)
+        .tags(mTags)
+        .description("Number of pools that are updated by the token refresher")
+        .register(registry);
+  }
+
+}
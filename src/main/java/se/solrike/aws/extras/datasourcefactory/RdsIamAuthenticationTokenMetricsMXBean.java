@@ -0,0 +1,94 @@
+/*
+ * Copyright © 2022 Lucas Persson. All Rights Reserved.
+ */
+package se.solrike.aws.extras.datasourcefactory;
+
+import java.util.List;
+
+/**
+ * JMX view of the token lifecycle of a {@link RdsIamAuthenticationTokenRefresher}, either for one database pool or for
+ * the database endpoint and user that the refresher generates tokens for.
+ */
+public interface RdsIamAuthenticationTokenMetricsMXBean {
+
+  /**
+   * @return name of the Hikari pool or null if the metrics are for the endpoint
+   */
+  String getPoolName();
+
+  /**
+   * @return names of the pools that are updated by the refresher. A pool that isn't started yet might not have a name.
+   */
+  List<String> getPoolNames();
+
+  /**
+   * @return database endpoint and user, e.g. app_user@database1.crux4711.eu-north-1.rds.amazonaws.com:3306
+   */
+  String getEndpoint();
+
+  /**
+   * @return number of pools that are updated by the refresher
+   */
+  int getPoolCount();
+
+  /**
+   * @return number of successful scheduled refreshes
+   */
+  long getRefreshSuccessCount();
+
+  /**
+   * @return number of failed scheduled refreshes
+   */
+  long getRefreshFailureCount();
+
+  /**
+   * @return number of failed refreshes since the last successful one
+   */
+  int getConsecutiveFailureCount();
+
+  /**
+   * @return cause of the last failed refresh or null if no refresh has failed
+   */
+  String getLastFailure();
+
+  /**
+   * @return true if the last refresh failed or the current token has expired
+   */
+  boolean isTokenStale();
+
+  /**
+   * @return time since the current token was signed in milliseconds, -1 if there is no token
+   */
+  long getTokenAgeMillis();
+
+  /**
+   * @return time until the current token expires in milliseconds, negative if it has expired
+   */
+  long getTokenTimeToExpiryMillis();
+
+  /**
+   * @return number of generated tokens, including the failed attempts
+   */
+  long getTokenGenerationCount();
+
+  /**
+   * @return mean time to generate a token in milliseconds
+   */
+  double getTokenGenerationMeanMillis();
+
+  /**
+   * @return median time to generate a token in milliseconds
+   */
+  double getTokenGenerationP50Millis();
+
+  /**
+   * @return 99th percentile of the time to generate a token in milliseconds
+   */
+  double getTokenGenerationP99Millis();
+
+  /**
+   * @return max time to generate a token in milliseconds
+   */
+  double getTokenGenerationMaxMillis();
+
+}
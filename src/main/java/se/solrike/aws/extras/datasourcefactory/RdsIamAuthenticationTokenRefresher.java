@@ -3,14 +3,24 @@
  */
 package se.solrike.aws.extras.datasourcefactory;
 
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+import javax.management.ObjectName;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.zaxxer.hikari.HikariConfig;
 import com.zaxxer.hikari.HikariConfigMXBean;
+import com.zaxxer.hikari.HikariDataSource;
 
 import software.amazon.awssdk.services.rds.RdsUtilities;
 import software.amazon.awssdk.services.rds.model.GenerateAuthenticationTokenRequest;
@@ -18,17 +28,59 @@ import software.amazon.awssdk.services.rds.model.GenerateAuthenticationTokenRequ
 /**
  * Class that takes care to generates a new authentication token at regular intervals and updates the Hikari connection
  * pool with the new token in the password settings of the datasource configuration.
+ * <p>
+ * The current token is cached in a {@link RdsIamAuthenticationTokenCache} and the next refresh is scheduled at a
+ * fraction of the token's remaining lifetime with some jitter, but never later than the given refresh interval.
+ * <p>
+ * The refresh task runs on a {@link RdsIamTokenRefreshScheduler} which by default is shared by all refreshers in the
+ * JVM. One refresher can update several datasources that connect to the same database with the same user, see
+ * {@link RdsIamAuthenticationTokenRegistry}. Closing the refresher stops the refresh for all of them.
+ * <p>
+ * If a token can't be generated, e.g. due to a hiccup in the credentials provider, the refresh is retried with
+ * exponential backoff and jitter. The retries are spread so they happen before the current token expires and then
+ * continue at the max retry delay. Use {@link #isTokenStale()} to check if the datasources might have a bad token.
+ * <p>
+ * The token lifecycle metrics are available from the getters and, if any of the pools has <code>registerMbeans</code>
+ * enabled, as an MBean of the endpoint, see {@link RdsIamAuthenticationTokenMetrics}.
  */
-public class RdsIamAuthenticationTokenRefresher {
+public class RdsIamAuthenticationTokenRefresher implements AutoCloseable {
   private static final Logger sLogger = LoggerFactory.getLogger(RdsIamAuthenticationTokenRefresher.class);
 
+  /**
+   * Default delay before the first retry after a failed refresh.
+   */
+  public static final Duration DEFAULT_INITIAL_RETRY_DELAY = Duration.ofSeconds(1);
+  /**
+   * Default max delay between retries after failed refreshes.
+   */
+  public static final Duration DEFAULT_MAX_RETRY_DELAY = Duration.ofMinutes(1);
+
+  private static final AtomicLong sInstanceCount = new AtomicLong();
+
+  private final long mId = sInstanceCount.incrementAndGet();
   private final RdsUtilities mRdsUtilities;
   private final GenerateAuthenticationTokenRequest mRequest;
+  private final RdsIamAuthenticationTokenCache mTokenCache;
+  private final RdsIamTokenRefreshScheduler mScheduler;
+  private final List<PoolRegistration> mPools = new CopyOnWriteArrayList<>();
+  private RdsIamTokenRefreshScheduler.Registration mRegistration;
+  private volatile Runnable mIdleListener;
+  // references handed out by the registry that are neither released nor taken over by a started pool, -1 once the
+  // refresher is idle and removed from the registry
+  private final AtomicInteger mReferenceCount = new AtomicInteger();
+  private volatile Duration mInitialRetryDelay = DEFAULT_INITIAL_RETRY_DELAY;
+  private volatile Duration mMaxRetryDelay = DEFAULT_MAX_RETRY_DELAY;
+  private final AtomicLong mRefreshSuccessCount = new AtomicLong();
+  private final AtomicLong mRefreshFailureCount = new AtomicLong();
+  private volatile int mConsecutiveFailures;
+  private volatile Throwable mLastFailure;
+  private final RdsIamLatencyHistogram mTokenGenerationLatency = new RdsIamLatencyHistogram();
+  private ObjectName mEndpointMBeanName;
 
   /**
    *
    * @param rdsUtilities
-   *          - AWS SDK utilities class. Get it from RdsClient.create().utilities()
+   *          - AWS SDK utilities class. Get it from RdsUtilities.builder() or RdsClient.create().utilities()
    * @param dbHostname
    *          - must be a hostname know to AWS RDS so it can't be from a private DNS.
    * @param dbPort
@@ -38,54 +90,500 @@ public class RdsIamAuthenticationTokenRefresher {
    */
   public RdsIamAuthenticationTokenRefresher(RdsUtilities rdsUtilities, String dbHostname, int dbPort,
       String dbUsername) {
+    this(rdsUtilities, dbHostname, dbPort, dbUsername, RdsIamTokenRefreshScheduler.getSharedInstance());
+  }
+
+  /**
+   *
+   * @param rdsUtilities
+   *          - AWS SDK utilities class. Get it from RdsUtilities.builder() or RdsClient.create().utilities()
+   * @param dbHostname
+   *          - must be a hostname know to AWS RDS so it can't be from a private DNS.
+   * @param dbPort
+   *          - database port
+   * @param dbUsername
+   *          - database username for the application
+   * @param scheduler
+   *          - scheduler that runs the refresh tasks
+   */
+  public RdsIamAuthenticationTokenRefresher(RdsUtilities rdsUtilities, String dbHostname, int dbPort,
+      String dbUsername, RdsIamTokenRefreshScheduler scheduler) {
     mRdsUtilities = rdsUtilities;
+    mScheduler = scheduler;
     mRequest = GenerateAuthenticationTokenRequest.builder()
         .hostname(dbHostname)
         .port(dbPort)
         .username(dbUsername)
         .build();
+    mTokenCache = new RdsIamAuthenticationTokenCache(this::generateAuthenticationToken);
   }
 
   /**
-   * Can be used to get the initial token before the datasource is created.
+   * Can be used to get the initial token before the datasource is created. The cached token is returned as long as it
+   * is valid, a new token is only generated when needed.
    *
    * @return a token
    */
   public String getAuthenticationToken() {
-    return mRdsUtilities.generateAuthenticationToken(mRequest);
+    return mTokenCache.getToken();
+  }
+
+  /**
+   * Generate a new token right away because the database rejected the given token. The new token is also set on all
+   * the registered datasources. Concurrent calls with the same failed token only generate one new token.
+   *
+   * @param failedToken
+   *          - the token that was rejected by the database
+   * @return the new token
+   */
+  public String regenerateAuthenticationToken(String failedToken) {
+    RdsIamAuthenticationToken current = mTokenCache.getCurrentToken();
+    RdsIamAuthenticationToken token = mTokenCache.refreshIfCurrent(failedToken);
+    if (token != current) {
+      sLogger.info("Authentication token for '{}@{}:{}' was rejected, generated a new token", mRequest.username(),
+          mRequest.hostname(), mRequest.port());
+      mConsecutiveFailures = 0;
+      for (PoolRegistration pool : mPools) {
+        if (pool.mSetPassword) {
+          pool.mHikariConfigMxBean.setPassword(token.getToken());
+        }
+      }
+    }
+    return token.getToken();
+  }
+
+  /**
+   * @return the cache holding the current token
+   */
+  public RdsIamAuthenticationTokenCache getTokenCache() {
+    return mTokenCache;
+  }
+
+  /**
+   * @param refreshFraction
+   *          - fraction (0-1] of the token's remaining lifetime to wait before the next refresh. Default 0.8.
+   */
+  public void setRefreshFraction(double refreshFraction) {
+    mTokenCache.setRefreshFraction(refreshFraction);
+  }
+
+  /**
+   * @param jitterFraction
+   *          - max fraction [0-1) of the refresh delay that is randomly subtracted from it. Default 0.1.
+   */
+  public void setJitterFraction(double jitterFraction) {
+    mTokenCache.setJitterFraction(jitterFraction);
+  }
+
+  /**
+   * Set the bounds for the exponential backoff used when a refresh fails.
+   *
+   * @param initialRetryDelay
+   *          - delay before the first retry. Default 1 s.
+   * @param maxRetryDelay
+   *          - max delay between retries. Default 1 min.
+   */
+  public void setRetryDelays(Duration initialRetryDelay, Duration maxRetryDelay) {
+    if (initialRetryDelay.isNegative() || initialRetryDelay.isZero()
+        || maxRetryDelay.compareTo(initialRetryDelay) < 0) {
+      throw new IllegalArgumentException("initialRetryDelay must be positive and not greater than maxRetryDelay");
+    }
+    mInitialRetryDelay = initialRetryDelay;
+    mMaxRetryDelay = maxRetryDelay;
   }
 
   /**
-   * Start the token refresher.
+   * Check if the datasources might have a token that doesn't work. That is the case if the last refresh failed or the
+   * current token has expired.
+   *
+   * @return true if the token is stale
+   */
+  public boolean isTokenStale() {
+    if (mConsecutiveFailures > 0) {
+      return true;
+    }
+    RdsIamAuthenticationToken token = mTokenCache.getCurrentToken();
+    return token != null && !token.isValid(Instant.now(), Duration.ZERO);
+  }
+
+  /**
+   * @return number of successful scheduled refreshes
+   */
+  public long getRefreshSuccessCount() {
+    return mRefreshSuccessCount.get();
+  }
+
+  /**
+   * @return number of failed scheduled refreshes, including retries
+   */
+  public long getRefreshFailureCount() {
+    return mRefreshFailureCount.get();
+  }
+
+  /**
+   * @return number of failed refreshes since the last successful one
+   */
+  public int getConsecutiveFailureCount() {
+    return mConsecutiveFailures;
+  }
+
+  /**
+   * @return cause of the last failed refresh or null if no refresh has failed
+   */
+  public Throwable getLastFailure() {
+    return mLastFailure;
+  }
+
+  /**
+   * @return time it takes to generate a token, including the failed attempts
+   */
+  public RdsIamLatencyHistogram getTokenGenerationLatency() {
+    return mTokenGenerationLatency;
+  }
+
+  /**
+   * @return id of the refresher, unique in the JVM. Refreshers for the same endpoint and user but with different AWS
+   *         credentials or regions are told apart by it.
+   */
+  public long getId() {
+    return mId;
+  }
+
+  /**
+   * @return database user and endpoint the tokens are generated for, e.g. app_user@database1:3306
+   */
+  public String getEndpoint() {
+    return mRequest.username() + "@" + mRequest.hostname() + ":" + mRequest.port();
+  }
+
+  /**
+   * @return database user the tokens are generated for
+   */
+  public String getDbUsername() {
+    return mRequest.username();
+  }
+
+  /**
+   * @return hostname of the database the tokens are generated for
+   */
+  public String getDbHostname() {
+    return mRequest.hostname();
+  }
+
+  /**
+   * @return port of the database the tokens are generated for
+   */
+  public int getDbPort() {
+    return mRequest.port();
+  }
+
+  /**
+   * @return names of the pools that are updated by this refresher. A pool that isn't started yet might not have a name.
+   */
+  public List<String> getPoolNames() {
+    return mPools.stream().map(pool -> pool.mHikariConfigMxBean.getPoolName()).collect(Collectors.toList());
+  }
+
+  /**
+   * Start the token refresher for a datasource. The refresh stops when the returned registration or this refresher is
+   * closed, or when the Hikari datasource is closed.
    *
    * @param hikariConfigMxBean
    *          - from the Hikari datasource instance.
    * @param refreshIntervalInMinutes
    *          - preferred to be 14 min. Token expires after 15 min and there is no point to fetch it more often since
    *          there is also a limit on how many request can be done.
+   * @return registration that stops the refresh for the datasource when it is closed
    */
-  public void start(HikariConfigMXBean hikariConfigMxBean, int refreshIntervalInMinutes) {
-    start(hikariConfigMxBean, refreshIntervalInMinutes, TimeUnit.MINUTES);
+  public PoolRegistration start(HikariConfigMXBean hikariConfigMxBean, int refreshIntervalInMinutes) {
+    return start(hikariConfigMxBean, refreshIntervalInMinutes, TimeUnit.MINUTES);
   }
 
   /**
-   * Start the token refresher.
+   * Start the token refresher for a datasource. The refresh stops when the returned registration or this refresher is
+   * closed, or when the Hikari datasource is closed.
+   * <p>
+   * Several datasources can be registered on the same refresher. They will then share the same token and only one
+   * refresh task is scheduled for all of them.
    *
    * @param hikariConfigMxBean
    *          - from the Hikari datasource instance.
    * @param refreshInterval
-   *          - preferred to be 14 min. Token expires after 15 min and there is no point to fetch it more often since
-   *          there is also a limit on how many request can be done.
+   *          - max time between two refreshes. The refresh normally happens earlier since it is scheduled at a
+   *          fraction of the token's remaining lifetime.
    * @param timeUnit
    *          - time durations at a given unit of granularity
+   * @return registration that stops the refresh for the datasource when it is closed
+   */
+  public PoolRegistration start(HikariConfigMXBean hikariConfigMxBean, int refreshInterval, TimeUnit timeUnit) {
+    return start(hikariConfigMxBean, refreshInterval, timeUnit, true);
+  }
+
+  /**
+   * Start the token refresher for a datasource that only connects to this host on failover, see
+   * {@link RdsIamAuthenticatingDataSource#addFailoverHost}. The token is kept fresh in the cache but it isn't set as
+   * the password of the datasource, since that is the token of the primary host, and the datasource takes the token of
+   * this host from the cache when it fails over.
+   *
+   * @param hikariConfigMxBean
+   *          - from the Hikari datasource instance.
+   * @param refreshIntervalInMinutes
+   *          - max time between two refreshes, normally the same as for the primary host.
+   * @return registration that stops the refresh for the datasource when it is closed
+   */
+  public PoolRegistration startForFailover(HikariConfigMXBean hikariConfigMxBean, int refreshIntervalInMinutes) {
+    return start(hikariConfigMxBean, refreshIntervalInMinutes, TimeUnit.MINUTES, false);
+  }
+
+  private PoolRegistration start(HikariConfigMXBean hikariConfigMxBean, int refreshInterval, TimeUnit timeUnit,
+      boolean setPassword) {
+    PoolRegistration poolRegistration = new PoolRegistration(hikariConfigMxBean,
+        Duration.ofNanos(timeUnit.toNanos(refreshInterval)), setPassword);
+    synchronized (this) {
+      removeClosedPools();
+      Duration maxDelayBefore = getMaxDelay();
+      mPools.add(poolRegistration);
+      // the pool takes over the reference of the caller, if it got the refresher from the registry
+      mReferenceCount.updateAndGet(count -> count > 0 ? count - 1 : count);
+      if (mRegistration == null || poolRegistration.mMaxDelay.compareTo(maxDelayBefore) < 0) {
+        // not running or the new pool needs refresh more often than the others
+        if (mRegistration != null) {
+          mRegistration.close();
+        }
+        // without a token the first refresh happens after the full interval since the datasource got its password
+        // when it was created
+        Duration maxDelay = getMaxDelay();
+        Duration initialDelay = mTokenCache.getCurrentToken() == null ? maxDelay : getNextRefreshDelay(maxDelay);
+        mRegistration = mScheduler.schedule(this::refresh, initialDelay);
+      }
+      registerMBeans();
+    }
+    return poolRegistration;
+  }
+
+  /**
+   * @return number of datasources that are updated by this refresher
+   */
+  public int getPoolCount() {
+    return mPools.size();
+  }
+
+  /**
+   * Stop the refresh for all datasources.
+   */
+  @Override
+  public synchronized void close() {
+    mPools.forEach(pool -> pool.mClosed = true);
+    mPools.clear();
+    stopIfIdle();
+  }
+
+  /*
+   * Listener that is notified when the refresher has no datasources and no references, it is only notified once.
+   */
+  void setIdleListener(Runnable idleListener) {
+    mIdleListener = idleListener;
+  }
+
+  /*
+   * Take a reference for a caller of the registry. It is held until the refresher is started for a datasource, which
+   * then holds it until the datasource is closed, or until it is released. Lock free since the registry calls it while
+   * holding the lock of its map, and the idle listener takes that lock while holding the lock of this refresher.
    */
-  public void start(HikariConfigMXBean hikariConfigMxBean, int refreshInterval, TimeUnit timeUnit) {
-    ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
-    Runnable task = () -> {
-      sLogger.debug("Generate new authentication token for database pool '{}'", hikariConfigMxBean.getPoolName());
-      hikariConfigMxBean.setPassword(getAuthenticationToken());
-    };
-    scheduler.scheduleWithFixedDelay(task, refreshInterval, refreshInterval, timeUnit);
+  boolean acquire() {
+    while (true) {
+      int count = mReferenceCount.get();
+      if (count < 0) {
+        // idle and already removed from the registry
+        return false;
+      }
+      if (mReferenceCount.compareAndSet(count, count + 1)) {
+        return true;
+      }
+    }
+  }
+
+  /*
+   * Release a reference that wasn't taken over by a started datasource, e.g. the one of a datasource with token on
+   * demand, which isn't registered on the refresher, when the datasource is closed. The refresher is removed from the
+   * registry if no datasource and no one else uses it.
+   */
+  synchronized void release() {
+    mReferenceCount.updateAndGet(count -> count > 0 ? count - 1 : count);
+    releaseIfIdle();
+  }
+
+  /*
+   * Remove the refresher from the registry if no datasource and no one else uses it.
+   */
+  synchronized void releaseIfIdle() {
+    removeClosedPools();
+    stopIfIdle();
+  }
+
+  private Duration refresh() {
+    synchronized (this) {
+      removeClosedPools();
+      if (stopIfIdle()) {
+        return Duration.ZERO;
+      }
+    }
+    String token;
+    try {
+      token = mTokenCache.refresh().getToken();
+    }
+    catch (RuntimeException e) {
+      return onRefreshFailure(e);
+    }
+    mConsecutiveFailures = 0;
+    mRefreshSuccessCount.incrementAndGet();
+    for (PoolRegistration pool : mPools) {
+      if (pool.mSetPassword) {
+        sLogger.debug("Generate new authentication token for database pool '{}'",
+            pool.mHikariConfigMxBean.getPoolName());
+        pool.mHikariConfigMxBean.setPassword(token);
+      }
+    }
+    return getNextRefreshDelay(getMaxDelay());
+  }
+
+  private String generateAuthenticationToken() {
+    long start = System.nanoTime();
+    try {
+      return mRdsUtilities.generateAuthenticationToken(mRequest);
+    }
+    finally {
+      mTokenGenerationLatency.record(System.nanoTime() - start);
+    }
+  }
+
+  private Duration onRefreshFailure(RuntimeException e) {
+    int failures = ++mConsecutiveFailures;
+    mRefreshFailureCount.incrementAndGet();
+    mLastFailure = e;
+    Duration retryDelay = getRetryDelay(failures);
+    sLogger.warn("Failed to generate authentication token for '{}@{}:{}' ({} consecutive failures), retry in {} ms",
+        mRequest.username(), mRequest.hostname(), mRequest.port(), failures, retryDelay.toMillis(), e);
+    return retryDelay;
+  }
+
+  /*
+   * Exponential backoff with equal jitter. While the current token is still valid the delay is also capped so that
+   * a few more attempts fit before it expires.
+   */
+  private Duration getRetryDelay(int failures) {
+    long backoff = mInitialRetryDelay.toMillis() << Math.min(failures - 1, 30);
+    long delay = Math.min(backoff, mMaxRetryDelay.toMillis());
+    RdsIamAuthenticationToken token = mTokenCache.getCurrentToken();
+    if (token != null) {
+      long remaining = token.getRemainingLifetime(Instant.now()).toMillis();
+      if (remaining > 0) {
+        delay = Math.max(Math.min(delay, remaining / 2), mInitialRetryDelay.toMillis());
+      }
+    }
+    long halfDelay = Math.max(delay / 2, 1);
+    return Duration.ofMillis(halfDelay + ThreadLocalRandom.current().nextLong(halfDelay));
+  }
+
+  /*
+   * Hikari can't tell when a pool is closed so the closed pools are removed when the refresh runs or a pool is added.
+   */
+  private void removeClosedPools() {
+    mPools.removeIf(pool -> {
+      if (pool.isPoolClosed()) {
+        sLogger.debug("Database pool '{}' is closed, stop refreshing the authentication token",
+            pool.mHikariConfigMxBean.getPoolName());
+        pool.mClosed = true;
+      }
+      return pool.mClosed;
+    });
+  }
+
+  private synchronized void remove(PoolRegistration poolRegistration) {
+    mPools.remove(poolRegistration);
+    stopIfIdle();
+  }
+
+  /*
+   * Stop the refresh when there are no datasources, and notify the idle listener if no one holds a reference either.
+   */
+  private boolean stopIfIdle() {
+    if (!mPools.isEmpty()) {
+      return false;
+    }
+    RdsIamAuthenticationTokenMetrics.unregisterMBean(mEndpointMBeanName);
+    mEndpointMBeanName = null;
+    if (mRegistration != null) {
+      mRegistration.close();
+      mRegistration = null;
+    }
+    if (mReferenceCount.compareAndSet(0, -1)) {
+      Runnable idleListener = mIdleListener;
+      if (idleListener != null) {
+        idleListener.run();
+      }
+    }
+    return true;
+  }
+
+  /*
+   * One MBean for the endpoint since all the pools share the token and its metrics, the pools are listed in it.
+   */
+  private void registerMBeans() {
+    if (mEndpointMBeanName == null && mPools.stream().anyMatch(pool -> pool.mRegisterMBean)) {
+      mEndpointMBeanName = new RdsIamAuthenticationTokenMetrics(this, null).registerMBean();
+    }
+  }
+
+  private Duration getMaxDelay() {
+    return mPools.stream().map(pool -> pool.mMaxDelay).min(Duration::compareTo).orElse(Duration.ZERO);
+  }
+
+  private Duration getNextRefreshDelay(Duration maxDelay) {
+    Duration delay = mTokenCache.getNextRefreshDelay();
+    return delay.compareTo(maxDelay) < 0 ? delay : maxDelay;
+  }
+
+  /**
+   * Handle for a datasource that is updated by the refresher. Closing it stops the refresh for the datasource.
+   */
+  public final class PoolRegistration implements AutoCloseable {
+    private final HikariConfigMXBean mHikariConfigMxBean;
+    private final Duration mMaxDelay;
+    private final boolean mRegisterMBean;
+    // false for a datasource that only connects to the host on failover
+    private final boolean mSetPassword;
+    private volatile boolean mClosed;
+
+    private PoolRegistration(HikariConfigMXBean hikariConfigMxBean, Duration maxDelay, boolean setPassword) {
+      mHikariConfigMxBean = hikariConfigMxBean;
+      mMaxDelay = maxDelay;
+      mSetPassword = setPassword;
+      mRegisterMBean = hikariConfigMxBean instanceof HikariConfig
+          && ((HikariConfig) hikariConfigMxBean).isRegisterMbeans();
+    }
+
+    /**
+     * @return true if the refresh has been stopped for the datasource
+     */
+    public boolean isClosed() {
+      return mClosed;
+    }
+
+    /**
+     * Stop the refresh for the datasource.
+     */
+    @Override
+    public void close() {
+      if (!mClosed) {
+        mClosed = true;
+        remove(this);
+      }
+    }
+
+    private boolean isPoolClosed() {
+      return mHikariConfigMxBean instanceof HikariDataSource && ((HikariDataSource) mHikariConfigMxBean).isClosed();
+    }
   }
 
 }
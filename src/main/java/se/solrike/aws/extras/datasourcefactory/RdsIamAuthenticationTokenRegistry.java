@@ -0,0 +1,168 @@
+/*
+ * Copyright © 2022 Lucas Persson. All Rights Reserved.
+ */
+package se.solrike.aws.extras.datasourcefactory;
+
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import software.amazon.awssdk.services.rds.RdsUtilities;
+
+/**
+ * Process wide registry of token refreshers. There is one refresher per RdsUtilities, hostname, port, username and
+ * region so datasources that connect to the same database with the same user (e.g. a read pool, a write pool and a
+ * batch pool) share one token and one refresh task. The RdsUtilities is part of the key since it holds the
+ * credentials the token is signed with, so the datasources must use the same RdsUtilities instance to share a token.
+ * <p>
+ * Each call to getRefresher takes a reference to the refresher. Starting the refresher for a datasource hands the
+ * reference over to the datasource. A refresher is removed from the registry when all the datasources started on it
+ * are closed and all other references are released.
+ */
+public class RdsIamAuthenticationTokenRegistry {
+
+  // e.g. database1.crux4711.eu-north-1.rds.amazonaws.com
+  private static final Pattern REGION_PATTERN = Pattern.compile("\\.([a-z]{2}(?:-[a-z]+)+-\\d)\\.rds\\.amazonaws\\.");
+
+  private final Map<Key, RdsIamAuthenticationTokenRefresher> mRefreshers = new ConcurrentHashMap<>();
+  private final RdsIamTokenRefreshScheduler mScheduler;
+
+  /**
+   * Create a registry that schedules the refreshers on the shared scheduler.
+   */
+  public RdsIamAuthenticationTokenRegistry() {
+    this(RdsIamTokenRefreshScheduler.getSharedInstance());
+  }
+
+  /**
+   * @param scheduler
+   *          - scheduler that runs the refresh tasks
+   */
+  public RdsIamAuthenticationTokenRegistry(RdsIamTokenRefreshScheduler scheduler) {
+    mScheduler = scheduler;
+  }
+
+  /**
+   * Get the registry that is shared by all datasource factories in the JVM.
+   *
+   * @return the shared registry
+   */
+  public static RdsIamAuthenticationTokenRegistry getSharedInstance() {
+    return SharedInstanceHolder.INSTANCE;
+  }
+
+  /**
+   * Get the refresher for a database user. The region is taken from the RDS hostname if possible.
+   *
+   * @param rdsUtilities
+   *          - AWS SDK utilities class that signs the tokens
+   * @param dbHostname
+   *          - must be a hostname know to AWS RDS so it can't be from a private DNS.
+   * @param dbPort
+   *          - database port
+   * @param dbUsername
+   *          - database username for the application
+   * @return the refresher, new or existing. Start it for a datasource or release it.
+   */
+  public RdsIamAuthenticationTokenRefresher getRefresher(RdsUtilities rdsUtilities, String dbHostname, int dbPort,
+      String dbUsername) {
+    return getRefresher(rdsUtilities, dbHostname, dbPort, dbUsername, getRegionFromHostname(dbHostname));
+  }
+
+  /**
+   * Get the refresher for a database user.
+   *
+   * @param rdsUtilities
+   *          - AWS SDK utilities class that signs the tokens
+   * @param dbHostname
+   *          - must be a hostname know to AWS RDS so it can't be from a private DNS.
+   * @param dbPort
+   *          - database port
+   * @param dbUsername
+   *          - database username for the application
+   * @param region
+   *          - AWS region of the database, may be null if unknown
+   * @return the refresher, new or existing. Start it for a datasource or release it.
+   */
+  public RdsIamAuthenticationTokenRefresher getRefresher(RdsUtilities rdsUtilities, String dbHostname, int dbPort,
+      String dbUsername, String region) {
+    Key key = new Key(rdsUtilities, dbHostname, dbPort, dbUsername, region);
+    // an existing refresher that has just become idle can't be acquired, it is replaced by a new one
+    return mRefreshers.compute(key, (k, existing) -> {
+      if (existing != null && existing.acquire()) {
+        return existing;
+      }
+      RdsIamAuthenticationTokenRefresher refresher = new RdsIamAuthenticationTokenRefresher(rdsUtilities, dbHostname,
+          dbPort, dbUsername, mScheduler);
+      refresher.setIdleListener(() -> mRefreshers.remove(k, refresher));
+      refresher.acquire();
+      return refresher;
+    });
+  }
+
+  /**
+   * Release a reference taken by getRefresher for a refresher that wasn't started, e.g. for a datasource with token on
+   * demand when the datasource is closed.
+   *
+   * @param refresher
+   *          - the refresher
+   */
+  public void release(RdsIamAuthenticationTokenRefresher refresher) {
+    refresher.release();
+  }
+
+  /**
+   * @return number of distinct database endpoint and user combinations that have a refresher
+   */
+  public int size() {
+    return mRefreshers.size();
+  }
+
+  static String getRegionFromHostname(String dbHostname) {
+    Matcher matcher = REGION_PATTERN.matcher(dbHostname.toLowerCase(Locale.ROOT));
+    return matcher.find() ? matcher.group(1) : null;
+  }
+
+  private static final class Key {
+    // compared by identity since it holds the credentials
+    private final RdsUtilities mRdsUtilities;
+    private final String mHostname;
+    private final int mPort;
+    private final String mUsername;
+    private final String mRegion;
+
+    Key(RdsUtilities rdsUtilities, String hostname, int port, String username, String region) {
+      mRdsUtilities = rdsUtilities;
+      mHostname = hostname.toLowerCase(Locale.ROOT);
+      mPort = port;
+      mUsername = username;
+      mRegion = region;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (this == obj) {
+        return true;
+      }
+      if (!(obj instanceof Key)) {
+        return false;
+      }
+      Key other = (Key) obj;
+      return mRdsUtilities == other.mRdsUtilities && mPort == other.mPort && mHostname.equals(other.mHostname)
+          && mUsername.equals(other.mUsername) && Objects.equals(mRegion, other.mRegion);
+    }
+
+    @Override
+    public int hashCode() {
+      return 31 * System.identityHashCode(mRdsUtilities) + Objects.hash(mHostname, mPort, mUsername, mRegion);
+    }
+  }
+
+  private static final class SharedInstanceHolder {
+    private static final RdsIamAuthenticationTokenRegistry INSTANCE = new RdsIamAuthenticationTokenRegistry();
+  }
+
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright © 2022 Lucas Persson. All Rights Reserved.
+ */
+package se.solrike.aws.extras.datasourcefactory;
+
+import java.util.Objects;
+
+/**
+ * A database instance in a cluster, e.g. an Aurora writer or reader.
+ */
+public final class RdsIamClusterMember {
+
+  private final String mInstanceIdentifier;
+  private final String mHostname;
+  private final int mPort;
+  private final boolean mWriter;
+
+  /**
+   * @param instanceIdentifier
+   *          - identifier of the database instance
+   * @param hostname
+   *          - hostname of the instance endpoint
+   * @param port
+   *          - port of the instance endpoint
+   * @param writer
+   *          - true if the instance is the writer of the cluster
+   */
+  public RdsIamClusterMember(String instanceIdentifier, String hostname, int port, boolean writer) {
+    mInstanceIdentifier = Objects.requireNonNull(instanceIdentifier);
+    mHostname = Objects.requireNonNull(hostname);
+    mPort = port;
+    mWriter = writer;
+  }
+
+  /**
+   * @return identifier of the database instance
+   */
+  public String getInstanceIdentifier() {
+    return mInstanceIdentifier;
+  }
+
+  /**
+   * @return hostname of the instance endpoint
+   */
+  public String getHostname() {
+    return mHostname;
+  }
+
+  /**
+   * @return port of the instance endpoint
+   */
+  public int getPort() {
+    return mPort;
+  }
+
+  /**
+   * @return true if the instance is the writer of the cluster
+   */
+  public boolean isWriter() {
+    return mWriter;
+  }
+
+  /**
+   * Create the JDBC URL for the instance from the JDBC URL of the cluster by replacing the host and port.
+   *
+   * @param clusterJdbcUrl
+   *          - e.g. jdbc:mysql://cluster1.cluster-crux4711.eu-north-1.rds.amazonaws.com:3306/database1
+   * @return e.g. jdbc:mysql://instance1.crux4711.eu-north-1.rds.amazonaws.com:3306/database1
+   */
+  public String getJdbcUrl(String clusterJdbcUrl) {
+    return RdsIamJdbcUrl.parse(clusterJdbcUrl).withHost(mHostname, mPort);
+  }
+
+  @Override
+  public boolean equals(Object obj) {
+    if (this == obj) {
+      return true;
+    }
+    if (!(obj instanceof RdsIamClusterMember)) {
+      return false;
+    }
+    RdsIamClusterMember other = (RdsIamClusterMember) obj;
+    return mInstanceIdentifier.equals(other.mInstanceIdentifier) && mHostname.equals(other.mHostname)
+        && mPort == other.mPort && mWriter == other.mWriter;
+  }
+
+  @Override
+  public int hashCode() {
+    return Objects.hash(mInstanceIdentifier, mHostname, mPort, mWriter);
+  }
+
+  @Override
+  public String toString() {
+    return mInstanceIdentifier + "(" + mHostname + ":" + mPort + (mWriter ? ", writer" : "") + ")";
+  }
+
+}
@@ -0,0 +1,347 @@
+/*
+ * Copyright © 2022 Lucas Persson. All Rights Reserved.
+ */
+package se.solrike.aws.extras.datasourcefactory;
+
+import java.io.Closeable;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.zaxxer.hikari.HikariDataSource;
+
+/**
+ * Keeps one pool per instance of a database cluster in a {@link RdsIamRoutingDataSource} in line with the topology
+ * of the cluster, e.g. an Aurora cluster that autoscales its readers.
+ * <p>
+ * The topology is discovered at an interval. New instances get a pool, created by the pool creator, typically through
+ * one of the createDatasource methods of {@link AbstractRdsIamDatasourceFactory} so each instance gets its own
+ * {@link RdsIamAuthenticationTokenRefresher}. Removed instances are taken out of the routing and their pools are
+ * closed when all their connections have been returned or the drain timeout has passed. When another instance becomes
+ * the writer the routing switches to its pool at the next discovery, and the old writer becomes a reader if it is
+ * still in the cluster. If the topology has no writer, e.g. in the middle of a failover, the current writer is kept.
+ * <p>
+ * Call {@link #refresh()} to discover the topology right away, e.g. when the writer rejects a write because it has
+ * become a reader.
+ * <p>
+ * The discovery calls the RDS API and creates pools, which both block, so by default it runs on a scheduler of the
+ * manager's own and never on the shared {@link RdsIamTokenRefreshScheduler} where it would delay the token refreshes.
+ */
+public class RdsIamClusterPoolManager implements Closeable {
+  private static final Logger sLogger = LoggerFactory.getLogger(RdsIamClusterPoolManager.class);
+
+  /**
+   * Interval between the discoveries when nothing else is specified.
+   */
+  public static final Duration DEFAULT_DISCOVERY_INTERVAL = Duration.ofSeconds(5);
+
+  /**
+   * Max time to wait for the connections of a removed instance to be returned before its pool is closed.
+   */
+  public static final Duration DEFAULT_DRAIN_TIMEOUT = Duration.ofSeconds(30);
+
+  private final RdsIamClusterTopologyProvider mTopologyProvider;
+  private final Function<RdsIamClusterMember, HikariDataSource> mPoolCreator;
+  private final RdsIamTokenRefreshScheduler mScheduler;
+  // closed with the manager, null if the scheduler was given by the caller
+  private final RdsIamTokenRefreshScheduler mOwnScheduler;
+  // guarded by this
+  private final Map<String, HikariDataSource> mPools = new LinkedHashMap<>();
+  private final List<DrainingPool> mDrainingPools = new ArrayList<>();
+  private final Map<String, RdsIamRoutingDataSource.Endpoint> mFormerWriters = new HashMap<>();
+  private final AtomicLong mDiscoveryFailureCount = new AtomicLong();
+  private final AtomicLong mWriterChangeCount = new AtomicLong();
+  private volatile RdsIamRoutingDataSource mDataSource;
+  private volatile RdsIamClusterMember mWriter;
+  private volatile Duration mDrainTimeout = DEFAULT_DRAIN_TIMEOUT;
+  private RdsIamTokenRefreshScheduler.Registration mRegistration;
+  private boolean mClosed;
+
+  /**
+   * Discover the topology on a scheduler with one thread of the manager's own that is stopped when the manager is
+   * closed.
+   *
+   * @param topologyProvider
+   *          - discovers the instances of the cluster
+   * @param poolCreator
+   *          - creates the pool for an instance
+   */
+  public RdsIamClusterPoolManager(RdsIamClusterTopologyProvider topologyProvider,
+      Function<RdsIamClusterMember, HikariDataSource> poolCreator) {
+    this(topologyProvider, poolCreator, new RdsIamTokenRefreshScheduler(1, "rds-iam-cluster-discovery-"), true);
+  }
+
+  /**
+   * @param topologyProvider
+   *          - discovers the instances of the cluster
+   * @param poolCreator
+   *          - creates the pool for an instance
+   * @param scheduler
+   *          - scheduler that runs the discovery. Don't use the scheduler of the token refreshers since the discovery
+   *          blocks on network I/O. The scheduler isn't closed with the manager.
+   */
+  public RdsIamClusterPoolManager(RdsIamClusterTopologyProvider topologyProvider,
+      Function<RdsIamClusterMember, HikariDataSource> poolCreator, RdsIamTokenRefreshScheduler scheduler) {
+    this(topologyProvider, poolCreator, scheduler, false);
+  }
+
+  private RdsIamClusterPoolManager(RdsIamClusterTopologyProvider topologyProvider,
+      Function<RdsIamClusterMember, HikariDataSource> poolCreator, RdsIamTokenRefreshScheduler scheduler,
+      boolean ownScheduler) {
+    mTopologyProvider = topologyProvider;
+    mPoolCreator = poolCreator;
+    mScheduler = scheduler;
+    mOwnScheduler = ownScheduler ? scheduler : null;
+  }
+
+  /**
+   * Discover the topology, create the pools and start the discovery at an interval.
+   *
+   * @param discoveryInterval
+   *          - interval between the discoveries
+   * @return the datasource that routes to the pools
+   * @throws IllegalStateException
+   *           if the cluster has no writer
+   */
+  public synchronized RdsIamRoutingDataSource start(Duration discoveryInterval) {
+    if (mClosed) {
+      throw new IllegalStateException("Cluster pool manager is closed");
+    }
+    refresh();
+    if (mRegistration == null) {
+      mRegistration = mScheduler.schedule(this::scheduledRefresh, discoveryInterval.toNanos(),
+          discoveryInterval.toNanos(), TimeUnit.NANOSECONDS);
+    }
+    return mDataSource;
+  }
+
+  /**
+   * Discover the topology and update the pools.
+   *
+   * @throws IllegalStateException
+   *           if there is no writer and no pool has been created yet
+   * @throws RuntimeException
+   *           if the topology can't be discovered
+   */
+  public synchronized void refresh() {
+    if (mClosed) {
+      return;
+    }
+    closeDrainedPools();
+    List<RdsIamClusterMember> members = mTopologyProvider.getClusterMembers();
+    Map<String, RdsIamClusterMember> membersById = new HashMap<>();
+    RdsIamClusterMember writer = null;
+    for (RdsIamClusterMember member : members) {
+      membersById.put(member.getInstanceIdentifier(), member);
+      if (member.isWriter()) {
+        writer = member;
+      }
+    }
+    if (writer == null) {
+      if (mDataSource == null) {
+        throw new IllegalStateException("No writer in cluster " + members);
+      }
+      sLogger.info("No writer in cluster {}, keeping writer {}", members, mWriter);
+      writer = mWriter;
+      membersById.put(writer.getInstanceIdentifier(), writer);
+    }
+
+    updateWriter(writer);
+    for (RdsIamClusterMember member : membersById.values()) {
+      if (!member.getInstanceIdentifier().equals(writer.getInstanceIdentifier())) {
+        addReader(member);
+      }
+    }
+    removePools(membersById);
+  }
+
+  /**
+   * @return the datasource that routes to the pools, null until started
+   */
+  public RdsIamRoutingDataSource getDataSource() {
+    return mDataSource;
+  }
+
+  /**
+   * @return the current writer, null until started
+   */
+  public RdsIamClusterMember getWriter() {
+    return mWriter;
+  }
+
+  /**
+   * @return identifiers of the instances that have a pool that isn't draining
+   */
+  public synchronized List<String> getInstanceIdentifiers() {
+    return new ArrayList<>(mPools.keySet());
+  }
+
+  /**
+   * @return number of pools that are draining
+   */
+  public synchronized int getDrainingPoolCount() {
+    return mDrainingPools.size();
+  }
+
+  /**
+   * @return number of times the writer has changed
+   */
+  public long getWriterChangeCount() {
+    return mWriterChangeCount.get();
+  }
+
+  /**
+   * @return number of scheduled discoveries that failed
+   */
+  public long getDiscoveryFailureCount() {
+    return mDiscoveryFailureCount.get();
+  }
+
+  /**
+   * @return max time to wait for the connections of a removed instance to be returned
+   */
+  public Duration getDrainTimeout() {
+    return mDrainTimeout;
+  }
+
+  /**
+   * @param drainTimeout
+   *          - max time to wait for the connections of a removed instance to be returned before its pool is closed.
+   *          Default 30 s.
+   */
+  public void setDrainTimeout(Duration drainTimeout) {
+    mDrainTimeout = drainTimeout;
+  }
+
+  /**
+   * Stop the discovery and close all pools, and the scheduler if it is the manager's own.
+   */
+  @Override
+  public synchronized void close() {
+    if (mClosed) {
+      return;
+    }
+    mClosed = true;
+    if (mRegistration != null) {
+      mRegistration.close();
+    }
+    if (mOwnScheduler != null) {
+      mOwnScheduler.close();
+    }
+    if (mDataSource != null) {
+      mDataSource.close();
+    }
+    mPools.values().forEach(HikariDataSource::close);
+    mPools.clear();
+    mDrainingPools.forEach(draining -> draining.mPool.close());
+    mDrainingPools.clear();
+  }
+
+  private void scheduledRefresh() {
+    try {
+      refresh();
+    }
+    catch (RuntimeException e) {
+      mDiscoveryFailureCount.incrementAndGet();
+      sLogger.warn("Failed to discover the cluster topology, keeping the current pools", e);
+    }
+  }
+
+  private void updateWriter(RdsIamClusterMember writer) {
+    HikariDataSource pool = getOrCreatePool(writer);
+    if (mDataSource == null) {
+      mDataSource = new RdsIamRoutingDataSource(writer.getInstanceIdentifier(), pool);
+    }
+    else if (!writer.getInstanceIdentifier().equals(mWriter.getInstanceIdentifier())) {
+      sLogger.info("Writer changed from {} to {}", mWriter, writer);
+      mDataSource.removeReader(writer.getInstanceIdentifier());
+      mFormerWriters.remove(writer.getInstanceIdentifier());
+      // keep the old writer so its pool can be drained if the instance is removed
+      mFormerWriters.put(mWriter.getInstanceIdentifier(), mDataSource.getWriter());
+      mDataSource.setWriter(writer.getInstanceIdentifier(), pool);
+      mWriterChangeCount.incrementAndGet();
+    }
+    mWriter = writer;
+  }
+
+  private void addReader(RdsIamClusterMember member) {
+    if (mDataSource.getReader(member.getInstanceIdentifier()) != null) {
+      return;
+    }
+    try {
+      mDataSource.addReader(member.getInstanceIdentifier(), getOrCreatePool(member));
+      mFormerWriters.remove(member.getInstanceIdentifier());
+      sLogger.info("Added reader {}", member);
+    }
+    catch (RuntimeException e) {
+      // the other instances shall still be updated, the reader is tried again at the next discovery
+      sLogger.warn("Failed to create pool for reader {}", member, e);
+    }
+  }
+
+  private HikariDataSource getOrCreatePool(RdsIamClusterMember member) {
+    HikariDataSource pool = mPools.get(member.getInstanceIdentifier());
+    if (pool == null) {
+      pool = mPoolCreator.apply(member);
+      mPools.put(member.getInstanceIdentifier(), pool);
+    }
+    return pool;
+  }
+
+  private void removePools(Map<String, RdsIamClusterMember> membersById) {
+    for (Iterator<Map.Entry<String, HikariDataSource>> iterator = mPools.entrySet().iterator(); iterator.hasNext();) {
+      Map.Entry<String, HikariDataSource> entry = iterator.next();
+      if (!membersById.containsKey(entry.getKey())) {
+        RdsIamRoutingDataSource.Endpoint endpoint = mDataSource.getReader(entry.getKey());
+        if (endpoint == null) {
+          endpoint = mFormerWriters.get(entry.getKey());
+        }
+        mDataSource.removeReader(entry.getKey());
+        mFormerWriters.remove(entry.getKey());
+        iterator.remove();
+        sLogger.info("Removed instance {}, draining its pool", entry.getKey());
+        mDrainingPools.add(new DrainingPool(entry.getValue(), endpoint, System.nanoTime() + mDrainTimeout.toNanos()));
+      }
+    }
+    closeDrainedPools();
+  }
+
+  private void closeDrainedPools() {
+    long now = System.nanoTime();
+    for (Iterator<DrainingPool> iterator = mDrainingPools.iterator(); iterator.hasNext();) {
+      DrainingPool draining = iterator.next();
+      if (draining.isDrained() || now - draining.mDeadlineNanos >= 0) {
+        draining.mPool.close();
+        iterator.remove();
+      }
+    }
+  }
+
+  private static final class DrainingPool {
+    private final HikariDataSource mPool;
+    private final RdsIamRoutingDataSource.Endpoint mEndpoint;
+    private final long mDeadlineNanos;
+
+    DrainingPool(HikariDataSource pool, RdsIamRoutingDataSource.Endpoint endpoint, long deadlineNanos) {
+      mPool = pool;
+      mEndpoint = endpoint;
+      mDeadlineNanos = deadlineNanos;
+    }
+
+    boolean isDrained() {
+      // the endpoint is null if the pool was never routed to
+      return mEndpoint == null || mEndpoint.getOutstandingCount() == 0;
+    }
+  }
+
+}
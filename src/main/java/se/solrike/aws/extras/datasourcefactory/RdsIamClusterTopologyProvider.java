@@ -0,0 +1,24 @@
+/*
+ * Copyright © 2022 Lucas Persson. All Rights Reserved.
+ */
+package se.solrike.aws.extras.datasourcefactory;
+
+import java.util.List;
+
+/**
+ * Discovers the instances of a database cluster. See {@link RdsIamDescribeClusterTopologyProvider} for the
+ * implementation that asks RDS.
+ */
+public interface RdsIamClusterTopologyProvider {
+
+  /**
+   * Get the instances of the cluster that can take connections right now. Normally one of them is the writer, but
+   * during a failover there might be none.
+   *
+   * @return the instances of the cluster
+   * @throws RuntimeException
+   *           if the cluster can't be discovered, e.g. an SdkException
+   */
+  List<RdsIamClusterMember> getClusterMembers();
+
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright © 2022 Lucas Persson. All Rights Reserved.
+ */
+package se.solrike.aws.extras.datasourcefactory;
+
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Max number of connections per database endpoint, shared by the pools whose size is controlled by a
+ * {@link RdsIamPoolSizeController}.
+ * <p>
+ * The database only accepts a limited number of connections, e.g. <code>max_connections</code> minus what other
+ * applications use. A controller reserves the max size of its pool from the budget of the endpoint before it grows the
+ * pool and releases it when it shrinks the pool, so the pools of all controllers together never have a max size above
+ * the budget. Pools without a controller aren't counted.
+ */
+public class RdsIamConnectionBudget {
+
+  private final Map<String, Budget> mBudgets = new ConcurrentHashMap<>();
+  private volatile int mDefaultEndpointBudget = Integer.MAX_VALUE;
+
+  /**
+   * @param maxConnections
+   *          - max number of connections to each endpoint that doesn't have a budget of its own. Default unlimited.
+   */
+  public void setDefaultEndpointBudget(int maxConnections) {
+    mDefaultEndpointBudget = maxConnections;
+  }
+
+  /**
+   * Set the budget of one endpoint. Lowering it below what is already reserved doesn't shrink any pool, it only stops
+   * the pools from growing until enough has been released.
+   *
+   * @param dbHostname
+   *          - hostname of the database
+   * @param dbPort
+   *          - port of the database
+   * @param maxConnections
+   *          - max number of connections to the endpoint
+   */
+  public void setEndpointBudget(String dbHostname, int dbPort, int maxConnections) {
+    getBudget(dbHostname, dbPort).mMaxConnections = maxConnections;
+  }
+
+  /**
+   * Reserve connections, as many as there are left of the budget up to the requested number.
+   *
+   * @param dbHostname
+   *          - hostname of the database
+   * @param dbPort
+   *          - port of the database
+   * @param requested
+   *          - number of connections to reserve
+   * @return number of reserved connections, between 0 and requested
+   */
+  public int reserve(String dbHostname, int dbPort, int requested) {
+    Budget budget = getBudget(dbHostname, dbPort);
+    while (true) {
+      int reserved = budget.mReserved.get();
+      int granted = Math.max(Math.min(requested, budget.mMaxConnections - reserved), 0);
+      if (granted == 0 || budget.mReserved.compareAndSet(reserved, reserved + granted)) {
+        return granted;
+      }
+    }
+  }
+
+  /**
+   * @param dbHostname
+   *          - hostname of the database
+   * @param dbPort
+   *          - port of the database
+   * @param connections
+   *          - number of connections to give back
+   */
+  public void release(String dbHostname, int dbPort, int connections) {
+    getBudget(dbHostname, dbPort).mReserved.addAndGet(-connections);
+  }
+
+  /**
+   * @param dbHostname
+   *          - hostname of the database
+   * @param dbPort
+   *          - port of the database
+   * @return max number of connections to the endpoint
+   */
+  public int getEndpointBudget(String dbHostname, int dbPort) {
+    return getBudget(dbHostname, dbPort).mMaxConnections;
+  }
+
+  /**
+   * @param dbHostname
+   *          - hostname of the database
+   * @param dbPort
+   *          - port of the database
+   * @return number of reserved connections to the endpoint
+   */
+  public int getReserved(String dbHostname, int dbPort) {
+    return getBudget(dbHostname, dbPort).mReserved.get();
+  }
+
+  /*
+   * The minimum size of a pool is always given, even if that exceeds the budget.
+   */
+  void forceReserve(String dbHostname, int dbPort, int connections) {
+    getBudget(dbHostname, dbPort).mReserved.addAndGet(connections);
+  }
+
+  private Budget getBudget(String dbHostname, int dbPort) {
+    return mBudgets.computeIfAbsent(dbHostname.toLowerCase(Locale.ROOT) + ":" + dbPort,
+        endpoint -> new Budget(mDefaultEndpointBudget));
+  }
+
+  private static final class Budget {
+    private final AtomicInteger mReserved = new AtomicInteger();
+    private volatile int mMaxConnections;
+
+    Budget(int maxConnections) {
+      mMaxConnections = maxConnections;
+    }
+  }
+
+}
@@ -0,0 +1,259 @@
+/*
+ * Copyright © 2022 Lucas Persson. All Rights Reserved.
+ */
+package se.solrike.aws.extras.datasourcefactory;
+
+import java.lang.management.ManagementFactory;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Connection latencies of one database pool, or of all pools of a database endpoint, recorded by a
+ * {@link RdsIamConnectionMetricsTrackerFactory}:
+ * <ul>
+ * <li>acquire - time getConnection() waited for a connection</li>
+ * <li>creation - time to create a physical connection, including the IAM authentication</li>
+ * <li>usage - time a connection was borrowed from the pool</li>
+ * </ul>
+ * Hikari reports the creation and usage times in milliseconds so those have millisecond resolution.
+ * <p>
+ * The endpoint metrics don't record anything themselves, the latencies of its pools are added together when they are
+ * read so the recording cost is the same as for one pool. The MBeans are named
+ * <code>se.solrike.aws.extras:type=RdsIamConnection (poolName)</code> and
+ * <code>se.solrike.aws.extras:type=RdsIamConnectionEndpoint,name="host:port"</code>.
+ */
+public class RdsIamConnectionMetrics implements RdsIamConnectionMetricsMXBean {
+  private static final Logger sLogger = LoggerFactory.getLogger(RdsIamConnectionMetrics.class);
+
+  private static final String DOMAIN = "se.solrike.aws.extras";
+  private static final double NANOS_PER_MILLI = 1_000_000.0;
+
+  private final String mPoolName;
+  private final String mEndpoint;
+  private final RdsIamLatencyHistogram mAcquireTime = new RdsIamLatencyHistogram();
+  private final RdsIamLatencyHistogram mCreationTime = new RdsIamLatencyHistogram();
+  private final RdsIamLatencyHistogram mUsageTime = new RdsIamLatencyHistogram();
+  private final LongAdder mAcquireTimeoutCount = new LongAdder();
+  // only for the endpoint
+  private final List<RdsIamConnectionMetrics> mPools = new CopyOnWriteArrayList<>();
+
+  /**
+   * @param poolName
+   *          - name of the Hikari pool, null for the metrics of the endpoint
+   * @param endpoint
+   *          - database endpoint, host:port
+   */
+  public RdsIamConnectionMetrics(String poolName, String endpoint) {
+    mPoolName = poolName;
+    mEndpoint = endpoint;
+  }
+
+  /**
+   * @return the name of the MBean
+   * @throws MalformedObjectNameException
+   *           if the pool name can't be used in an object name
+   */
+  public ObjectName getObjectName() throws MalformedObjectNameException {
+    if (mPoolName != null) {
+      return new ObjectName(DOMAIN + ":type=RdsIamConnection (" + mPoolName + ")");
+    }
+    return new ObjectName(DOMAIN + ":type=RdsIamConnectionEndpoint,name=" + ObjectName.quote(mEndpoint));
+  }
+
+  /**
+   * @return time getConnection() waited for a connection. For the endpoint it is a copy with the times of all pools.
+   */
+  public RdsIamLatencyHistogram getAcquireTime() {
+    return getHistogram(metrics -> metrics.mAcquireTime);
+  }
+
+  /**
+   * @return time to create a physical connection. For the endpoint it is a copy with the times of all pools.
+   */
+  public RdsIamLatencyHistogram getCreationTime() {
+    return getHistogram(metrics -> metrics.mCreationTime);
+  }
+
+  /**
+   * @return time a connection was borrowed. For the endpoint it is a copy with the times of all pools.
+   */
+  public RdsIamLatencyHistogram getUsageTime() {
+    return getHistogram(metrics -> metrics.mUsageTime);
+  }
+
+  @Override
+  public String getPoolName() {
+    return mPoolName;
+  }
+
+  @Override
+  public String getEndpoint() {
+    return mEndpoint;
+  }
+
+  @Override
+  public long getAcquireCount() {
+    return getAcquireTime().getCount();
+  }
+
+  @Override
+  public double getAcquireP50Millis() {
+    return getAcquireTime().getPercentileNanos(0.5) / NANOS_PER_MILLI;
+  }
+
+  @Override
+  public double getAcquireP99Millis() {
+    return getAcquireTime().getPercentileNanos(0.99) / NANOS_PER_MILLI;
+  }
+
+  @Override
+  public double getAcquireP999Millis() {
+    return getAcquireTime().getPercentileNanos(0.999) / NANOS_PER_MILLI;
+  }
+
+  @Override
+  public double getAcquireMaxMillis() {
+    return getAcquireTime().getMaxNanos() / NANOS_PER_MILLI;
+  }
+
+  @Override
+  public long getAcquireTimeoutCount() {
+    if (mPoolName != null) {
+      return mAcquireTimeoutCount.sum();
+    }
+    return mPools.stream().mapToLong(RdsIamConnectionMetrics::getAcquireTimeoutCount).sum();
+  }
+
+  @Override
+  public long getCreationCount() {
+    return getCreationTime().getCount();
+  }
+
+  @Override
+  public double getCreationP50Millis() {
+    return getCreationTime().getPercentileNanos(0.5) / NANOS_PER_MILLI;
+  }
+
+  @Override
+  public double getCreationP99Millis() {
+    return getCreationTime().getPercentileNanos(0.99) / NANOS_PER_MILLI;
+  }
+
+  @Override
+  public double getCreationP999Millis() {
+    return getCreationTime().getPercentileNanos(0.999) / NANOS_PER_MILLI;
+  }
+
+  @Override
+  public double getCreationMaxMillis() {
+    return getCreationTime().getMaxNanos() / NANOS_PER_MILLI;
+  }
+
+  @Override
+  public long getUsageCount() {
+    return getUsageTime().getCount();
+  }
+
+  @Override
+  public double getUsageP50Millis() {
+    return getUsageTime().getPercentileNanos(0.5) / NANOS_PER_MILLI;
+  }
+
+  @Override
+  public double getUsageP99Millis() {
+    return getUsageTime().getPercentileNanos(0.99) / NANOS_PER_MILLI;
+  }
+
+  @Override
+  public double getUsageP999Millis() {
+    return getUsageTime().getPercentileNanos(0.999) / NANOS_PER_MILLI;
+  }
+
+  @Override
+  public double getUsageMaxMillis() {
+    return getUsageTime().getMaxNanos() / NANOS_PER_MILLI;
+  }
+
+  @Override
+  public void reset() {
+    if (mPoolName == null) {
+      mPools.forEach(RdsIamConnectionMetrics::reset);
+      return;
+    }
+    mAcquireTime.reset();
+    mCreationTime.reset();
+    mUsageTime.reset();
+    mAcquireTimeoutCount.reset();
+  }
+
+  void recordAcquire(long nanos) {
+    mAcquireTime.record(nanos);
+  }
+
+  void recordCreation(long millis) {
+    mCreationTime.record(millis * 1_000_000);
+  }
+
+  void recordUsage(long millis) {
+    mUsageTime.record(millis * 1_000_000);
+  }
+
+  void recordAcquireTimeout() {
+    mAcquireTimeoutCount.increment();
+  }
+
+  void addPool(RdsIamConnectionMetrics pool) {
+    mPools.add(pool);
+  }
+
+  /*
+   * Returns true if it was the last pool of the endpoint.
+   */
+  boolean removePool(RdsIamConnectionMetrics pool) {
+    mPools.remove(pool);
+    return mPools.isEmpty();
+  }
+
+  /*
+   * Failures are only logged, missing metrics shall never stop the datasource from working.
+   */
+  ObjectName registerMBean() {
+    try {
+      ObjectName objectName = getObjectName();
+      MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+      if (mBeanServer.isRegistered(objectName)) {
+        sLogger.warn("MBean '{}' is already registered, the connection metrics are not registered", objectName);
+        return null;
+      }
+      mBeanServer.registerMBean(this, objectName);
+      return objectName;
+    }
+    catch (JMException e) {
+      sLogger.warn("Failed to register connection metrics MBean for '{}'", mPoolName != null ? mPoolName : mEndpoint,
+          e);
+      return null;
+    }
+  }
+
+  private RdsIamLatencyHistogram getHistogram(Function<RdsIamConnectionMetrics, RdsIamLatencyHistogram> histogram) {
+    if (mPoolName != null) {
+      return histogram.apply(this);
+    }
+    RdsIamLatencyHistogram sum = new RdsIamLatencyHistogram();
+    for (RdsIamConnectionMetrics pool : mPools) {
+      sum.add(histogram.apply(pool));
+    }
+    return sum;
+  }
+
+}
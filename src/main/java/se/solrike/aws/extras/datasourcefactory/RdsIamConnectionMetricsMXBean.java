@@ -0,0 +1,108 @@
+/*
+ * Copyright © 2022 Lucas Persson. All Rights Reserved.
+ */
+package se.solrike.aws.extras.datasourcefactory;
+
+/**
+ * JMX view of the connection latencies recorded by a {@link RdsIamConnectionMetricsTrackerFactory}, either for one
+ * database pool or for all pools of the database endpoint.
+ */
+public interface RdsIamConnectionMetricsMXBean {
+
+  /**
+   * @return name of the Hikari pool or null if the metrics are for the endpoint
+   */
+  String getPoolName();
+
+  /**
+   * @return database endpoint, e.g. database1.crux4711.eu-north-1.rds.amazonaws.com:3306
+   */
+  String getEndpoint();
+
+  /**
+   * @return number of connections handed out by getConnection()
+   */
+  long getAcquireCount();
+
+  /**
+   * @return median time getConnection() waited for a connection in milliseconds
+   */
+  double getAcquireP50Millis();
+
+  /**
+   * @return 99th percentile of the time getConnection() waited for a connection in milliseconds
+   */
+  double getAcquireP99Millis();
+
+  /**
+   * @return 99.9th percentile of the time getConnection() waited for a connection in milliseconds
+   */
+  double getAcquireP999Millis();
+
+  /**
+   * @return max time getConnection() waited for a connection in milliseconds
+   */
+  double getAcquireMaxMillis();
+
+  /**
+   * @return number of times getConnection() timed out
+   */
+  long getAcquireTimeoutCount();
+
+  /**
+   * @return number of created physical connections
+   */
+  long getCreationCount();
+
+  /**
+   * @return median time to create a physical connection, including the IAM authentication, in milliseconds
+   */
+  double getCreationP50Millis();
+
+  /**
+   * @return 99th percentile of the time to create a physical connection in milliseconds
+   */
+  double getCreationP99Millis();
+
+  /**
+   * @return 99.9th percentile of the time to create a physical connection in milliseconds
+   */
+  double getCreationP999Millis();
+
+  /**
+   * @return max time to create a physical connection in milliseconds
+   */
+  double getCreationMaxMillis();
+
+  /**
+   * @return number of connections returned to the pool
+   */
+  long getUsageCount();
+
+  /**
+   * @return median time a connection was borrowed from the pool in milliseconds
+   */
+  double getUsageP50Millis();
+
+  /**
+   * @return 99th percentile of the time a connection was borrowed from the pool in milliseconds
+   */
+  double getUsageP99Millis();
+
+  /**
+   * @return 99.9th percentile of the time a connection was borrowed from the pool in milliseconds
+   */
+  double getUsageP999Millis();
+
+  /**
+   * @return max time a connection was borrowed from the pool in milliseconds
+   */
+  double getUsageMaxMillis();
+
+  /**
+   * Clear the recorded latencies and the timeout count, e.g. after reading them to get the values of the next
+   * interval. For the endpoint the latencies of all its pools are cleared.
+   */
+  void reset();
+
+}
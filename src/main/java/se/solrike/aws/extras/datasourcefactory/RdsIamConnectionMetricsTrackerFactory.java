@@ -0,0 +1,178 @@
+/*
+ * Copyright © 2022 Lucas Persson. All Rights Reserved.
+ */
+package se.solrike.aws.extras.datasourcefactory;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.management.ObjectName;
+
+import com.zaxxer.hikari.metrics.IMetricsTracker;
+import com.zaxxer.hikari.metrics.MetricsTrackerFactory;
+import com.zaxxer.hikari.metrics.PoolStats;
+
+/**
+ * Hikari metrics tracker factory that records the connection latencies of each pool in a
+ * {@link RdsIamConnectionMetrics}, and optionally registers them as MBeans.
+ * <p>
+ * Recording is a few atomic increments in a {@link RdsIamLatencyHistogram}, it doesn't lock or allocate, so it doesn't
+ * add any measurable latency to getConnection(), see ConnectionMetricsBenchmark. Hikari only takes one metrics tracker
+ * factory per pool, a factory that was already configured, e.g. Hikari's Micrometer factory, can be given as delegate
+ * and gets all events too.
+ * <p>
+ * The metrics of the pools that are running are kept in a registry by pool name and endpoint, see
+ * {@link #getPoolMetrics(String)} and {@link #getEndpointMetrics(String)}. They are removed when the pool is closed.
+ */
+public class RdsIamConnectionMetricsTrackerFactory implements MetricsTrackerFactory {
+
+  private static final Map<String, RdsIamConnectionMetrics> sPools = new ConcurrentHashMap<>();
+  // guarded by sEndpoints
+  private static final Map<String, EndpointRegistration> sEndpoints = new HashMap<>();
+
+  private final String mEndpoint;
+  private final MetricsTrackerFactory mDelegate;
+  private final boolean mRegisterMBeans;
+
+  /**
+   * @param endpoint
+   *          - database endpoint of the pools, host:port
+   * @param delegate
+   *          - factory that shall get the events too, null if none
+   * @param registerMBeans
+   *          - register the metrics as MBeans
+   */
+  public RdsIamConnectionMetricsTrackerFactory(String endpoint, MetricsTrackerFactory delegate,
+      boolean registerMBeans) {
+    mEndpoint = endpoint;
+    mDelegate = delegate;
+    mRegisterMBeans = registerMBeans;
+  }
+
+  /**
+   * @param poolName
+   *          - name of the Hikari pool
+   * @return metrics of the pool or null if it isn't running or has no metrics
+   */
+  public static RdsIamConnectionMetrics getPoolMetrics(String poolName) {
+    return sPools.get(poolName);
+  }
+
+  /**
+   * @param endpoint
+   *          - database endpoint, host:port
+   * @return metrics of all running pools of the endpoint or null if there are none
+   */
+  public static RdsIamConnectionMetrics getEndpointMetrics(String endpoint) {
+    synchronized (sEndpoints) {
+      EndpointRegistration registration = sEndpoints.get(endpoint);
+      return registration == null ? null : registration.mMetrics;
+    }
+  }
+
+  /**
+   * @return database endpoint of the pools
+   */
+  public String getEndpoint() {
+    return mEndpoint;
+  }
+
+  /**
+   * @return factory that gets the events too, null if none
+   */
+  public MetricsTrackerFactory getDelegate() {
+    return mDelegate;
+  }
+
+  @Override
+  public IMetricsTracker create(String poolName, PoolStats poolStats) {
+    RdsIamConnectionMetrics metrics = new RdsIamConnectionMetrics(poolName, mEndpoint);
+    sPools.put(poolName, metrics);
+    ObjectName objectName = mRegisterMBeans ? metrics.registerMBean() : null;
+    synchronized (sEndpoints) {
+      EndpointRegistration endpoint = sEndpoints.computeIfAbsent(mEndpoint,
+          key -> new EndpointRegistration(new RdsIamConnectionMetrics(null, key)));
+      endpoint.mMetrics.addPool(metrics);
+      if (mRegisterMBeans && endpoint.mObjectName == null) {
+        endpoint.mObjectName = endpoint.mMetrics.registerMBean();
+      }
+    }
+    IMetricsTracker delegate = mDelegate == null ? null : mDelegate.create(poolName, poolStats);
+    return new Tracker(metrics, objectName, delegate);
+  }
+
+  private static void remove(RdsIamConnectionMetrics metrics, ObjectName objectName) {
+    sPools.remove(metrics.getPoolName(), metrics);
+    RdsIamAuthenticationTokenMetrics.unregisterMBean(objectName);
+    synchronized (sEndpoints) {
+      EndpointRegistration endpoint = sEndpoints.get(metrics.getEndpoint());
+      if (endpoint != null && endpoint.mMetrics.removePool(metrics)) {
+        sEndpoints.remove(metrics.getEndpoint());
+        RdsIamAuthenticationTokenMetrics.unregisterMBean(endpoint.mObjectName);
+      }
+    }
+  }
+
+  private static final class EndpointRegistration {
+    private final RdsIamConnectionMetrics mMetrics;
+    private ObjectName mObjectName;
+
+    EndpointRegistration(RdsIamConnectionMetrics metrics) {
+      mMetrics = metrics;
+    }
+  }
+
+  private static final class Tracker implements IMetricsTracker {
+    private final RdsIamConnectionMetrics mMetrics;
+    private final ObjectName mObjectName;
+    private final IMetricsTracker mDelegate;
+
+    Tracker(RdsIamConnectionMetrics metrics, ObjectName objectName, IMetricsTracker delegate) {
+      mMetrics = metrics;
+      mObjectName = objectName;
+      mDelegate = delegate;
+    }
+
+    @Override
+    public void recordConnectionCreatedMillis(long connectionCreatedMillis) {
+      mMetrics.recordCreation(connectionCreatedMillis);
+      if (mDelegate != null) {
+        mDelegate.recordConnectionCreatedMillis(connectionCreatedMillis);
+      }
+    }
+
+    @Override
+    public void recordConnectionAcquiredNanos(long elapsedAcquiredNanos) {
+      mMetrics.recordAcquire(elapsedAcquiredNanos);
+      if (mDelegate != null) {
+        mDelegate.recordConnectionAcquiredNanos(elapsedAcquiredNanos);
+      }
+    }
+
+    @Override
+    public void recordConnectionUsageMillis(long elapsedBorrowedMillis) {
+      mMetrics.recordUsage(elapsedBorrowedMillis);
+      if (mDelegate != null) {
+        mDelegate.recordConnectionUsageMillis(elapsedBorrowedMillis);
+      }
+    }
+
+    @Override
+    public void recordConnectionTimeout() {
+      mMetrics.recordAcquireTimeout();
+      if (mDelegate != null) {
+        mDelegate.recordConnectionTimeout();
+      }
+    }
+
+    @Override
+    public void close() {
+      remove(mMetrics, mObjectName);
+      if (mDelegate != null) {
+        mDelegate.close();
+      }
+    }
+  }
+
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright © 2022 Lucas Persson. All Rights Reserved.
+ */
+package se.solrike.aws.extras.datasourcefactory;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Token bucket that limits how often something may happen, e.g. how many new database connections per second are
+ * created.
+ * <p>
+ * The bucket starts full so a burst of permits is handed out right away, after that the permits are handed out at the
+ * configured rate. A permit is reserved in the order the callers arrive, each caller getting the next free time slot,
+ * so the callers are served first come first served regardless of which pool they belong to. The reservation is lock
+ * free.
+ */
+public class RdsIamConnectionRateLimiter {
+
+  private final double mPermitsPerSecond;
+  private final int mBurst;
+  private final long mIntervalNanos;
+  private final long mBurstNanos;
+  private final AtomicLong mNextFreeNanos;
+  private final AtomicLong mPermitCount = new AtomicLong();
+  private final AtomicLong mThrottledCount = new AtomicLong();
+  private final AtomicLong mRejectedCount = new AtomicLong();
+  private final RdsIamLatencyHistogram mWaitTime = new RdsIamLatencyHistogram();
+
+  /**
+   * @param permitsPerSecond
+   *          - max sustained rate
+   * @param burst
+   *          - number of permits that can be handed out at once when the limiter has been idle
+   */
+  public RdsIamConnectionRateLimiter(double permitsPerSecond, int burst) {
+    if (permitsPerSecond <= 0 || burst < 1) {
+      throw new IllegalArgumentException("permitsPerSecond must be positive and burst at least 1");
+    }
+    mPermitsPerSecond = permitsPerSecond;
+    mBurst = burst;
+    mIntervalNanos = Math.max((long) (TimeUnit.SECONDS.toNanos(1) / permitsPerSecond), 1);
+    mBurstNanos = mIntervalNanos * (burst - 1);
+    mNextFreeNanos = new AtomicLong(System.nanoTime() - mBurstNanos);
+  }
+
+  /**
+   * Reserve the next free permit. The caller must wait the returned time before it uses the permit.
+   *
+   * @param maxWaitNanos
+   *          - max time the caller is willing to wait
+   * @return time to wait in nanoseconds, or -1 if the wait would be longer than the max wait. No permit is reserved
+   *         then.
+   */
+  public long reserve(long maxWaitNanos) {
+    while (true) {
+      long now = System.nanoTime();
+      long nextFree = mNextFreeNanos.get();
+      // the permits that have been saved up while idle, up to the burst, can be used right away
+      long slot = Math.max(nextFree, now - mBurstNanos);
+      long wait = Math.max(slot - now, 0);
+      if (wait > maxWaitNanos) {
+        mRejectedCount.incrementAndGet();
+        return -1;
+      }
+      if (mNextFreeNanos.compareAndSet(nextFree, slot + mIntervalNanos)) {
+        mPermitCount.incrementAndGet();
+        if (wait > 0) {
+          mThrottledCount.incrementAndGet();
+        }
+        mWaitTime.record(wait);
+        return wait;
+      }
+    }
+  }
+
+  /**
+   * @return max sustained rate
+   */
+  public double getPermitsPerSecond() {
+    return mPermitsPerSecond;
+  }
+
+  /**
+   * @return number of permits that can be handed out at once
+   */
+  public int getBurst() {
+    return mBurst;
+  }
+
+  /**
+   * @return number of reserved permits
+   */
+  public long getPermitCount() {
+    return mPermitCount.get();
+  }
+
+  /**
+   * @return number of reserved permits that had to wait
+   */
+  public long getThrottledCount() {
+    return mThrottledCount.get();
+  }
+
+  /**
+   * @return number of reservations that were rejected because the wait would be too long
+   */
+  public long getRejectedCount() {
+    return mRejectedCount.get();
+  }
+
+  /**
+   * @return time the reserved permits had to wait
+   */
+  public RdsIamLatencyHistogram getWaitTime() {
+    return mWaitTime;
+  }
+
+}
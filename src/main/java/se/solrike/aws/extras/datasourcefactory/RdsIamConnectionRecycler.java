@@ -0,0 +1,370 @@
+/*
+ * Copyright © 2022 Lucas Persson. All Rights Reserved.
+ */
+package se.solrike.aws.extras.datasourcefactory;
+
+import java.io.Closeable;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BooleanSupplier;
+import java.util.function.Supplier;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.zaxxer.hikari.HikariDataSource;
+import com.zaxxer.hikari.HikariPoolMXBean;
+
+/**
+ * Retires the connections of a Hikari pool at an even pace instead of letting them reach Hikari's max lifetime
+ * together.
+ * <p>
+ * A pool that is filled in a burst, at startup or after a failover, gets connections of the same age. They all reach
+ * the max lifetime at the same time and are replaced together, which gives a latency spike and a burst of IAM
+ * authentications every max lifetime. The recycler gives each connection a retirement time between the max age minus
+ * the window and the max age. The offsets follow a low discrepancy sequence so even the connections of a burst are
+ * spread evenly over the window.
+ * <p>
+ * The pool is checked at an interval. At most a fraction of the pool's connections are retired and not yet replaced
+ * at any time, so each check only retires as many as that leaves room for. Connections are only retired if the
+ * refresher holds a token that is valid for a while so the replacements don't authenticate with a token that is about
+ * to be refreshed. With token on demand a new token is generated for the batch, otherwise the check waits for the
+ * next scheduled refresh.
+ * <p>
+ * Retirement is soft: the connection reports itself as invalid and Hikari closes it and creates a new one the next
+ * time it validates it. Hikari must validate with <code>Connection.isValid()</code>, i.e. no
+ * <code>connectionTestQuery</code>. Hikari only validates a connection when it is borrowed if it has been idle for
+ * longer than its alive bypass window, 500 ms unless the system property
+ * <code>com.zaxxer.hikari.aliveBypassWindowMs</code> says otherwise, so the connections of a busy pool are hardly ever
+ * validated on borrow. Set Hikari's <code>keepaliveTime</code>, e.g. to {@link #DEFAULT_KEEPALIVE_TIME}, so the idle
+ * connections are validated at that interval and the retired ones are replaced within it.
+ * <p>
+ * The connections are tracked by the {@link RdsIamAuthenticatingDataSource} of the pool. Connections created before
+ * the recycler was installed are left to Hikari's max lifetime. The recycler stops when the pool is closed.
+ */
+public class RdsIamConnectionRecycler implements Closeable {
+  private static final Logger sLogger = LoggerFactory.getLogger(RdsIamConnectionRecycler.class);
+
+  /**
+   * Interval between the checks when nothing else is specified.
+   */
+  public static final Duration DEFAULT_CHECK_INTERVAL = Duration.ofSeconds(10);
+
+  /**
+   * Max age of the connections when the pool has no max lifetime.
+   */
+  public static final Duration DEFAULT_MAX_AGE = Duration.ofMinutes(25);
+
+  /**
+   * Keepalive time for pools whose connections are recycled, Hikari's minimum is 30 seconds.
+   */
+  public static final Duration DEFAULT_KEEPALIVE_TIME = Duration.ofMinutes(1);
+
+  // fractional part of the golden ratio, successive multiples of it are spread evenly over [0, 1)
+  private static final double GOLDEN_RATIO_FRACTION = 0.6180339887498949;
+
+  private final Supplier<HikariPoolMXBean> mPool;
+  private final BooleanSupplier mPoolClosed;
+  private final String mPoolName;
+  private final RdsIamAuthenticationTokenRefresher mRefresher;
+  private final boolean mTokenOnDemand;
+  private final Duration mMaxAge;
+  private final Duration mWindow;
+  private final RdsIamTokenRefreshScheduler mScheduler;
+  private final Clock mClock;
+  private final Set<TrackedConnection> mConnections = ConcurrentHashMap.newKeySet();
+  private final AtomicLong mTrackedCount = new AtomicLong();
+  private final AtomicLong mRetiredCount = new AtomicLong();
+  private final AtomicLong mDeferredCount = new AtomicLong();
+  private volatile double mMaxRetireFraction = 0.1;
+  private volatile Duration mMinTokenLifetime = Duration.ofMinutes(5);
+  // guarded by this
+  private RdsIamTokenRefreshScheduler.Registration mRegistration;
+  private boolean mClosed;
+
+  /**
+   * Recycle the connections of a pool created by one of the factory's createDatasource methods. The pool must create
+   * its connections through a {@link RdsIamAuthenticatingDataSource}, the recycler is installed on it.
+   *
+   * @param datasource
+   *          - the pool
+   * @param maxAge
+   *          - the connections are retired at this age at the latest, it shall be less than the pool's max lifetime
+   * @param window
+   *          - the connections are retired at the earliest at the max age minus this
+   * @throws IllegalArgumentException
+   *           if the pool doesn't create its connections through a RdsIamAuthenticatingDataSource
+   */
+  public RdsIamConnectionRecycler(HikariDataSource datasource, Duration maxAge, Duration window) {
+    this(datasource::getHikariPoolMXBean, datasource::isClosed, datasource.getPoolName(),
+        getAuthenticatingDataSource(datasource).getRefresher(),
+        getAuthenticatingDataSource(datasource).isTokenOnDemand(), maxAge, window,
+        RdsIamTokenRefreshScheduler.getSharedInstance(), Clock.systemUTC());
+    getAuthenticatingDataSource(datasource).setConnectionRecycler(this);
+  }
+
+  /**
+   * @param pool
+   *          - the state of the pool, it may give null before the pool is started
+   * @param poolClosed
+   *          - tells if the pool is closed
+   * @param poolName
+   *          - name of the pool, for logging
+   * @param refresher
+   *          - refresher that holds the token of the pool
+   * @param tokenOnDemand
+   *          - true if the pool takes the token from the refresher's cache when it creates a connection
+   * @param maxAge
+   *          - the connections are retired at this age at the latest
+   * @param window
+   *          - the connections are retired at the earliest at the max age minus this
+   * @param scheduler
+   *          - scheduler that runs the checks
+   * @param clock
+   *          - clock for the age of the connections and the lifetime of the token
+   */
+  public RdsIamConnectionRecycler(Supplier<HikariPoolMXBean> pool, BooleanSupplier poolClosed, String poolName,
+      RdsIamAuthenticationTokenRefresher refresher, boolean tokenOnDemand, Duration maxAge, Duration window,
+      RdsIamTokenRefreshScheduler scheduler, Clock clock) {
+    if (window.isNegative() || maxAge.compareTo(window) <= 0) {
+      throw new IllegalArgumentException("window must not be negative and maxAge must be greater than window");
+    }
+    mPool = pool;
+    mPoolClosed = poolClosed;
+    mPoolName = poolName;
+    mRefresher = refresher;
+    mTokenOnDemand = tokenOnDemand;
+    mMaxAge = maxAge;
+    mWindow = window;
+    mScheduler = scheduler;
+    mClock = clock;
+  }
+
+  /**
+   * Start the checks.
+   *
+   * @param checkInterval
+   *          - interval between the checks
+   */
+  public synchronized void start(Duration checkInterval) {
+    if (mClosed || mRegistration != null) {
+      return;
+    }
+    mRegistration = mScheduler.schedule(this::scheduledCheck, checkInterval.toNanos(), checkInterval.toNanos(),
+        TimeUnit.NANOSECONDS);
+  }
+
+  /**
+   * Track a new physical connection. Called by the {@link RdsIamAuthenticatingDataSource} when it has created a
+   * connection.
+   *
+   * @param connection
+   *          - the physical connection
+   * @return the connection to give to the pool, it reports itself as invalid once it is retired
+   */
+  public Connection track(Connection connection) {
+    if (isClosed()) {
+      return connection;
+    }
+    double offset = (mTrackedCount.incrementAndGet() * GOLDEN_RATIO_FRACTION) % 1;
+    Instant retireAt = mClock.instant().plus(mMaxAge).minusMillis((long) (mWindow.toMillis() * offset));
+    TrackedConnection tracked = new TrackedConnection(connection, retireAt);
+    mConnections.add(tracked);
+    return (Connection) Proxy.newProxyInstance(RdsIamConnectionRecycler.class.getClassLoader(),
+        new Class<?>[] { Connection.class }, tracked);
+  }
+
+  /**
+   * Check the pool once and retire the connections that are due, within the max fraction of the pool minus the
+   * connections that are retired but not replaced yet, and if there is a fresh token. Does nothing until started.
+   */
+  public synchronized void check() {
+    if (mClosed || mRegistration == null) {
+      return;
+    }
+    if (mPoolClosed.getAsBoolean()) {
+      close();
+      return;
+    }
+    HikariPoolMXBean pool = mPool.get();
+    if (pool == null) {
+      // not started yet
+      return;
+    }
+    Instant now = mClock.instant();
+    List<TrackedConnection> due = new ArrayList<>();
+    int pending = 0;
+    for (TrackedConnection connection : mConnections) {
+      if (connection.mRetired) {
+        pending++;
+      }
+      else if (!connection.mRetireAt.isAfter(now)) {
+        due.add(connection);
+      }
+    }
+    if (due.isEmpty()) {
+      return;
+    }
+    int batchSize = Math.max(1, (int) (pool.getTotalConnections() * mMaxRetireFraction)) - pending;
+    if (batchSize <= 0) {
+      sLogger.debug("Deferring the retirement of {} connections of database pool '{}' until {} retired connections "
+          + "are replaced", due.size(), mPoolName, pending);
+      return;
+    }
+    if (!hasFreshToken(now)) {
+      mDeferredCount.incrementAndGet();
+      sLogger.debug("Deferring the retirement of {} connections of database pool '{}' until there is a fresh token",
+          due.size(), mPoolName);
+      return;
+    }
+    due.sort(Comparator.comparing(connection -> connection.mRetireAt));
+    for (TrackedConnection connection : due.subList(0, Math.min(batchSize, due.size()))) {
+      connection.mRetired = true;
+      mRetiredCount.incrementAndGet();
+    }
+    sLogger.debug("Retired {} of {} due connections of database pool '{}'", Math.min(batchSize, due.size()),
+        due.size(), mPoolName);
+  }
+
+  /**
+   * @return number of tracked connections that are open
+   */
+  public int getConnectionCount() {
+    return mConnections.size();
+  }
+
+  /**
+   * @return number of connections that have been retired
+   */
+  public long getRetiredCount() {
+    return mRetiredCount.get();
+  }
+
+  /**
+   * @return number of checks where due connections weren't retired because there was no fresh token
+   */
+  public long getDeferredCount() {
+    return mDeferredCount.get();
+  }
+
+  /**
+   * @param maxRetireFraction
+   *          - max fraction (0-1] of the pool's connections that are retired and not yet replaced, at least one
+   *          connection. Default 0.1.
+   */
+  public void setMaxRetireFraction(double maxRetireFraction) {
+    mMaxRetireFraction = maxRetireFraction;
+  }
+
+  /**
+   * @param minTokenLifetime
+   *          - the token must be valid for at least this long for connections to be retired. Default 5 minutes.
+   */
+  public void setMinTokenLifetime(Duration minTokenLifetime) {
+    mMinTokenLifetime = minTokenLifetime;
+  }
+
+  /**
+   * Stop the checks. The connections that are already retired are still replaced.
+   */
+  @Override
+  public synchronized void close() {
+    if (mClosed) {
+      return;
+    }
+    mClosed = true;
+    if (mRegistration != null) {
+      mRegistration.close();
+    }
+  }
+
+  private synchronized boolean isClosed() {
+    return mClosed;
+  }
+
+  private void scheduledCheck() {
+    try {
+      check();
+    }
+    catch (RuntimeException e) {
+      sLogger.warn("Failed to recycle the connections of database pool '{}'", mPoolName, e);
+    }
+  }
+
+  /*
+   * A failing refresh means that the replacements might not be able to authenticate, so wait for it to recover.
+   */
+  private boolean hasFreshToken(Instant now) {
+    if (mRefresher.getConsecutiveFailureCount() > 0) {
+      return false;
+    }
+    RdsIamAuthenticationToken token = mRefresher.getTokenCache().getCurrentToken();
+    if (token != null && token.getRemainingLifetime(now).compareTo(mMinTokenLifetime) >= 0) {
+      return true;
+    }
+    if (!mTokenOnDemand) {
+      return false;
+    }
+    token = mRefresher.getTokenCache().refresh();
+    return token.getRemainingLifetime(now).compareTo(mMinTokenLifetime) >= 0;
+  }
+
+  private static RdsIamAuthenticatingDataSource getAuthenticatingDataSource(HikariDataSource datasource) {
+    if (!(datasource.getDataSource() instanceof RdsIamAuthenticatingDataSource)) {
+      throw new IllegalArgumentException(
+          "Database pool '" + datasource.getPoolName() + "' doesn't create its connections with IAM authentication");
+    }
+    return (RdsIamAuthenticatingDataSource) datasource.getDataSource();
+  }
+
+  private final class TrackedConnection implements InvocationHandler {
+    private final Connection mConnection;
+    private final Instant mRetireAt;
+    private volatile boolean mRetired;
+
+    TrackedConnection(Connection connection, Instant retireAt) {
+      mConnection = connection;
+      mRetireAt = retireAt;
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+      switch (method.getName()) {
+        case "isValid":
+          if (mRetired) {
+            return false;
+          }
+          break;
+        case "close":
+          mConnections.remove(this);
+          break;
+        case "equals":
+          return proxy == args[0];
+        case "hashCode":
+          return System.identityHashCode(proxy);
+        default:
+          break;
+      }
+      try {
+        return method.invoke(mConnection, args);
+      }
+      catch (InvocationTargetException e) {
+        throw e.getCause();
+      }
+    }
+  }
+
+}
@@ -0,0 +1,180 @@
+/*
+ * Copyright © 2022 Lucas Persson. All Rights Reserved.
+ */
+package se.solrike.aws.extras.datasourcefactory;
+
+import java.sql.SQLException;
+import java.sql.SQLTransientConnectionException;
+import java.time.Duration;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Throttle on the creation of physical connections, shared by the pools that a factory creates.
+ * <p>
+ * An RDS instance only accepts a limited number of new IAM authenticated connections per second. After a failover or a
+ * deploy all pools refill at the same time and then the connections beyond that limit fail to authenticate, which
+ * makes the pools retry and fail even more. With the throttle the connection attempts instead wait for a permit from a
+ * token bucket per database endpoint and, optionally, a global token bucket, so a reconnect storm becomes a smooth
+ * ramp. The permits are handed out first come first served across all pools.
+ * <p>
+ * The limits shall be set before the pools are created. A connection attempt that would have to wait longer than the
+ * max wait fails with a {@link SQLTransientConnectionException} and Hikari tries again later.
+ */
+public class RdsIamConnectionThrottle {
+
+  /**
+   * Max time to wait for a permit when nothing else is specified. Same as Hikari's default connection timeout.
+   */
+  public static final Duration DEFAULT_MAX_WAIT = Duration.ofSeconds(30);
+
+  private final Map<String, RdsIamConnectionRateLimiter> mEndpointLimiters = new ConcurrentHashMap<>();
+  private final AtomicLong mThrottledCount = new AtomicLong();
+  private final RdsIamLatencyHistogram mWaitTime = new RdsIamLatencyHistogram();
+  private volatile RdsIamConnectionRateLimiter mGlobalLimiter;
+  private volatile double mEndpointPermitsPerSecond;
+  private volatile int mEndpointBurst;
+  private volatile Duration mMaxWait = DEFAULT_MAX_WAIT;
+
+  /**
+   * Limit the rate for all endpoints together.
+   *
+   * @param permitsPerSecond
+   *          - max number of new connections per second
+   * @param burst
+   *          - number of connections that can be created at once when there haven't been any for a while
+   */
+  public void setGlobalLimit(double permitsPerSecond, int burst) {
+    mGlobalLimiter = new RdsIamConnectionRateLimiter(permitsPerSecond, burst);
+  }
+
+  /**
+   * Limit the rate for each endpoint that doesn't have a limit of its own.
+   *
+   * @param permitsPerSecond
+   *          - max number of new connections per second to one endpoint
+   * @param burst
+   *          - number of connections that can be created at once when there haven't been any for a while
+   */
+  public void setEndpointLimit(double permitsPerSecond, int burst) {
+    if (permitsPerSecond <= 0 || burst < 1) {
+      throw new IllegalArgumentException("permitsPerSecond must be positive and burst at least 1");
+    }
+    mEndpointPermitsPerSecond = permitsPerSecond;
+    mEndpointBurst = burst;
+  }
+
+  /**
+   * Limit the rate for one endpoint, e.g. for a small instance that accepts fewer connections.
+   *
+   * @param dbHostname
+   *          - hostname of the database
+   * @param dbPort
+   *          - port of the database
+   * @param permitsPerSecond
+   *          - max number of new connections per second to the endpoint
+   * @param burst
+   *          - number of connections that can be created at once when there haven't been any for a while
+   */
+  public void setEndpointLimit(String dbHostname, int dbPort, double permitsPerSecond, int burst) {
+    mEndpointLimiters.put(getEndpoint(dbHostname, dbPort), new RdsIamConnectionRateLimiter(permitsPerSecond, burst));
+  }
+
+  /**
+   * @param maxWait
+   *          - max time a connection attempt waits for a permit. Default 30 s.
+   */
+  public void setMaxWait(Duration maxWait) {
+    mMaxWait = maxWait;
+  }
+
+  /**
+   * Wait for a permit to create a connection to an endpoint.
+   *
+   * @param dbHostname
+   *          - hostname of the database
+   * @param dbPort
+   *          - port of the database
+   * @throws SQLException
+   *           if the wait would be longer than the max wait or the thread is interrupted
+   */
+  public void acquire(String dbHostname, int dbPort) throws SQLException {
+    long maxWaitNanos = mMaxWait.toNanos();
+    long wait = 0;
+    RdsIamConnectionRateLimiter endpointLimiter = getEndpointLimiter(dbHostname, dbPort);
+    if (endpointLimiter != null) {
+      wait = endpointLimiter.reserve(maxWaitNanos);
+      if (wait < 0) {
+        throw new SQLTransientConnectionException("Connection rate limit for " + getEndpoint(dbHostname, dbPort)
+            + " exceeded, no permit within " + mMaxWait.toMillis() + " ms");
+      }
+    }
+    RdsIamConnectionRateLimiter globalLimiter = mGlobalLimiter;
+    if (globalLimiter != null) {
+      // if this fails the permit for the endpoint is lost, which only makes the endpoint limit a bit stricter
+      long globalWait = globalLimiter.reserve(maxWaitNanos);
+      if (globalWait < 0) {
+        throw new SQLTransientConnectionException(
+            "Global connection rate limit exceeded, no permit within " + mMaxWait.toMillis() + " ms");
+      }
+      wait = Math.max(wait, globalWait);
+    }
+    mWaitTime.record(wait);
+    if (wait > 0) {
+      mThrottledCount.incrementAndGet();
+      try {
+        TimeUnit.NANOSECONDS.sleep(wait);
+      }
+      catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new SQLException("Interrupted while waiting for a connection permit", e);
+      }
+    }
+  }
+
+  /**
+   * @return the global limiter or null if there is no global limit
+   */
+  public RdsIamConnectionRateLimiter getGlobalLimiter() {
+    return mGlobalLimiter;
+  }
+
+  /**
+   * @param dbHostname
+   *          - hostname of the database
+   * @param dbPort
+   *          - port of the database
+   * @return the limiter for the endpoint or null if there is no limit for it
+   */
+  public RdsIamConnectionRateLimiter getEndpointLimiter(String dbHostname, int dbPort) {
+    String endpoint = getEndpoint(dbHostname, dbPort);
+    RdsIamConnectionRateLimiter limiter = mEndpointLimiters.get(endpoint);
+    if (limiter != null || mEndpointPermitsPerSecond <= 0) {
+      return limiter;
+    }
+    return mEndpointLimiters.computeIfAbsent(endpoint,
+        e -> new RdsIamConnectionRateLimiter(mEndpointPermitsPerSecond, mEndpointBurst));
+  }
+
+  /**
+   * @return number of connection attempts that had to wait for a permit
+   */
+  public long getThrottledCount() {
+    return mThrottledCount.get();
+  }
+
+  /**
+   * @return time the connection attempts waited for a permit
+   */
+  public RdsIamLatencyHistogram getWaitTime() {
+    return mWaitTime;
+  }
+
+  private static String getEndpoint(String dbHostname, int dbPort) {
+    return dbHostname.toLowerCase(Locale.ROOT) + ":" + dbPort;
+  }
+
+}
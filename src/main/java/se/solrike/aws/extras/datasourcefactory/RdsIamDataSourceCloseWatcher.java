@@ -0,0 +1,129 @@
+/*
+ * Copyright © 2022 Lucas Persson. All Rights Reserved.
+ */
+package se.solrike.aws.extras.datasourcefactory;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.zaxxer.hikari.HikariDataSource;
+
+/**
+ * Runs close actions when Hikari datasources are closed, e.g. stops the token refresh of a datasource right away
+ * instead of when the refresher notices the closed pool at its next refresh, which can be many minutes later.
+ * <p>
+ * Hikari has no listener for when a datasource is closed so the watched datasources are checked at a short interval.
+ * The check is only scheduled while there are datasources to watch.
+ */
+public class RdsIamDataSourceCloseWatcher {
+  private static final Logger sLogger = LoggerFactory.getLogger(RdsIamDataSourceCloseWatcher.class);
+
+  /**
+   * Interval between the checks when nothing else is specified.
+   */
+  public static final Duration DEFAULT_CHECK_INTERVAL = Duration.ofSeconds(5);
+
+  private final RdsIamTokenRefreshScheduler mScheduler;
+  private final Duration mCheckInterval;
+  // guarded by this
+  private final Map<HikariDataSource, List<AutoCloseable>> mCloseActions = new IdentityHashMap<>();
+  private RdsIamTokenRefreshScheduler.Registration mRegistration;
+
+  /**
+   * Check the datasources on the shared {@link RdsIamTokenRefreshScheduler} at the default interval.
+   */
+  public RdsIamDataSourceCloseWatcher() {
+    this(RdsIamTokenRefreshScheduler.getSharedInstance(), DEFAULT_CHECK_INTERVAL);
+  }
+
+  /**
+   * @param scheduler
+   *          - scheduler that runs the checks
+   * @param checkInterval
+   *          - interval between the checks
+   */
+  public RdsIamDataSourceCloseWatcher(RdsIamTokenRefreshScheduler scheduler, Duration checkInterval) {
+    mScheduler = scheduler;
+    mCheckInterval = checkInterval;
+  }
+
+  /**
+   * Run an action when a datasource is closed. The actions of a datasource are run in the order they were added.
+   *
+   * @param datasource
+   *          - the datasource
+   * @param closeAction
+   *          - action that is run once the datasource is closed, right away if it already is closed
+   */
+  public void watch(HikariDataSource datasource, AutoCloseable closeAction) {
+    synchronized (this) {
+      if (!datasource.isClosed()) {
+        mCloseActions.computeIfAbsent(datasource, key -> new ArrayList<>()).add(closeAction);
+        if (mRegistration == null) {
+          mRegistration = mScheduler.schedule(this::scheduledCheck, mCheckInterval.toNanos(),
+              mCheckInterval.toNanos(), TimeUnit.NANOSECONDS);
+        }
+        return;
+      }
+    }
+    runCloseAction(datasource, closeAction);
+  }
+
+  /**
+   * @return number of datasources that are watched
+   */
+  public synchronized int getWatchedCount() {
+    return mCloseActions.size();
+  }
+
+  /**
+   * Run the close actions of the datasources that have been closed since the last check. The check stops when there
+   * are no more datasources to watch.
+   */
+  public void check() {
+    Map<HikariDataSource, List<AutoCloseable>> closed = new IdentityHashMap<>();
+    synchronized (this) {
+      for (Iterator<Map.Entry<HikariDataSource, List<AutoCloseable>>> iterator = mCloseActions.entrySet()
+          .iterator(); iterator.hasNext();) {
+        Map.Entry<HikariDataSource, List<AutoCloseable>> entry = iterator.next();
+        if (entry.getKey().isClosed()) {
+          closed.put(entry.getKey(), entry.getValue());
+          iterator.remove();
+        }
+      }
+      if (mCloseActions.isEmpty() && mRegistration != null) {
+        mRegistration.close();
+        mRegistration = null;
+      }
+    }
+    closed.forEach((datasource, closeActions) -> closeActions
+        .forEach(closeAction -> runCloseAction(datasource, closeAction)));
+  }
+
+  private void scheduledCheck() {
+    try {
+      check();
+    }
+    catch (RuntimeException e) {
+      sLogger.warn("Failed to check for closed database pools", e);
+    }
+  }
+
+  private static void runCloseAction(HikariDataSource datasource, AutoCloseable closeAction) {
+    try {
+      closeAction.close();
+    }
+    catch (Exception e) {
+      sLogger.warn("Failed to clean up after database pool '{}'", datasource.getPoolName(), e);
+    }
+  }
+
+}
@@ -0,0 +1,314 @@
+/*
+ * Copyright © 2022 Lucas Persson. All Rights Reserved.
+ */
+package se.solrike.aws.extras.datasourcefactory;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.zaxxer.hikari.HikariConfig;
+import com.zaxxer.hikari.HikariDataSource;
+
+/**
+ * Optional features of the datasources created by a {@link AbstractRdsIamDatasourceFactory}: a throttle on the
+ * creation of the physical connections, connection metrics, the shared TLS context, recycling of the connections and
+ * control of the pool size. All of them are off by default.
+ * <p>
+ * A datasource gets the options as they are when it is created. Except for the pool size control the features are
+ * installed in the Hikari configuration, so they only apply to datasources whose configuration is a HikariConfig or
+ * that aren't started when they are created.
+ */
+public class RdsIamDatasourceOptions {
+  private static final Logger sLogger = LoggerFactory.getLogger(RdsIamDatasourceOptions.class);
+
+  private volatile RdsIamConnectionThrottle mConnectionThrottle;
+  private volatile boolean mConnectionMetricsEnabled;
+  private volatile boolean mSharedSslContextEnabled;
+  private volatile Duration mConnectionRecyclingWindow;
+  private volatile int mPoolMinSize;
+  private volatile int mPoolMaxSize;
+  private volatile RdsIamConnectionBudget mConnectionBudget;
+
+  /**
+   * Throttle the creation of physical connections. Only datasources whose connections are created through a
+   * {@link RdsIamAuthenticatingDataSource} without a throttle of its own are throttled.
+   *
+   * @param connectionThrottle
+   *          - throttle, typically shared by all factories in the application. Null for no throttle.
+   */
+  public void setConnectionThrottle(RdsIamConnectionThrottle connectionThrottle) {
+    mConnectionThrottle = connectionThrottle;
+  }
+
+  /**
+   * @return throttle on the creation of physical connections or null if there is none
+   */
+  public RdsIamConnectionThrottle getConnectionThrottle() {
+    return mConnectionThrottle;
+  }
+
+  /**
+   * Record the connection acquire, creation and usage latencies, see {@link RdsIamConnectionMetricsTrackerFactory}.
+   * The metrics are registered as MBeans if <code>registerMbeans</code> is enabled in the Hikari configuration.
+   * <p>
+   * Datasources with a Hikari metric registry don't get the metrics since Hikari doesn't allow it together with a
+   * metrics tracker factory. A metrics tracker factory that is already configured still gets all events.
+   *
+   * @param connectionMetricsEnabled
+   *          - true to record the latencies. Default false.
+   */
+  public void setConnectionMetricsEnabled(boolean connectionMetricsEnabled) {
+    mConnectionMetricsEnabled = connectionMetricsEnabled;
+  }
+
+  /**
+   * @return true if the connection latencies are recorded
+   */
+  public boolean isConnectionMetricsEnabled() {
+    return mConnectionMetricsEnabled;
+  }
+
+  /**
+   * Make the MySQL and PostgreSQL drivers trust the RDS certificate authorities through the shared
+   * {@link RdsIamSslContext}, which loads the CA bundle once and lets the PostgreSQL driver resume TLS sessions. The
+   * driver properties are only added if they aren't already in the Hikari configuration.
+   * <p>
+   * The shared context is created when it is enabled so a missing CA bundle is reported right away and not as failed
+   * TLS handshakes. Only the MySQL and PostgreSQL drivers are supported, also through the AWS JDBC wrapper, creating a
+   * datasource for another driver fails so it doesn't connect without the verified TLS that was asked for.
+   *
+   * @param sharedSslContextEnabled
+   *          - true to use the shared TLS context. Default false.
+   * @throws IllegalStateException
+   *           if enabled and the shared TLS context can't be created, see {@link RdsIamSslContext#getSharedInstance()}
+   */
+  public void setSharedSslContextEnabled(boolean sharedSslContextEnabled) {
+    if (sharedSslContextEnabled) {
+      RdsIamSslContext.getSharedInstance();
+    }
+    mSharedSslContextEnabled = sharedSslContextEnabled;
+  }
+
+  /**
+   * @return true if the drivers use the shared TLS context
+   */
+  public boolean isSharedSslContextEnabled() {
+    return mSharedSslContextEnabled;
+  }
+
+  /**
+   * Retire the connections at an even pace so they aren't replaced together when they reach the max lifetime, see
+   * {@link RdsIamConnectionRecycler}. Each connection is retired between the max lifetime of the pool minus two windows
+   * and the max lifetime minus one window, so Hikari's own max lifetime stays a backstop. The recycler is installed
+   * before the pool is started so the connections of the initial fill are tracked too.
+   * <p>
+   * Only datasources whose connections are created through a {@link RdsIamAuthenticatingDataSource} are recycled. A
+   * pool without <code>keepaliveTime</code> gets {@link RdsIamConnectionRecycler#DEFAULT_KEEPALIVE_TIME}.
+   *
+   * @param connectionRecyclingWindow
+   *          - the retirements are spread over this long, less than half the max lifetime of the pools. Null for no
+   *          recycling, the default.
+   */
+  public void setConnectionRecyclingWindow(Duration connectionRecyclingWindow) {
+    mConnectionRecyclingWindow = connectionRecyclingWindow;
+  }
+
+  /**
+   * @return window the retirements of the connections are spread over or null if the connections aren't recycled
+   */
+  public Duration getConnectionRecyclingWindow() {
+    return mConnectionRecyclingWindow;
+  }
+
+  /**
+   * Adjust the max size of the pools after the load, within a min and max size and a connection budget that is shared
+   * by the pools of the same database endpoint, see {@link RdsIamPoolSizeController}. The controller stops when the
+   * pool is closed.
+   *
+   * @param minSize
+   *          - the pools never get smaller than this. 0 together with a max size of 0 for no control, the default.
+   * @param maxSize
+   *          - the pools never get bigger than this
+   * @param budget
+   *          - connection budget, typically shared by all factories in the application. Null for no budget.
+   * @throws IllegalArgumentException
+   *           if the min size is less than 1 or the max size is less than the min size, unless both are 0
+   */
+  public void setPoolSizeControl(int minSize, int maxSize, RdsIamConnectionBudget budget) {
+    if ((minSize != 0 || maxSize != 0) && (minSize < 1 || maxSize < minSize)) {
+      throw new IllegalArgumentException("minSize must be at least 1 and maxSize at least minSize");
+    }
+    mPoolMinSize = minSize;
+    mPoolMaxSize = maxSize;
+    mConnectionBudget = budget;
+  }
+
+  /**
+   * @return min size of the controlled pools or 0 if the size isn't controlled
+   */
+  public int getPoolMinSize() {
+    return mPoolMinSize;
+  }
+
+  /**
+   * @return max size of the controlled pools or 0 if the size isn't controlled
+   */
+  public int getPoolMaxSize() {
+    return mPoolMaxSize;
+  }
+
+  /**
+   * @return connection budget of the controlled pools or null if there is none
+   */
+  public RdsIamConnectionBudget getConnectionBudget() {
+    return mConnectionBudget;
+  }
+
+  Installer newInstaller(String jdbcUrl, RdsIamAuthenticationTokenRefresher refresher) {
+    return new Installer(this, jdbcUrl, refresher);
+  }
+
+  /*
+   * Installs the options, as they were when it was created, for one datasource. The TLS properties must be installed
+   * before the authenticating datasource since it copies the datasource properties, the rest after it.
+   */
+  static final class Installer {
+    private final RdsIamConnectionThrottle mConnectionThrottle;
+    private final boolean mConnectionMetricsEnabled;
+    private final boolean mSharedSslContextEnabled;
+    private final Duration mConnectionRecyclingWindow;
+    private final int mPoolMinSize;
+    private final int mPoolMaxSize;
+    private final RdsIamConnectionBudget mConnectionBudget;
+    private final String mJdbcUrl;
+    private final RdsIamAuthenticationTokenRefresher mRefresher;
+    private volatile HikariDataSource mDatasource;
+    private RdsIamConnectionRecycler mConnectionRecycler;
+
+    Installer(RdsIamDatasourceOptions options, String jdbcUrl, RdsIamAuthenticationTokenRefresher refresher) {
+      mConnectionThrottle = options.mConnectionThrottle;
+      mConnectionMetricsEnabled = options.mConnectionMetricsEnabled;
+      mSharedSslContextEnabled = options.mSharedSslContextEnabled;
+      mConnectionRecyclingWindow = options.mConnectionRecyclingWindow;
+      mPoolMinSize = options.mPoolMinSize;
+      mPoolMaxSize = options.mPoolMaxSize;
+      mConnectionBudget = options.mConnectionBudget;
+      mJdbcUrl = jdbcUrl;
+      mRefresher = refresher;
+    }
+
+    void installSslContext(HikariConfig hikariConfig) {
+      if (!mSharedSslContextEnabled) {
+        return;
+      }
+      Map<String, String> driverProperties = RdsIamSslContext.getSharedInstance().getDriverProperties(mJdbcUrl);
+      if (driverProperties.isEmpty()) {
+        throw new IllegalArgumentException("The shared TLS context only supports the MySQL and PostgreSQL drivers, "
+            + "configure the TLS properties of the driver of " + mJdbcUrl + " instead");
+      }
+      driverProperties.forEach((name, value) -> hikariConfig.getDataSourceProperties().putIfAbsent(name, value));
+    }
+
+    void install(HikariConfig hikariConfig) {
+      if (hikariConfig.getDataSource() instanceof RdsIamAuthenticatingDataSource) {
+        RdsIamAuthenticatingDataSource authenticatingDataSource = (RdsIamAuthenticatingDataSource) hikariConfig
+            .getDataSource();
+        if (authenticatingDataSource.getConnectionThrottle() == null) {
+          authenticatingDataSource.setConnectionThrottle(mConnectionThrottle);
+        }
+        if (mConnectionRecycler == null) {
+          mConnectionRecycler = installConnectionRecycler(hikariConfig, authenticatingDataSource);
+        }
+      }
+      installConnectionMetrics(hikariConfig);
+    }
+
+    /*
+     * The recycler gets the pool once it is created, it isn't checked until it is started.
+     */
+    void setDatasource(HikariDataSource datasource) {
+      mDatasource = datasource;
+    }
+
+    void start(HikariDataSource datasource, RdsIamDataSourceCloseWatcher closeWatcher) {
+      if (mConnectionRecycler != null) {
+        mConnectionRecycler.start(RdsIamConnectionRecycler.DEFAULT_CHECK_INTERVAL);
+        closeWatcher.watch(datasource, mConnectionRecycler);
+      }
+      if (mPoolMaxSize > 0) {
+        // the budget is for the endpoint of the token, which is the endpoint in the JDBC URL
+        RdsIamPoolSizeController controller = new RdsIamPoolSizeController(datasource.getHikariConfigMXBean(),
+            datasource::getHikariPoolMXBean, datasource::isClosed, mRefresher.getDbHostname(), mRefresher.getDbPort(),
+            mPoolMinSize, mPoolMaxSize, mConnectionBudget, RdsIamTokenRefreshScheduler.getSharedInstance());
+        controller.start(RdsIamPoolSizeController.DEFAULT_SAMPLE_INTERVAL);
+        closeWatcher.watch(datasource, controller);
+      }
+    }
+
+    /*
+     * Only possible when the authenticating datasource has no recycler yet.
+     */
+    private RdsIamConnectionRecycler installConnectionRecycler(HikariConfig hikariConfig,
+        RdsIamAuthenticatingDataSource authenticatingDataSource) {
+      Duration window = mConnectionRecyclingWindow;
+      if (window == null || authenticatingDataSource.getConnectionRecycler() != null) {
+        return null;
+      }
+      configureForRecycling(hikariConfig);
+      RdsIamConnectionRecycler recycler = new RdsIamConnectionRecycler(() -> {
+        HikariDataSource created = mDatasource;
+        return created != null ? created.getHikariPoolMXBean() : null;
+      }, () -> mDatasource != null && mDatasource.isClosed(),
+          hikariConfig.getPoolName() != null ? hikariConfig.getPoolName() : mRefresher.getDbHostname(),
+          authenticatingDataSource.getRefresher(), authenticatingDataSource.isTokenOnDemand(),
+          getRecyclingMaxAge(hikariConfig, window), window, RdsIamTokenRefreshScheduler.getSharedInstance(),
+          Clock.systemUTC());
+      authenticatingDataSource.setConnectionRecycler(recycler);
+      return recycler;
+    }
+
+    /*
+     * Hikari only takes one metrics tracker factory, so a configured one becomes the delegate, and it can't be
+     * combined with a metric registry.
+     */
+    private void installConnectionMetrics(HikariConfig hikariConfig) {
+      if (!mConnectionMetricsEnabled
+          || hikariConfig.getMetricsTrackerFactory() instanceof RdsIamConnectionMetricsTrackerFactory) {
+        return;
+      }
+      if (hikariConfig.getMetricRegistry() != null) {
+        sLogger.info("Database pool '{}' has a metric registry, the connection metrics are not recorded",
+            hikariConfig.getPoolName());
+        return;
+      }
+      hikariConfig.setMetricsTrackerFactory(new RdsIamConnectionMetricsTrackerFactory(
+          mRefresher.getDbHostname() + ":" + mRefresher.getDbPort(), hikariConfig.getMetricsTrackerFactory(),
+          hikariConfig.isRegisterMbeans()));
+    }
+
+    /*
+     * Hikari only validates a connection when it is borrowed if it has been idle for longer than its alive bypass
+     * window, 500 ms by default, so on a busy pool the retired connections are mostly replaced by the keepalive, which
+     * validates the idle connections.
+     */
+    private static void configureForRecycling(HikariConfig hikariConfig) {
+      if (hikariConfig.getConnectionTestQuery() != null) {
+        sLogger.warn("Database pool '{}' has a connection test query, retired connections are only replaced when "
+            + "they reach the max lifetime", hikariConfig.getPoolName());
+      }
+      if (hikariConfig.getKeepaliveTime() <= 0) {
+        hikariConfig.setKeepaliveTime(RdsIamConnectionRecycler.DEFAULT_KEEPALIVE_TIME.toMillis());
+      }
+    }
+
+    private static Duration getRecyclingMaxAge(HikariConfig hikariConfig, Duration window) {
+      return hikariConfig.getMaxLifetime() > 0 ? Duration.ofMillis(hikariConfig.getMaxLifetime()).minus(window)
+          : RdsIamConnectionRecycler.DEFAULT_MAX_AGE;
+    }
+  }
+
+}
@@ -0,0 +1,248 @@
+/*
+ * Copyright © 2022 Lucas Persson. All Rights Reserved.
+ */
+package se.solrike.aws.extras.datasourcefactory;
+
+import java.io.Closeable;
+import java.io.PrintWriter;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.sql.SQLTransientConnectionException;
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Supplier;
+
+import javax.sql.DataSource;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.zaxxer.hikari.HikariDataSource;
+
+/**
+ * DataSource that is returned right away while the real Hikari datasource is created and started in the background.
+ * <p>
+ * Creating a datasource signs the first token and, depending on the platform, connects to the database. With many
+ * datasources that adds up to a noticeable part of the application startup. The deferred datasource instead runs the
+ * creation on a background thread, so all datasources are created in parallel, and only blocks the first caller of
+ * {@link #getConnection()} until the datasource is ready or the readiness timeout has passed.
+ * <p>
+ * A created datasource that isn't started yet (e.g. from Spring's DataSourceBuilder) is started in the background by
+ * taking one connection from it. If that fails the failure is logged and the pool is started again by the first call
+ * to {@link #getConnection()}, just like Hikari does.
+ */
+public class RdsIamDeferredDataSource implements DataSource, Closeable {
+  private static final Logger sLogger = LoggerFactory.getLogger(RdsIamDeferredDataSource.class);
+
+  /**
+   * Max time {@link #getConnection()} waits for the datasource to be ready when nothing else is specified.
+   */
+  public static final Duration DEFAULT_READINESS_TIMEOUT = Duration.ofSeconds(30);
+
+  private final CompletableFuture<HikariDataSource> mFuture;
+  private volatile Duration mReadinessTimeout;
+  private volatile boolean mClosed;
+
+  /**
+   * Create the datasource in the background on a shared pool of daemon threads.
+   *
+   * @param datasourceCreator
+   *          - creates the datasource, e.g. calls AbstractRdsIamDatasourceFactory.createDatasource
+   */
+  public RdsIamDeferredDataSource(Supplier<HikariDataSource> datasourceCreator) {
+    this(datasourceCreator, DEFAULT_READINESS_TIMEOUT, SharedExecutorHolder.INSTANCE);
+  }
+
+  /**
+   * @param datasourceCreator
+   *          - creates the datasource, e.g. calls AbstractRdsIamDatasourceFactory.createDatasource
+   * @param readinessTimeout
+   *          - max time to wait for the datasource to be ready when a connection is requested
+   * @param executor
+   *          - executor that runs the creation. It must be able to run the creation of all datasources in parallel to
+   *          get the full benefit.
+   */
+  public RdsIamDeferredDataSource(Supplier<HikariDataSource> datasourceCreator, Duration readinessTimeout,
+      Executor executor) {
+    mReadinessTimeout = readinessTimeout;
+    mFuture = CompletableFuture.supplyAsync(() -> start(datasourceCreator), executor);
+  }
+
+  /**
+   * Wait for the datasource to be ready.
+   *
+   * @param timeout
+   *          - max time to wait
+   * @return true if the datasource is ready, false if it isn't ready within the timeout or failed to be created
+   * @throws InterruptedException
+   *           if the thread is interrupted while waiting
+   */
+  public boolean awaitReady(Duration timeout) throws InterruptedException {
+    try {
+      mFuture.get(timeout.toNanos(), TimeUnit.NANOSECONDS);
+      return true;
+    }
+    catch (ExecutionException | TimeoutException e) {
+      return false;
+    }
+  }
+
+  /**
+   * @return true if the datasource has been created
+   */
+  public boolean isReady() {
+    return mFuture.isDone() && !mFuture.isCompletedExceptionally();
+  }
+
+  /**
+   * @return true if the creation of the datasource failed
+   */
+  public boolean isFailed() {
+    return mFuture.isCompletedExceptionally();
+  }
+
+  /**
+   * Get the created datasource, waiting at most the readiness timeout for it to be created.
+   *
+   * @return the datasource
+   * @throws SQLException
+   *           if the datasource is closed, isn't ready within the readiness timeout or failed to be created
+   */
+  public HikariDataSource getDataSource() throws SQLException {
+    if (mClosed) {
+      throw new SQLException("Datasource is closed");
+    }
+    Duration readinessTimeout = mReadinessTimeout;
+    try {
+      return mFuture.get(readinessTimeout.toNanos(), TimeUnit.NANOSECONDS);
+    }
+    catch (TimeoutException e) {
+      throw new SQLTransientConnectionException(
+          "Datasource not ready within " + readinessTimeout.toMillis() + " ms", e);
+    }
+    catch (ExecutionException e) {
+      throw new SQLException("Failed to create datasource", e.getCause());
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new SQLException("Interrupted while waiting for the datasource to be ready", e);
+    }
+  }
+
+  /**
+   * @return max time to wait for the datasource to be ready when a connection is requested
+   */
+  public Duration getReadinessTimeout() {
+    return mReadinessTimeout;
+  }
+
+  /**
+   * @param readinessTimeout
+   *          - max time to wait for the datasource to be ready when a connection is requested
+   */
+  public void setReadinessTimeout(Duration readinessTimeout) {
+    mReadinessTimeout = readinessTimeout;
+  }
+
+  @Override
+  public Connection getConnection() throws SQLException {
+    return getDataSource().getConnection();
+  }
+
+  @Override
+  public Connection getConnection(String username, String password) throws SQLException {
+    return getDataSource().getConnection(username, password);
+  }
+
+  /**
+   * Close the datasource. If it is still being created it is closed as soon as the creation completes, without being
+   * started.
+   */
+  @Override
+  public synchronized void close() {
+    if (!mClosed) {
+      mClosed = true;
+      mFuture.thenAccept(HikariDataSource::close);
+    }
+  }
+
+  /**
+   * @return true if the datasource is closed
+   */
+  public boolean isClosed() {
+    return mClosed;
+  }
+
+  @Override
+  public PrintWriter getLogWriter() throws SQLException {
+    return getDataSource().getLogWriter();
+  }
+
+  @Override
+  public void setLogWriter(PrintWriter out) throws SQLException {
+    getDataSource().setLogWriter(out);
+  }
+
+  @Override
+  public void setLoginTimeout(int seconds) throws SQLException {
+    getDataSource().setLoginTimeout(seconds);
+  }
+
+  @Override
+  public int getLoginTimeout() throws SQLException {
+    return getDataSource().getLoginTimeout();
+  }
+
+  @Override
+  public java.util.logging.Logger getParentLogger() throws SQLFeatureNotSupportedException {
+    throw new SQLFeatureNotSupportedException();
+  }
+
+  @Override
+  public <T> T unwrap(Class<T> iface) throws SQLException {
+    if (iface.isInstance(this)) {
+      return iface.cast(this);
+    }
+    HikariDataSource datasource = getDataSource();
+    return iface.isInstance(datasource) ? iface.cast(datasource) : datasource.unwrap(iface);
+  }
+
+  @Override
+  public boolean isWrapperFor(Class<?> iface) throws SQLException {
+    if (iface.isInstance(this)) {
+      return true;
+    }
+    HikariDataSource datasource = getDataSource();
+    return iface.isInstance(datasource) || datasource.isWrapperFor(iface);
+  }
+
+  private HikariDataSource start(Supplier<HikariDataSource> datasourceCreator) {
+    HikariDataSource datasource = datasourceCreator.get();
+    // a datasource that is closed meanwhile is closed by close() once it is returned
+    if (!mClosed && !datasource.isRunning() && !datasource.isClosed()) {
+      // start the pool by taking one connection
+      try {
+        datasource.getConnection().close();
+        sLogger.debug("Database pool '{}' started in the background", datasource.getPoolName());
+      }
+      catch (SQLException | RuntimeException e) {
+        sLogger.warn("Failed to start database pool '{}' in the background, it will be started on first use",
+            datasource.getPoolName(), e);
+      }
+    }
+    return datasource;
+  }
+
+  private static final class SharedExecutorHolder {
+    private static final ExecutorService INSTANCE = Executors
+        .newCachedThreadPool(RdsIamTokenRefreshScheduler.createThreadFactory("rds-iam-datasource-starter-"));
+  }
+
+}
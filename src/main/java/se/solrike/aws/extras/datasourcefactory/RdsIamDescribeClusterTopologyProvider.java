@@ -0,0 +1,100 @@
+/*
+ * Copyright © 2022 Lucas Persson. All Rights Reserved.
+ */
+package se.solrike.aws.extras.datasourcefactory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import software.amazon.awssdk.services.rds.RdsClient;
+import software.amazon.awssdk.services.rds.model.DBCluster;
+import software.amazon.awssdk.services.rds.model.DBClusterMember;
+import software.amazon.awssdk.services.rds.model.DBInstance;
+import software.amazon.awssdk.services.rds.model.DescribeDbClustersRequest;
+import software.amazon.awssdk.services.rds.model.DescribeDbInstancesRequest;
+import software.amazon.awssdk.services.rds.model.DescribeDbInstancesResponse;
+import software.amazon.awssdk.services.rds.model.Filter;
+
+/**
+ * Discovers the instances of an Aurora cluster with <code>DescribeDBClusters</code>, for the roles, and
+ * <code>DescribeDBInstances</code>, for the endpoints and the status. The role of the instances comes straight from
+ * RDS so a failover is seen as soon as RDS has promoted the new writer, without waiting for the DNS TTL of the cluster
+ * endpoint.
+ * <p>
+ * The IAM policy of the application needs <code>rds:DescribeDBClusters</code> and <code>rds:DescribeDBInstances</code>
+ * on the cluster and its instances.
+ */
+public class RdsIamDescribeClusterTopologyProvider implements RdsIamClusterTopologyProvider {
+
+  /*
+   * Instances in these states take connections, the others are e.g. being created, rebooted or deleted.
+   */
+  private static final Set<String> AVAILABLE_STATUSES = new HashSet<>(Arrays.asList("available", "backing-up",
+      "modifying", "configuring-enhanced-monitoring", "configuring-iam-database-auth", "configuring-log-exports",
+      "storage-optimization"));
+
+  private final RdsClient mRdsClient;
+  private final String mClusterIdentifier;
+
+  /**
+   * @param rdsClient
+   *          - client used to describe the cluster
+   * @param clusterIdentifier
+   *          - identifier of the cluster
+   */
+  public RdsIamDescribeClusterTopologyProvider(RdsClient rdsClient, String clusterIdentifier) {
+    mRdsClient = rdsClient;
+    mClusterIdentifier = clusterIdentifier;
+  }
+
+  @Override
+  public List<RdsIamClusterMember> getClusterMembers() {
+    List<DBCluster> clusters = mRdsClient
+        .describeDBClusters(DescribeDbClustersRequest.builder().dbClusterIdentifier(mClusterIdentifier).build())
+        .dbClusters();
+    if (clusters.isEmpty()) {
+      throw new IllegalStateException("No cluster with identifier " + mClusterIdentifier);
+    }
+    Map<String, Boolean> writers = new HashMap<>();
+    for (DBClusterMember member : clusters.get(0).dbClusterMembers()) {
+      writers.put(member.dbInstanceIdentifier(), Boolean.TRUE.equals(member.isClusterWriter()));
+    }
+
+    List<RdsIamClusterMember> members = new ArrayList<>();
+    String marker = null;
+    do {
+      DescribeDbInstancesResponse response = mRdsClient.describeDBInstances(DescribeDbInstancesRequest.builder()
+          .filters(Filter.builder().name("db-cluster-id").values(mClusterIdentifier).build())
+          .marker(marker)
+          .build());
+      for (DBInstance instance : response.dbInstances()) {
+        Boolean writer = writers.get(instance.dbInstanceIdentifier());
+        if (writer == null || instance.endpoint() == null || instance.endpoint().address() == null
+            || !AVAILABLE_STATUSES.contains(instance.dbInstanceStatus())) {
+          continue;
+        }
+        Integer port = instance.endpoint().port() != null ? instance.endpoint().port() : clusters.get(0).port();
+        if (port != null) {
+          members.add(new RdsIamClusterMember(instance.dbInstanceIdentifier(), instance.endpoint().address(), port,
+              writer));
+        }
+      }
+      marker = response.marker();
+    }
+    while (marker != null);
+    return members;
+  }
+
+  /**
+   * @return identifier of the cluster
+   */
+  public String getClusterIdentifier() {
+    return mClusterIdentifier;
+  }
+
+}
@@ -0,0 +1,317 @@
+/*
+ * Copyright © 2022 Lucas Persson. All Rights Reserved.
+ */
+package se.solrike.aws.extras.datasourcefactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * The parts of a JDBC URL that are needed to sign the tokens: the database engine and all host and port pairs.
+ * <p>
+ * Handles the MySQL, MariaDB and PostgreSQL URLs, also through the AWS JDBC wrapper
+ * (<code>jdbc:aws-wrapper:mysql://...</code>), with:
+ * <ul>
+ * <li>several hosts for failover, e.g. <code>jdbc:mysql://host1:3306,host2:3306/database1</code></li>
+ * <li>no port, the default port of the engine is used</li>
+ * <li>MySQL sub protocols and address lists, e.g. <code>jdbc:mysql:replication://address=(host=host1)(port=3306)</code>
+ * </li>
+ * <li>IPv6 addresses in brackets</li>
+ * <li>no host at all, e.g. <code>jdbc:postgresql:database1</code> which means localhost</li>
+ * </ul>
+ * The parsed URLs are cached since the same URL is parsed every time a datasource is created for it.
+ */
+public final class RdsIamJdbcUrl {
+
+  private static final int MAX_CACHED_URLS = 1024;
+  private static final Map<String, RdsIamJdbcUrl> sCache = new ConcurrentHashMap<>();
+  private static final Pattern HOST_PROPERTY = Pattern.compile("host=([^,)]+)");
+  private static final Pattern PORT_PROPERTY = Pattern.compile("port=(\\d+)");
+  private static final String AWS_WRAPPER = "aws-wrapper:";
+
+  private final String mUrl;
+  private final String mEngine;
+  private final boolean mAwsWrapper;
+  private final boolean mSubProtocol;
+  private final String mPrefix;
+  private final String mSuffix;
+  private final List<Host> mHosts;
+
+  private RdsIamJdbcUrl(String url, String engine, boolean awsWrapper, boolean subProtocol, String prefix,
+      String suffix, List<Host> hosts) {
+    mUrl = url;
+    mEngine = engine;
+    mAwsWrapper = awsWrapper;
+    mSubProtocol = subProtocol;
+    mPrefix = prefix;
+    mSuffix = suffix;
+    mHosts = hosts;
+  }
+
+  /**
+   * @param jdbcUrl
+   *          - e.g. jdbc:mysql://database1.crux4711.eu-north-1.rds.amazonaws.com:3306/database1
+   * @return the parsed URL
+   * @throws IllegalArgumentException
+   *           if it isn't a JDBC URL or if it has no port and the engine has no default port
+   */
+  public static RdsIamJdbcUrl parse(String jdbcUrl) {
+    RdsIamJdbcUrl parsed = sCache.get(jdbcUrl);
+    if (parsed == null) {
+      parsed = parseUncached(jdbcUrl);
+      if (sCache.size() >= MAX_CACHED_URLS) {
+        sCache.clear();
+      }
+      sCache.put(jdbcUrl, parsed);
+    }
+    return parsed;
+  }
+
+  /**
+   * @return the JDBC URL
+   */
+  public String getUrl() {
+    return mUrl;
+  }
+
+  /**
+   * @return database engine in lower case, e.g. mysql or postgresql
+   */
+  public String getEngine() {
+    return mEngine;
+  }
+
+  /**
+   * @return true if it is a URL of the AWS JDBC wrapper
+   */
+  public boolean isAwsWrapper() {
+    return mAwsWrapper;
+  }
+
+  /**
+   * @return all hosts in the order of the URL, at least one
+   */
+  public List<Host> getHosts() {
+    return mHosts;
+  }
+
+  /**
+   * @return the first host
+   */
+  public Host getHost() {
+    return mHosts.get(0);
+  }
+
+  /**
+   * Tell if the hosts are alternatives that can be connected to one at a time, i.e. a plain failover URL without a sub
+   * protocol like MySQL's replication or load balancing and not through the AWS JDBC wrapper, which does its own
+   * failover.
+   *
+   * @return true if there is more than one host and they are failover alternatives
+   */
+  public boolean isFailover() {
+    return mHosts.size() > 1 && !mSubProtocol && !mAwsWrapper;
+  }
+
+  /**
+   * @param hostname
+   *          - the new host
+   * @param port
+   *          - the new port
+   * @return the same URL but with only the given host
+   */
+  public String withHost(String hostname, int port) {
+    String host = hostname.indexOf(':') >= 0 ? "[" + hostname + "]" : hostname;
+    return mPrefix + host + ":" + port + mSuffix;
+  }
+
+  @Override
+  public String toString() {
+    return mUrl;
+  }
+
+  static RdsIamJdbcUrl parseUncached(String jdbcUrl) {
+    if (!jdbcUrl.regionMatches(true, 0, "jdbc:", 0, 5)) {
+      throw new IllegalArgumentException("Not a JDBC URL: " + jdbcUrl);
+    }
+    int engineStart = 5;
+    boolean awsWrapper = jdbcUrl.regionMatches(true, engineStart, AWS_WRAPPER, 0, AWS_WRAPPER.length());
+    if (awsWrapper) {
+      engineStart += AWS_WRAPPER.length();
+    }
+    int engineEnd = engineStart;
+    while (engineEnd < jdbcUrl.length() && Character.isLetterOrDigit(jdbcUrl.charAt(engineEnd))) {
+      engineEnd++;
+    }
+    String engine = jdbcUrl.substring(engineStart, engineEnd).toLowerCase(Locale.ROOT);
+    int defaultPort = getDefaultPort(engine);
+
+    int authorityStart = jdbcUrl.indexOf("//", engineEnd);
+    if (authorityStart >= 0 && jdbcUrl.substring(engineEnd, authorityStart).matches(".*[/?].*")) {
+      // the // is in the path or the query
+      authorityStart = -1;
+    }
+    if (authorityStart < 0) {
+      // e.g. jdbc:postgresql:database1
+      int pathStart = jdbcUrl.indexOf(':', engineEnd) + 1;
+      if (pathStart == 0 || defaultPort < 0) {
+        throw new IllegalArgumentException("No host in JDBC URL: " + jdbcUrl);
+      }
+      return new RdsIamJdbcUrl(jdbcUrl, engine, awsWrapper, false, jdbcUrl.substring(0, pathStart) + "//",
+          "/" + jdbcUrl.substring(pathStart), Collections.singletonList(new Host("localhost", defaultPort)));
+    }
+    authorityStart += 2;
+    // e.g. jdbc:mysql:replication:// or jdbc:mysql+srv://
+    boolean subProtocol = authorityStart - 2 > engineEnd + 1;
+
+    int depth = 0;
+    int authorityEnd = authorityStart;
+    List<String> hostParts = new ArrayList<>();
+    int partStart = authorityStart;
+    for (; authorityEnd < jdbcUrl.length(); authorityEnd++) {
+      char c = jdbcUrl.charAt(authorityEnd);
+      if (c == '(' || c == '[') {
+        depth++;
+      }
+      else if (c == ')' || c == ']') {
+        depth--;
+      }
+      else if (depth == 0 && (c == '/' || c == '?' || c == '#')) {
+        break;
+      }
+      else if (depth == 0 && c == ',') {
+        hostParts.add(jdbcUrl.substring(partStart, authorityEnd));
+        partStart = authorityEnd + 1;
+      }
+    }
+    hostParts.add(jdbcUrl.substring(partStart, authorityEnd));
+
+    List<Host> hosts = new ArrayList<>(hostParts.size());
+    for (String hostPart : hostParts) {
+      hosts.add(parseHost(hostPart.trim(), defaultPort, jdbcUrl));
+    }
+    // keep user info, e.g. jdbc:mysql://user@host/database1
+    String firstHostPart = hostParts.get(0).trim();
+    int userInfoEnd = firstHostPart.startsWith("(") || firstHostPart.startsWith("address=") ? -1
+        : firstHostPart.lastIndexOf('@');
+    return new RdsIamJdbcUrl(jdbcUrl, engine, awsWrapper, subProtocol,
+        jdbcUrl.substring(0, authorityStart) + firstHostPart.substring(0, userInfoEnd + 1),
+        jdbcUrl.substring(authorityEnd), Collections.unmodifiableList(hosts));
+  }
+
+  private static Host parseHost(String hostPart, int defaultPort, String jdbcUrl) {
+    if (hostPart.startsWith("address=") || hostPart.startsWith("(")) {
+      // MySQL address-equals or key-value form
+      Matcher host = HOST_PROPERTY.matcher(hostPart);
+      Matcher port = PORT_PROPERTY.matcher(hostPart);
+      return createHost(host.find() ? host.group(1).trim() : "", port.find() ? port.group(1) : null, defaultPort,
+          jdbcUrl);
+    }
+    String hostAndPort = hostPart.substring(hostPart.lastIndexOf('@') + 1);
+    if (hostAndPort.startsWith("[")) {
+      int end = hostAndPort.indexOf(']');
+      if (end < 0) {
+        throw new IllegalArgumentException("Invalid IPv6 address in JDBC URL: " + jdbcUrl);
+      }
+      String port = end + 1 < hostAndPort.length() && hostAndPort.charAt(end + 1) == ':'
+          ? hostAndPort.substring(end + 2)
+          : null;
+      return createHost(hostAndPort.substring(1, end), port, defaultPort, jdbcUrl);
+    }
+    int colon = hostAndPort.lastIndexOf(':');
+    if (colon < 0) {
+      return createHost(hostAndPort, null, defaultPort, jdbcUrl);
+    }
+    return createHost(hostAndPort.substring(0, colon), hostAndPort.substring(colon + 1), defaultPort, jdbcUrl);
+  }
+
+  private static Host createHost(String hostname, String port, int defaultPort, String jdbcUrl) {
+    int parsedPort = defaultPort;
+    if (port != null && !port.isEmpty()) {
+      try {
+        parsedPort = Integer.parseInt(port);
+      }
+      catch (NumberFormatException e) {
+        throw new IllegalArgumentException("Invalid port in JDBC URL: " + jdbcUrl, e);
+      }
+    }
+    if (parsedPort < 0) {
+      throw new IllegalArgumentException("No port in JDBC URL: " + jdbcUrl);
+    }
+    return new Host(hostname.isEmpty() ? "localhost" : hostname, parsedPort);
+  }
+
+  private static int getDefaultPort(String engine) {
+    switch (engine) {
+      case "mysql":
+      case "mariadb":
+        return 3306;
+      case "postgresql":
+        return 5432;
+      default:
+        return -1;
+    }
+  }
+
+  /**
+   * Host and port of a database.
+   */
+  public static final class Host {
+    private final String mHostname;
+    private final int mPort;
+
+    /**
+     * @param hostname
+     *          - hostname or IP address
+     * @param port
+     *          - port
+     */
+    public Host(String hostname, int port) {
+      mHostname = hostname;
+      mPort = port;
+    }
+
+    /**
+     * @return hostname or IP address
+     */
+    public String getHostname() {
+      return mHostname;
+    }
+
+    /**
+     * @return port
+     */
+    public int getPort() {
+      return mPort;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (this == obj) {
+        return true;
+      }
+      if (!(obj instanceof Host)) {
+        return false;
+      }
+      Host other = (Host) obj;
+      return mHostname.equals(other.mHostname) && mPort == other.mPort;
+    }
+
+    @Override
+    public int hashCode() {
+      return 31 * mHostname.hashCode() + mPort;
+    }
+
+    @Override
+    public String toString() {
+      return mHostname + ":" + mPort;
+    }
+  }
+
+}
@@ -0,0 +1,261 @@
+/*
+ * Copyright © 2022 Lucas Persson. All Rights Reserved.
+ */
+package se.solrike.aws.extras.datasourcefactory;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock free latency histogram with logarithmic buckets.
+ * <p>
+ * Each power of two is divided into 8 buckets so a percentile is reported with at most 12.5 % error, which is plenty
+ * for latencies, while recording a value is a few atomic increments and never blocks. The histogram covers all
+ * positive long values in 512 buckets.
+ * <p>
+ * Reading the histogram while values are recorded gives a view that might be slightly inconsistent, e.g. the count
+ * might include a value that isn't in the buckets yet. The same goes for {@link #reset()}.
+ */
+public class RdsIamLatencyHistogram {
+
+  private static final int SUB_BUCKET_BITS = 3;
+  private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+  private static final int BUCKETS = 64 * SUB_BUCKETS;
+
+  private final AtomicLongArray mBuckets = new AtomicLongArray(BUCKETS);
+  private final LongAdder mCount = new LongAdder();
+  private final LongAdder mTotal = new LongAdder();
+  private final AtomicLong mMax = new AtomicLong();
+
+  /**
+   * Record a latency.
+   *
+   * @param nanos
+   *          - the latency in nanoseconds. Negative values are recorded as zero.
+   */
+  public void record(long nanos) {
+    long value = Math.max(nanos, 0);
+    mBuckets.incrementAndGet(getBucketIndex(value));
+    mCount.increment();
+    mTotal.add(value);
+    if (value > mMax.get()) {
+      mMax.accumulateAndGet(value, Math::max);
+    }
+  }
+
+  /**
+   * @return number of recorded values
+   */
+  public long getCount() {
+    return mCount.sum();
+  }
+
+  /**
+   * @return sum of all recorded values in nanoseconds
+   */
+  public long getTotalNanos() {
+    return mTotal.sum();
+  }
+
+  /**
+   * @return max recorded value in nanoseconds, zero if nothing has been recorded
+   */
+  public long getMaxNanos() {
+    return mMax.get();
+  }
+
+  /**
+   * @return mean of the recorded values in nanoseconds, zero if nothing has been recorded
+   */
+  public double getMeanNanos() {
+    long count = mCount.sum();
+    return count == 0 ? 0 : (double) mTotal.sum() / count;
+  }
+
+  /**
+   * Get the value at a percentile. The value is the upper bound of the bucket that holds the percentile, but never
+   * more than the max recorded value.
+   *
+   * @param percentile
+   *          - percentile in the range [0, 1], e.g. 0.99
+   * @return the value in nanoseconds, zero if nothing has been recorded
+   */
+  public long getPercentileNanos(double percentile) {
+    if (percentile < 0 || percentile > 1) {
+      throw new IllegalArgumentException("percentile must be in the range [0, 1]");
+    }
+    long[] counts = getBucketCounts();
+    return getPercentileNanos(counts, counts[BUCKETS], percentile);
+  }
+
+  /**
+   * @return the current values of the histogram
+   */
+  public Snapshot getSnapshot() {
+    long[] counts = getBucketCounts();
+    long total = counts[BUCKETS];
+    return new Snapshot(getCount(), getMeanNanos(), getPercentileNanos(counts, total, 0.5),
+        getPercentileNanos(counts, total, 0.95), getPercentileNanos(counts, total, 0.99),
+        getPercentileNanos(counts, total, 0.999), getMaxNanos());
+  }
+
+  /**
+   * Add the values recorded by another histogram to this one, e.g. to get the latencies of several pools together.
+   *
+   * @param other
+   *          - histogram to add, it isn't changed
+   */
+  public void add(RdsIamLatencyHistogram other) {
+    for (int i = 0; i < BUCKETS; i++) {
+      long count = other.mBuckets.get(i);
+      if (count != 0) {
+        mBuckets.addAndGet(i, count);
+      }
+    }
+    mCount.add(other.mCount.sum());
+    mTotal.add(other.mTotal.sum());
+    long max = other.mMax.get();
+    if (max > mMax.get()) {
+      mMax.accumulateAndGet(max, Math::max);
+    }
+  }
+
+  /**
+   * Clear all recorded values.
+   */
+  public void reset() {
+    for (int i = 0; i < BUCKETS; i++) {
+      mBuckets.set(i, 0);
+    }
+    mCount.reset();
+    mTotal.reset();
+    mMax.set(0);
+  }
+
+  /*
+   * One copy of the buckets for all percentiles, the total count is in the last element.
+   */
+  private long[] getBucketCounts() {
+    long[] counts = new long[BUCKETS + 1];
+    for (int i = 0; i < BUCKETS; i++) {
+      counts[i] = mBuckets.get(i);
+      counts[BUCKETS] += counts[i];
+    }
+    return counts;
+  }
+
+  private long getPercentileNanos(long[] counts, long total, double percentile) {
+    if (total == 0) {
+      return 0;
+    }
+    long rank = Math.max((long) Math.ceil(percentile * total), 1);
+    long seen = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      seen += counts[i];
+      if (seen >= rank) {
+        return Math.min(getBucketUpperBound(i), mMax.get());
+      }
+    }
+    return mMax.get();
+  }
+
+  static int getBucketIndex(long value) {
+    if (value < SUB_BUCKETS) {
+      return (int) value;
+    }
+    int exponent = 63 - Long.numberOfLeadingZeros(value);
+    int shift = exponent - SUB_BUCKET_BITS;
+    int subBucket = (int) (value >>> shift) & (SUB_BUCKETS - 1);
+    return (shift + 1) * SUB_BUCKETS + subBucket;
+  }
+
+  static long getBucketUpperBound(int index) {
+    if (index < SUB_BUCKETS) {
+      return index;
+    }
+    int shift = index / SUB_BUCKETS - 1;
+    long lowerBound = (long) (SUB_BUCKETS + index % SUB_BUCKETS) << shift;
+    return lowerBound + (1L << shift) - 1;
+  }
+
+  /**
+   * Immutable copy of the main values of a histogram.
+   */
+  public static final class Snapshot {
+    private final long mCount;
+    private final double mMeanNanos;
+    private final long mP50Nanos;
+    private final long mP95Nanos;
+    private final long mP99Nanos;
+    private final long mP999Nanos;
+    private final long mMaxNanos;
+
+    Snapshot(long count, double meanNanos, long p50Nanos, long p95Nanos, long p99Nanos, long p999Nanos,
+        long maxNanos) {
+      mCount = count;
+      mMeanNanos = meanNanos;
+      mP50Nanos = p50Nanos;
+      mP95Nanos = p95Nanos;
+      mP99Nanos = p99Nanos;
+      mP999Nanos = p999Nanos;
+      mMaxNanos = maxNanos;
+    }
+
+    /**
+     * @return number of recorded values
+     */
+    public long getCount() {
+      return mCount;
+    }
+
+    /**
+     * @return mean in nanoseconds
+     */
+    public double getMeanNanos() {
+      return mMeanNanos;
+    }
+
+    /**
+     * @return median in nanoseconds
+     */
+    public long getP50Nanos() {
+      return mP50Nanos;
+    }
+
+    /**
+     * @return 95th percentile in nanoseconds
+     */
+    public long getP95Nanos() {
+      return mP95Nanos;
+    }
+
+    /**
+     * @return 99th percentile in nanoseconds
+     */
+    public long getP99Nanos() {
+      return mP99Nanos;
+    }
+
+    /**
+     * @return 99.9th percentile in nanoseconds
+     */
+    public long getP999Nanos() {
+      return mP999Nanos;
+    }
+
+    /**
+     * @return max in nanoseconds
+     */
+    public long getMaxNanos() {
+      return mMaxNanos;
+    }
+
+    @Override
+    public String toString() {
+      return "count=" + mCount + ", mean=" + (long) mMeanNanos + " ns, p50=" + mP50Nanos + " ns, p95=" + mP95Nanos
+          + " ns, p99=" + mP99Nanos + " ns, p99.9=" + mP999Nanos + " ns, max=" + mMaxNanos + " ns";
+    }
+  }
+
+}
@@ -0,0 +1,343 @@
+/*
+ * Copyright © 2022 Lucas Persson. All Rights Reserved.
+ */
+package se.solrike.aws.extras.datasourcefactory;
+
+import java.io.Closeable;
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BooleanSupplier;
+import java.util.function.Supplier;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.zaxxer.hikari.HikariConfigMXBean;
+import com.zaxxer.hikari.HikariDataSource;
+import com.zaxxer.hikari.HikariPoolMXBean;
+
+/**
+ * Adjusts the max size of a Hikari pool at runtime after the load, within a min and a max size and within the
+ * connection budget of the database endpoint.
+ * <p>
+ * The pool is sampled at an interval. When threads have been waiting for a connection, or all connections have been
+ * in use, for a number of consecutive samples the pool grows by a quarter, or by the number of waiting threads if that
+ * is more. When the peak number of connections in use has stayed below the low utilization of the pool size for a
+ * longer run of samples the pool shrinks by a quarter, but never below the peak plus one. The different thresholds and
+ * sample counts give hysteresis, the pool grows quickly at a peak and shrinks slowly after it, and doesn't flap.
+ * <p>
+ * Hikari doesn't close any connections when the max size is lowered, and the controller doesn't either since evicting
+ * them would make the pool reconnect all of its connections at once. The surplus drains by itself: Hikari's
+ * housekeeper retires the idle connections above the minimum idle after the idle timeout, and the connections that
+ * reach the max lifetime aren't replaced above the lowered max size. With the default minimum idle, which is the max
+ * size, only the max lifetime drains the surplus. The budget counts the max size of the pool so it is an upper bound
+ * of the connections the pool holds once the surplus has drained.
+ * <p>
+ * The controller stops and releases its budget when the pool is closed.
+ */
+public class RdsIamPoolSizeController implements Closeable {
+  private static final Logger sLogger = LoggerFactory.getLogger(RdsIamPoolSizeController.class);
+
+  /**
+   * Interval between the samples when nothing else is specified.
+   */
+  public static final Duration DEFAULT_SAMPLE_INTERVAL = Duration.ofSeconds(5);
+
+  private final HikariConfigMXBean mConfig;
+  private final Supplier<HikariPoolMXBean> mPool;
+  private final BooleanSupplier mPoolClosed;
+  private final String mDbHostname;
+  private final int mDbPort;
+  private final int mMinSize;
+  private final int mMaxSize;
+  private final RdsIamConnectionBudget mBudget;
+  private final RdsIamTokenRefreshScheduler mScheduler;
+  private final AtomicLong mGrowCount = new AtomicLong();
+  private final AtomicLong mShrinkCount = new AtomicLong();
+  private final AtomicLong mBudgetDeniedCount = new AtomicLong();
+  private volatile int mScaleUpSamples = 2;
+  private volatile int mScaleDownSamples = 12;
+  private volatile double mLowUtilization = 0.5;
+  // guarded by this
+  private RdsIamTokenRefreshScheduler.Registration mRegistration;
+  private int mMinimumIdle;
+  private int mSize;
+  private int mReserved;
+  private int mPressureSamples;
+  private int mSlackSamples;
+  private int mPeakInUse;
+  private boolean mClosed;
+
+  /**
+   * Control a pool created by one of the factory's createDatasource methods. The endpoint for the budget is taken from
+   * the pool's JDBC URL.
+   *
+   * @param datasource
+   *          - the pool
+   * @param minSize
+   *          - the pool never gets smaller than this
+   * @param maxSize
+   *          - the pool never gets bigger than this
+   * @param budget
+   *          - connection budget shared with the other controlled pools, null for no budget
+   */
+  public RdsIamPoolSizeController(HikariDataSource datasource, int minSize, int maxSize,
+      RdsIamConnectionBudget budget) {
+    this(datasource.getHikariConfigMXBean(), datasource::getHikariPoolMXBean, datasource::isClosed,
+        getEndpoint(datasource).getHostname(), getEndpoint(datasource).getPort(), minSize, maxSize, budget,
+        RdsIamTokenRefreshScheduler.getSharedInstance());
+  }
+
+  /**
+   * @param config
+   *          - configuration of the pool, the size is changed through it
+   * @param pool
+   *          - the state of the pool, it may give null before the pool is started
+   * @param poolClosed
+   *          - tells if the pool is closed
+   * @param dbHostname
+   *          - hostname of the database
+   * @param dbPort
+   *          - port of the database
+   * @param minSize
+   *          - the pool never gets smaller than this
+   * @param maxSize
+   *          - the pool never gets bigger than this
+   * @param budget
+   *          - connection budget shared with the other controlled pools, null for no budget
+   * @param scheduler
+   *          - scheduler that runs the sampling
+   */
+  public RdsIamPoolSizeController(HikariConfigMXBean config, Supplier<HikariPoolMXBean> pool,
+      BooleanSupplier poolClosed, String dbHostname, int dbPort, int minSize, int maxSize,
+      RdsIamConnectionBudget budget, RdsIamTokenRefreshScheduler scheduler) {
+    if (minSize < 1 || maxSize < minSize) {
+      throw new IllegalArgumentException("minSize must be at least 1 and maxSize at least minSize");
+    }
+    mConfig = config;
+    mPool = pool;
+    mPoolClosed = poolClosed;
+    mDbHostname = dbHostname;
+    mDbPort = dbPort;
+    mMinSize = minSize;
+    mMaxSize = maxSize;
+    mBudget = budget;
+    mScheduler = scheduler;
+  }
+
+  /**
+   * Reserve the current size of the pool, within the min and max size and the budget, and start the sampling.
+   *
+   * @param sampleInterval
+   *          - interval between the samples
+   */
+  public synchronized void start(Duration sampleInterval) {
+    if (mClosed || mRegistration != null) {
+      return;
+    }
+    // the minimum idle is the max size by default, it is negative until the pool is started
+    int minimumIdle = mConfig.getMinimumIdle();
+    mMinimumIdle = minimumIdle < 0 ? mMaxSize : Math.min(minimumIdle, mMaxSize);
+    int size = Math.max(Math.min(mConfig.getMaximumPoolSize(), mMaxSize), mMinSize);
+    mReserved = reserve(size);
+    if (mReserved < mMinSize) {
+      sLogger.warn("Connection budget for {}:{} is exhausted, pool '{}' gets its min size {}", mDbHostname, mDbPort,
+          mConfig.getPoolName(), mMinSize);
+      if (mBudget != null) {
+        mBudget.forceReserve(mDbHostname, mDbPort, mMinSize - mReserved);
+      }
+      mReserved = mMinSize;
+    }
+    resize(mReserved);
+    mRegistration = mScheduler.schedule(this::scheduledSample, sampleInterval.toNanos(), sampleInterval.toNanos(),
+        TimeUnit.NANOSECONDS);
+  }
+
+  /**
+   * Take one sample and resize the pool if needed. Does nothing until started.
+   */
+  public synchronized void sample() {
+    if (mClosed || mRegistration == null) {
+      return;
+    }
+    if (mPoolClosed.getAsBoolean()) {
+      close();
+      return;
+    }
+    HikariPoolMXBean pool = mPool.get();
+    if (pool == null) {
+      // not started yet
+      return;
+    }
+    int awaiting = pool.getThreadsAwaitingConnection();
+    int active = pool.getActiveConnections();
+    mPeakInUse = Math.max(mPeakInUse, active + awaiting);
+
+    if (awaiting > 0 || active >= mSize) {
+      mSlackSamples = 0;
+      if (++mPressureSamples >= mScaleUpSamples && mSize < mMaxSize) {
+        grow(Math.max(1, Math.max(awaiting, mSize / 4)));
+      }
+    }
+    else if (mPeakInUse < mSize * mLowUtilization) {
+      mPressureSamples = 0;
+      if (++mSlackSamples >= mScaleDownSamples && mSize > mMinSize) {
+        shrink(Math.max(mMinSize, Math.max(mPeakInUse + 1, mSize - Math.max(1, mSize / 4))));
+      }
+    }
+    else {
+      mPressureSamples = 0;
+      mSlackSamples = 0;
+      mPeakInUse = 0;
+    }
+  }
+
+  /**
+   * @return current max size of the pool
+   */
+  public synchronized int getSize() {
+    return mSize;
+  }
+
+  /**
+   * @return number of times the pool has grown
+   */
+  public long getGrowCount() {
+    return mGrowCount.get();
+  }
+
+  /**
+   * @return number of times the pool has shrunk
+   */
+  public long getShrinkCount() {
+    return mShrinkCount.get();
+  }
+
+  /**
+   * @return number of times the pool couldn't grow as much as needed because the budget was exhausted
+   */
+  public long getBudgetDeniedCount() {
+    return mBudgetDeniedCount.get();
+  }
+
+  /**
+   * @param scaleUpSamples
+   *          - number of consecutive samples with waiting threads or all connections in use before the pool grows.
+   *          Default 2.
+   */
+  public void setScaleUpSamples(int scaleUpSamples) {
+    mScaleUpSamples = scaleUpSamples;
+  }
+
+  /**
+   * @param scaleDownSamples
+   *          - number of consecutive samples with low utilization before the pool shrinks. Default 12.
+   */
+  public void setScaleDownSamples(int scaleDownSamples) {
+    mScaleDownSamples = scaleDownSamples;
+  }
+
+  /**
+   * @param lowUtilization
+   *          - fraction of the pool size that the peak number of connections in use must stay below for the pool to
+   *          shrink. Default 0.5.
+   */
+  public void setLowUtilization(double lowUtilization) {
+    mLowUtilization = lowUtilization;
+  }
+
+  /**
+   * Stop the sampling and release the budget. The pool keeps its current size.
+   */
+  @Override
+  public synchronized void close() {
+    if (mClosed) {
+      return;
+    }
+    mClosed = true;
+    if (mRegistration != null) {
+      mRegistration.close();
+    }
+    if (mBudget != null) {
+      mBudget.release(mDbHostname, mDbPort, mReserved);
+    }
+    mReserved = 0;
+  }
+
+  private void scheduledSample() {
+    try {
+      sample();
+    }
+    catch (RuntimeException e) {
+      sLogger.warn("Failed to sample database pool '{}'", mConfig.getPoolName(), e);
+    }
+  }
+
+  private void grow(int wanted) {
+    int target = Math.min(mSize + wanted, mMaxSize);
+    int granted = reserve(target - mSize);
+    if (granted < target - mSize) {
+      mBudgetDeniedCount.incrementAndGet();
+    }
+    if (granted > 0) {
+      mReserved += granted;
+      sLogger.debug("Growing database pool '{}' from {} to {}", mConfig.getPoolName(), mSize, mSize + granted);
+      resize(mSize + granted);
+      mGrowCount.incrementAndGet();
+    }
+    resetSamples();
+  }
+
+  private void shrink(int target) {
+    if (target >= mSize) {
+      resetSamples();
+      return;
+    }
+    sLogger.debug("Shrinking database pool '{}' from {} to {}", mConfig.getPoolName(), mSize, target);
+    int released = mReserved - target;
+    resize(target);
+    if (mBudget != null && released > 0) {
+      mBudget.release(mDbHostname, mDbPort, released);
+    }
+    mReserved = target;
+    mShrinkCount.incrementAndGet();
+    resetSamples();
+  }
+
+  /*
+   * The minimum idle must not be above the max size so it is lowered first when shrinking and raised last when growing.
+   */
+  private void resize(int size) {
+    int minimumIdle = Math.min(mMinimumIdle, size);
+    if (size < mConfig.getMaximumPoolSize()) {
+      mConfig.setMinimumIdle(minimumIdle);
+      mConfig.setMaximumPoolSize(size);
+    }
+    else {
+      mConfig.setMaximumPoolSize(size);
+      mConfig.setMinimumIdle(minimumIdle);
+    }
+    mSize = size;
+  }
+
+  private void resetSamples() {
+    mPressureSamples = 0;
+    mSlackSamples = 0;
+    mPeakInUse = 0;
+  }
+
+  private int reserve(int connections) {
+    return mBudget == null ? connections : mBudget.reserve(mDbHostname, mDbPort, connections);
+  }
+
+  private static RdsIamJdbcUrl.Host getEndpoint(HikariDataSource datasource) {
+    if (datasource.getDataSource() instanceof RdsIamAuthenticatingDataSource) {
+      RdsIamAuthenticationTokenRefresher refresher = ((RdsIamAuthenticatingDataSource) datasource.getDataSource())
+          .getRefresher();
+      return new RdsIamJdbcUrl.Host(refresher.getDbHostname(), refresher.getDbPort());
+    }
+    return RdsIamJdbcUrl.parse(datasource.getJdbcUrl()).getHost();
+  }
+
+}
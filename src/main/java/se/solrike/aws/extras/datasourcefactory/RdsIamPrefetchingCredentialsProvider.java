@@ -0,0 +1,234 @@
+/*
+ * Copyright © 2022 Lucas Persson. All Rights Reserved.
+ */
+package se.solrike.aws.extras.datasourcefactory;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import software.amazon.awssdk.auth.credentials.AwsCredentials;
+import software.amazon.awssdk.auth.credentials.AwsCredentialsProvider;
+
+/**
+ * Credentials provider that resolves the credentials from another provider in the background and hands out the last
+ * resolved credentials, so signing a token never blocks on network I/O like a call to the ECS container credentials
+ * endpoint or the EC2 instance metadata service.
+ * <p>
+ * The AWS SDK providers cache the credentials and fetch new ones when they are about to expire. The prefetch calls the
+ * provider at a short interval so that fetch happens on the prefetch thread instead of on the thread that signs the
+ * token. The prefetches run on a scheduler of their own, by default one thread shared by all prefetching providers,
+ * so a slow credentials endpoint never delays the token refreshes. Only the very first call blocks if the first
+ * prefetch hasn't completed yet.
+ * <p>
+ * If the prefetches keep failing until the last credentials have expired, the credentials are resolved from the other
+ * provider again by the caller instead of handing out the expired ones. The expiration time is only known with AWS SDK
+ * versions where the credentials have one.
+ */
+public class RdsIamPrefetchingCredentialsProvider implements AwsCredentialsProvider, AutoCloseable {
+  private static final Logger sLogger = LoggerFactory.getLogger(RdsIamPrefetchingCredentialsProvider.class);
+
+  /**
+   * Default interval between the prefetches.
+   */
+  public static final Duration DEFAULT_PREFETCH_INTERVAL = Duration.ofMinutes(1);
+  private static final Duration MAX_RETRY_DELAY = Duration.ofSeconds(10);
+
+  private static final Map<AwsCredentialsProvider, RdsIamPrefetchingCredentialsProvider> sSharedProviders =
+      new ConcurrentHashMap<>();
+
+  private final AwsCredentialsProvider mDelegate;
+  private final Duration mPrefetchInterval;
+  private final AtomicLong mPrefetchCount = new AtomicLong();
+  private final AtomicLong mPrefetchFailureCount = new AtomicLong();
+  // references to a shared provider that aren't closed yet, -1 once it is stopped. Not used for other providers.
+  private final AtomicInteger mReferenceCount = new AtomicInteger();
+  private volatile ResolvedCredentials mCredentials;
+  private final RdsIamTokenRefreshScheduler.Registration mRegistration;
+
+  /**
+   * Prefetch on the shared prefetch scheduler with the default interval.
+   *
+   * @param delegate
+   *          - provider that resolves the credentials, e.g. DefaultCredentialsProvider.create()
+   */
+  public RdsIamPrefetchingCredentialsProvider(AwsCredentialsProvider delegate) {
+    this(delegate, DEFAULT_PREFETCH_INTERVAL, SharedSchedulerHolder.INSTANCE);
+  }
+
+  /**
+   * @param delegate
+   *          - provider that resolves the credentials, e.g. DefaultCredentialsProvider.create()
+   * @param prefetchInterval
+   *          - interval between the prefetches. Must be shorter than the time before expiry when the delegate fetches
+   *          new credentials.
+   * @param scheduler
+   *          - scheduler that runs the prefetch. Don't use the scheduler of the token refreshers since the prefetch
+   *          blocks on network I/O.
+   */
+  public RdsIamPrefetchingCredentialsProvider(AwsCredentialsProvider delegate, Duration prefetchInterval,
+      RdsIamTokenRefreshScheduler scheduler) {
+    mDelegate = delegate;
+    mPrefetchInterval = prefetchInterval;
+    mRegistration = scheduler.schedule(this::prefetch, Duration.ZERO);
+  }
+
+  /**
+   * Get a prefetching provider for the given provider. The prefetching provider is shared by all callers with the
+   * same provider so there is only one prefetch per provider. Each call takes a reference to it that is released by
+   * {@link #close()}, the prefetch stops when all references are released.
+   * <p>
+   * A prefetching provider is returned as it is, without taking a reference.
+   *
+   * @param delegate
+   *          - provider that resolves the credentials
+   * @return the prefetching provider
+   */
+  public static RdsIamPrefetchingCredentialsProvider prefetching(AwsCredentialsProvider delegate) {
+    if (delegate instanceof RdsIamPrefetchingCredentialsProvider) {
+      return (RdsIamPrefetchingCredentialsProvider) delegate;
+    }
+    return sSharedProviders.compute(delegate, (key, existing) -> {
+      if (existing != null && existing.acquire()) {
+        return existing;
+      }
+      RdsIamPrefetchingCredentialsProvider provider = new RdsIamPrefetchingCredentialsProvider(key);
+      provider.acquire();
+      return provider;
+    });
+  }
+
+  @Override
+  public AwsCredentials resolveCredentials() {
+    ResolvedCredentials credentials = mCredentials;
+    if (credentials != null && !credentials.isExpired()) {
+      return credentials.mCredentials;
+    }
+    synchronized (this) {
+      credentials = mCredentials;
+      if (credentials == null || credentials.isExpired()) {
+        credentials = new ResolvedCredentials(mDelegate.resolveCredentials());
+        mCredentials = credentials;
+      }
+      return credentials.mCredentials;
+    }
+  }
+
+  /**
+   * @return number of successful prefetches
+   */
+  public long getPrefetchCount() {
+    return mPrefetchCount.get();
+  }
+
+  /**
+   * @return number of failed prefetches
+   */
+  public long getPrefetchFailureCount() {
+    return mPrefetchFailureCount.get();
+  }
+
+  /**
+   * @return true if the prefetch is stopped
+   */
+  public boolean isClosed() {
+    return mRegistration.isClosed();
+  }
+
+  /**
+   * Stop the prefetch, or for a provider from {@link #prefetching(AwsCredentialsProvider)} release the reference and
+   * stop the prefetch when it was the last one. The last resolved credentials are still handed out.
+   */
+  @Override
+  public void close() {
+    if (sSharedProviders.get(mDelegate) == this) {
+      sSharedProviders.computeIfPresent(mDelegate, (key, existing) -> {
+        if (existing != this || mReferenceCount.decrementAndGet() > 0) {
+          return existing;
+        }
+        mReferenceCount.set(-1);
+        mRegistration.close();
+        return null;
+      });
+    }
+    else {
+      mRegistration.close();
+    }
+  }
+
+  /*
+   * Lock-free since it runs while the map of the shared providers is locked.
+   */
+  private boolean acquire() {
+    while (true) {
+      int count = mReferenceCount.get();
+      if (count < 0) {
+        return false;
+      }
+      if (mReferenceCount.compareAndSet(count, count + 1)) {
+        return true;
+      }
+    }
+  }
+
+  private Duration prefetch() {
+    try {
+      mCredentials = new ResolvedCredentials(mDelegate.resolveCredentials());
+      mPrefetchCount.incrementAndGet();
+      return mPrefetchInterval;
+    }
+    catch (RuntimeException e) {
+      // keep the last credentials, they are probably still valid for a while
+      mPrefetchFailureCount.incrementAndGet();
+      Duration retryDelay = mPrefetchInterval.compareTo(MAX_RETRY_DELAY) < 0 ? mPrefetchInterval : MAX_RETRY_DELAY;
+      sLogger.warn("Failed to prefetch AWS credentials, retry in {} ms", retryDelay.toMillis(), e);
+      return retryDelay;
+    }
+  }
+
+  @Override
+  public String toString() {
+    return "RdsIamPrefetchingCredentialsProvider[" + mDelegate + "]";
+  }
+
+  private static final class ResolvedCredentials {
+    private final AwsCredentials mCredentials;
+    private final Instant mExpirationTime;
+
+    ResolvedCredentials(AwsCredentials credentials) {
+      mCredentials = credentials;
+      mExpirationTime = getExpirationTime(credentials);
+    }
+
+    boolean isExpired() {
+      return mExpirationTime != null && !mExpirationTime.isAfter(Instant.now());
+    }
+
+    /*
+     * The session credentials only have an expiration time in later AWS SDK versions than the library is compiled
+     * with, so it must be looked up reflectively.
+     */
+    private static Instant getExpirationTime(AwsCredentials credentials) {
+      try {
+        Object expirationTime = credentials.getClass().getMethod("expirationTime").invoke(credentials);
+        return expirationTime instanceof Optional ? (Instant) ((Optional<?>) expirationTime).orElse(null) : null;
+      }
+      catch (ReflectiveOperationException | RuntimeException e) {
+        return null;
+      }
+    }
+  }
+
+  private static final class SharedSchedulerHolder {
+    private static final RdsIamTokenRefreshScheduler INSTANCE = new RdsIamTokenRefreshScheduler(1,
+        "rds-iam-credentials-prefetcher-");
+  }
+
+}
@@ -0,0 +1,571 @@
+/*
+ * Copyright © 2022 Lucas Persson. All Rights Reserved.
+ */
+package se.solrike.aws.extras.datasourcefactory;
+
+import java.io.Closeable;
+import java.io.PrintWriter;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.sql.DataSource;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * DataSource that sends read-only work to reader instances and everything else to the writer, e.g. for an Aurora
+ * cluster with one pool per instance.
+ * <p>
+ * {@link #getConnection()} returns a connection that doesn't take a physical connection from any pool until it is
+ * used, so the transaction setup can mark it read-only first, e.g. Spring's <code>@Transactional(readOnly =
+ * true)</code> calls <code>setReadOnly(true)</code> before the first statement. Code that doesn't go through such a
+ * transaction manager can mark the work on the current thread instead:
+ *
+ * <pre>
+ * try (RdsIamRoutingDataSource.ReadOnlyHint hint = RdsIamRoutingDataSource.readOnly()) {
+ *   // connections taken here are read-only and go to the readers
+ * }
+ * </pre>
+ * <p>
+ * A read-only connection is taken from the reader with the least outstanding connections. A reader that fails to give
+ * a connection is ejected for the ejection time and then admitted again, the next reader is tried meanwhile. If no
+ * reader can give a connection the writer is used.
+ */
+public class RdsIamRoutingDataSource implements DataSource, Closeable {
+  private static final Logger sLogger = LoggerFactory.getLogger(RdsIamRoutingDataSource.class);
+
+  /**
+   * Time an unhealthy reader is ejected when nothing else is specified.
+   */
+  public static final Duration DEFAULT_EJECTION_TIME = Duration.ofSeconds(30);
+
+  private static final ThreadLocal<Boolean> sReadOnlyHint = new ThreadLocal<>();
+
+  private final List<Endpoint> mReaders = new CopyOnWriteArrayList<>();
+  private volatile Endpoint mWriter;
+  private volatile Duration mEjectionTime = DEFAULT_EJECTION_TIME;
+  private volatile boolean mFallbackToWriter = true;
+
+  /**
+   * @param writerName
+   *          - name of the writer, e.g. its endpoint
+   * @param writer
+   *          - pool for the writer
+   */
+  public RdsIamRoutingDataSource(String writerName, DataSource writer) {
+    mWriter = new Endpoint(writerName, writer);
+  }
+
+  /**
+   * Mark the connections taken by the current thread as read-only until the hint is closed. Hints can be nested.
+   *
+   * @return the hint to close
+   */
+  public static ReadOnlyHint readOnly() {
+    return new ReadOnlyHint(Boolean.TRUE);
+  }
+
+  /**
+   * Mark the connections taken by the current thread as read-write until the hint is closed, e.g. inside a read-only
+   * hint.
+   *
+   * @return the hint to close
+   */
+  public static ReadOnlyHint readWrite() {
+    return new ReadOnlyHint(Boolean.FALSE);
+  }
+
+  /**
+   * @return true if the current thread is inside a read-only hint
+   */
+  public static boolean isReadOnlyHint() {
+    return Boolean.TRUE.equals(sReadOnlyHint.get());
+  }
+
+  /**
+   * Replace the writer, e.g. after a failover. Connections already taken from the old writer are not affected.
+   *
+   * @param writerName
+   *          - name of the writer, e.g. its endpoint
+   * @param writer
+   *          - pool for the writer
+   * @return the old writer pool so it can be closed
+   */
+  public DataSource setWriter(String writerName, DataSource writer) {
+    Endpoint oldWriter = mWriter;
+    mWriter = new Endpoint(writerName, writer);
+    return oldWriter.getDataSource();
+  }
+
+  /**
+   * Add a reader. A reader with the same name is replaced.
+   *
+   * @param readerName
+   *          - name of the reader, e.g. its endpoint
+   * @param reader
+   *          - pool for the reader
+   * @return the replaced reader pool so it can be closed, or null
+   */
+  public DataSource addReader(String readerName, DataSource reader) {
+    DataSource replaced = removeReader(readerName);
+    mReaders.add(new Endpoint(readerName, reader));
+    return replaced;
+  }
+
+  /**
+   * Remove a reader so no more connections are taken from it. Connections already taken are not affected.
+   *
+   * @param readerName
+   *          - name of the reader
+   * @return the removed reader pool so it can be closed when its connections are returned, or null
+   */
+  public DataSource removeReader(String readerName) {
+    for (Endpoint reader : mReaders) {
+      if (reader.getName().equals(readerName) && mReaders.remove(reader)) {
+        return reader.getDataSource();
+      }
+    }
+    return null;
+  }
+
+  /**
+   * @return the writer
+   */
+  public Endpoint getWriter() {
+    return mWriter;
+  }
+
+  /**
+   * @return the readers
+   */
+  public List<Endpoint> getReaders() {
+    return Collections.unmodifiableList(new ArrayList<>(mReaders));
+  }
+
+  /**
+   * @param readerName
+   *          - name of the reader
+   * @return the reader or null if there is no reader with the name
+   */
+  public Endpoint getReader(String readerName) {
+    for (Endpoint reader : mReaders) {
+      if (reader.getName().equals(readerName)) {
+        return reader;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * @return time an unhealthy reader is ejected
+   */
+  public Duration getEjectionTime() {
+    return mEjectionTime;
+  }
+
+  /**
+   * @param ejectionTime
+   *          - time an unhealthy reader is ejected before it is tried again. Default 30 s.
+   */
+  public void setEjectionTime(Duration ejectionTime) {
+    mEjectionTime = ejectionTime;
+  }
+
+  /**
+   * @return true if read-only connections are taken from the writer when no reader can give a connection
+   */
+  public boolean isFallbackToWriter() {
+    return mFallbackToWriter;
+  }
+
+  /**
+   * @param fallbackToWriter
+   *          - take read-only connections from the writer when no reader can give a connection. Default true.
+   */
+  public void setFallbackToWriter(boolean fallbackToWriter) {
+    mFallbackToWriter = fallbackToWriter;
+  }
+
+  @Override
+  public Connection getConnection() throws SQLException {
+    return createLazyConnection(null, null);
+  }
+
+  @Override
+  public Connection getConnection(String username, String password) throws SQLException {
+    return createLazyConnection(username, password);
+  }
+
+  /**
+   * Close the writer and reader pools that are closeable.
+   */
+  @Override
+  public void close() {
+    closeDataSource(mWriter.getDataSource());
+    for (Endpoint reader : mReaders) {
+      closeDataSource(reader.getDataSource());
+    }
+    mReaders.clear();
+  }
+
+  @Override
+  public PrintWriter getLogWriter() throws SQLException {
+    return mWriter.getDataSource().getLogWriter();
+  }
+
+  @Override
+  public void setLogWriter(PrintWriter out) throws SQLException {
+    mWriter.getDataSource().setLogWriter(out);
+  }
+
+  @Override
+  public void setLoginTimeout(int seconds) throws SQLException {
+    mWriter.getDataSource().setLoginTimeout(seconds);
+  }
+
+  @Override
+  public int getLoginTimeout() throws SQLException {
+    return mWriter.getDataSource().getLoginTimeout();
+  }
+
+  @Override
+  public java.util.logging.Logger getParentLogger() throws SQLFeatureNotSupportedException {
+    throw new SQLFeatureNotSupportedException();
+  }
+
+  @Override
+  public <T> T unwrap(Class<T> iface) throws SQLException {
+    if (iface.isInstance(this)) {
+      return iface.cast(this);
+    }
+    DataSource writer = mWriter.getDataSource();
+    return iface.isInstance(writer) ? iface.cast(writer) : writer.unwrap(iface);
+  }
+
+  @Override
+  public boolean isWrapperFor(Class<?> iface) throws SQLException {
+    if (iface.isInstance(this)) {
+      return true;
+    }
+    DataSource writer = mWriter.getDataSource();
+    return iface.isInstance(writer) || writer.isWrapperFor(iface);
+  }
+
+  static void closeDataSource(DataSource dataSource) {
+    if (dataSource instanceof AutoCloseable) {
+      try {
+        ((AutoCloseable) dataSource).close();
+      }
+      catch (Exception e) {
+        sLogger.warn("Failed to close datasource", e);
+      }
+    }
+  }
+
+  private Connection createLazyConnection(String username, String password) {
+    return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(), new Class<?>[] { Connection.class },
+        new LazyConnectionHandler(username, password));
+  }
+
+  private Connection getPhysicalConnection(boolean readOnly, String username, String password, Endpoint[] taken)
+      throws SQLException {
+    if (readOnly) {
+      Connection connection = getReaderConnection(username, password, taken);
+      if (connection != null) {
+        return connection;
+      }
+      if (!mFallbackToWriter) {
+        throw new SQLException("No reader available");
+      }
+    }
+    Endpoint writer = mWriter;
+    taken[0] = writer;
+    return writer.getConnection(username, password);
+  }
+
+  private Connection getReaderConnection(String username, String password, Endpoint[] taken) {
+    List<Endpoint> candidates = new ArrayList<>(mReaders);
+    // start at a random reader so ties are spread
+    Collections.rotate(candidates, candidates.isEmpty() ? 0 : ThreadLocalRandom.current().nextInt(candidates.size()));
+    while (!candidates.isEmpty()) {
+      Endpoint reader = null;
+      long now = System.nanoTime();
+      for (Endpoint candidate : candidates) {
+        if (!candidate.isEjected(now)
+            && (reader == null || candidate.getOutstandingCount() < reader.getOutstandingCount())) {
+          reader = candidate;
+        }
+      }
+      if (reader == null) {
+        return null;
+      }
+      candidates.remove(reader);
+      try {
+        Connection connection = reader.getConnection(username, password);
+        taken[0] = reader;
+        return connection;
+      }
+      catch (SQLException | RuntimeException e) {
+        reader.eject(mEjectionTime);
+        sLogger.warn("Reader '{}' failed to give a connection, ejecting it for {} ms", reader.getName(),
+            mEjectionTime.toMillis(), e);
+      }
+    }
+    return null;
+  }
+
+  /**
+   * A writer or reader pool with its routing state.
+   */
+  public static final class Endpoint {
+    private final String mName;
+    private final DataSource mDataSource;
+    private final AtomicInteger mOutstandingCount = new AtomicInteger();
+    private final AtomicInteger mEjectionCount = new AtomicInteger();
+    private volatile long mEjectedUntilNanos;
+    private volatile boolean mEjected;
+
+    Endpoint(String name, DataSource dataSource) {
+      mName = name;
+      mDataSource = dataSource;
+    }
+
+    /**
+     * @return name of the endpoint
+     */
+    public String getName() {
+      return mName;
+    }
+
+    /**
+     * @return the pool
+     */
+    public DataSource getDataSource() {
+      return mDataSource;
+    }
+
+    /**
+     * @return number of connections taken from the pool and not yet closed
+     */
+    public int getOutstandingCount() {
+      return mOutstandingCount.get();
+    }
+
+    /**
+     * @return number of times the endpoint has been ejected
+     */
+    public int getEjectionCount() {
+      return mEjectionCount.get();
+    }
+
+    /**
+     * @return true if the endpoint is ejected right now
+     */
+    public boolean isEjected() {
+      return isEjected(System.nanoTime());
+    }
+
+    boolean isEjected(long now) {
+      return mEjected && now - mEjectedUntilNanos < 0;
+    }
+
+    void eject(Duration ejectionTime) {
+      mEjectedUntilNanos = System.nanoTime() + ejectionTime.toNanos();
+      mEjected = true;
+      mEjectionCount.incrementAndGet();
+    }
+
+    Connection getConnection(String username, String password) throws SQLException {
+      Connection connection = username == null ? mDataSource.getConnection()
+          : mDataSource.getConnection(username, password);
+      mOutstandingCount.incrementAndGet();
+      if (mEjected) {
+        // admitted again
+        mEjected = false;
+      }
+      return connection;
+    }
+
+    void release() {
+      mOutstandingCount.decrementAndGet();
+    }
+
+    @Override
+    public String toString() {
+      return mName;
+    }
+  }
+
+  /**
+   * Read-only hint for the current thread, restores the previous hint when closed.
+   */
+  public static final class ReadOnlyHint implements AutoCloseable {
+    private final Boolean mPrevious;
+
+    ReadOnlyHint(Boolean readOnly) {
+      mPrevious = sReadOnlyHint.get();
+      sReadOnlyHint.set(readOnly);
+    }
+
+    @Override
+    public void close() {
+      if (mPrevious == null) {
+        sReadOnlyHint.remove();
+      }
+      else {
+        sReadOnlyHint.set(mPrevious);
+      }
+    }
+  }
+
+  /*
+   * Keeps the connection settings until the connection is used, then takes a physical connection from the writer or a
+   * reader and applies them.
+   */
+  private final class LazyConnectionHandler implements InvocationHandler {
+    private final String mUsername;
+    private final String mPassword;
+    private final Endpoint[] mEndpoint = new Endpoint[1];
+    private Connection mTarget;
+    private Boolean mReadOnly;
+    private Boolean mAutoCommit;
+    private Integer mTransactionIsolation;
+    private boolean mClosed;
+
+    LazyConnectionHandler(String username, String password) {
+      mUsername = username;
+      mPassword = password;
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+      switch (method.getName()) {
+        case "equals":
+          return proxy == args[0];
+        case "hashCode":
+          return System.identityHashCode(proxy);
+        case "toString":
+          return "RdsIamRoutingConnection[" + (mTarget != null ? mEndpoint[0] + ", " + mTarget : "not used") + "]";
+        case "unwrap":
+          if (((Class<?>) args[0]).isInstance(proxy)) {
+            return proxy;
+          }
+          break;
+        case "isWrapperFor":
+          if (((Class<?>) args[0]).isInstance(proxy)) {
+            return true;
+          }
+          break;
+        case "isClosed":
+          return mClosed || (mTarget != null && mTarget.isClosed());
+        case "close":
+          close();
+          return null;
+        default:
+          break;
+      }
+      if (mTarget == null) {
+        if (mClosed) {
+          throw new SQLException("Connection is closed");
+        }
+        switch (method.getName()) {
+          case "setReadOnly":
+            mReadOnly = (Boolean) args[0];
+            return null;
+          case "isReadOnly":
+            return isReadOnlyRequested();
+          case "setAutoCommit":
+            mAutoCommit = (Boolean) args[0];
+            return null;
+          case "getAutoCommit":
+            if (mAutoCommit != null) {
+              return mAutoCommit;
+            }
+            break;
+          case "setTransactionIsolation":
+            mTransactionIsolation = (Integer) args[0];
+            return null;
+          case "getTransactionIsolation":
+            if (mTransactionIsolation != null) {
+              return mTransactionIsolation;
+            }
+            break;
+          case "commit":
+          case "rollback":
+            if (args == null) {
+              // nothing to commit or roll back before the connection is used
+              return null;
+            }
+            break;
+          case "clearWarnings":
+          case "getWarnings":
+            return null;
+          default:
+            break;
+        }
+        mTarget = openTarget();
+      }
+      try {
+        return method.invoke(mTarget, args);
+      }
+      catch (InvocationTargetException e) {
+        throw e.getCause();
+      }
+    }
+
+    private boolean isReadOnlyRequested() {
+      return mReadOnly != null ? mReadOnly : isReadOnlyHint();
+    }
+
+    private Connection openTarget() throws SQLException {
+      boolean readOnly = isReadOnlyRequested();
+      Connection target = getPhysicalConnection(readOnly, mUsername, mPassword, mEndpoint);
+      try {
+        if (readOnly) {
+          target.setReadOnly(true);
+        }
+        if (mAutoCommit != null) {
+          target.setAutoCommit(mAutoCommit);
+        }
+        if (mTransactionIsolation != null) {
+          target.setTransactionIsolation(mTransactionIsolation);
+        }
+      }
+      catch (SQLException e) {
+        mEndpoint[0].release();
+        target.close();
+        throw e;
+      }
+      return target;
+    }
+
+    private void close() throws SQLException {
+      if (mClosed) {
+        return;
+      }
+      mClosed = true;
+      if (mTarget != null) {
+        try {
+          mTarget.close();
+        }
+        finally {
+          mEndpoint[0].release();
+        }
+      }
+    }
+  }
+
+}
@@ -0,0 +1,270 @@
+/*
+ * Copyright © 2022 Lucas Persson. All Rights Reserved.
+ */
+package se.solrike.aws.extras.datasourcefactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocketFactory;
+import javax.net.ssl.TrustManagerFactory;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * TLS context that trusts the RDS certificate authorities, created once and shared by all connections.
+ * <p>
+ * IAM authentication requires TLS so every physical connection makes a TLS handshake. The drivers normally load the
+ * CA bundle and create a new TLS context for each connection, which also means that no TLS session can be resumed.
+ * With a shared context the bundle is parsed once and the sessions are cached per host and port by the context, so a
+ * pool that refills after e.g. a failover can resume sessions instead of making full handshakes.
+ * <p>
+ * The shared instance trusts, in order:
+ * <ol>
+ * <li>the PEM bundle in the file given by the system property <code>se.solrike.aws.extras.rds.caBundle</code></li>
+ * <li>the PEM bundle <code>rds-global-bundle.pem</code> on the classpath, e.g. the <code>global-bundle.pem</code> from
+ * https://truststore.pki.rds.amazonaws.com renamed and added to the application's resources</li>
+ * </ol>
+ * The bundle isn't shipped with this library since it changes when AWS rotates its certificate authorities. Without a
+ * bundle the shared instance can't be created, since the driver properties make the drivers verify the server and the
+ * RDS certificate authorities aren't in the default trust store of the JVM. If they have been added to it, set the
+ * shared instance to <code>new RdsIamSslContext(null)</code>.
+ * <p>
+ * How the context reaches the driver is engine specific, see {@link #getDriverProperties(String)}. PostgreSQL takes a
+ * socket factory so it uses the shared context. MySQL Connector/J only takes a trust store file and creates its own
+ * context for each connection, it gets a PKCS12 copy of the trust store which at least saves it from parsing PEM, but
+ * it doesn't get session resumption.
+ */
+public class RdsIamSslContext {
+  private static final Logger sLogger = LoggerFactory.getLogger(RdsIamSslContext.class);
+
+  /**
+   * System property with the path to a PEM file with the RDS CA bundle.
+   */
+  public static final String CA_BUNDLE_PROPERTY = "se.solrike.aws.extras.rds.caBundle";
+
+  /**
+   * Classpath resource with the RDS CA bundle in PEM format.
+   */
+  public static final String CA_BUNDLE_RESOURCE = "rds-global-bundle.pem";
+
+  // the trust store file only holds public certificates, the password is only there because PKCS12 needs one
+  private static final String TRUST_STORE_PASSWORD = "changeit";
+
+  private static RdsIamSslContext sSharedInstance;
+
+  private final KeyStore mTrustStore;
+  private final SSLContext mSslContext;
+  // guarded by this
+  private Path mTrustStoreFile;
+
+  /**
+   * @param trustStore
+   *          - certificate authorities to trust, null for the default trust store of the JVM
+   * @throws GeneralSecurityException
+   *           if the TLS context can't be created
+   */
+  public RdsIamSslContext(KeyStore trustStore) throws GeneralSecurityException {
+    mTrustStore = trustStore;
+    TrustManagerFactory trustManagerFactory = TrustManagerFactory
+        .getInstance(TrustManagerFactory.getDefaultAlgorithm());
+    trustManagerFactory.init(trustStore);
+    mSslContext = SSLContext.getInstance("TLS");
+    mSslContext.init(null, trustManagerFactory.getTrustManagers(), null);
+  }
+
+  /**
+   * Get the instance shared by all connections, it is created on first use.
+   *
+   * @return the shared instance
+   * @throws IllegalStateException
+   *           if no CA bundle is configured or it can't be loaded
+   */
+  public static synchronized RdsIamSslContext getSharedInstance() {
+    if (sSharedInstance == null) {
+      sSharedInstance = createDefault();
+    }
+    return sSharedInstance;
+  }
+
+  /**
+   * Replace the shared instance, e.g. with one from a trust store in another format. Only the connections created
+   * after this use it.
+   *
+   * @param sslContext
+   *          - the new shared instance
+   */
+  public static synchronized void setSharedInstance(RdsIamSslContext sslContext) {
+    sSharedInstance = sslContext;
+  }
+
+  /*
+   * Without creating it, so tests can restore it.
+   */
+  static synchronized RdsIamSslContext getSharedInstanceIfCreated() {
+    return sSharedInstance;
+  }
+
+  /**
+   * @param pemBundle
+   *          - one or more certificates in PEM format, e.g. the RDS global-bundle.pem
+   * @return a context that trusts the certificates
+   * @throws IOException
+   *           if the bundle can't be read
+   * @throws GeneralSecurityException
+   *           if the bundle has no or invalid certificates
+   */
+  public static RdsIamSslContext fromCaBundle(InputStream pemBundle) throws IOException, GeneralSecurityException {
+    Collection<? extends Certificate> certificates = CertificateFactory.getInstance("X.509")
+        .generateCertificates(pemBundle);
+    if (certificates.isEmpty()) {
+      throw new GeneralSecurityException("No certificates in CA bundle");
+    }
+    KeyStore trustStore = KeyStore.getInstance("PKCS12");
+    trustStore.load(null, null);
+    int i = 0;
+    for (Certificate certificate : certificates) {
+      String alias = certificate instanceof X509Certificate
+          ? ((X509Certificate) certificate).getSubjectX500Principal().getName()
+          : "ca";
+      trustStore.setCertificateEntry(alias + " " + i++, certificate);
+    }
+    return new RdsIamSslContext(trustStore);
+  }
+
+  /**
+   * @param pemBundle
+   *          - file with one or more certificates in PEM format, e.g. the RDS global-bundle.pem
+   * @return a context that trusts the certificates
+   * @throws IOException
+   *           if the bundle can't be read
+   * @throws GeneralSecurityException
+   *           if the bundle has no or invalid certificates
+   */
+  public static RdsIamSslContext fromCaBundle(Path pemBundle) throws IOException, GeneralSecurityException {
+    try (InputStream inputStream = Files.newInputStream(pemBundle)) {
+      return fromCaBundle(inputStream);
+    }
+  }
+
+  /**
+   * @return the TLS context
+   */
+  public SSLContext getSslContext() {
+    return mSslContext;
+  }
+
+  /**
+   * @return socket factory of the TLS context
+   */
+  public SSLSocketFactory getSocketFactory() {
+    return mSslContext.getSocketFactory();
+  }
+
+  /**
+   * @return the trusted certificate authorities, null for the default trust store of the JVM
+   */
+  public KeyStore getTrustStore() {
+    return mTrustStore;
+  }
+
+  /**
+   * Get the driver properties that make the driver trust the certificate authorities and verify the server's hostname.
+   * Only the MySQL and PostgreSQL drivers are supported, also through the AWS JDBC wrapper which passes the properties
+   * on to the driver.
+   *
+   * @param jdbcUrl
+   *          - JDBC URL of the database
+   * @return the properties, empty if the driver isn't supported
+   */
+  public Map<String, String> getDriverProperties(String jdbcUrl) {
+    Map<String, String> properties = new LinkedHashMap<>();
+    String engine = getEngine(jdbcUrl);
+    if ("postgresql".equals(engine)) {
+      properties.put("sslmode", "verify-full");
+      properties.put("sslfactory", RdsIamSslSocketFactory.class.getName());
+    }
+    else if ("mysql".equals(engine)) {
+      properties.put("sslMode", "VERIFY_IDENTITY");
+      if (mTrustStore != null) {
+        properties.put("trustCertificateKeyStoreUrl", getTrustStoreFile().toUri().toString());
+        properties.put("trustCertificateKeyStoreType", "PKCS12");
+        properties.put("trustCertificateKeyStorePassword", TRUST_STORE_PASSWORD);
+      }
+    }
+    return properties;
+  }
+
+  /*
+   * URLs that can't be parsed are of drivers that aren't supported anyway, e.g. jdbc:h2:mem:test.
+   */
+  private static String getEngine(String jdbcUrl) {
+    try {
+      return RdsIamJdbcUrl.parse(jdbcUrl).getEngine();
+    }
+    catch (IllegalArgumentException e) {
+      return null;
+    }
+  }
+
+  /*
+   * For the drivers that only take a file. It is deleted when the JVM exits.
+   */
+  synchronized Path getTrustStoreFile() {
+    if (mTrustStoreFile == null) {
+      try {
+        Path file = Files.createTempFile("rds-ca-", ".p12");
+        file.toFile().deleteOnExit();
+        try (OutputStream outputStream = Files.newOutputStream(file)) {
+          mTrustStore.store(outputStream, TRUST_STORE_PASSWORD.toCharArray());
+        }
+        mTrustStoreFile = file;
+      }
+      catch (IOException e) {
+        throw new UncheckedIOException("Failed to write the RDS CA trust store", e);
+      }
+      catch (GeneralSecurityException e) {
+        throw new IllegalStateException("Failed to write the RDS CA trust store", e);
+      }
+    }
+    return mTrustStoreFile;
+  }
+
+  private static RdsIamSslContext createDefault() {
+    String caBundle = System.getProperty(CA_BUNDLE_PROPERTY);
+    try {
+      if (caBundle != null) {
+        sLogger.info("Trusting the RDS CA bundle {}", caBundle);
+        return fromCaBundle(Paths.get(caBundle));
+      }
+      try (InputStream inputStream = RdsIamSslContext.class.getClassLoader().getResourceAsStream(CA_BUNDLE_RESOURCE)) {
+        if (inputStream != null) {
+          sLogger.info("Trusting the RDS CA bundle {} from the classpath", CA_BUNDLE_RESOURCE);
+          return fromCaBundle(inputStream);
+        }
+      }
+    }
+    catch (IOException | GeneralSecurityException e) {
+      throw new IllegalStateException("Failed to load the RDS CA bundle", e);
+    }
+    // the drivers would verify the server against the default trust store of the JVM, which fails every handshake
+    throw new IllegalStateException("No RDS CA bundle, set the system property " + CA_BUNDLE_PROPERTY
+        + " or add the resource " + CA_BUNDLE_RESOURCE + " to the classpath");
+  }
+
+}
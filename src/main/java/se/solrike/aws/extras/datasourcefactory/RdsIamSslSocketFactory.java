@@ -0,0 +1,77 @@
+/*
+ * Copyright © 2022 Lucas Persson. All Rights Reserved.
+ */
+package se.solrike.aws.extras.datasourcefactory;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ * Socket factory of the shared {@link RdsIamSslContext} for drivers that take the class name of a socket factory, e.g.
+ * the PostgreSQL driver's <code>sslfactory</code> property. The driver creates a new instance for each connection,
+ * all of them use the same TLS context so the TLS sessions can be resumed.
+ */
+public class RdsIamSslSocketFactory extends SSLSocketFactory {
+
+  private final SSLSocketFactory mDelegate;
+
+  /**
+   * Use the shared {@link RdsIamSslContext}.
+   */
+  public RdsIamSslSocketFactory() {
+    this(RdsIamSslContext.getSharedInstance().getSocketFactory());
+  }
+
+  /**
+   * @param delegate
+   *          - socket factory that creates the sockets
+   */
+  public RdsIamSslSocketFactory(SSLSocketFactory delegate) {
+    mDelegate = delegate;
+  }
+
+  @Override
+  public String[] getDefaultCipherSuites() {
+    return mDelegate.getDefaultCipherSuites();
+  }
+
+  @Override
+  public String[] getSupportedCipherSuites() {
+    return mDelegate.getSupportedCipherSuites();
+  }
+
+  @Override
+  public Socket createSocket(Socket socket, String host, int port, boolean autoClose) throws IOException {
+    return mDelegate.createSocket(socket, host, port, autoClose);
+  }
+
+  @Override
+  public Socket createSocket() throws IOException {
+    return mDelegate.createSocket();
+  }
+
+  @Override
+  public Socket createSocket(String host, int port) throws IOException {
+    return mDelegate.createSocket(host, port);
+  }
+
+  @Override
+  public Socket createSocket(String host, int port, InetAddress localHost, int localPort) throws IOException {
+    return mDelegate.createSocket(host, port, localHost, localPort);
+  }
+
+  @Override
+  public Socket createSocket(InetAddress host, int port) throws IOException {
+    return mDelegate.createSocket(host, port);
+  }
+
+  @Override
+  public Socket createSocket(InetAddress address, int port, InetAddress localAddress, int localPort)
+      throws IOException {
+    return mDelegate.createSocket(address, port, localAddress, localPort);
+  }
+
+}
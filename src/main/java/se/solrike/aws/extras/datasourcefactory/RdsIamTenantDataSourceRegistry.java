@@ -0,0 +1,445 @@
+/*
+ * Copyright © 2022 Lucas Persson. All Rights Reserved.
+ */
+package se.solrike.aws.extras.datasourcefactory;
+
+import java.io.Closeable;
+import java.lang.management.ManagementFactory;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.time.Duration;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.zaxxer.hikari.HikariDataSource;
+import com.zaxxer.hikari.HikariPoolMXBean;
+
+/**
+ * Registry of one pool per tenant, e.g. per database user, that creates the pools on first use and closes the ones
+ * that aren't used any more.
+ * <p>
+ * A pool is created by the pool creator the first time a tenant asks for a connection, typically through
+ * createOnDemandTokenDatasource of {@link AbstractRdsIamDatasourceFactory} so no refresh task is scheduled per tenant
+ * and tenants that share the database user and endpoint share the token. A pool that has had no active connections and
+ * hasn't been asked for during the idle timeout is evicted, i.e. removed and closed. The factory then releases its
+ * token refresher, which is removed when no other tenant uses it. If there are more pools than the max pool count the
+ * least recently used pools without active connections are evicted as well. The evicted tenants get a new pool the next
+ * time they ask for a connection.
+ * <p>
+ * Hikari starts a housekeeping thread per pool. Give the pools a shared scheduled executor with
+ * <code>HikariConfig.setScheduledExecutor</code> and <code>minimumIdle</code> 0 to keep the thread and connection count
+ * down with many tenants, and shut the executor down with {@link #addCloseAction(AutoCloseable)} since Hikari doesn't
+ * shut down an executor it has been given.
+ *
+ * @param <K>
+ *          tenant key
+ */
+public class RdsIamTenantDataSourceRegistry<K> implements RdsIamTenantDataSourceRegistryMXBean, Closeable {
+  private static final Logger sLogger = LoggerFactory.getLogger(RdsIamTenantDataSourceRegistry.class);
+
+  /**
+   * Time a pool can be idle before it is evicted when nothing else is specified.
+   */
+  public static final Duration DEFAULT_IDLE_TIMEOUT = Duration.ofMinutes(10);
+
+  /**
+   * Max number of pools when nothing else is specified.
+   */
+  public static final int DEFAULT_MAX_POOL_COUNT = 500;
+
+  /**
+   * Interval between the evictions.
+   */
+  public static final Duration EVICTION_INTERVAL = Duration.ofSeconds(30);
+
+  private final Function<K, HikariDataSource> mPoolCreator;
+  private final RdsIamTokenRefreshScheduler mScheduler;
+  private final Map<K, Entry> mEntries = new ConcurrentHashMap<>();
+  private final AtomicLong mHitCount = new AtomicLong();
+  private final AtomicLong mMissCount = new AtomicLong();
+  private final AtomicLong mCreationCount = new AtomicLong();
+  private final AtomicLong mCreationFailureCount = new AtomicLong();
+  private final AtomicLong mIdleEvictionCount = new AtomicLong();
+  private final AtomicLong mSizeEvictionCount = new AtomicLong();
+  private volatile Duration mIdleTimeout = DEFAULT_IDLE_TIMEOUT;
+  private volatile int mMaxPoolCount = DEFAULT_MAX_POOL_COUNT;
+  private RdsIamTokenRefreshScheduler.Registration mRegistration;
+  private ObjectName mMBeanName;
+  // guarded by this
+  private final List<AutoCloseable> mCloseActions = new ArrayList<>();
+  private volatile boolean mClosed;
+
+  /**
+   * Run the eviction on the shared {@link RdsIamTokenRefreshScheduler}.
+   *
+   * @param poolCreator
+   *          - creates the pool for a tenant
+   */
+  public RdsIamTenantDataSourceRegistry(Function<K, HikariDataSource> poolCreator) {
+    this(poolCreator, RdsIamTokenRefreshScheduler.getSharedInstance());
+  }
+
+  /**
+   * @param poolCreator
+   *          - creates the pool for a tenant
+   * @param scheduler
+   *          - scheduler that runs the eviction
+   */
+  public RdsIamTenantDataSourceRegistry(Function<K, HikariDataSource> poolCreator,
+      RdsIamTokenRefreshScheduler scheduler) {
+    mPoolCreator = poolCreator;
+    mScheduler = scheduler;
+  }
+
+  /**
+   * Get a connection from the pool of a tenant, creating the pool if needed.
+   *
+   * @param tenant
+   *          - the tenant
+   * @return a connection
+   * @throws SQLException
+   *           if the pool can't give a connection
+   */
+  public Connection getConnection(K tenant) throws SQLException {
+    HikariDataSource pool = getDataSource(tenant);
+    try {
+      return pool.getConnection();
+    }
+    catch (SQLException e) {
+      if (!pool.isClosed() || mClosed) {
+        throw e;
+      }
+      // the pool was evicted between the lookup and the connect
+      return getDataSource(tenant).getConnection();
+    }
+  }
+
+  /**
+   * Get the pool of a tenant, creating it if needed. A pool that is kept by the caller can be evicted and closed when
+   * it has been idle for the idle timeout, so prefer {@link #getConnection(Object)} or look up the pool each time.
+   *
+   * @param tenant
+   *          - the tenant
+   * @return the pool
+   * @throws IllegalStateException
+   *           if the registry is closed
+   */
+  public HikariDataSource getDataSource(K tenant) {
+    while (true) {
+      Entry entry = mEntries.computeIfAbsent(tenant, Entry::new);
+      HikariDataSource pool = entry.acquire();
+      if (pool != null) {
+        return pool;
+      }
+      // evicted after the lookup, it has been removed from the map so the next lookup creates a new entry
+    }
+  }
+
+  /**
+   * Evict the pool of a tenant right away, even if it has active connections.
+   *
+   * @param tenant
+   *          - the tenant
+   * @return true if the tenant had a pool
+   */
+  public boolean evict(K tenant) {
+    Entry entry = mEntries.get(tenant);
+    return entry != null && evict(entry, e -> true);
+  }
+
+  @Override
+  public void evictIdle() {
+    long now = System.nanoTime();
+    long idleTimeoutNanos = mIdleTimeout.toNanos();
+    for (Entry entry : mEntries.values()) {
+      if (evict(entry, e -> e.isIdle(now, idleTimeoutNanos))) {
+        mIdleEvictionCount.incrementAndGet();
+      }
+    }
+    evictExcess(null);
+  }
+
+  /**
+   * @return the tenants that have a pool
+   */
+  public Set<K> getTenants() {
+    return Collections.unmodifiableSet(mEntries.keySet());
+  }
+
+  @Override
+  public int getPoolCount() {
+    return mEntries.size();
+  }
+
+  @Override
+  public int getMaxPoolCount() {
+    return mMaxPoolCount;
+  }
+
+  /**
+   * @param maxPoolCount
+   *          - max number of pools before the least recently used idle pools are evicted. Default 500.
+   */
+  public void setMaxPoolCount(int maxPoolCount) {
+    mMaxPoolCount = maxPoolCount;
+  }
+
+  /**
+   * @return time a pool can be idle before it is evicted
+   */
+  public Duration getIdleTimeout() {
+    return mIdleTimeout;
+  }
+
+  /**
+   * @param idleTimeout
+   *          - time a pool can be idle before it is evicted. Default 10 minutes.
+   */
+  public void setIdleTimeout(Duration idleTimeout) {
+    mIdleTimeout = idleTimeout;
+  }
+
+  @Override
+  public long getHitCount() {
+    return mHitCount.get();
+  }
+
+  @Override
+  public long getMissCount() {
+    return mMissCount.get();
+  }
+
+  @Override
+  public double getHitRate() {
+    long hits = mHitCount.get();
+    long lookups = hits + mMissCount.get();
+    return lookups == 0 ? 1 : (double) hits / lookups;
+  }
+
+  @Override
+  public long getCreationCount() {
+    return mCreationCount.get();
+  }
+
+  @Override
+  public long getCreationFailureCount() {
+    return mCreationFailureCount.get();
+  }
+
+  @Override
+  public long getIdleEvictionCount() {
+    return mIdleEvictionCount.get();
+  }
+
+  @Override
+  public long getSizeEvictionCount() {
+    return mSizeEvictionCount.get();
+  }
+
+  /**
+   * Register the metrics as an MBean named <code>se.solrike.aws.extras:type=RdsIamTenantDataSourceRegistry,
+   * name=name</code>. It is unregistered when the registry is closed. Failures are only logged.
+   *
+   * @param name
+   *          - name of the registry
+   */
+  public synchronized void registerMBean(String name) {
+    try {
+      ObjectName objectName = new ObjectName(
+          "se.solrike.aws.extras:type=RdsIamTenantDataSourceRegistry,name=" + ObjectName.quote(name));
+      MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+      mBeanServer.registerMBean(this, objectName);
+      mMBeanName = objectName;
+    }
+    catch (JMException e) {
+      sLogger.warn("Failed to register tenant datasource registry MBean '{}'", name, e);
+    }
+  }
+
+  /**
+   * Run an action when the registry is closed, after all pools have been closed, e.g. shut down the executor the pools
+   * share.
+   *
+   * @param closeAction
+   *          - action that is run when the registry is closed, right away if it already is closed
+   */
+  public void addCloseAction(AutoCloseable closeAction) {
+    synchronized (this) {
+      if (!mClosed) {
+        mCloseActions.add(closeAction);
+        return;
+      }
+    }
+    runCloseAction(closeAction);
+  }
+
+  /**
+   * Stop the eviction and close all pools, then run the close actions.
+   */
+  @Override
+  public void close() {
+    List<AutoCloseable> closeActions;
+    synchronized (this) {
+      if (mClosed) {
+        return;
+      }
+      mClosed = true;
+      if (mRegistration != null) {
+        mRegistration.close();
+      }
+      RdsIamAuthenticationTokenMetrics.unregisterMBean(mMBeanName);
+      closeActions = new ArrayList<>(mCloseActions);
+      mCloseActions.clear();
+    }
+    for (Entry entry : mEntries.values()) {
+      evict(entry, e -> true);
+    }
+    closeActions.forEach(RdsIamTenantDataSourceRegistry::runCloseAction);
+  }
+
+  private static void runCloseAction(AutoCloseable closeAction) {
+    try {
+      closeAction.close();
+    }
+    catch (Exception e) {
+      sLogger.warn("Failed to clean up after tenant datasource registry", e);
+    }
+  }
+
+  private synchronized void startEviction() {
+    if (mRegistration == null && !mClosed) {
+      mRegistration = mScheduler.schedule(this::scheduledEviction, EVICTION_INTERVAL.toNanos(),
+          EVICTION_INTERVAL.toNanos(), TimeUnit.NANOSECONDS);
+    }
+  }
+
+  private void scheduledEviction() {
+    try {
+      evictIdle();
+    }
+    catch (RuntimeException e) {
+      sLogger.warn("Failed to evict idle tenant pools", e);
+    }
+  }
+
+  /*
+   * Evict the least recently used pools without active connections until there are no more than the max pool count.
+   * The kept entry, if any, is the one whose pool was just created and is never evicted.
+   */
+  private void evictExcess(Entry kept) {
+    int excess = mEntries.size() - mMaxPoolCount;
+    if (excess <= 0) {
+      return;
+    }
+    // sort on a snapshot of the access times since they change while sorting
+    long now = System.nanoTime();
+    List<Map.Entry<Entry, Long>> entries = new ArrayList<>();
+    for (Entry entry : mEntries.values()) {
+      entries.add(new AbstractMap.SimpleImmutableEntry<>(entry, now - entry.mLastAccessNanos));
+    }
+    entries.sort(Map.Entry.<Entry, Long> comparingByValue().reversed());
+    for (Map.Entry<Entry, Long> entry : entries) {
+      if (excess <= 0) {
+        break;
+      }
+      if (entry.getKey() != kept && evict(entry.getKey(), e -> !e.isInUse())) {
+        mSizeEvictionCount.incrementAndGet();
+        excess--;
+      }
+    }
+  }
+
+  private boolean evict(Entry entry, Predicate<Entry> condition) {
+    HikariDataSource pool;
+    synchronized (entry) {
+      if (entry.mEvicted || entry.mPool == null || !condition.test(entry)) {
+        return false;
+      }
+      entry.mEvicted = true;
+      pool = entry.mPool;
+    }
+    mEntries.remove(entry.mTenant, entry);
+    sLogger.debug("Evicting database pool of tenant '{}'", entry.mTenant);
+    pool.close();
+    return true;
+  }
+
+  private final class Entry {
+    private final K mTenant;
+    private volatile HikariDataSource mPool;
+    private volatile long mLastAccessNanos = System.nanoTime();
+    // guarded by this
+    private boolean mEvicted;
+
+    Entry(K tenant) {
+      mTenant = tenant;
+    }
+
+    /*
+     * The pool is created while holding the lock of the entry so only the callers for the same tenant wait. Only a
+     * created pool can take the registry above the max pool count, so the excess is only evicted then and not on every
+     * lookup. The closed flag is checked under the lock too: an entry that is added after close() has evicted the
+     * entries must not get a pool, and a pool that is being created when close() evicts the entry is closed once it is
+     * created.
+     */
+    HikariDataSource acquire() {
+      synchronized (this) {
+        if (mEvicted) {
+          return null;
+        }
+        if (mClosed) {
+          mEvicted = true;
+          mEntries.remove(mTenant, this);
+          throw new IllegalStateException("Tenant datasource registry is closed");
+        }
+        mLastAccessNanos = System.nanoTime();
+        if (mPool != null) {
+          mHitCount.incrementAndGet();
+          return mPool;
+        }
+        mMissCount.incrementAndGet();
+        try {
+          mPool = mPoolCreator.apply(mTenant);
+        }
+        catch (RuntimeException e) {
+          mCreationFailureCount.incrementAndGet();
+          mEvicted = true;
+          mEntries.remove(mTenant, this);
+          throw e;
+        }
+        mCreationCount.incrementAndGet();
+        startEviction();
+      }
+      if (mEntries.size() > mMaxPoolCount) {
+        evictExcess(this);
+      }
+      return mPool;
+    }
+
+    boolean isIdle(long now, long idleTimeoutNanos) {
+      return now - mLastAccessNanos > idleTimeoutNanos && !isInUse();
+    }
+
+    boolean isInUse() {
+      HikariPoolMXBean poolMxBean = mPool.getHikariPoolMXBean();
+      return poolMxBean != null && poolMxBean.getActiveConnections() > 0;
+    }
+  }
+
+}
@@ -0,0 +1,62 @@
+/*
+ * Copyright © 2022 Lucas Persson. All Rights Reserved.
+ */
+package se.solrike.aws.extras.datasourcefactory;
+
+/**
+ * JMX view of the pool cache of a {@link RdsIamTenantDataSourceRegistry}.
+ */
+public interface RdsIamTenantDataSourceRegistryMXBean {
+
+  /**
+   * @return number of tenants that have a pool
+   */
+  int getPoolCount();
+
+  /**
+   * @return max number of pools before the least recently used idle pools are evicted
+   */
+  int getMaxPoolCount();
+
+  /**
+   * @return number of lookups that found a pool
+   */
+  long getHitCount();
+
+  /**
+   * @return number of lookups that had to create a pool
+   */
+  long getMissCount();
+
+  /**
+   * @return hits divided by lookups, 1 if there have been no lookups
+   */
+  double getHitRate();
+
+  /**
+   * @return number of created pools
+   */
+  long getCreationCount();
+
+  /**
+   * @return number of pools that failed to be created
+   */
+  long getCreationFailureCount();
+
+  /**
+   * @return number of pools evicted because they had been idle longer than the idle timeout
+   */
+  long getIdleEvictionCount();
+
+  /**
+   * @return number of pools evicted because there were more pools than the max pool count
+   */
+  long getSizeEvictionCount();
+
+  /**
+   * Evict the pools that have been idle longer than the idle timeout and the least recently used pools above the max
+   * pool count right away.
+   */
+  void evictIdle();
+
+}
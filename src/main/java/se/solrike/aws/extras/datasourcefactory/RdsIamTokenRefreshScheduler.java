@@ -0,0 +1,235 @@
+/*
+ * Copyright © 2022 Lucas Persson. All Rights Reserved.
+ */
+package se.solrike.aws.extras.datasourcefactory;
+
+import java.lang.reflect.Method;
+import java.time.Duration;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Scheduler that runs the token refresh tasks for all the token refreshers in the JVM.
+ * <p>
+ * Instead of one thread per datasource all refreshers share one small pool of daemon threads (or virtual threads when
+ * the JDK supports it) so idle pools doesn't cost a thread each and the scheduler never blocks JVM shutdown.
+ * <p>
+ * Each scheduled task is represented by a {@link Registration} that must be closed when the task is no longer needed,
+ * e.g. when the datasource is closed.
+ */
+public class RdsIamTokenRefreshScheduler implements AutoCloseable {
+  private static final Logger sLogger = LoggerFactory.getLogger(RdsIamTokenRefreshScheduler.class);
+
+  private static final String THREAD_NAME_PREFIX = "rds-iam-token-refresher-";
+
+  private final ScheduledThreadPoolExecutor mExecutor;
+  private final AtomicInteger mRegistrationCount = new AtomicInteger();
+
+  /**
+   * Create a scheduler with one thread.
+   */
+  public RdsIamTokenRefreshScheduler() {
+    this(1);
+  }
+
+  /**
+   * Create a scheduler.
+   *
+   * @param threadCount
+   *          - number of threads. Generating a token is a local operation so one thread is normally enough even for
+   *          many datasources.
+   */
+  public RdsIamTokenRefreshScheduler(int threadCount) {
+    this(threadCount, THREAD_NAME_PREFIX);
+  }
+
+  /*
+   * For the schedulers of other background work, so their threads can be told apart from the token refresh threads.
+   */
+  RdsIamTokenRefreshScheduler(int threadCount, String threadNamePrefix) {
+    mExecutor = new ScheduledThreadPoolExecutor(threadCount, createThreadFactory(threadNamePrefix));
+    mExecutor.setRemoveOnCancelPolicy(true);
+    mExecutor.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+  }
+
+  /**
+   * Get the scheduler that is shared by all the token refreshers in the JVM unless they are given a scheduler of their
+   * own. The shared scheduler can't be closed, {@link #close()} does nothing on it.
+   *
+   * @return the shared scheduler
+   */
+  public static RdsIamTokenRefreshScheduler getSharedInstance() {
+    return SharedInstanceHolder.INSTANCE;
+  }
+
+  /**
+   * Schedule a task that runs with a fixed delay between the executions.
+   *
+   * @param task
+   *          - the task to run. Shall not throw exceptions since that will stop any further executions.
+   * @param initialDelay
+   *          - delay before first execution
+   * @param delay
+   *          - delay between the end of one execution and the start of the next
+   * @param timeUnit
+   *          - time unit for the delays
+   * @return registration that cancels the task when it is closed
+   */
+  public Registration schedule(Runnable task, long initialDelay, long delay, TimeUnit timeUnit) {
+    Duration fixedDelay = Duration.ofNanos(timeUnit.toNanos(delay));
+    return schedule(() -> {
+      task.run();
+      return fixedDelay;
+    }, Duration.ofNanos(timeUnit.toNanos(initialDelay)));
+  }
+
+  /**
+   * Schedule a task that decides by itself when it shall run the next time.
+   *
+   * @param task
+   *          - the task to run. Returns the delay until the next execution. Shall not throw exceptions since that
+   *          will stop any further executions.
+   * @param initialDelay
+   *          - delay before first execution
+   * @return registration that cancels the task when it is closed
+   */
+  public Registration schedule(Supplier<Duration> task, Duration initialDelay) {
+    Registration registration = new Registration(task);
+    mRegistrationCount.incrementAndGet();
+    registration.scheduleNext(initialDelay);
+    return registration;
+  }
+
+  /**
+   * Number of tasks that are registered and not yet closed.
+   *
+   * @return number of active registrations
+   */
+  public int getRegistrationCount() {
+    return mRegistrationCount.get();
+  }
+
+  /**
+   * Stop the scheduler and cancel all the registered tasks. Does nothing on the shared scheduler since the refreshers
+   * of all datasources in the JVM depend on it.
+   */
+  @Override
+  public void close() {
+    if (this == SharedInstanceHolder.INSTANCE) {
+      sLogger.warn("The shared token refresh scheduler can't be closed");
+      return;
+    }
+    mExecutor.shutdownNow();
+  }
+
+  /**
+   * @return true if the scheduler is stopped
+   */
+  public boolean isClosed() {
+    return mExecutor.isShutdown();
+  }
+
+  /*
+   * Daemon threads, or virtual threads when the JDK supports it, so the threads never block JVM shutdown.
+   */
+  static ThreadFactory createThreadFactory(String namePrefix) {
+    ThreadFactory virtualThreadFactory = createVirtualThreadFactory(namePrefix);
+    if (virtualThreadFactory != null) {
+      return virtualThreadFactory;
+    }
+    AtomicInteger threadNumber = new AtomicInteger();
+    return runnable -> {
+      Thread thread = new Thread(runnable, namePrefix + threadNumber.getAndIncrement());
+      thread.setDaemon(true);
+      return thread;
+    };
+  }
+
+  /*
+   * The library is compiled for Java 11 so virtual threads (Java 21) must be looked up reflectively.
+   */
+  private static ThreadFactory createVirtualThreadFactory(String namePrefix) {
+    try {
+      Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+      Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+      Method name = builderClass.getMethod("name", String.class, long.class);
+      builder = name.invoke(builder, namePrefix, 0L);
+      return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+    }
+    catch (ReflectiveOperationException | RuntimeException e) {
+      sLogger.trace("Virtual threads not supported, fall back to daemon platform threads", e);
+      return null;
+    }
+  }
+
+  /**
+   * Handle for a scheduled task. Closing it cancels any further executions of the task.
+   */
+  public final class Registration implements AutoCloseable {
+    private final Supplier<Duration> mTask;
+    private final AtomicBoolean mClosed = new AtomicBoolean();
+    private volatile ScheduledFuture<?> mFuture;
+
+    private Registration(Supplier<Duration> task) {
+      mTask = task;
+    }
+
+    /**
+     * @return true if the registration is closed
+     */
+    public boolean isClosed() {
+      return mClosed.get();
+    }
+
+    /**
+     * Cancel the task. A currently running execution will be allowed to complete.
+     */
+    @Override
+    public void close() {
+      if (mClosed.compareAndSet(false, true)) {
+        ScheduledFuture<?> future = mFuture;
+        if (future != null) {
+          future.cancel(false);
+        }
+        mRegistrationCount.decrementAndGet();
+      }
+    }
+
+    private void run() {
+      Duration nextDelay;
+      try {
+        nextDelay = mTask.get();
+      }
+      catch (RuntimeException e) {
+        sLogger.error("Scheduled task failed and will not run again", e);
+        close();
+        return;
+      }
+      scheduleNext(nextDelay);
+    }
+
+    private void scheduleNext(Duration delay) {
+      if (mClosed.get() || mExecutor.isShutdown()) {
+        return;
+      }
+      mFuture = mExecutor.schedule(this::run, delay.toNanos(), TimeUnit.NANOSECONDS);
+      // closed while scheduling, make sure the new execution doesn't survive
+      if (mClosed.get()) {
+        mFuture.cancel(false);
+      }
+    }
+  }
+
+  private static final class SharedInstanceHolder {
+    private static final RdsIamTokenRefreshScheduler INSTANCE = new RdsIamTokenRefreshScheduler();
+  }
+
+}
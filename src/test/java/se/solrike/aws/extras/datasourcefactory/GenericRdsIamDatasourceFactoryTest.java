@@ -4,14 +4,19 @@
 package se.solrike.aws.extras.datasourcefactory;
 
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.argThat;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
+import java.security.GeneralSecurityException;
 import java.sql.SQLException;
+import java.time.Duration;
 
+import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.Test;
 import org.mockito.ArgumentMatcher;
 
@@ -19,6 +24,9 @@ import com.zaxxer.hikari.HikariConfig;
 import com.zaxxer.hikari.HikariDataSource;
 
 import se.solrike.aws.extras.datasourcefactory.sample.GenericRdsIamDatasourceFactory;
+import software.amazon.awssdk.auth.credentials.AwsBasicCredentials;
+import software.amazon.awssdk.auth.credentials.StaticCredentialsProvider;
+import software.amazon.awssdk.regions.Region;
 import software.amazon.awssdk.services.rds.RdsUtilities;
 import software.amazon.awssdk.services.rds.model.GenerateAuthenticationTokenRequest;
 
@@ -27,6 +35,13 @@ import software.amazon.awssdk.services.rds.model.GenerateAuthenticationTokenRequ
  */
 class GenericRdsIamDatasourceFactoryTest {
 
+  private final RdsIamSslContext mSharedSslContext = RdsIamSslContext.getSharedInstanceIfCreated();
+
+  @AfterEach
+  void tearDown() {
+    RdsIamSslContext.setSharedInstance(mSharedSslContext);
+  }
+
   /*
    * This test will not try to connect to a real DB nor connect to the AWS RDS service so
    * it will be kind of limited.
@@ -52,6 +67,8 @@ class GenericRdsIamDatasourceFactoryTest {
 
     // then the password shall be the token
     assertThat(dataSource.getPassword()).isEqualTo(token);
+    // and the connections shall be created by a datasource that handles rejected tokens
+    assertThat(dataSource.getDataSource()).isInstanceOf(RdsIamAuthenticatingDataSource.class);
     // and then the call to RDS shall contain username, host and port from the config
     GenerateAuthenticationTokenRequest expectedRequest = GenerateAuthenticationTokenRequest.builder()
         .hostname("localhost")
@@ -64,6 +81,253 @@ class GenericRdsIamDatasourceFactoryTest {
 
   }
 
+  @Test
+  void testCloseDatasourceStopsRefresh() {
+    // given a datasource with scheduled token refresh
+    RdsUtilities rdsUtilities = mock(RdsUtilities.class);
+    when(rdsUtilities.generateAuthenticationToken(any(GenerateAuthenticationTokenRequest.class)))
+        .thenReturn("randomToken");
+    GenericRdsIamDatasourceFactory factory = new GenericRdsIamDatasourceFactory(rdsUtilities);
+    HikariConfig config = new HikariConfig();
+    config.setJdbcUrl("jdbc:mysql://localhost:3306/simpsons");
+    config.setUsername("ned");
+    HikariDataSource dataSource = factory.dataSource(config);
+    RdsIamAuthenticationTokenRefresher refresher = ((RdsIamAuthenticatingDataSource) dataSource.getDataSource())
+        .getRefresher();
+    assertThat(refresher.getPoolCount()).isEqualTo(1);
+    assertThat(factory.getCloseWatcher().getWatchedCount()).isEqualTo(1);
+
+    // when the datasource is closed and the watcher checks it
+    dataSource.close();
+    factory.getCloseWatcher().check();
+
+    // then the refresh shall be stopped for it
+    assertThat(refresher.getPoolCount()).isZero();
+    assertThat(factory.getCloseWatcher().getWatchedCount()).isZero();
+  }
+
+  @Test
+  void testCreateDatasourceWithCredentialsProvider() {
+    // given datasource factory that signs with static credentials and no RdsClient
+    GenericRdsIamDatasourceFactory factory = new GenericRdsIamDatasourceFactory(
+        StaticCredentialsProvider.create(AwsBasicCredentials.create("AKIAEXAMPLE", "secret")), Region.EU_NORTH_1);
+    HikariConfig config = new HikariConfig();
+    config.setJdbcUrl("jdbc:mysql://localhost:3306/simpsons");
+    config.setUsername("homer");
+
+    // when datasource is created
+    HikariDataSource dataSource = factory.dataSource(config);
+
+    // then the password shall be a token signed locally
+    assertThat(dataSource.getPassword()).startsWith("localhost:3306/?")
+        .contains("DBUser=homer")
+        .contains("X-Amz-Expires=900");
+  }
+
+  @Test
+  void testCreateOnDemandTokenDatasource() {
+    // given datasource factory and datasource properties for token on demand
+    RdsUtilities rdsUtilities = mock(RdsUtilities.class);
+    GenericRdsIamDatasourceFactory factory = new GenericRdsIamDatasourceFactory(rdsUtilities);
+    HikariConfig config = new HikariConfig();
+    config.setJdbcUrl("jdbc:mysql://localhost:3306/simpsons");
+    config.setUsername("lisa");
+    config.addDataSourceProperty("iam-authentication-token-on-demand", true);
+
+    // when datasource is created
+    HikariDataSource dataSource = factory.dataSource(config);
+
+    // then no token shall be generated until a connection is created
+    verify(rdsUtilities, never()).generateAuthenticationToken(any(GenerateAuthenticationTokenRequest.class));
+    assertThat(dataSource.getDataSource()).isInstanceOfSatisfying(RdsIamAuthenticatingDataSource.class,
+        authenticatingDataSource -> assertThat(authenticatingDataSource.isTokenOnDemand()).isTrue());
+  }
+
+  @Test
+  void testCloseOnDemandTokenDatasourceReleasesRefresher() {
+    // given an on demand datasource whose refresher is taken from the factory's own registry
+    GenericRdsIamDatasourceFactory factory = new GenericRdsIamDatasourceFactory(mock(RdsUtilities.class));
+    RdsIamTokenRefreshScheduler scheduler = new RdsIamTokenRefreshScheduler(1);
+    factory.setTokenRegistry(new RdsIamAuthenticationTokenRegistry(scheduler));
+    HikariConfig config = new HikariConfig();
+    config.setJdbcUrl("jdbc:mysql://localhost:3306/simpsons");
+    config.setUsername("maude");
+    config.addDataSourceProperty("iam-authentication-token-on-demand", true);
+    HikariDataSource dataSource = factory.dataSource(config);
+    assertThat(factory.getTokenRegistry().size()).isEqualTo(1);
+
+    // when the datasource is closed and the watcher checks it
+    dataSource.close();
+    factory.getCloseWatcher().check();
+
+    // then the refresher shall be removed from the registry
+    assertThat(factory.getTokenRegistry().size()).isZero();
+    scheduler.close();
+  }
+
+  @Test
+  void testFailoverRefreshersAreStarted() {
+    // given a datasource with scheduled token refresh and a failover host
+    RdsUtilities rdsUtilities = mock(RdsUtilities.class);
+    when(rdsUtilities.generateAuthenticationToken(any(GenerateAuthenticationTokenRequest.class)))
+        .thenAnswer(invocation -> invocation.<GenerateAuthenticationTokenRequest> getArgument(0).hostname() + "Token");
+    GenericRdsIamDatasourceFactory factory = new GenericRdsIamDatasourceFactory(rdsUtilities);
+    RdsIamTokenRefreshScheduler scheduler = new RdsIamTokenRefreshScheduler(1);
+    factory.setTokenRegistry(new RdsIamAuthenticationTokenRegistry(scheduler));
+    HikariConfig config = new HikariConfig();
+    config.setJdbcUrl("jdbc:mysql://localhost:3306,localhost2:3306/simpsons");
+    config.setUsername("moe");
+
+    // when datasource is created
+    HikariDataSource dataSource = factory.dataSource(config);
+
+    // then the token of the failover host shall be refreshed as well but the password shall be the primary's token
+    RdsIamAuthenticatingDataSource authenticatingDataSource = (RdsIamAuthenticatingDataSource) dataSource
+        .getDataSource();
+    RdsIamAuthenticationTokenRefresher failoverRefresher = authenticatingDataSource.getFailoverRefreshers().get(0);
+    assertThat(authenticatingDataSource.getRefresher().getPoolCount()).isEqualTo(1);
+    assertThat(failoverRefresher.getPoolCount()).isEqualTo(1);
+    assertThat(dataSource.getPassword()).isEqualTo("localhostToken");
+    failoverRefresher.regenerateAuthenticationToken(failoverRefresher.getAuthenticationToken());
+    assertThat(dataSource.getPassword()).isEqualTo("localhostToken");
+
+    // and when the datasource is closed and the watcher checks it then both refreshers shall be removed
+    dataSource.close();
+    factory.getCloseWatcher().check();
+    assertThat(failoverRefresher.getPoolCount()).isZero();
+    assertThat(factory.getTokenRegistry().size()).isZero();
+    scheduler.close();
+  }
+
+  @Test
+  void testCreateDatasourceWithConnectionMetrics() {
+    // given datasource factory with connection metrics enabled
+    GenericRdsIamDatasourceFactory factory = new GenericRdsIamDatasourceFactory(mock(RdsUtilities.class));
+    factory.getOptions().setConnectionMetricsEnabled(true);
+    HikariConfig config = new HikariConfig();
+    config.setJdbcUrl("jdbc:mysql://localhost:3306/simpsons");
+    config.setUsername("maggie");
+    config.addDataSourceProperty("iam-authentication-token-on-demand", true);
+
+    // when datasource is created
+    HikariDataSource dataSource = factory.dataSource(config);
+
+    // then the latencies shall be recorded for the endpoint
+    assertThat(dataSource.getMetricsTrackerFactory()).isInstanceOfSatisfying(
+        RdsIamConnectionMetricsTrackerFactory.class,
+        metricsTrackerFactory -> assertThat(metricsTrackerFactory.getEndpoint()).isEqualTo("localhost:3306"));
+  }
+
+  @Test
+  void testCreateDatasourceWithConnectionRecycling() {
+    // given datasource factory with connection recycling and a configuration without keepalive
+    GenericRdsIamDatasourceFactory factory = new GenericRdsIamDatasourceFactory(mock(RdsUtilities.class));
+    factory.getOptions().setConnectionRecyclingWindow(Duration.ofMinutes(5));
+    HikariConfig config = new HikariConfig();
+    config.setJdbcUrl("jdbc:mysql://localhost:3306/simpsons");
+    config.setUsername("abe");
+    config.addDataSourceProperty("iam-authentication-token-on-demand", true);
+
+    // when datasource is created
+    HikariDataSource dataSource = factory.dataSource(config);
+
+    // then the connections shall be tracked by a recycler
+    assertThat(((RdsIamAuthenticatingDataSource) dataSource.getDataSource()).getConnectionRecycler()).isNotNull();
+    // and the idle connections shall be validated so the retired ones are replaced on a busy pool too
+    assertThat(dataSource.getKeepaliveTime()).isEqualTo(RdsIamConnectionRecycler.DEFAULT_KEEPALIVE_TIME.toMillis());
+  }
+
+  @Test
+  void testCreateDatasourceWithConnectionThrottle() {
+    // given datasource factory with a connection throttle
+    GenericRdsIamDatasourceFactory factory = new GenericRdsIamDatasourceFactory(mock(RdsUtilities.class));
+    RdsIamConnectionThrottle throttle = new RdsIamConnectionThrottle();
+    factory.getOptions().setConnectionThrottle(throttle);
+    HikariConfig config = new HikariConfig();
+    config.setJdbcUrl("jdbc:mysql://localhost:3306/simpsons");
+    config.setUsername("lisa");
+    config.addDataSourceProperty("iam-authentication-token-on-demand", true);
+
+    // when datasource is created
+    HikariDataSource dataSource = factory.dataSource(config);
+
+    // then the creation of the physical connections shall be throttled
+    assertThat(((RdsIamAuthenticatingDataSource) dataSource.getDataSource()).getConnectionThrottle())
+        .isSameAs(throttle);
+  }
+
+  @Test
+  void testCreateDatasourceWithPoolSizeControl() {
+    // given datasource factory with pool size control and a budget for the endpoint
+    GenericRdsIamDatasourceFactory factory = new GenericRdsIamDatasourceFactory(mock(RdsUtilities.class));
+    RdsIamConnectionBudget budget = new RdsIamConnectionBudget();
+    factory.getOptions().setPoolSizeControl(2, 8, budget);
+    HikariConfig config = new HikariConfig();
+    config.setJdbcUrl("jdbc:mysql://localhost:3306/simpsons");
+    config.setUsername("bart");
+    config.setMaximumPoolSize(10);
+    config.addDataSourceProperty("iam-authentication-token-on-demand", true);
+
+    // when datasource is created
+    HikariDataSource dataSource = factory.dataSource(config);
+
+    // then the pool shall be within the max size and reserved in the budget of the endpoint
+    assertThat(dataSource.getMaximumPoolSize()).isEqualTo(8);
+    assertThat(budget.getReserved("localhost", 3306)).isEqualTo(8);
+
+    // and when the datasource is closed then the budget shall be released
+    dataSource.close();
+    factory.getCloseWatcher().check();
+    assertThat(budget.getReserved("localhost", 3306)).isZero();
+  }
+
+  @Test
+  void testPoolSizeControlWithInvalidSizes() {
+    RdsIamDatasourceOptions options = new RdsIamDatasourceOptions();
+    assertThatThrownBy(() -> options.setPoolSizeControl(0, 8, null)).isInstanceOf(IllegalArgumentException.class);
+    assertThatThrownBy(() -> options.setPoolSizeControl(4, 2, null)).isInstanceOf(IllegalArgumentException.class);
+    // both 0 turns the control off
+    options.setPoolSizeControl(0, 0, null);
+    assertThat(options.getPoolMaxSize()).isZero();
+  }
+
+  @Test
+  void testCreateDatasourceWithSharedSslContextAndUnsupportedDriver() throws GeneralSecurityException {
+    // given datasource factory with the shared TLS context and a configuration for a driver it doesn't support
+    RdsIamSslContext.setSharedInstance(new RdsIamSslContext(null));
+    RdsUtilities rdsUtilities = mock(RdsUtilities.class);
+    when(rdsUtilities.generateAuthenticationToken(any(GenerateAuthenticationTokenRequest.class)))
+        .thenReturn("randomToken");
+    GenericRdsIamDatasourceFactory factory = new GenericRdsIamDatasourceFactory(rdsUtilities);
+    factory.getOptions().setSharedSslContextEnabled(true);
+    HikariConfig config = new HikariConfig();
+    config.setJdbcUrl("jdbc:mariadb://localhost:3306/simpsons");
+    config.setUsername("homer");
+
+    // when datasource is created then it shall fail instead of connecting without verified TLS
+    assertThatThrownBy(() -> factory.dataSource(config)).isInstanceOf(IllegalArgumentException.class)
+        .hasMessageContaining("jdbc:mariadb:");
+  }
+
+  @Test
+  void testCreateDatasourceWithSharedSslContext() throws GeneralSecurityException {
+    // given datasource factory with the shared TLS context and a configuration with its own TLS mode
+    RdsIamSslContext.setSharedInstance(new RdsIamSslContext(null));
+    GenericRdsIamDatasourceFactory factory = new GenericRdsIamDatasourceFactory(mock(RdsUtilities.class));
+    factory.getOptions().setSharedSslContextEnabled(true);
+    HikariConfig config = new HikariConfig();
+    config.setJdbcUrl("jdbc:postgresql://localhost:5432/simpsons");
+    config.setUsername("marge");
+    config.addDataSourceProperty("sslmode", "verify-ca");
+
+    // when datasource is created
+    HikariDataSource dataSource = factory.dataSource(config);
+
+    // then the driver shall get the shared socket factory but keep its own TLS mode
+    assertThat(dataSource.getDataSourceProperties()).containsEntry("sslfactory",
+        RdsIamSslSocketFactory.class.getName()).containsEntry("sslmode", "verify-ca");
+  }
+
 }
 
 /*
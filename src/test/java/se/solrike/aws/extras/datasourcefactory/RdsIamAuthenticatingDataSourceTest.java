@@ -0,0 +1,223 @@
+/*
+ * Copyright © 2022 Lucas Persson. All Rights Reserved.
+ */
+package se.solrike.aws.extras.datasourcefactory;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import javax.sql.DataSource;
+
+import org.junit.jupiter.api.Test;
+
+import com.zaxxer.hikari.HikariConfig;
+
+import software.amazon.awssdk.services.rds.RdsUtilities;
+import software.amazon.awssdk.services.rds.model.GenerateAuthenticationTokenRequest;
+
+/**
+ *
+ */
+class RdsIamAuthenticatingDataSourceTest {
+
+  @Test
+  void testRetryWithNewTokenOnAuthenticationFailure() throws SQLException {
+    // given a refresher with a token that the database will reject
+    RdsUtilities rdsUtilities = mock(RdsUtilities.class);
+    when(rdsUtilities.generateAuthenticationToken(any(GenerateAuthenticationTokenRequest.class)))
+        .thenReturn("staleToken", "newToken");
+    RdsIamAuthenticationTokenRefresher refresher = new RdsIamAuthenticationTokenRefresher(rdsUtilities,
+        "mydb.example.com", 3306, "myDbUsername");
+    HikariConfig hikariConfig = new HikariConfig();
+    refresher.start(hikariConfig, 14, TimeUnit.MINUTES);
+    String staleToken = refresher.getAuthenticationToken();
+
+    // and a driver that rejects the stale token
+    DataSource driver = mock(DataSource.class);
+    Connection connection = mock(Connection.class);
+    when(driver.getConnection("myDbUsername", "staleToken"))
+        .thenThrow(new SQLException("Access denied for user 'myDbUsername'", "28000", 1045));
+    when(driver.getConnection("myDbUsername", "newToken")).thenReturn(connection);
+    RdsIamAuthenticatingDataSource dataSource = new RdsIamAuthenticatingDataSource(driver, refresher);
+
+    // when a connection is created with the stale token
+    Connection result = dataSource.getConnection("myDbUsername", staleToken);
+
+    // then a new token shall be generated and the connect retried
+    assertThat(result).isSameAs(connection);
+    assertThat(hikariConfig.getPassword()).isEqualTo("newToken");
+
+    // and when another connection attempt fails with the same stale token no new token shall be generated
+    dataSource.getConnection("myDbUsername", staleToken);
+    verify(rdsUtilities, times(2)).generateAuthenticationToken(any(GenerateAuthenticationTokenRequest.class));
+    refresher.close();
+  }
+
+  @Test
+  void testTokenOnDemand() throws SQLException {
+    // given an on demand datasource
+    RdsUtilities rdsUtilities = mock(RdsUtilities.class);
+    when(rdsUtilities.generateAuthenticationToken(any(GenerateAuthenticationTokenRequest.class)))
+        .thenReturn("randomToken");
+    RdsIamAuthenticationTokenRefresher refresher = new RdsIamAuthenticationTokenRefresher(rdsUtilities,
+        "mydb.example.com", 3306, "myDbUsername");
+    DataSource driver = mock(DataSource.class);
+    RdsIamAuthenticatingDataSource dataSource = new RdsIamAuthenticatingDataSource(() -> driver, refresher, true);
+
+    // when connections are created without a password
+    dataSource.getConnection("myDbUsername", null);
+    dataSource.getConnection("myDbUsername", null);
+
+    // then the cached token shall be used
+    verify(driver, times(2)).getConnection("myDbUsername", "randomToken");
+    verify(rdsUtilities, times(1)).generateAuthenticationToken(any(GenerateAuthenticationTokenRequest.class));
+  }
+
+  @Test
+  void testConnectWithoutCredentials() throws SQLException {
+    // given a datasource with a pushed token
+    RdsUtilities rdsUtilities = mock(RdsUtilities.class);
+    when(rdsUtilities.generateAuthenticationToken(any(GenerateAuthenticationTokenRequest.class)))
+        .thenReturn("randomToken");
+    RdsIamAuthenticationTokenRefresher refresher = new RdsIamAuthenticationTokenRefresher(rdsUtilities,
+        "mydb.example.com", 3306, "myDbUsername");
+    DataSource driver = mock(DataSource.class);
+    RdsIamAuthenticatingDataSource dataSource = new RdsIamAuthenticatingDataSource(driver, refresher);
+
+    // when a connection is created without username and password
+    dataSource.getConnection();
+
+    // then it shall connect as the refresher's user with the cached token
+    verify(driver).getConnection("myDbUsername", "randomToken");
+    verify(driver, never()).getConnection();
+  }
+
+  @Test
+  void testOtherFailuresAreNotRetried() throws SQLException {
+    // given a driver that can't reach the database
+    RdsUtilities rdsUtilities = mock(RdsUtilities.class);
+    RdsIamAuthenticationTokenRefresher refresher = new RdsIamAuthenticationTokenRefresher(rdsUtilities,
+        "mydb.example.com", 3306, "myDbUsername");
+    DataSource driver = mock(DataSource.class);
+    when(driver.getConnection("myDbUsername", "token"))
+        .thenThrow(new SQLException("Communications link failure", "08S01"));
+    RdsIamAuthenticatingDataSource dataSource = new RdsIamAuthenticatingDataSource(driver, refresher);
+
+    // when a connection is created then the failure shall be passed on without a new token
+    assertThatThrownBy(() -> dataSource.getConnection("myDbUsername", "token")).isInstanceOf(SQLException.class);
+    verify(rdsUtilities, never()).generateAuthenticationToken(any(GenerateAuthenticationTokenRequest.class));
+  }
+
+  @Test
+  void testFailoverWithTokenOfFailoverHost() throws SQLException {
+    // given a token per host
+    RdsUtilities rdsUtilities = mock(RdsUtilities.class);
+    when(rdsUtilities.generateAuthenticationToken(any(GenerateAuthenticationTokenRequest.class)))
+        .thenAnswer(invocation -> invocation.<GenerateAuthenticationTokenRequest> getArgument(0).hostname() + "Token");
+    RdsIamAuthenticationTokenRefresher refresher1 = new RdsIamAuthenticationTokenRefresher(rdsUtilities,
+        "mydb1.example.com", 3306, "myDbUsername");
+    RdsIamAuthenticationTokenRefresher refresher2 = new RdsIamAuthenticationTokenRefresher(rdsUtilities,
+        "mydb2.example.com", 3306, "myDbUsername");
+
+    // and a primary host that can't be reached
+    DataSource driver1 = mock(DataSource.class);
+    when(driver1.getConnection("myDbUsername", "mydb1.example.comToken"))
+        .thenThrow(new SQLException("Communications link failure", "08S01"));
+    DataSource driver2 = mock(DataSource.class);
+    Connection connection = mock(Connection.class);
+    when(driver2.getConnection("myDbUsername", "mydb2.example.comToken")).thenReturn(connection);
+    RdsIamAuthenticatingDataSource dataSource = new RdsIamAuthenticatingDataSource(() -> driver1, refresher1, true);
+    dataSource.addFailoverHost(() -> driver2, refresher2);
+
+    // when a connection is created then it shall be to the failover host with its own token
+    assertThat(dataSource.getConnection("myDbUsername", null)).isSameAs(connection);
+    assertThat(dataSource.getFailoverRefreshers()).containsExactly(refresher2);
+    assertThat(dataSource.getCurrentHost()).isEqualTo(1);
+
+    // and the next connection shall go to the failover host without trying the primary host again
+    assertThat(dataSource.getConnection("myDbUsername", null)).isSameAs(connection);
+    verify(driver1, times(1)).getConnection("myDbUsername", "mydb1.example.comToken");
+  }
+
+  @Test
+  void testNoFailoverWhenHostCanBeReached() throws SQLException {
+    // given a primary host that fails for another reason than being unreachable
+    RdsUtilities rdsUtilities = mock(RdsUtilities.class);
+    when(rdsUtilities.generateAuthenticationToken(any(GenerateAuthenticationTokenRequest.class))).thenReturn("token");
+    RdsIamAuthenticationTokenRefresher refresher1 = new RdsIamAuthenticationTokenRefresher(rdsUtilities,
+        "mydb1.example.com", 3306, "myDbUsername");
+    RdsIamAuthenticationTokenRefresher refresher2 = new RdsIamAuthenticationTokenRefresher(rdsUtilities,
+        "mydb2.example.com", 3306, "myDbUsername");
+    DataSource driver1 = mock(DataSource.class);
+    when(driver1.getConnection("myDbUsername", "token"))
+        .thenThrow(new SQLException("Too many connections", "08004", 1040))
+        .thenThrow(new SQLException("Unknown database 'simpsons'", "42000", 1049));
+    DataSource driver2 = mock(DataSource.class);
+    RdsIamAuthenticatingDataSource dataSource = new RdsIamAuthenticatingDataSource(() -> driver1, refresher1, true);
+    dataSource.addFailoverHost(() -> driver2, refresher2);
+    when(driver2.getConnection("myDbUsername", "token"))
+        .thenThrow(new SQLException("Communications link failure", "08S01"));
+
+    // when the connect fails with a connection exception on both hosts then the last failure shall be thrown
+    assertThatThrownBy(() -> dataSource.getConnection("myDbUsername", null)).hasMessage("Communications link failure");
+    assertThat(dataSource.getCurrentHost()).isZero();
+
+    // and when the connect fails with another exception then the failover host shall not be tried
+    assertThatThrownBy(() -> dataSource.getConnection("myDbUsername", null)).hasMessageContaining("Unknown database");
+    verify(driver2, times(1)).getConnection("myDbUsername", "token");
+  }
+
+  @Test
+  void testFromHikariConfigWithFailoverHosts() {
+    // given a JDBC URL with two hosts
+    RdsUtilities rdsUtilities = mock(RdsUtilities.class);
+    RdsIamAuthenticationTokenRefresher refresher1 = new RdsIamAuthenticationTokenRefresher(rdsUtilities,
+        "mydb1.example.com", 3306, "myDbUsername");
+    RdsIamAuthenticationTokenRefresher refresher2 = new RdsIamAuthenticationTokenRefresher(rdsUtilities,
+        "mydb2.example.com", 3306, "myDbUsername");
+    HikariConfig hikariConfig = new HikariConfig();
+    hikariConfig.setJdbcUrl("jdbc:mysql://mydb1.example.com:3306,mydb2.example.com:3306/simpsons");
+
+    // when the datasource is created
+    RdsIamAuthenticatingDataSource dataSource = RdsIamAuthenticatingDataSource.fromHikariConfig(hikariConfig,
+        Arrays.asList(refresher1, refresher2), false);
+
+    // then the second host shall be a failover host
+    assertThat(dataSource.getRefresher()).isSameAs(refresher1);
+    assertThat(dataSource.getFailoverRefreshers()).containsExactly(refresher2);
+  }
+
+  @Test
+  void testIsConnectionFailure() {
+    assertThat(RdsIamAuthenticatingDataSource.isConnectionFailure(new SQLException("timeout", "08S01"))).isTrue();
+    assertThat(RdsIamAuthenticatingDataSource
+        .isConnectionFailure(new SQLException("wrapped", null, new SQLException("refused", "08001")))).isTrue();
+    assertThat(RdsIamAuthenticatingDataSource
+        .isConnectionFailure(new SQLException("wrapped", "08001", new SQLException("denied", null, 1045))))
+        .isFalse();
+    assertThat(RdsIamAuthenticatingDataSource.isConnectionFailure(new SQLException("syntax", "42000"))).isFalse();
+  }
+
+  @Test
+  void testIsAuthenticationFailure() {
+    assertThat(RdsIamAuthenticatingDataSource
+        .isAuthenticationFailure(new SQLException("password authentication failed", "28P01"))).isTrue();
+    assertThat(RdsIamAuthenticatingDataSource
+        .isAuthenticationFailure(new SQLException("wrapped", "08001", new SQLException("denied", null, 1045))))
+        .isTrue();
+    assertThat(RdsIamAuthenticatingDataSource.isAuthenticationFailure(new SQLException("timeout", "08S01")))
+        .isFalse();
+  }
+
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright © 2022 Lucas Persson. All Rights Reserved.
+ */
+package se.solrike.aws.extras.datasourcefactory;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ *
+ */
+class RdsIamAuthenticationTokenCacheTest {
+
+  @Test
+  void testGetTokenIsCached() {
+    // given a token cache
+    AtomicInteger count = new AtomicInteger();
+    MutableClock clock = new MutableClock(Instant.parse("2023-01-15T10:15:00Z"));
+    RdsIamAuthenticationTokenCache cache = new RdsIamAuthenticationTokenCache(() -> "token" + count.incrementAndGet(),
+        clock);
+
+    // when the token is fetched twice while it is valid
+    String token1 = cache.getToken();
+    clock.advance(Duration.ofMinutes(10));
+    String token2 = cache.getToken();
+
+    // then only one token shall be generated
+    assertThat(token1).isEqualTo("token1").isEqualTo(token2);
+    assertThat(count.get()).isEqualTo(1);
+
+    // and when the token is about to expire a new token shall be generated
+    clock.advance(Duration.ofMinutes(5).minusSeconds(10));
+    assertThat(cache.getToken()).isEqualTo("token2");
+  }
+
+  @Test
+  void testGetNextRefreshDelay() {
+    // given a token cache with a token valid for 15 min
+    MutableClock clock = new MutableClock(Instant.parse("2023-01-15T10:15:00Z"));
+    RdsIamAuthenticationTokenCache cache = new RdsIamAuthenticationTokenCache(() -> "randomToken", clock);
+    cache.setRefreshFraction(0.5);
+    cache.setJitterFraction(0.2);
+    assertThat(cache.getNextRefreshDelay()).isZero();
+    cache.refresh();
+
+    // when the next refresh delay is calculated
+    Duration delay = cache.getNextRefreshDelay();
+
+    // then it shall be half of the remaining lifetime minus up to 20% jitter
+    assertThat(delay).isBetween(Duration.ofSeconds(360), Duration.ofSeconds(450));
+  }
+
+  private static class MutableClock extends Clock {
+    private Instant mInstant;
+
+    MutableClock(Instant instant) {
+      mInstant = instant;
+    }
+
+    void advance(Duration duration) {
+      mInstant = mInstant.plus(duration);
+    }
+
+    @Override
+    public ZoneId getZone() {
+      return ZoneOffset.UTC;
+    }
+
+    @Override
+    public Clock withZone(ZoneId zone) {
+      return this;
+    }
+
+    @Override
+    public Instant instant() {
+      return mInstant;
+    }
+  }
+
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright © 2022 Lucas Persson. All Rights Reserved.
+ */
+package se.solrike.aws.extras.datasourcefactory;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.junit.jupiter.api.Test;
+
+import com.zaxxer.hikari.HikariConfig;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import software.amazon.awssdk.services.rds.RdsUtilities;
+import software.amazon.awssdk.services.rds.model.GenerateAuthenticationTokenRequest;
+
+/**
+ *
+ */
+class RdsIamAuthenticationTokenMetricsTest {
+
+  @Test
+  void testMBeanIsRegisteredForEndpoint() throws JMException {
+    // given a refresher and a pool that has MBeans enabled
+    RdsIamAuthenticationTokenRefresher refresher = createRefresher();
+    HikariConfig hikariConfig = new HikariConfig();
+    hikariConfig.setPoolName("metricsPool");
+    hikariConfig.setRegisterMbeans(true);
+    refresher.getAuthenticationToken();
+
+    // when the refresh is started for the pool
+    RdsIamAuthenticationTokenRefresher.PoolRegistration registration = refresher.start(hikariConfig, 14);
+
+    // then only the endpoint MBean shall be registered
+    MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+    ObjectName poolName = new ObjectName("se.solrike.aws.extras:type=RdsIamAuthenticationToken (metricsPool)");
+    ObjectName endpointName = getEndpointName(refresher);
+    assertThat(mBeanServer.isRegistered(poolName)).isFalse();
+    assertThat(mBeanServer.isRegistered(endpointName)).isTrue();
+    // and it shall have the pools and the metrics of the token
+    assertThat((String[]) mBeanServer.getAttribute(endpointName, "PoolNames")).containsExactly("metricsPool");
+    assertThat(mBeanServer.getAttribute(endpointName, "PoolCount")).isEqualTo(1);
+    assertThat(mBeanServer.getAttribute(endpointName, "TokenGenerationCount")).isEqualTo(1L);
+    assertThat((long) mBeanServer.getAttribute(endpointName, "TokenTimeToExpiryMillis")).isPositive();
+    assertThat((long) mBeanServer.getAttribute(endpointName, "TokenAgeMillis")).isNotNegative();
+
+    // and when the pool is closed the MBean shall be unregistered
+    registration.close();
+    assertThat(mBeanServer.isRegistered(endpointName)).isFalse();
+  }
+
+  @Test
+  void testNoMBeansByDefault() throws JMException {
+    // given a pool that doesn't have MBeans enabled, which is Hikari's default
+    RdsIamAuthenticationTokenRefresher refresher = createRefresher();
+    HikariConfig hikariConfig = new HikariConfig();
+    hikariConfig.setPoolName("noMetricsPool");
+
+    // when the refresh is started for the pool
+    refresher.start(hikariConfig, 100, TimeUnit.MILLISECONDS);
+
+    // then no MBean shall be registered
+    assertThat(ManagementFactory.getPlatformMBeanServer().isRegistered(getEndpointName(refresher))).isFalse();
+    refresher.close();
+  }
+
+  @Test
+  void testMBeansOfRefreshersForTheSameEndpoint() throws JMException {
+    // given two refreshers for the same endpoint and user, e.g. from two factories with different credentials
+    RdsIamAuthenticationTokenRefresher refresher1 = createRefresher();
+    RdsIamAuthenticationTokenRefresher refresher2 = createRefresher();
+    HikariConfig hikariConfig1 = new HikariConfig();
+    hikariConfig1.setPoolName("metricsPool1");
+    hikariConfig1.setRegisterMbeans(true);
+    HikariConfig hikariConfig2 = new HikariConfig();
+    hikariConfig2.setPoolName("metricsPool2");
+    hikariConfig2.setRegisterMbeans(true);
+
+    // when the refresh is started for a pool of each
+    RdsIamAuthenticationTokenRefresher.PoolRegistration registration1 = refresher1.start(hikariConfig1, 14);
+    RdsIamAuthenticationTokenRefresher.PoolRegistration registration2 = refresher2.start(hikariConfig2, 14);
+
+    // then each shall have an MBean of its own with its pools
+    MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+    assertThat((String[]) mBeanServer.getAttribute(getEndpointName(refresher1), "PoolNames"))
+        .containsExactly("metricsPool1");
+    assertThat((String[]) mBeanServer.getAttribute(getEndpointName(refresher2), "PoolNames"))
+        .containsExactly("metricsPool2");
+    registration1.close();
+    registration2.close();
+  }
+
+  @Test
+  void testMicrometerBinder() {
+    // given a refresher that has generated a token
+    RdsIamAuthenticationTokenRefresher refresher = createRefresher();
+    refresher.getAuthenticationToken();
+    SimpleMeterRegistry registry = new SimpleMeterRegistry();
+
+    // when the binder is bound for a pool
+    new RdsIamAuthenticationTokenMetricsBinder(refresher, "micrometerPool").bindTo(registry);
+
+    // then the meters shall be tagged like Hikari's pool metrics
+    assertThat(registry.get("rds.iam.token.generation").tag("pool", "micrometerPool").functionTimer().count())
+        .isEqualTo(1);
+    assertThat(registry.get("rds.iam.token.refresh").tag("result", "failure").functionCounter().count()).isZero();
+    assertThat(registry.get("rds.iam.token.expiry").timeGauge().value(TimeUnit.SECONDS)).isPositive();
+    assertThat(registry.get("rds.iam.token.stale").gauge().value()).isZero();
+  }
+
+  private static ObjectName getEndpointName(RdsIamAuthenticationTokenRefresher refresher) throws JMException {
+    return new ObjectName("se.solrike.aws.extras:type=RdsIamAuthenticationTokenEndpoint,"
+        + "name=\"bart@mydb.example.com:3306\",id=" + refresher.getId());
+  }
+
+  private static RdsIamAuthenticationTokenRefresher createRefresher() {
+    RdsUtilities rdsUtilities = mock(RdsUtilities.class);
+    when(rdsUtilities.generateAuthenticationToken(any(GenerateAuthenticationTokenRequest.class)))
+        .thenReturn("randomToken");
+    return new RdsIamAuthenticationTokenRefresher(rdsUtilities, "mydb.example.com", 3306, "bart");
+  }
+
+}
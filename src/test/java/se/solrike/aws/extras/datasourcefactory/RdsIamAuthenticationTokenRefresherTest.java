@@ -6,18 +6,23 @@ package se.solrike.aws.extras.datasourcefactory;
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.awaitility.Awaitility.await;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.clearInvocations;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
+import java.time.Duration;
 import java.util.concurrent.TimeUnit;
 
 import org.awaitility.Durations;
 import org.junit.jupiter.api.Test;
 
 import com.zaxxer.hikari.HikariConfig;
+import com.zaxxer.hikari.HikariDataSource;
 
+import software.amazon.awssdk.core.exception.SdkClientException;
 import software.amazon.awssdk.services.rds.RdsUtilities;
 import software.amazon.awssdk.services.rds.model.GenerateAuthenticationTokenRequest;
 
@@ -44,6 +49,10 @@ class RdsIamAuthenticationTokenRefresherTest {
     assertThat(token).isNotBlank();
     // and the RDS client shall have been invoked
     verify(rdsUtilities).generateAuthenticationToken(any(GenerateAuthenticationTokenRequest.class));
+
+    // and when get token is called again while the token is valid the cached token shall be returned
+    assertThat(refresher.getAuthenticationToken()).isEqualTo(token);
+    verify(rdsUtilities, times(1)).generateAuthenticationToken(any(GenerateAuthenticationTokenRequest.class));
   }
 
   @Test
@@ -67,4 +76,106 @@ class RdsIamAuthenticationTokenRefresherTest {
     verify(rdsUtilities, times(1)).generateAuthenticationToken(any(GenerateAuthenticationTokenRequest.class));
   }
 
+  @Test
+  void testCloseRegistration() throws InterruptedException {
+    // given a started token refresher
+    RdsUtilities rdsUtilities = mock(RdsUtilities.class);
+    HikariConfig hikariConfig = new HikariConfig();
+    when(rdsUtilities.generateAuthenticationToken(any(GenerateAuthenticationTokenRequest.class)))
+        .thenReturn("randomToken");
+    RdsIamAuthenticationTokenRefresher refresher = new RdsIamAuthenticationTokenRefresher(rdsUtilities,
+        "mydb.example.com", 3360, "myDbUsername");
+    RdsIamAuthenticationTokenRefresher.PoolRegistration registration = refresher.start(hikariConfig, 50,
+        TimeUnit.MILLISECONDS);
+    await().atMost(Durations.ONE_SECOND).until(() -> hikariConfig.getPassword() != null);
+
+    // when the registration is closed
+    registration.close();
+    clearInvocations(rdsUtilities);
+    Thread.sleep(200);
+
+    // then no more tokens shall be generated
+    verify(rdsUtilities, never()).generateAuthenticationToken(any(GenerateAuthenticationTokenRequest.class));
+  }
+
+  @Test
+  void testStopWhenDatasourceIsClosed() {
+    // given a started token refresher for a datasource
+    RdsUtilities rdsUtilities = mock(RdsUtilities.class);
+    when(rdsUtilities.generateAuthenticationToken(any(GenerateAuthenticationTokenRequest.class)))
+        .thenReturn("randomToken");
+    RdsIamAuthenticationTokenRefresher refresher = new RdsIamAuthenticationTokenRefresher(rdsUtilities,
+        "mydb.example.com", 3360, "myDbUsername");
+    HikariDataSource dataSource = new HikariDataSource();
+    RdsIamAuthenticationTokenRefresher.PoolRegistration registration = refresher.start(dataSource, 50,
+        TimeUnit.MILLISECONDS);
+
+    // when the datasource is closed
+    dataSource.close();
+
+    // then the refresh shall stop by itself
+    await().atMost(Durations.ONE_SECOND).untilAsserted(() -> assertThat(registration.isClosed()).isTrue());
+  }
+
+  @Test
+  void testSeveralPoolsShareOneToken() {
+    // given a token refresher
+    RdsUtilities rdsUtilities = mock(RdsUtilities.class);
+    when(rdsUtilities.generateAuthenticationToken(any(GenerateAuthenticationTokenRequest.class)))
+        .thenReturn("randomToken");
+    RdsIamTokenRefreshScheduler scheduler = new RdsIamTokenRefreshScheduler();
+    RdsIamAuthenticationTokenRefresher refresher = new RdsIamAuthenticationTokenRefresher(rdsUtilities,
+        "mydb.example.com", 3360, "myDbUsername", scheduler);
+
+    // when two pools are registered
+    HikariConfig readPool = new HikariConfig();
+    HikariConfig writePool = new HikariConfig();
+    refresher.start(readPool, 100, TimeUnit.MILLISECONDS);
+    RdsIamAuthenticationTokenRefresher.PoolRegistration writeRegistration = refresher.start(writePool, 100,
+        TimeUnit.MILLISECONDS);
+
+    // then both pools shall get the token from one refresh task
+    await().atMost(Durations.ONE_SECOND).untilAsserted(() -> {
+      assertThat(readPool.getPassword()).isEqualTo("randomToken");
+      assertThat(writePool.getPassword()).isEqualTo("randomToken");
+    });
+    assertThat(refresher.getPoolCount()).isEqualTo(2);
+    assertThat(scheduler.getRegistrationCount()).isEqualTo(1);
+
+    // and when one pool is removed the refresh shall continue for the other
+    writeRegistration.close();
+    assertThat(refresher.getPoolCount()).isEqualTo(1);
+    assertThat(scheduler.getRegistrationCount()).isEqualTo(1);
+
+    // and when the refresher is closed the refresh task shall stop
+    refresher.close();
+    assertThat(scheduler.getRegistrationCount()).isZero();
+    scheduler.close();
+  }
+
+  @Test
+  void testRetryWhenRefreshFails() {
+    // given RDS client that fails twice before it generates a token
+    RdsUtilities rdsUtilities = mock(RdsUtilities.class);
+    when(rdsUtilities.generateAuthenticationToken(any(GenerateAuthenticationTokenRequest.class)))
+        .thenThrow(SdkClientException.create("Unable to load credentials"))
+        .thenThrow(SdkClientException.create("Unable to load credentials"))
+        .thenReturn("randomToken");
+    RdsIamAuthenticationTokenRefresher refresher = new RdsIamAuthenticationTokenRefresher(rdsUtilities,
+        "mydb.example.com", 3360, "myDbUsername");
+    refresher.setRetryDelays(Duration.ofMillis(10), Duration.ofMillis(50));
+    HikariConfig hikariConfig = new HikariConfig();
+
+    // when the token refresher is started
+    refresher.start(hikariConfig, 50, TimeUnit.MILLISECONDS);
+
+    // then the failed refreshes shall be retried until the token is generated
+    await().atMost(Durations.ONE_SECOND)
+        .untilAsserted(() -> assertThat(hikariConfig.getPassword()).isEqualTo("randomToken"));
+    assertThat(refresher.getRefreshFailureCount()).isEqualTo(2);
+    assertThat(refresher.getLastFailure()).isInstanceOf(SdkClientException.class);
+    assertThat(refresher.isTokenStale()).isFalse();
+    refresher.close();
+  }
+
 }
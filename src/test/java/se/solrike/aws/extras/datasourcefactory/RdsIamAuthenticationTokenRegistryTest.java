@@ -0,0 +1,105 @@
+/*
+ * Copyright © 2022 Lucas Persson. All Rights Reserved.
+ */
+package se.solrike.aws.extras.datasourcefactory;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+import com.zaxxer.hikari.HikariConfig;
+
+import software.amazon.awssdk.services.rds.RdsUtilities;
+import software.amazon.awssdk.services.rds.model.GenerateAuthenticationTokenRequest;
+
+/**
+ *
+ */
+class RdsIamAuthenticationTokenRegistryTest {
+
+  private static final String HOSTNAME = "database1.crux4711.eu-north-1.rds.amazonaws.com";
+
+  @Test
+  void testGetRefresher() {
+    // given a registry and RDS client
+    RdsIamAuthenticationTokenRegistry registry = new RdsIamAuthenticationTokenRegistry();
+    RdsUtilities rdsUtilities = mock(RdsUtilities.class);
+    when(rdsUtilities.generateAuthenticationToken(any(GenerateAuthenticationTokenRequest.class)))
+        .thenReturn("randomToken");
+
+    // when refreshers are fetched for the same endpoint and user
+    RdsIamAuthenticationTokenRefresher readRefresher = registry.getRefresher(rdsUtilities, HOSTNAME, 3306, "bart");
+    RdsIamAuthenticationTokenRefresher writeRefresher = registry.getRefresher(rdsUtilities, HOSTNAME.toUpperCase(),
+        3306, "bart");
+    // and for another user
+    RdsIamAuthenticationTokenRefresher otherRefresher = registry.getRefresher(rdsUtilities, HOSTNAME, 3306, "lisa");
+    // and with other credentials
+    RdsIamAuthenticationTokenRefresher otherCredentialsRefresher = registry.getRefresher(mock(RdsUtilities.class),
+        HOSTNAME, 3306, "bart");
+
+    // then the same endpoint, user and credentials shall share refresher and token
+    assertThat(readRefresher).isSameAs(writeRefresher).isNotSameAs(otherRefresher);
+    assertThat(otherCredentialsRefresher).isNotSameAs(readRefresher);
+    assertThat(registry.size()).isEqualTo(3);
+    readRefresher.getAuthenticationToken();
+    writeRefresher.getAuthenticationToken();
+    verify(rdsUtilities, times(1)).generateAuthenticationToken(any(GenerateAuthenticationTokenRequest.class));
+  }
+
+  @Test
+  void testRefresherIsRemovedWhenIdle() {
+    // given a registry with a refresher that updates a pool
+    RdsIamAuthenticationTokenRegistry registry = new RdsIamAuthenticationTokenRegistry();
+    RdsIamAuthenticationTokenRefresher refresher = registry.getRefresher(mock(RdsUtilities.class), HOSTNAME, 3306,
+        "bart");
+    RdsIamAuthenticationTokenRefresher.PoolRegistration registration = refresher.start(new HikariConfig(), 14,
+        TimeUnit.MINUTES);
+
+    // when the pool is closed
+    registration.close();
+
+    // then the refresher shall be removed
+    assertThat(registry.size()).isZero();
+  }
+
+  @Test
+  void testRefresherIsKeptWhileReferenced() {
+    // given a refresher that updates a pool and that another caller has just fetched but not started yet
+    RdsIamAuthenticationTokenRegistry registry = new RdsIamAuthenticationTokenRegistry();
+    RdsUtilities rdsUtilities = mock(RdsUtilities.class);
+    RdsIamAuthenticationTokenRefresher refresher = registry.getRefresher(rdsUtilities, HOSTNAME, 3306, "bart");
+    RdsIamAuthenticationTokenRefresher.PoolRegistration registration = refresher.start(new HikariConfig(), 14,
+        TimeUnit.MINUTES);
+    RdsIamAuthenticationTokenRefresher fetched = registry.getRefresher(rdsUtilities, HOSTNAME, 3306, "bart");
+
+    // when the pool is closed
+    registration.close();
+
+    // then the refresher shall stay in the registry for the other caller
+    assertThat(fetched).isSameAs(refresher);
+    assertThat(registry.getRefresher(rdsUtilities, HOSTNAME, 3306, "bart")).isSameAs(refresher);
+
+    // and when both references are released it shall be removed, and a new one shall be created on the next fetch
+    registry.release(fetched);
+    registry.release(refresher);
+    assertThat(registry.size()).isZero();
+    assertThat(registry.getRefresher(rdsUtilities, HOSTNAME, 3306, "bart")).isNotSameAs(refresher);
+  }
+
+  @Test
+  void testGetRegionFromHostname() {
+    assertThat(RdsIamAuthenticationTokenRegistry.getRegionFromHostname(HOSTNAME)).isEqualTo("eu-north-1");
+    assertThat(RdsIamAuthenticationTokenRegistry
+        .getRegionFromHostname("mycluster.cluster-ro-crux4711.us-gov-west-1.rds.amazonaws.com"))
+        .isEqualTo("us-gov-west-1");
+    assertThat(RdsIamAuthenticationTokenRegistry.getRegionFromHostname("localhost")).isNull();
+  }
+
+}
@@ -0,0 +1,51 @@
+/*
+ * Copyright © 2022 Lucas Persson. All Rights Reserved.
+ */
+package se.solrike.aws.extras.datasourcefactory;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.time.Duration;
+import java.time.Instant;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ *
+ */
+class RdsIamAuthenticationTokenTest {
+
+  @Test
+  void testParse() {
+    // given a token as generated by RdsUtilities
+    String tokenString = "mydb.example.com:3306/?Action=connect&DBUser=myDbUsername"
+        + "&X-Amz-Algorithm=AWS4-HMAC-SHA256&X-Amz-Date=20230115T101500Z&X-Amz-SignedHeaders=host"
+        + "&X-Amz-Expires=900&X-Amz-Credential=AKIAEXAMPLE%2F20230115%2Feu-north-1%2Frds-db%2Faws4_request"
+        + "&X-Amz-Signature=abcdef";
+
+    // when the token is parsed
+    RdsIamAuthenticationToken token = RdsIamAuthenticationToken.parse(tokenString, Instant.EPOCH);
+
+    // then the signing time and expiry shall be taken from the signature parameters
+    assertThat(token.getToken()).isEqualTo(tokenString);
+    assertThat(token.getIssuedAt()).isEqualTo(Instant.parse("2023-01-15T10:15:00Z"));
+    assertThat(token.getExpiresAt()).isEqualTo(Instant.parse("2023-01-15T10:30:00Z"));
+    assertThat(token.isValid(Instant.parse("2023-01-15T10:29:00Z"), Duration.ofSeconds(30))).isTrue();
+    assertThat(token.isValid(Instant.parse("2023-01-15T10:29:45Z"), Duration.ofSeconds(30))).isFalse();
+  }
+
+  @Test
+  void testParseUnknownFormat() {
+    // given a token without signature parameters
+    Instant now = Instant.parse("2023-01-15T10:15:00Z");
+
+    // when the token is parsed
+    RdsIamAuthenticationToken token = RdsIamAuthenticationToken.parse("randomToken", now);
+
+    // then it shall be assumed to be signed now with the default lifetime
+    assertThat(token.getIssuedAt()).isEqualTo(now);
+    assertThat(token.getExpiresAt()).isEqualTo(now.plus(RdsIamAuthenticationToken.DEFAULT_LIFETIME));
+    assertThat(token.toString()).doesNotContain("randomToken");
+  }
+
+}
@@ -0,0 +1,153 @@
+/*
+ * Copyright © 2022 Lucas Persson. All Rights Reserved.
+ */
+package se.solrike.aws.extras.datasourcefactory;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.awaitility.Awaitility.await;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.junit.jupiter.api.AfterEach;
+import org.awaitility.Durations;
+import org.junit.jupiter.api.Test;
+
+import com.zaxxer.hikari.HikariDataSource;
+
+/**
+ *
+ */
+class RdsIamClusterPoolManagerTest {
+
+  private final List<RdsIamClusterMember> mMembers = new ArrayList<>();
+  private final Map<String, HikariDataSource> mPools = new HashMap<>();
+  private final RdsIamTokenRefreshScheduler mScheduler = new RdsIamTokenRefreshScheduler(1);
+  private final RdsIamClusterPoolManager mManager = new RdsIamClusterPoolManager(() -> new ArrayList<>(mMembers),
+      this::createPool, mScheduler);
+
+  @AfterEach
+  void tearDown() {
+    mManager.close();
+    mScheduler.close();
+  }
+
+  @Test
+  void testPoolsFollowTheTopology() throws SQLException {
+    // given a cluster with a writer and a reader
+    mMembers.addAll(Arrays.asList(member("db1", true), member("db2", false)));
+
+    // when started
+    RdsIamRoutingDataSource dataSource = mManager.start(Duration.ofHours(1));
+
+    // then there shall be a pool for each instance
+    assertThat(dataSource.getWriter().getName()).isEqualTo("db1");
+    assertThat(dataSource.getReaders()).extracting(RdsIamRoutingDataSource.Endpoint::getName).containsExactly("db2");
+
+    // and when a reader is added and a reader with a connection in use is removed
+    Connection connection = dataSource.getConnection();
+    connection.setReadOnly(true);
+    connection.createStatement();
+    mMembers.set(1, member("db3", false));
+    mManager.refresh();
+
+    // then the new reader shall be routed to and the removed one drained
+    assertThat(dataSource.getReaders()).extracting(RdsIamRoutingDataSource.Endpoint::getName).containsExactly("db3");
+    assertThat(mManager.getInstanceIdentifiers()).containsExactlyInAnyOrder("db1", "db3");
+    assertThat(mManager.getDrainingPoolCount()).isEqualTo(1);
+    verify(mPools.get("db2"), never()).close();
+
+    // and when the connection is returned the drained pool shall be closed
+    connection.close();
+    mManager.refresh();
+    assertThat(mManager.getDrainingPoolCount()).isZero();
+    verify(mPools.get("db2")).close();
+  }
+
+  @Test
+  void testWriterFailover() {
+    // given a started cluster
+    mMembers.addAll(Arrays.asList(member("db1", true), member("db2", false)));
+    RdsIamRoutingDataSource dataSource = mManager.start(Duration.ofHours(1));
+
+    // when there is no writer during the failover
+    mMembers.set(0, member("db1", false));
+    mManager.refresh();
+
+    // then the current writer shall be kept
+    assertThat(dataSource.getWriter().getName()).isEqualTo("db1");
+
+    // and when the reader has been promoted
+    mMembers.set(1, member("db2", true));
+    mManager.refresh();
+
+    // then the pool of the new writer shall be the writer and the old writer a reader, without new pools
+    assertThat(dataSource.getWriter().getName()).isEqualTo("db2");
+    assertThat(dataSource.getWriter().getDataSource()).isSameAs(mPools.get("db2"));
+    assertThat(dataSource.getReaders()).extracting(RdsIamRoutingDataSource.Endpoint::getName).containsExactly("db1");
+    assertThat(mManager.getWriterChangeCount()).isEqualTo(1);
+    assertThat(mPools).hasSize(2);
+  }
+
+  @Test
+  void testNoWriterAtStart() {
+    // given a cluster without writer
+    mMembers.add(member("db1", false));
+
+    // when started then it shall fail
+    assertThatThrownBy(() -> mManager.start(Duration.ofHours(1))).isInstanceOf(IllegalStateException.class);
+  }
+
+  @Test
+  void testDiscoveryRunsOnOwnScheduler() {
+    // given a manager without scheduler
+    mMembers.add(member("db1", true));
+    List<String> threadNames = new CopyOnWriteArrayList<>();
+    RdsIamClusterPoolManager manager = new RdsIamClusterPoolManager(() -> {
+      threadNames.add(Thread.currentThread().getName());
+      return new ArrayList<>(mMembers);
+    }, this::createPool);
+
+    // when started
+    manager.start(Duration.ofMillis(10));
+
+    // then the scheduled discovery shall run on a thread of its own and not on the token refresh threads
+    await().atMost(Durations.ONE_SECOND).until(() -> threadNames.size() > 1);
+    assertThat(threadNames.get(1)).startsWith("rds-iam-cluster-discovery-");
+
+    // and when closed then the discovery shall stop
+    manager.close();
+    int discoveryCount = threadNames.size();
+    await().during(Durations.ONE_HUNDRED_MILLISECONDS).until(() -> threadNames.size() == discoveryCount);
+  }
+
+  private HikariDataSource createPool(RdsIamClusterMember member) {
+    HikariDataSource pool = mock(HikariDataSource.class);
+    try {
+      when(pool.getConnection()).thenReturn(mock(Connection.class));
+    }
+    catch (SQLException e) {
+      throw new IllegalStateException(e);
+    }
+    mPools.put(member.getInstanceIdentifier(), pool);
+    return pool;
+  }
+
+  private static RdsIamClusterMember member(String instanceIdentifier, boolean writer) {
+    return new RdsIamClusterMember(instanceIdentifier, instanceIdentifier + ".crux4711.eu-north-1.rds.amazonaws.com",
+        3306, writer);
+  }
+
+}
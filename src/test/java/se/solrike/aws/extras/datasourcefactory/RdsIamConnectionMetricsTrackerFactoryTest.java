@@ -0,0 +1,109 @@
+/*
+ * Copyright © 2022 Lucas Persson. All Rights Reserved.
+ */
+package se.solrike.aws.extras.datasourcefactory;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.ObjectName;
+
+import org.junit.jupiter.api.Test;
+
+import com.zaxxer.hikari.metrics.IMetricsTracker;
+import com.zaxxer.hikari.metrics.MetricsTrackerFactory;
+
+/**
+ *
+ */
+class RdsIamConnectionMetricsTrackerFactoryTest {
+
+  private static final String ENDPOINT = "database1.crux4711.eu-north-1.rds.amazonaws.com:3306";
+
+  @Test
+  void testRecordPerPoolAndEndpoint() {
+    // given two pools to the same endpoint
+    RdsIamConnectionMetricsTrackerFactory factory = new RdsIamConnectionMetricsTrackerFactory(ENDPOINT, null, false);
+    IMetricsTracker tracker1 = factory.create("pool1", null);
+    IMetricsTracker tracker2 = factory.create("pool2", null);
+
+    // when the pools record their latencies
+    tracker1.recordConnectionAcquiredNanos(1_000_000);
+    tracker1.recordConnectionCreatedMillis(50);
+    tracker1.recordConnectionUsageMillis(10);
+    tracker2.recordConnectionAcquiredNanos(3_000_000);
+    tracker2.recordConnectionTimeout();
+
+    // then each pool shall have its own latencies
+    RdsIamConnectionMetrics pool1 = RdsIamConnectionMetricsTrackerFactory.getPoolMetrics("pool1");
+    assertThat(pool1.getEndpoint()).isEqualTo(ENDPOINT);
+    assertThat(pool1.getAcquireCount()).isEqualTo(1);
+    assertThat(pool1.getAcquireMaxMillis()).isEqualTo(1.0);
+    assertThat(pool1.getCreationMaxMillis()).isEqualTo(50.0);
+    assertThat(pool1.getUsageCount()).isEqualTo(1);
+    assertThat(pool1.getAcquireTimeoutCount()).isZero();
+    // and the endpoint the latencies of both
+    RdsIamConnectionMetrics endpoint = RdsIamConnectionMetricsTrackerFactory.getEndpointMetrics(ENDPOINT);
+    assertThat(endpoint.getPoolName()).isNull();
+    assertThat(endpoint.getAcquireCount()).isEqualTo(2);
+    assertThat(endpoint.getAcquireP999Millis()).isEqualTo(3.0);
+    assertThat(endpoint.getAcquireTimeoutCount()).isEqualTo(1);
+
+    // and when the endpoint is reset the pools shall be reset
+    endpoint.reset();
+    assertThat(pool1.getAcquireCount()).isZero();
+    assertThat(endpoint.getAcquireTimeoutCount()).isZero();
+
+    // and when the pools are closed their metrics shall be removed
+    tracker1.close();
+    assertThat(RdsIamConnectionMetricsTrackerFactory.getPoolMetrics("pool1")).isNull();
+    assertThat(RdsIamConnectionMetricsTrackerFactory.getEndpointMetrics(ENDPOINT)).isSameAs(endpoint);
+    tracker2.close();
+    assertThat(RdsIamConnectionMetricsTrackerFactory.getEndpointMetrics(ENDPOINT)).isNull();
+  }
+
+  @Test
+  void testDelegate() {
+    // given a factory with a delegate
+    MetricsTrackerFactory delegateFactory = mock(MetricsTrackerFactory.class);
+    IMetricsTracker delegate = mock(IMetricsTracker.class);
+    when(delegateFactory.create(any(), any())).thenReturn(delegate);
+    IMetricsTracker tracker = new RdsIamConnectionMetricsTrackerFactory(ENDPOINT, delegateFactory, false)
+        .create("delegatingPool", null);
+
+    // when recording
+    tracker.recordConnectionAcquiredNanos(42);
+    tracker.recordConnectionTimeout();
+    tracker.close();
+
+    // then the delegate shall get the events too
+    verify(delegate).recordConnectionAcquiredNanos(42);
+    verify(delegate).recordConnectionTimeout();
+    verify(delegate).close();
+  }
+
+  @Test
+  void testRegisterMBeans() throws Exception {
+    // given a factory that registers MBeans
+    IMetricsTracker tracker = new RdsIamConnectionMetricsTrackerFactory(ENDPOINT, null, true).create("mbeanPool",
+        null);
+    tracker.recordConnectionAcquiredNanos(2_000_000);
+
+    // then the pool metrics shall be readable through JMX
+    ObjectName objectName = new ObjectName("se.solrike.aws.extras:type=RdsIamConnection (mbeanPool)");
+    assertThat(ManagementFactory.getPlatformMBeanServer().getAttribute(objectName, "AcquireCount")).isEqualTo(1L);
+    assertThat(ManagementFactory.getPlatformMBeanServer()
+        .isRegistered(new ObjectName("se.solrike.aws.extras:type=RdsIamConnectionEndpoint,name=\"" + ENDPOINT + "\"")))
+            .isTrue();
+
+    // and when the pool is closed the MBeans shall be unregistered
+    tracker.close();
+    assertThat(ManagementFactory.getPlatformMBeanServer().isRegistered(objectName)).isFalse();
+  }
+
+}
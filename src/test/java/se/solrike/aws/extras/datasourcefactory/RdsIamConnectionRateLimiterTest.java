@@ -0,0 +1,57 @@
+/*
+ * Copyright © 2022 Lucas Persson. All Rights Reserved.
+ */
+package se.solrike.aws.extras.datasourcefactory;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ *
+ */
+class RdsIamConnectionRateLimiterTest {
+
+  private static final long NO_WAIT = 0;
+  private static final long LONG_WAIT = TimeUnit.SECONDS.toNanos(60);
+
+  @Test
+  void testBurstThenRate() {
+    // given a limiter with 10 permits per second and a burst of 5
+    RdsIamConnectionRateLimiter limiter = new RdsIamConnectionRateLimiter(10, 5);
+
+    // then the burst shall be handed out right away
+    for (int i = 0; i < 5; i++) {
+      assertThat(limiter.reserve(NO_WAIT)).isZero();
+    }
+    // and the following permits shall be spread 100 ms apart in the order they were reserved
+    long first = limiter.reserve(LONG_WAIT);
+    long second = limiter.reserve(LONG_WAIT);
+    assertThat(first).isPositive().isLessThanOrEqualTo(TimeUnit.MILLISECONDS.toNanos(100));
+    assertThat(second - first).isBetween(TimeUnit.MILLISECONDS.toNanos(50), TimeUnit.MILLISECONDS.toNanos(100));
+    assertThat(limiter.getPermitCount()).isEqualTo(7);
+    assertThat(limiter.getThrottledCount()).isEqualTo(2);
+  }
+
+  @Test
+  void testRejectWhenWaitIsTooLong() {
+    // given a limiter that has handed out its burst
+    RdsIamConnectionRateLimiter limiter = new RdsIamConnectionRateLimiter(1, 1);
+    assertThat(limiter.reserve(NO_WAIT)).isZero();
+
+    // when the next permit can't be had within the max wait then it shall be rejected without being reserved
+    assertThat(limiter.reserve(TimeUnit.MILLISECONDS.toNanos(10))).isEqualTo(-1);
+    assertThat(limiter.getRejectedCount()).isEqualTo(1);
+    assertThat(limiter.reserve(LONG_WAIT)).isLessThanOrEqualTo(TimeUnit.SECONDS.toNanos(1));
+  }
+
+  @Test
+  void testInvalidLimits() {
+    assertThatThrownBy(() -> new RdsIamConnectionRateLimiter(0, 1)).isInstanceOf(IllegalArgumentException.class);
+    assertThatThrownBy(() -> new RdsIamConnectionRateLimiter(1, 0)).isInstanceOf(IllegalArgumentException.class);
+  }
+
+}
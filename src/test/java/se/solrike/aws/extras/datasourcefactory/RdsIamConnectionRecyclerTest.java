@@ -0,0 +1,196 @@
+/*
+ * Copyright © 2022 Lucas Persson. All Rights Reserved.
+ */
+package se.solrike.aws.extras.datasourcefactory;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import com.zaxxer.hikari.HikariPoolMXBean;
+
+import software.amazon.awssdk.services.rds.RdsUtilities;
+import software.amazon.awssdk.services.rds.model.GenerateAuthenticationTokenRequest;
+
+/**
+ *
+ */
+class RdsIamConnectionRecyclerTest {
+
+  private static final String HOSTNAME = "database1.crux4711.eu-north-1.rds.amazonaws.com";
+  private static final DateTimeFormatter AMZ_DATE_FORMAT = DateTimeFormatter.ofPattern("yyyyMMdd'T'HHmmss'Z'")
+      .withZone(ZoneOffset.UTC);
+
+  private final RdsIamTokenRefreshScheduler mScheduler = new RdsIamTokenRefreshScheduler(1);
+  private final MutableClock mClock = new MutableClock(Instant.parse("2023-01-15T10:15:00Z"));
+
+  @AfterEach
+  void tearDown() {
+    mScheduler.close();
+  }
+
+  @Test
+  void testRetireDueConnectionsInBatches() throws SQLException {
+    // given a pool of 8 connections created in a burst and a fresh token
+    HikariPoolMXBean pool = mock(HikariPoolMXBean.class);
+    when(pool.getTotalConnections()).thenReturn(8);
+    RdsIamAuthenticationTokenRefresher refresher = refresher();
+    RdsIamConnectionRecycler recycler = start(pool, refresher, false);
+    List<Connection> connections = track(recycler, 8);
+    refresher.getAuthenticationToken();
+
+    // when no connection has reached the earliest retirement age then none shall be retired
+    mClock.advance(Duration.ofMinutes(4));
+    recycler.check();
+    assertThat(getRetired(connections)).isEmpty();
+
+    // and when all are due then at most a quarter of the pool shall be retired
+    mClock.advance(Duration.ofMinutes(6));
+    refresher.getTokenCache().refresh();
+    recycler.check();
+    assertThat(getRetired(connections)).hasSize(2);
+
+    // and when the retired connections aren't replaced yet then no more shall be retired
+    recycler.check();
+    assertThat(getRetired(connections)).hasSize(2);
+
+    // and when Hikari closes a retired connection it shall no longer be tracked and one more shall be retired
+    getRetired(connections).get(0).close();
+    assertThat(recycler.getConnectionCount()).isEqualTo(7);
+    recycler.check();
+    assertThat(getRetired(connections)).hasSize(3);
+    assertThat(recycler.getRetiredCount()).isEqualTo(3);
+  }
+
+  @Test
+  void testRetirementIsSpreadOverTheWindow() throws SQLException {
+    // given a pool of 10 connections created in a burst
+    HikariPoolMXBean pool = mock(HikariPoolMXBean.class);
+    when(pool.getTotalConnections()).thenReturn(10);
+    RdsIamAuthenticationTokenRefresher refresher = refresher();
+    RdsIamConnectionRecycler recycler = start(pool, refresher, true);
+    recycler.setMaxRetireFraction(1);
+    List<Connection> connections = track(recycler, 10);
+
+    // when the window of 5 min is checked every minute then two connections shall be retired each minute
+    mClock.advance(Duration.ofMinutes(5));
+    int retired = 0;
+    for (int minute = 1; minute <= 5; minute++) {
+      mClock.advance(Duration.ofMinutes(1));
+      recycler.check();
+      int retiredNow = getRetired(connections).size();
+      assertThat(retiredNow - retired).isEqualTo(2);
+      retired = retiredNow;
+    }
+    assertThat(retired).isEqualTo(10);
+  }
+
+  @Test
+  void testDeferWithoutFreshToken() throws SQLException {
+    // given a pool whose connections are due and a token that is about to expire
+    HikariPoolMXBean pool = mock(HikariPoolMXBean.class);
+    when(pool.getTotalConnections()).thenReturn(4);
+    RdsIamAuthenticationTokenRefresher refresher = refresher();
+    refresher.getAuthenticationToken();
+    RdsIamConnectionRecycler recycler = start(pool, refresher, false);
+    List<Connection> connections = track(recycler, 4);
+    mClock.advance(Duration.ofMinutes(12));
+
+    // when checked then the retirement shall wait for the next refresh
+    recycler.check();
+    assertThat(getRetired(connections)).isEmpty();
+    assertThat(recycler.getDeferredCount()).isEqualTo(1);
+
+    // and with token on demand a new token shall be generated for the batch
+    RdsIamConnectionRecycler onDemandRecycler = start(pool, refresher, true);
+    List<Connection> onDemandConnections = track(onDemandRecycler, 4);
+    mClock.advance(Duration.ofMinutes(12));
+    onDemandRecycler.check();
+    assertThat(getRetired(onDemandConnections)).hasSize(1);
+    assertThat(refresher.getTokenCache().getCurrentToken().getIssuedAt()).isEqualTo(mClock.instant());
+  }
+
+  private RdsIamAuthenticationTokenRefresher refresher() {
+    // tokens signed at the time of the test clock
+    RdsUtilities rdsUtilities = mock(RdsUtilities.class);
+    when(rdsUtilities.generateAuthenticationToken(any(GenerateAuthenticationTokenRequest.class)))
+        .thenAnswer(invocation -> HOSTNAME + ":3306/?Action=connect&X-Amz-Date="
+            + AMZ_DATE_FORMAT.format(mClock.instant()) + "&X-Amz-Expires=900");
+    return new RdsIamAuthenticationTokenRefresher(rdsUtilities, HOSTNAME, 3306, "myDbUsername", mScheduler);
+  }
+
+  private RdsIamConnectionRecycler start(HikariPoolMXBean pool, RdsIamAuthenticationTokenRefresher refresher,
+      boolean tokenOnDemand) {
+    RdsIamConnectionRecycler recycler = new RdsIamConnectionRecycler(() -> pool, () -> false, "database1", refresher,
+        tokenOnDemand, Duration.ofMinutes(10), Duration.ofMinutes(5), mScheduler, mClock);
+    recycler.setMaxRetireFraction(0.25);
+    recycler.setMinTokenLifetime(Duration.ofMinutes(5));
+    // only checked by the test
+    recycler.start(Duration.ofHours(1));
+    return recycler;
+  }
+
+  private static List<Connection> track(RdsIamConnectionRecycler recycler, int count) throws SQLException {
+    List<Connection> connections = new ArrayList<>();
+    for (int i = 0; i < count; i++) {
+      Connection connection = mock(Connection.class);
+      when(connection.isValid(anyInt())).thenReturn(true);
+      connections.add(recycler.track(connection));
+    }
+    return connections;
+  }
+
+  private static List<Connection> getRetired(List<Connection> connections) throws SQLException {
+    List<Connection> retired = new ArrayList<>();
+    for (Connection connection : connections) {
+      if (!connection.isValid(1)) {
+        retired.add(connection);
+      }
+    }
+    return retired;
+  }
+
+  private static class MutableClock extends Clock {
+    private Instant mInstant;
+
+    MutableClock(Instant instant) {
+      mInstant = instant;
+    }
+
+    void advance(Duration duration) {
+      mInstant = mInstant.plus(duration);
+    }
+
+    @Override
+    public ZoneId getZone() {
+      return ZoneOffset.UTC;
+    }
+
+    @Override
+    public Clock withZone(ZoneId zone) {
+      return this;
+    }
+
+    @Override
+    public Instant instant() {
+      return mInstant;
+    }
+  }
+
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright © 2022 Lucas Persson. All Rights Reserved.
+ */
+package se.solrike.aws.extras.datasourcefactory;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLTransientConnectionException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.sql.DataSource;
+
+import org.junit.jupiter.api.Test;
+
+import software.amazon.awssdk.services.rds.RdsUtilities;
+
+/**
+ *
+ */
+class RdsIamConnectionThrottleTest {
+
+  @Test
+  void testReconnectStormIsSpreadOut() throws SQLException, InterruptedException, ExecutionException {
+    // given an authenticating datasource with a throttle of 50 connections per second and a burst of 5
+    DataSource delegate = mock(DataSource.class);
+    when(delegate.getConnection(anyString(), anyString())).thenReturn(mock(Connection.class));
+    RdsIamAuthenticatingDataSource dataSource = new RdsIamAuthenticatingDataSource(delegate,
+        new RdsIamAuthenticationTokenRefresher(mock(RdsUtilities.class), "mydb.example.com", 3306, "bart"));
+    RdsIamConnectionThrottle throttle = new RdsIamConnectionThrottle();
+    throttle.setEndpointLimit(50, 5);
+    dataSource.setConnectionThrottle(throttle);
+
+    // when 25 connections are created at once
+    ExecutorService executor = Executors.newFixedThreadPool(25);
+    List<Callable<Connection>> tasks = new ArrayList<>();
+    for (int i = 0; i < 25; i++) {
+      tasks.add(() -> dataSource.getConnection("bart", "token"));
+    }
+    long start = System.nanoTime();
+    for (Future<Connection> future : executor.invokeAll(tasks)) {
+      future.get();
+    }
+    Duration elapsed = Duration.ofNanos(System.nanoTime() - start);
+    executor.shutdown();
+
+    // then the 20 connections after the burst shall be spread over 400 ms
+    assertThat(elapsed).isGreaterThanOrEqualTo(Duration.ofMillis(400));
+    assertThat(throttle.getThrottledCount()).isBetween(15L, 20L);
+    assertThat(throttle.getEndpointLimiter("MYDB.example.com", 3306).getPermitCount()).isEqualTo(25);
+    assertThat(throttle.getWaitTime().getMaxNanos()).isGreaterThanOrEqualTo(Duration.ofMillis(300).toNanos());
+  }
+
+  @Test
+  void testGlobalLimitAndMaxWait() throws SQLException {
+    // given a global limit of 1 connection per second and a max wait of 10 ms
+    RdsIamConnectionThrottle throttle = new RdsIamConnectionThrottle();
+    throttle.setGlobalLimit(1, 1);
+    throttle.setMaxWait(Duration.ofMillis(10));
+
+    // when two connections to different endpoints are created at once
+    throttle.acquire("db1.example.com", 3306);
+
+    // then the second shall fail fast
+    assertThatThrownBy(() -> throttle.acquire("db2.example.com", 3306))
+        .isInstanceOf(SQLTransientConnectionException.class);
+    assertThat(throttle.getEndpointLimiter("db2.example.com", 3306)).isNull();
+  }
+
+}
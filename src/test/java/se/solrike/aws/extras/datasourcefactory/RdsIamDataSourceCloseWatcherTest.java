@@ -0,0 +1,86 @@
+/*
+ * Copyright © 2022 Lucas Persson. All Rights Reserved.
+ */
+package se.solrike.aws.extras.datasourcefactory;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.time.Duration;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.InOrder;
+
+import com.zaxxer.hikari.HikariDataSource;
+
+/**
+ *
+ */
+class RdsIamDataSourceCloseWatcherTest {
+
+  private final RdsIamTokenRefreshScheduler mScheduler = new RdsIamTokenRefreshScheduler(1);
+  private final RdsIamDataSourceCloseWatcher mWatcher = new RdsIamDataSourceCloseWatcher(mScheduler,
+      Duration.ofHours(1));
+
+  @AfterEach
+  void tearDown() {
+    mScheduler.close();
+  }
+
+  @Test
+  void testRunCloseActionsWhenClosed() throws Exception {
+    // given two watched datasources with close actions
+    HikariDataSource datasource = mock(HikariDataSource.class);
+    HikariDataSource otherDatasource = mock(HikariDataSource.class);
+    AutoCloseable first = mock(AutoCloseable.class);
+    AutoCloseable second = mock(AutoCloseable.class);
+    AutoCloseable other = mock(AutoCloseable.class);
+    mWatcher.watch(datasource, first);
+    mWatcher.watch(datasource, second);
+    mWatcher.watch(otherDatasource, other);
+    assertThat(mScheduler.getRegistrationCount()).isEqualTo(1);
+
+    // when nothing is closed then no action shall run
+    mWatcher.check();
+    verify(first, never()).close();
+    assertThat(mWatcher.getWatchedCount()).isEqualTo(2);
+
+    // and when one datasource is closed then its actions shall run in order, even if one of them fails
+    when(datasource.isClosed()).thenReturn(true);
+    doThrow(new IllegalStateException("already closed")).when(first).close();
+    mWatcher.check();
+    InOrder inOrder = inOrder(first, second);
+    inOrder.verify(first).close();
+    inOrder.verify(second).close();
+    verify(other, never()).close();
+    assertThat(mWatcher.getWatchedCount()).isEqualTo(1);
+
+    // and when the last datasource is closed then the check shall stop
+    when(otherDatasource.isClosed()).thenReturn(true);
+    mWatcher.check();
+    verify(other).close();
+    assertThat(mWatcher.getWatchedCount()).isZero();
+    assertThat(mScheduler.getRegistrationCount()).isZero();
+  }
+
+  @Test
+  void testWatchClosedDatasource() throws Exception {
+    // given a datasource that already is closed
+    HikariDataSource datasource = mock(HikariDataSource.class);
+    when(datasource.isClosed()).thenReturn(true);
+    AutoCloseable closeAction = mock(AutoCloseable.class);
+
+    // when watched then the action shall run right away
+    mWatcher.watch(datasource, closeAction);
+    verify(closeAction).close();
+    assertThat(mWatcher.getWatchedCount()).isZero();
+    assertThat(mScheduler.getRegistrationCount()).isZero();
+  }
+
+}
@@ -0,0 +1,150 @@
+/*
+ * Copyright © 2022 Lucas Persson. All Rights Reserved.
+ */
+package se.solrike.aws.extras.datasourcefactory;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.awaitility.Awaitility.await;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLTransientConnectionException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import org.awaitility.Durations;
+import org.junit.jupiter.api.Test;
+
+import com.zaxxer.hikari.HikariDataSource;
+
+/**
+ *
+ */
+class RdsIamDeferredDataSourceTest {
+
+  @Test
+  void testGetConnectionWaitsForDatasource() throws SQLException, InterruptedException {
+    // given a datasource that is slow to create
+    CountDownLatch created = new CountDownLatch(1);
+    HikariDataSource hikariDataSource = mock(HikariDataSource.class);
+    Connection connection = mock(Connection.class);
+    when(hikariDataSource.isRunning()).thenReturn(true);
+    when(hikariDataSource.getConnection()).thenReturn(connection);
+
+    // when the deferred datasource is created
+    RdsIamDeferredDataSource dataSource = new RdsIamDeferredDataSource(() -> {
+      awaitUninterruptibly(created);
+      return hikariDataSource;
+    });
+    dataSource.setReadinessTimeout(Duration.ofMillis(50));
+
+    // then it shall not be ready and a connection can't be taken within the readiness timeout
+    assertThat(dataSource.isReady()).isFalse();
+    assertThatThrownBy(dataSource::getConnection).isInstanceOf(SQLTransientConnectionException.class);
+
+    // and when the datasource has been created a connection can be taken
+    created.countDown();
+    assertThat(dataSource.awaitReady(Duration.ofSeconds(2))).isTrue();
+    assertThat(dataSource.getConnection()).isSameAs(connection);
+    assertThat(dataSource.unwrap(HikariDataSource.class)).isSameAs(hikariDataSource);
+  }
+
+  @Test
+  void testPoolIsStartedInTheBackground() throws SQLException {
+    // given a datasource that isn't started when it is created, like Spring's
+    HikariDataSource hikariDataSource = mock(HikariDataSource.class);
+    when(hikariDataSource.getConnection()).thenReturn(mock(Connection.class));
+
+    // when the deferred datasource is created
+    RdsIamDeferredDataSource dataSource = new RdsIamDeferredDataSource(() -> hikariDataSource);
+
+    // then one connection shall be taken to start the pool
+    await().atMost(Durations.TWO_SECONDS).until(dataSource::isReady);
+    verify(hikariDataSource, times(1)).getConnection();
+  }
+
+  @Test
+  void testCreationFailure() {
+    // given a datasource that can't be created
+    RdsIamDeferredDataSource dataSource = new RdsIamDeferredDataSource(() -> {
+      throw new IllegalStateException("No token");
+    });
+
+    // when a connection is taken then the failure shall be reported
+    await().atMost(Durations.TWO_SECONDS).until(dataSource::isFailed);
+    assertThatThrownBy(dataSource::getConnection).isInstanceOf(SQLException.class)
+        .hasRootCauseInstanceOf(IllegalStateException.class);
+  }
+
+  @Test
+  void testCloseBeforeReady() {
+    // given a datasource that is slow to create
+    CountDownLatch created = new CountDownLatch(1);
+    HikariDataSource hikariDataSource = mock(HikariDataSource.class);
+    RdsIamDeferredDataSource dataSource = new RdsIamDeferredDataSource(() -> {
+      awaitUninterruptibly(created);
+      return hikariDataSource;
+    });
+
+    // when it is closed before it is created
+    dataSource.close();
+    created.countDown();
+
+    // then the created datasource shall be closed once without being started
+    await().atMost(Durations.TWO_SECONDS).untilAsserted(() -> verify(hikariDataSource).close());
+    verify(hikariDataSource, never()).getConnection();
+    assertThatThrownBy(dataSource::getConnection).isInstanceOf(SQLException.class);
+    dataSource.close();
+    verify(hikariDataSource).close();
+  }
+
+  @Test
+  void testDatasourcesAreCreatedInParallel() throws InterruptedException {
+    // given many datasources that each take 300 ms to create
+    List<RdsIamDeferredDataSource> dataSources = new ArrayList<>();
+    long start = System.nanoTime();
+    for (int i = 0; i < 10; i++) {
+      dataSources.add(new RdsIamDeferredDataSource(() -> {
+        sleepUninterruptibly(300);
+        HikariDataSource hikariDataSource = mock(HikariDataSource.class);
+        when(hikariDataSource.isRunning()).thenReturn(true);
+        return hikariDataSource;
+      }));
+    }
+
+    // when waiting for all of them
+    for (RdsIamDeferredDataSource dataSource : dataSources) {
+      assertThat(dataSource.awaitReady(Duration.ofSeconds(5))).isTrue();
+    }
+
+    // then it shall take much less than creating them one by one
+    assertThat(Duration.ofNanos(System.nanoTime() - start)).isLessThan(Duration.ofSeconds(2));
+  }
+
+  private static void awaitUninterruptibly(CountDownLatch latch) {
+    try {
+      latch.await();
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private static void sleepUninterruptibly(long millis) {
+    try {
+      Thread.sleep(millis);
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+}
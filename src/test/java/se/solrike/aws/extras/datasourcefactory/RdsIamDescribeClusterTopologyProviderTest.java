@@ -0,0 +1,76 @@
+/*
+ * Copyright © 2022 Lucas Persson. All Rights Reserved.
+ */
+package se.solrike.aws.extras.datasourcefactory;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.argThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+import software.amazon.awssdk.services.rds.RdsClient;
+import software.amazon.awssdk.services.rds.model.DBCluster;
+import software.amazon.awssdk.services.rds.model.DBClusterMember;
+import software.amazon.awssdk.services.rds.model.DBInstance;
+import software.amazon.awssdk.services.rds.model.DescribeDbClustersRequest;
+import software.amazon.awssdk.services.rds.model.DescribeDbClustersResponse;
+import software.amazon.awssdk.services.rds.model.DescribeDbInstancesRequest;
+import software.amazon.awssdk.services.rds.model.DescribeDbInstancesResponse;
+import software.amazon.awssdk.services.rds.model.Endpoint;
+
+/**
+ *
+ */
+class RdsIamDescribeClusterTopologyProviderTest {
+
+  @Test
+  void testGetClusterMembers() {
+    // given a cluster with a writer, an available reader on the second page and a reader that is being created
+    RdsClient rdsClient = mock(RdsClient.class);
+    when(rdsClient.describeDBClusters(any(DescribeDbClustersRequest.class)))
+        .thenReturn(DescribeDbClustersResponse.builder()
+            .dbClusters(DBCluster.builder()
+                .port(3306)
+                .dbClusterMembers(clusterMember("db1", true), clusterMember("db2", false),
+                    clusterMember("db3", false))
+                .build())
+            .build());
+    when(rdsClient.describeDBInstances(argThat((DescribeDbInstancesRequest request) -> request.marker() == null)))
+        .thenReturn(DescribeDbInstancesResponse.builder()
+            .dbInstances(instance("db1", "available"), instance("db3", "creating"))
+            .marker("page2")
+            .build());
+    when(rdsClient
+        .describeDBInstances(argThat((DescribeDbInstancesRequest request) -> "page2".equals(request.marker()))))
+        .thenReturn(DescribeDbInstancesResponse.builder().dbInstances(instance("db2", "backing-up")).build());
+
+    // when
+    List<RdsIamClusterMember> members = new RdsIamDescribeClusterTopologyProvider(rdsClient, "cluster1")
+        .getClusterMembers();
+
+    // then the available instances shall be members with their role
+    assertThat(members).containsExactly(
+        new RdsIamClusterMember("db1", "db1.crux4711.eu-north-1.rds.amazonaws.com", 3306, true),
+        new RdsIamClusterMember("db2", "db2.crux4711.eu-north-1.rds.amazonaws.com", 3306, false));
+    assertThat(members.get(1).getJdbcUrl("jdbc:mysql://cluster1.cluster-crux4711.eu-north-1.rds.amazonaws.com:3306/db"))
+        .isEqualTo("jdbc:mysql://db2.crux4711.eu-north-1.rds.amazonaws.com:3306/db");
+  }
+
+  private static DBClusterMember clusterMember(String instanceIdentifier, boolean writer) {
+    return DBClusterMember.builder().dbInstanceIdentifier(instanceIdentifier).isClusterWriter(writer).build();
+  }
+
+  private static DBInstance instance(String instanceIdentifier, String status) {
+    return DBInstance.builder()
+        .dbInstanceIdentifier(instanceIdentifier)
+        .dbInstanceStatus(status)
+        .endpoint(Endpoint.builder().address(instanceIdentifier + ".crux4711.eu-north-1.rds.amazonaws.com").build())
+        .build();
+  }
+
+}
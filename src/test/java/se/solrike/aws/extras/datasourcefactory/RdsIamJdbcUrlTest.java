@@ -0,0 +1,90 @@
+/*
+ * Copyright © 2022 Lucas Persson. All Rights Reserved.
+ */
+package se.solrike.aws.extras.datasourcefactory;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ *
+ */
+class RdsIamJdbcUrlTest {
+
+  @Test
+  void testSingleHost() {
+    RdsIamJdbcUrl jdbcUrl = RdsIamJdbcUrl
+        .parse("jdbc:mysql://database1.crux4711.eu-north-1.rds.amazonaws.com:3306/database1");
+
+    assertThat(jdbcUrl.getEngine()).isEqualTo("mysql");
+    assertThat(jdbcUrl.getHosts())
+        .containsExactly(new RdsIamJdbcUrl.Host("database1.crux4711.eu-north-1.rds.amazonaws.com", 3306));
+    assertThat(jdbcUrl.isFailover()).isFalse();
+    assertThat(jdbcUrl.withHost("database2.crux4711.eu-north-1.rds.amazonaws.com", 3307))
+        .isEqualTo("jdbc:mysql://database2.crux4711.eu-north-1.rds.amazonaws.com:3307/database1");
+    // and the parsed URL shall be cached
+    assertThat(RdsIamJdbcUrl.parse("jdbc:mysql://database1.crux4711.eu-north-1.rds.amazonaws.com:3306/database1"))
+        .isSameAs(jdbcUrl);
+  }
+
+  @Test
+  void testFailoverHosts() {
+    RdsIamJdbcUrl jdbcUrl = RdsIamJdbcUrl.parse("jdbc:postgresql://host1,host2:5433/database1?sslmode=verify-full");
+
+    assertThat(jdbcUrl.getHosts()).containsExactly(new RdsIamJdbcUrl.Host("host1", 5432),
+        new RdsIamJdbcUrl.Host("host2", 5433));
+    assertThat(jdbcUrl.isFailover()).isTrue();
+    assertThat(jdbcUrl.withHost("host2", 5433)).isEqualTo("jdbc:postgresql://host2:5433/database1?sslmode=verify-full");
+  }
+
+  @Test
+  void testDefaultPorts() {
+    assertThat(RdsIamJdbcUrl.parse("jdbc:mysql://host1/database1").getHost().getPort()).isEqualTo(3306);
+    assertThat(RdsIamJdbcUrl.parse("jdbc:mariadb://host1/database1").getHost().getPort()).isEqualTo(3306);
+    assertThat(RdsIamJdbcUrl.parse("jdbc:postgresql://host1/database1").getHost().getPort()).isEqualTo(5432);
+    assertThat(RdsIamJdbcUrl.parse("jdbc:postgresql:database1").getHost())
+        .isEqualTo(new RdsIamJdbcUrl.Host("localhost", 5432));
+  }
+
+  @Test
+  void testAwsWrapper() {
+    RdsIamJdbcUrl jdbcUrl = RdsIamJdbcUrl
+        .parse("jdbc:aws-wrapper:postgresql://cluster1.cluster-crux4711.eu-north-1.rds.amazonaws.com/database1");
+
+    assertThat(jdbcUrl.isAwsWrapper()).isTrue();
+    assertThat(jdbcUrl.getEngine()).isEqualTo("postgresql");
+    assertThat(jdbcUrl.getHost().getPort()).isEqualTo(5432);
+  }
+
+  @Test
+  void testMysqlAddressLists() {
+    RdsIamJdbcUrl jdbcUrl = RdsIamJdbcUrl
+        .parse("jdbc:mysql:replication://address=(host=host1)(port=3306),(host=host2,port=3307)/database1");
+
+    assertThat(jdbcUrl.getHosts()).containsExactly(new RdsIamJdbcUrl.Host("host1", 3306),
+        new RdsIamJdbcUrl.Host("host2", 3307));
+    // the replication connection needs all hosts
+    assertThat(jdbcUrl.isFailover()).isFalse();
+  }
+
+  @Test
+  void testIpv6() {
+    RdsIamJdbcUrl jdbcUrl = RdsIamJdbcUrl.parse("jdbc:mysql://[::1]:3307,[fe80::1]/database1");
+
+    assertThat(jdbcUrl.getHosts()).containsExactly(new RdsIamJdbcUrl.Host("::1", 3307),
+        new RdsIamJdbcUrl.Host("fe80::1", 3306));
+    assertThat(jdbcUrl.withHost("::1", 3307)).isEqualTo("jdbc:mysql://[::1]:3307/database1");
+  }
+
+  @Test
+  void testInvalidUrls() {
+    assertThatThrownBy(() -> RdsIamJdbcUrl.parse("mysql://host1/database1"))
+        .isInstanceOf(IllegalArgumentException.class);
+    assertThatThrownBy(() -> RdsIamJdbcUrl.parse("jdbc:h2:mem:database1")).isInstanceOf(IllegalArgumentException.class);
+    assertThatThrownBy(() -> RdsIamJdbcUrl.parse("jdbc:mysql://host1:port/database1"))
+        .isInstanceOf(IllegalArgumentException.class);
+  }
+
+}
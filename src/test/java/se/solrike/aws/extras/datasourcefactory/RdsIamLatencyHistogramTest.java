@@ -0,0 +1,104 @@
+/*
+ * Copyright © 2022 Lucas Persson. All Rights Reserved.
+ */
+package se.solrike.aws.extras.datasourcefactory;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.within;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ *
+ */
+class RdsIamLatencyHistogramTest {
+
+  @Test
+  void testPercentiles() {
+    // given a histogram with the values 1 to 1000 ms
+    RdsIamLatencyHistogram histogram = new RdsIamLatencyHistogram();
+    for (long i = 1; i <= 1000; i++) {
+      histogram.record(i * 1_000_000);
+    }
+
+    // then the percentiles shall be within the precision of the histogram
+    assertThat(histogram.getCount()).isEqualTo(1000);
+    assertThat(histogram.getMeanNanos()).isEqualTo(500_500_000.0);
+    assertThat(histogram.getMaxNanos()).isEqualTo(1_000_000_000);
+    assertThat((double) histogram.getPercentileNanos(0.5)).isCloseTo(500_000_000, within(500_000_000 * 0.125));
+    assertThat((double) histogram.getPercentileNanos(0.99)).isCloseTo(990_000_000, within(990_000_000 * 0.125));
+    assertThat(histogram.getPercentileNanos(1)).isEqualTo(1_000_000_000);
+  }
+
+  @Test
+  void testBuckets() {
+    // every value shall be in a bucket whose upper bound is at least the value and at most 12.5 % larger
+    for (long value : new long[] { 0, 1, 7, 8, 9, 15, 16, 17, 1000, 123_456_789, Long.MAX_VALUE }) {
+      long upperBound = RdsIamLatencyHistogram.getBucketUpperBound(RdsIamLatencyHistogram.getBucketIndex(value));
+      assertThat(upperBound).isGreaterThanOrEqualTo(value);
+      assertThat(upperBound - value).isLessThanOrEqualTo(value / 8);
+    }
+  }
+
+  @Test
+  void testReset() {
+    RdsIamLatencyHistogram histogram = new RdsIamLatencyHistogram();
+    histogram.record(42);
+
+    histogram.reset();
+
+    assertThat(histogram.getSnapshot().getCount()).isZero();
+    assertThat(histogram.getPercentileNanos(0.99)).isZero();
+    assertThat(histogram.getMaxNanos()).isZero();
+  }
+
+  @Test
+  void testAdd() {
+    // given two histograms
+    RdsIamLatencyHistogram histogram1 = new RdsIamLatencyHistogram();
+    RdsIamLatencyHistogram histogram2 = new RdsIamLatencyHistogram();
+    for (long i = 1; i <= 999; i++) {
+      histogram1.record(1_000_000);
+    }
+    histogram2.record(1_000_000_000);
+
+    // when added together
+    RdsIamLatencyHistogram sum = new RdsIamLatencyHistogram();
+    sum.add(histogram1);
+    sum.add(histogram2);
+
+    // then the sum shall have the values of both
+    RdsIamLatencyHistogram.Snapshot snapshot = sum.getSnapshot();
+    assertThat(snapshot.getCount()).isEqualTo(1000);
+    assertThat(snapshot.getMaxNanos()).isEqualTo(1_000_000_000);
+    assertThat((double) snapshot.getP999Nanos()).isCloseTo(1_000_000, within(1_000_000 * 0.125));
+    assertThat(histogram1.getCount()).isEqualTo(999);
+  }
+
+  @Test
+  void testConcurrentRecording()throws InterruptedException {
+    // given many threads that record at the same time
+    RdsIamLatencyHistogram histogram = new RdsIamLatencyHistogram();
+    List<Thread> threads = new ArrayList<>();
+    for (int i = 0; i < 8; i++) {
+      Thread thread = new Thread(() -> {
+        for (int j = 0; j < 10_000; j++) {
+          histogram.record(j);
+        }
+      });
+      threads.add(thread);
+      thread.start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+
+    // then no value shall be lost
+    assertThat(histogram.getCount()).isEqualTo(80_000);
+    assertThat(histogram.getMaxNanos()).isEqualTo(9_999);
+  }
+
+}
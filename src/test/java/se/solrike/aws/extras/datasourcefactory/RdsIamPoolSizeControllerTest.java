@@ -0,0 +1,153 @@
+/*
+ * Copyright © 2022 Lucas Persson. All Rights Reserved.
+ */
+package se.solrike.aws.extras.datasourcefactory;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.time.Duration;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import com.zaxxer.hikari.HikariConfig;
+import com.zaxxer.hikari.HikariPoolMXBean;
+
+/**
+ *
+ */
+class RdsIamPoolSizeControllerTest {
+
+  private static final String HOSTNAME = "database1.crux4711.eu-north-1.rds.amazonaws.com";
+
+  private final RdsIamTokenRefreshScheduler mScheduler = new RdsIamTokenRefreshScheduler(1);
+
+  @AfterEach
+  void tearDown() {
+    mScheduler.close();
+  }
+
+  @Test
+  void testGrowWhenThreadsAreWaiting() {
+    // given a pool of 4 that may grow to 10
+    HikariConfig config = config(4);
+    HikariPoolMXBean pool = mock(HikariPoolMXBean.class);
+    RdsIamPoolSizeController controller = start(config, pool, 2, 10, null);
+
+    // when threads are waiting for one sample
+    when(pool.getActiveConnections()).thenReturn(4);
+    when(pool.getThreadsAwaitingConnection()).thenReturn(3);
+    controller.sample();
+
+    // then it shall not grow yet
+    assertThat(config.getMaximumPoolSize()).isEqualTo(4);
+
+    // and when they are waiting for another sample then it shall grow by the number of waiting threads
+    controller.sample();
+    assertThat(config.getMaximumPoolSize()).isEqualTo(7);
+    assertThat(controller.getGrowCount()).isEqualTo(1);
+
+    // and never above the max size
+    controller.sample();
+    controller.sample();
+    assertThat(config.getMaximumPoolSize()).isEqualTo(10);
+  }
+
+  @Test
+  void testShrinkAfterLowUtilization() {
+    // given a pool of 8 where one connection is in use
+    HikariConfig config = config(8);
+    HikariPoolMXBean pool = mock(HikariPoolMXBean.class);
+    when(pool.getActiveConnections()).thenReturn(1);
+    RdsIamConnectionBudget budget = new RdsIamConnectionBudget();
+    RdsIamPoolSizeController controller = start(config, pool, 2, 10, budget);
+
+    // when the utilization has been low for 11 samples then it shall not shrink yet
+    for (int i = 0; i < 11; i++) {
+      controller.sample();
+    }
+    assertThat(config.getMaximumPoolSize()).isEqualTo(8);
+
+    // and when it has been low for 12 samples it shall shrink by a quarter and release the budget
+    controller.sample();
+    assertThat(config.getMaximumPoolSize()).isEqualTo(6);
+    assertThat(config.getMinimumIdle()).isEqualTo(2);
+    assertThat(budget.getReserved(HOSTNAME, 3306)).isEqualTo(6);
+    assertThat(controller.getShrinkCount()).isEqualTo(1);
+    // the pool holds no surplus connections
+    verify(pool, never()).softEvictConnections();
+
+    // and when closed the budget shall be released
+    controller.close();
+    assertThat(budget.getReserved(HOSTNAME, 3306)).isZero();
+  }
+
+  @Test
+  void testShrinkWithDefaultMinimumIdle() {
+    // given a pool of 8 without minimum idle, i.e. the minimum idle is the max size, that holds 8 connections
+    HikariConfig config = new HikariConfig();
+    config.setPoolName("pool");
+    config.setMaximumPoolSize(8);
+    HikariPoolMXBean pool = mock(HikariPoolMXBean.class);
+    when(pool.getActiveConnections()).thenReturn(1);
+    when(pool.getTotalConnections()).thenReturn(8);
+    RdsIamConnectionBudget budget = new RdsIamConnectionBudget();
+    RdsIamPoolSizeController controller = start(config, pool, 2, 10, budget);
+    assertThat(config.getMinimumIdle()).isEqualTo(8);
+
+    // when the utilization has been low long enough to shrink
+    for (int i = 0; i < 12; i++) {
+      controller.sample();
+    }
+
+    // then the minimum idle shall follow the max size
+    assertThat(config.getMaximumPoolSize()).isEqualTo(6);
+    assertThat(config.getMinimumIdle()).isEqualTo(6);
+    assertThat(budget.getReserved(HOSTNAME, 3306)).isEqualTo(6);
+    // and the connections shall not be evicted, the surplus is left to drain by the max lifetime
+    verify(pool, never()).softEvictConnections();
+  }
+
+  @Test
+  void testBudgetIsSharedByThePools() {
+    // given two pools of 4 to the same endpoint with a budget of 10
+    RdsIamConnectionBudget budget = new RdsIamConnectionBudget();
+    budget.setEndpointBudget(HOSTNAME, 3306, 10);
+    HikariConfig config1 = config(4);
+    HikariPoolMXBean pool1 = mock(HikariPoolMXBean.class);
+    RdsIamPoolSizeController controller1 = start(config1, pool1, 2, 20, budget);
+    start(config(4), mock(HikariPoolMXBean.class), 2, 20, budget);
+
+    // when the first pool needs 5 more connections
+    when(pool1.getActiveConnections()).thenReturn(4);
+    when(pool1.getThreadsAwaitingConnection()).thenReturn(5);
+    controller1.sample();
+    controller1.sample();
+
+    // then it shall only grow to what is left of the budget
+    assertThat(config1.getMaximumPoolSize()).isEqualTo(6);
+    assertThat(budget.getReserved(HOSTNAME, 3306)).isEqualTo(10);
+    assertThat(controller1.getBudgetDeniedCount()).isEqualTo(1);
+  }
+
+  private RdsIamPoolSizeController start(HikariConfig config, HikariPoolMXBean pool, int minSize, int maxSize,
+      RdsIamConnectionBudget budget) {
+    RdsIamPoolSizeController controller = new RdsIamPoolSizeController(config, () -> pool, () -> false, HOSTNAME,
+        3306, minSize, maxSize, budget, mScheduler);
+    controller.start(Duration.ofHours(1));
+    return controller;
+  }
+
+  private static HikariConfig config(int maximumPoolSize) {
+    HikariConfig config = new HikariConfig();
+    config.setPoolName("pool");
+    config.setMaximumPoolSize(maximumPoolSize);
+    config.setMinimumIdle(2);
+    return config;
+  }
+
+}
@@ -0,0 +1,178 @@
+/*
+ * Copyright © 2022 Lucas Persson. All Rights Reserved.
+ */
+package se.solrike.aws.extras.datasourcefactory;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.awaitility.Awaitility.await;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.awaitility.Durations;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import com.sun.net.httpserver.HttpServer;
+
+import software.amazon.awssdk.auth.credentials.AwsCredentials;
+import software.amazon.awssdk.auth.credentials.AwsCredentialsProvider;
+import software.amazon.awssdk.auth.credentials.ContainerCredentialsProvider;
+
+/**
+ *
+ */
+class RdsIamPrefetchingCredentialsProviderTest {
+
+  private static final long ENDPOINT_LATENCY_MS = 300;
+
+  // system property of the AWS SDK with the path of the ECS container credentials endpoint
+  private static final String CONTAINER_CREDENTIALS_PATH = "aws.containerCredentialsPath";
+
+  private HttpServer mServer;
+  private final AtomicInteger mRequestCount = new AtomicInteger();
+
+  /*
+   * Local stand-in for the ECS container credentials endpoint. It is slow like a real endpoint under load. The
+   * credentials expire within the AWS SDK's prefetch window so the SDK provider fetches new ones on every call.
+   */
+  @BeforeEach
+  void startContainerCredentialsEndpoint() throws IOException {
+    mServer = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+    mServer.createContext("/v2/credentials", exchange -> {
+      int count = mRequestCount.incrementAndGet();
+      try {
+        Thread.sleep(ENDPOINT_LATENCY_MS);
+      }
+      catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      byte[] body = ("{\"AccessKeyId\":\"ASIAEXAMPLE" + count + "\",\"SecretAccessKey\":\"secret\","
+          + "\"Token\":\"sessionToken\",\"Expiration\":\"" + Instant.now().plus(Duration.ofMinutes(2)) + "\"}")
+              .getBytes(StandardCharsets.UTF_8);
+      exchange.sendResponseHeaders(200, body.length);
+      try (OutputStream out = exchange.getResponseBody()) {
+        out.write(body);
+      }
+    });
+    mServer.start();
+    System.setProperty(CONTAINER_CREDENTIALS_PATH, "/v2/credentials");
+  }
+
+  @AfterEach
+  void stopContainerCredentialsEndpoint() {
+    System.clearProperty(CONTAINER_CREDENTIALS_PATH);
+    mServer.stop(0);
+  }
+
+  @Test
+  void testCredentialsArePrefetched() {
+    // given a prefetching provider in front of a provider that calls the container credentials endpoint
+    RdsIamTokenRefreshScheduler scheduler = new RdsIamTokenRefreshScheduler();
+    RdsIamPrefetchingCredentialsProvider provider = new RdsIamPrefetchingCredentialsProvider(
+        createContainerCredentialsProvider(), Duration.ofMillis(100), scheduler);
+
+    // when the first prefetch has completed
+    await().atMost(Durations.TWO_SECONDS).until(() -> provider.getPrefetchCount() > 0);
+
+    // then resolving the credentials shall not call the endpoint
+    long start = System.nanoTime();
+    AwsCredentials credentials = provider.resolveCredentials();
+    long elapsedMs = (System.nanoTime() - start) / 1_000_000;
+    assertThat(credentials.accessKeyId()).startsWith("ASIAEXAMPLE");
+    assertThat(elapsedMs).isLessThan(ENDPOINT_LATENCY_MS);
+
+    // and the credentials shall keep being refreshed in the background
+    await().atMost(Durations.TWO_SECONDS)
+        .untilAsserted(() -> assertThat(provider.resolveCredentials().accessKeyId()).isNotEqualTo("ASIAEXAMPLE1"));
+
+    provider.close();
+    scheduler.close();
+  }
+
+  @Test
+  void testPrefetchingIsShared() {
+    // given a prefetching provider for a provider
+    AwsCredentialsProvider delegate = createContainerCredentialsProvider();
+    RdsIamPrefetchingCredentialsProvider provider = RdsIamPrefetchingCredentialsProvider.prefetching(delegate);
+
+    // when it is asked for again then the same prefetching provider shall be returned
+    assertThat(RdsIamPrefetchingCredentialsProvider.prefetching(delegate)).isSameAs(provider);
+    assertThat(RdsIamPrefetchingCredentialsProvider.prefetching(provider)).isSameAs(provider);
+
+    // and when one reference is closed then the prefetch shall continue
+    provider.close();
+    assertThat(provider.isClosed()).isFalse();
+
+    // and when the last reference is closed then the prefetch shall stop
+    provider.close();
+    assertThat(provider.isClosed()).isTrue();
+    RdsIamPrefetchingCredentialsProvider newProvider = RdsIamPrefetchingCredentialsProvider.prefetching(delegate);
+    assertThat(newProvider).isNotSameAs(provider);
+    newProvider.close();
+  }
+
+  @Test
+  void testExpiredCredentialsAreNotHandedOut() {
+    // given a provider whose first credentials expire right away and a prefetch that doesn't run again
+    AtomicInteger count = new AtomicInteger();
+    AwsCredentialsProvider delegate = () -> new ExpiringCredentials("ASIAEXAMPLE" + count.incrementAndGet(),
+        count.get() == 1 ? Instant.now().plusMillis(100) : Instant.now().plus(Duration.ofHours(1)));
+    RdsIamTokenRefreshScheduler scheduler = new RdsIamTokenRefreshScheduler();
+    RdsIamPrefetchingCredentialsProvider provider = new RdsIamPrefetchingCredentialsProvider(delegate,
+        Duration.ofHours(1), scheduler);
+    await().atMost(Durations.TWO_SECONDS).until(() -> provider.getPrefetchCount() > 0);
+
+    // when the prefetched credentials have expired
+    await().atMost(Durations.TWO_SECONDS)
+        .until(() -> !provider.resolveCredentials().accessKeyId().equals("ASIAEXAMPLE1"));
+
+    // then new credentials shall be resolved from the provider and be handed out while valid
+    assertThat(provider.resolveCredentials().accessKeyId()).isEqualTo("ASIAEXAMPLE2");
+    assertThat(count).hasValue(2);
+
+    provider.close();
+    scheduler.close();
+  }
+
+  private AwsCredentialsProvider createContainerCredentialsProvider() {
+    return ContainerCredentialsProvider.builder()
+        .endpoint("http://localhost:" + mServer.getAddress().getPort())
+        .build();
+  }
+
+  /*
+   * Session credentials with an expiration time like in later AWS SDK versions.
+   */
+  static final class ExpiringCredentials implements AwsCredentials {
+    private final String mAccessKeyId;
+    private final Instant mExpirationTime;
+
+    ExpiringCredentials(String accessKeyId, Instant expirationTime) {
+      mAccessKeyId = accessKeyId;
+      mExpirationTime = expirationTime;
+    }
+
+    @Override
+    public String accessKeyId() {
+      return mAccessKeyId;
+    }
+
+    @Override
+    public String secretAccessKey() {
+      return "secret";
+    }
+
+    public Optional<Instant> expirationTime() {
+      return Optional.of(mExpirationTime);
+    }
+  }
+
+}
@@ -0,0 +1,164 @@
+/*
+ * Copyright © 2022 Lucas Persson. All Rights Reserved.
+ */
+package se.solrike.aws.extras.datasourcefactory;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLTransientConnectionException;
+import java.time.Duration;
+
+import javax.sql.DataSource;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ *
+ */
+class RdsIamRoutingDataSourceTest {
+
+  @Test
+  void testReadOnlyConnectionsGoToReaders() throws SQLException {
+    // given a writer and two readers
+    DataSource writer = mockDataSource();
+    DataSource reader1 = mockDataSource();
+    DataSource reader2 = mockDataSource();
+    RdsIamRoutingDataSource routingDataSource = new RdsIamRoutingDataSource("writer", writer);
+    routingDataSource.addReader("reader1", reader1);
+    routingDataSource.addReader("reader2", reader2);
+
+    // when two read-only connections are used at the same time
+    Connection connection1 = routingDataSource.getConnection();
+    connection1.setReadOnly(true);
+    connection1.setAutoCommit(false);
+    connection1.createStatement();
+    Connection connection2 = routingDataSource.getConnection();
+    connection2.setReadOnly(true);
+    connection2.createStatement();
+
+    // then they shall be spread over the readers
+    assertThat(routingDataSource.getReader("reader1").getOutstandingCount()).isEqualTo(1);
+    assertThat(routingDataSource.getReader("reader2").getOutstandingCount()).isEqualTo(1);
+    verify(writer, never()).getConnection();
+    verify(reader1.getConnection()).setReadOnly(true);
+
+    // and when they are closed they shall no longer be outstanding
+    connection1.close();
+    connection2.close();
+    assertThat(routingDataSource.getReader("reader1").getOutstandingCount()).isZero();
+    assertThat(routingDataSource.getReader("reader2").getOutstandingCount()).isZero();
+
+    // and when a connection isn't read-only it shall go to the writer
+    try (Connection connection = routingDataSource.getConnection()) {
+      connection.createStatement();
+    }
+    verify(writer).getConnection();
+  }
+
+  @Test
+  void testReadOnlyHint() throws SQLException {
+    // given a writer and a reader
+    DataSource writer = mockDataSource();
+    DataSource reader = mockDataSource();
+    RdsIamRoutingDataSource routingDataSource = new RdsIamRoutingDataSource("writer", writer);
+    routingDataSource.addReader("reader", reader);
+
+    // when a connection is used inside a read-only hint
+    try (RdsIamRoutingDataSource.ReadOnlyHint hint = RdsIamRoutingDataSource.readOnly();
+        Connection connection = routingDataSource.getConnection()) {
+      assertThat(connection.isReadOnly()).isTrue();
+      connection.createStatement();
+    }
+
+    // then it shall be taken from the reader
+    verify(reader).getConnection();
+    verify(writer, never()).getConnection();
+    assertThat(RdsIamRoutingDataSource.isReadOnlyHint()).isFalse();
+  }
+
+  @Test
+  void testUnusedConnectionTakesNoPhysicalConnection() throws SQLException {
+    // given
+    DataSource writer = mockDataSource();
+    RdsIamRoutingDataSource routingDataSource = new RdsIamRoutingDataSource("writer", writer);
+
+    // when a connection is only set up and committed
+    Connection connection = routingDataSource.getConnection();
+    connection.setAutoCommit(false);
+    connection.commit();
+    connection.close();
+
+    // then no physical connection shall be taken
+    verify(writer, never()).getConnection();
+    assertThat(connection.isClosed()).isTrue();
+  }
+
+  @Test
+  void testUnhealthyReaderIsEjectedAndAdmittedAgain() throws SQLException, InterruptedException {
+    // given a healthy and a failing reader
+    DataSource writer = mockDataSource();
+    DataSource healthy = mockDataSource();
+    DataSource failing = mock(DataSource.class);
+    when(failing.getConnection()).thenThrow(new SQLTransientConnectionException("down"))
+        .thenReturn(mock(Connection.class));
+    RdsIamRoutingDataSource routingDataSource = new RdsIamRoutingDataSource("writer", writer);
+    routingDataSource.setEjectionTime(Duration.ofMillis(200));
+    routingDataSource.addReader("healthy", healthy);
+    routingDataSource.addReader("failing", failing);
+
+    // when read-only connections are used while the healthy reader has one outstanding
+    Connection outstanding = readOnlyConnection(routingDataSource);
+    for (int i = 0; i < 3; i++) {
+      readOnlyConnection(routingDataSource).close();
+    }
+
+    // then the failing reader shall be ejected and the healthy one used
+    RdsIamRoutingDataSource.Endpoint failingReader = routingDataSource.getReader("failing");
+    assertThat(failingReader.isEjected()).isTrue();
+    assertThat(failingReader.getEjectionCount()).isEqualTo(1);
+    verify(failing, times(1)).getConnection();
+    verify(writer, never()).getConnection();
+
+    // and when the ejection time has passed it shall be admitted again
+    Thread.sleep(250);
+    assertThat(failingReader.isEjected()).isFalse();
+    readOnlyConnection(routingDataSource).close();
+    verify(failing, times(2)).getConnection();
+    outstanding.close();
+  }
+
+  @Test
+  void testFallbackToWriter() throws SQLException {
+    // given a writer and no readers
+    DataSource writer = mockDataSource();
+    RdsIamRoutingDataSource routingDataSource = new RdsIamRoutingDataSource("writer", writer);
+
+    // when a read-only connection is used
+    readOnlyConnection(routingDataSource).close();
+
+    // then it shall be taken from the writer
+    verify(writer).getConnection();
+    assertThat(routingDataSource.getWriter().getOutstandingCount()).isZero();
+  }
+
+  private static Connection readOnlyConnection(RdsIamRoutingDataSource routingDataSource) throws SQLException {
+    Connection connection = routingDataSource.getConnection();
+    connection.setReadOnly(true);
+    connection.createStatement();
+    return connection;
+  }
+
+  private static DataSource mockDataSource() throws SQLException {
+    DataSource dataSource = mock(DataSource.class);
+    when(dataSource.getConnection()).thenReturn(mock(Connection.class));
+    return dataSource;
+  }
+
+}
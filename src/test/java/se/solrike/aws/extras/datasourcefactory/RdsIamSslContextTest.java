@@ -0,0 +1,104 @@
+/*
+ * Copyright © 2022 Lucas Persson. All Rights Reserved.
+ */
+package se.solrike.aws.extras.datasourcefactory;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.Mockito.mock;
+
+import java.io.ByteArrayInputStream;
+import java.security.GeneralSecurityException;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import se.solrike.aws.extras.datasourcefactory.sample.GenericRdsIamDatasourceFactory;
+import software.amazon.awssdk.services.rds.RdsUtilities;
+
+/**
+ *
+ */
+class RdsIamSslContextTest {
+
+  private final RdsIamSslContext mSharedInstance = RdsIamSslContext.getSharedInstanceIfCreated();
+
+  @AfterEach
+  void tearDown() {
+    RdsIamSslContext.setSharedInstance(mSharedInstance);
+  }
+
+  @Test
+  void testPostgresqlDriverProperties() throws GeneralSecurityException {
+    // given a context with the default trust store of the JVM
+    RdsIamSslContext sslContext = new RdsIamSslContext(null);
+
+    // then PostgreSQL shall get the shared socket factory and verify the hostname
+    assertThat(sslContext
+        .getDriverProperties("jdbc:postgresql://database1.crux4711.eu-north-1.rds.amazonaws.com:5432/database1"))
+            .containsEntry("sslfactory", RdsIamSslSocketFactory.class.getName())
+            .containsEntry("sslmode", "verify-full");
+  }
+
+  @Test
+  void testMysqlDriverProperties() throws GeneralSecurityException {
+    // given a context with the default trust store of the JVM
+    RdsIamSslContext sslContext = new RdsIamSslContext(null);
+
+    // then MySQL shall verify the hostname and fall back to the trust store of the JVM
+    assertThat(sslContext
+        .getDriverProperties("jdbc:mysql://database1.crux4711.eu-north-1.rds.amazonaws.com:3306/database1"))
+            .containsOnlyKeys("sslMode")
+            .containsEntry("sslMode", "VERIFY_IDENTITY");
+    // and other drivers shall not get any properties
+    assertThat(sslContext.getDriverProperties("jdbc:h2:mem:test")).isEmpty();
+    assertThat(sslContext.getDriverProperties("jdbc:mariadb://localhost:3306/database1")).isEmpty();
+  }
+
+  @Test
+  void testAwsWrapperDriverProperties() throws GeneralSecurityException {
+    // given a context with the default trust store of the JVM
+    RdsIamSslContext sslContext = new RdsIamSslContext(null);
+
+    // then the drivers behind the AWS JDBC wrapper shall get the same properties as without it
+    assertThat(sslContext.getDriverProperties(
+        "jdbc:aws-wrapper:postgresql://database1.crux4711.eu-north-1.rds.amazonaws.com:5432/database1"))
+            .containsEntry("sslfactory", RdsIamSslSocketFactory.class.getName())
+            .containsEntry("sslmode", "verify-full");
+    assertThat(sslContext
+        .getDriverProperties("jdbc:aws-wrapper:mysql://database1.crux4711.eu-north-1.rds.amazonaws.com/database1"))
+            .containsEntry("sslMode", "VERIFY_IDENTITY");
+  }
+
+  @Test
+  void testSocketFactoryUsesSharedContext() throws GeneralSecurityException {
+    // given a shared context with the default trust store of the JVM
+    RdsIamSslContext.setSharedInstance(new RdsIamSslContext(null));
+
+    // then the socket factory created by the driver shall use the shared context
+    assertThat(new RdsIamSslSocketFactory().getSupportedCipherSuites())
+        .containsExactly(RdsIamSslContext.getSharedInstance().getSocketFactory().getSupportedCipherSuites());
+  }
+
+  @Test
+  void testNoCaBundle() {
+    // given no shared context and no CA bundle
+    RdsIamSslContext.setSharedInstance(null);
+
+    // then the shared context shall not fall back to the default trust store of the JVM
+    assertThatThrownBy(RdsIamSslContext::getSharedInstance).isInstanceOf(IllegalStateException.class)
+        .hasMessageContaining(RdsIamSslContext.CA_BUNDLE_PROPERTY);
+    // and the factory shall fail when the shared context is enabled
+    GenericRdsIamDatasourceFactory factory = new GenericRdsIamDatasourceFactory(mock(RdsUtilities.class));
+    RdsIamDatasourceOptions options = factory.getOptions();
+    assertThatThrownBy(() -> options.setSharedSslContextEnabled(true)).isInstanceOf(IllegalStateException.class);
+    assertThat(options.isSharedSslContextEnabled()).isFalse();
+  }
+
+  @Test
+  void testEmptyCaBundle() {
+    assertThatThrownBy(() -> RdsIamSslContext.fromCaBundle(new ByteArrayInputStream(new byte[0])))
+        .isInstanceOf(GeneralSecurityException.class);
+  }
+
+}
@@ -0,0 +1,191 @@
+/*
+ * Copyright © 2022 Lucas Persson. All Rights Reserved.
+ */
+package se.solrike.aws.extras.datasourcefactory;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.sql.DataSource;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.InOrder;
+
+import com.zaxxer.hikari.HikariDataSource;
+import com.zaxxer.hikari.HikariPoolMXBean;
+
+import software.amazon.awssdk.services.rds.RdsUtilities;
+
+/**
+ *
+ */
+class RdsIamTenantDataSourceRegistryTest {
+
+  private final RdsIamTokenRefreshScheduler mScheduler = new RdsIamTokenRefreshScheduler(1);
+  private final RdsIamAuthenticationTokenRegistry mTokenRegistry = new RdsIamAuthenticationTokenRegistry(mScheduler);
+  private final RdsUtilities mRdsUtilities = mock(RdsUtilities.class);
+  private final Map<String, HikariDataSource> mPools = new HashMap<>();
+  private final Map<String, Integer> mActiveConnections = new HashMap<>();
+  private final RdsIamTenantDataSourceRegistry<String> mRegistry = new RdsIamTenantDataSourceRegistry<>(
+      this::createPool, mScheduler);
+
+  @AfterEach
+  void tearDown() {
+    mRegistry.close();
+    mScheduler.close();
+  }
+
+  @Test
+  void testPoolsAreCreatedOnFirstUse() throws SQLException {
+    // when tenants ask for connections
+    mRegistry.getConnection("bart");
+    mRegistry.getConnection("bart");
+    mRegistry.getConnection("lisa");
+
+    // then one pool per tenant shall be created
+    assertThat(mRegistry.getTenants()).containsExactlyInAnyOrder("bart", "lisa");
+    assertThat(mRegistry.getCreationCount()).isEqualTo(2);
+    assertThat(mRegistry.getHitCount()).isEqualTo(1);
+    assertThat(mRegistry.getMissCount()).isEqualTo(2);
+    assertThat(mRegistry.getHitRate()).isEqualTo(1.0 / 3);
+  }
+
+  @Test
+  void testIdlePoolsAreEvicted() throws SQLException {
+    // given two tenants where one has an active connection
+    mRegistry.getConnection("bart");
+    mRegistry.getConnection("lisa");
+    mActiveConnections.put("lisa", 1);
+    assertThat(mTokenRegistry.size()).isEqualTo(2);
+
+    // when the idle pools are evicted
+    mRegistry.setIdleTimeout(Duration.ZERO);
+    mRegistry.evictIdle();
+
+    // then the idle pool and its token refresher shall be closed
+    assertThat(mRegistry.getTenants()).containsExactly("lisa");
+    assertThat(mRegistry.getIdleEvictionCount()).isEqualTo(1);
+    verify(mPools.get("bart")).close();
+    verify(mPools.get("lisa"), never()).close();
+    assertThat(mTokenRegistry.size()).isEqualTo(1);
+
+    // and when the evicted tenant asks again it shall get a new pool
+    HikariDataSource evicted = mPools.get("bart");
+    mRegistry.getConnection("bart");
+    assertThat(mRegistry.getDataSource("bart")).isNotSameAs(evicted);
+    assertThat(mRegistry.getCreationCount()).isEqualTo(3);
+  }
+
+  @Test
+  void testLeastRecentlyUsedPoolsAreEvictedAboveMaxCount() throws SQLException, InterruptedException {
+    // given a max of two pools
+    mRegistry.setMaxPoolCount(2);
+    mRegistry.getConnection("bart");
+    Thread.sleep(2);
+    mRegistry.getConnection("lisa");
+    Thread.sleep(2);
+    mRegistry.getConnection("bart");
+
+    // when a third tenant asks for a connection
+    mRegistry.getConnection("maggie");
+
+    // then the least recently used pool shall be evicted
+    assertThat(mRegistry.getTenants()).containsExactlyInAnyOrder("bart", "maggie");
+    assertThat(mRegistry.getSizeEvictionCount()).isEqualTo(1);
+    verify(mPools.get("lisa")).close();
+  }
+
+  @Test
+  void testCreatedPoolIsKeptWhenTheOthersAreInUse() throws SQLException {
+    // given a max of one pool that is in use
+    mRegistry.setMaxPoolCount(1);
+    mRegistry.getConnection("bart");
+    mActiveConnections.put("bart", 1);
+
+    // when another tenant asks for a connection
+    mRegistry.getConnection("lisa");
+
+    // then neither the pool in use nor the created pool shall be evicted
+    assertThat(mRegistry.getTenants()).containsExactlyInAnyOrder("bart", "lisa");
+    assertThat(mRegistry.getSizeEvictionCount()).isZero();
+
+    // and when the pool is no longer in use then a lookup of an existing pool shall not evict
+    mActiveConnections.remove("bart");
+    mRegistry.getConnection("lisa");
+    assertThat(mRegistry.getTenants()).containsExactlyInAnyOrder("bart", "lisa");
+
+    // but the scheduled eviction shall
+    mRegistry.evictIdle();
+    assertThat(mRegistry.getTenants()).hasSize(1);
+    assertThat(mRegistry.getSizeEvictionCount()).isEqualTo(1);
+  }
+
+  @Test
+  void testCloseActionsRunAfterThePoolsAreClosed() throws Exception {
+    // given a pool and a close action
+    mRegistry.getConnection("bart");
+    AutoCloseable closeAction = mock(AutoCloseable.class);
+    mRegistry.addCloseAction(closeAction);
+
+    // when closed
+    mRegistry.close();
+
+    // then the close action shall run after the pool has been closed
+    InOrder inOrder = inOrder(mPools.get("bart"), closeAction);
+    inOrder.verify(mPools.get("bart")).close();
+    inOrder.verify(closeAction).close();
+  }
+
+  @Test
+  void testNoPoolIsCreatedAfterClose() {
+    // given a closed registry
+    mRegistry.getDataSource("bart");
+    mRegistry.close();
+
+    // when a lookup adds the entry of a tenant after the pools have been closed, like one that races the close
+    // then no pool shall be created and the entry shall be removed again
+    assertThatThrownBy(() -> mRegistry.getDataSource("lisa")).isInstanceOf(IllegalStateException.class);
+    assertThat(mPools).containsOnlyKeys("bart");
+    assertThat(mRegistry.getPoolCount()).isZero();
+    assertThat(mTokenRegistry.size()).isZero();
+  }
+
+  private HikariDataSource createPool(String username) {
+    RdsIamAuthenticationTokenRefresher refresher = mTokenRegistry.getRefresher(mRdsUtilities,
+        "database1.crux4711.eu-north-1.rds.amazonaws.com", 3306, username);
+    DataSource authenticatingDataSource = new RdsIamAuthenticatingDataSource(() -> mock(DataSource.class), refresher,
+        true);
+    HikariPoolMXBean poolMxBean = mock(HikariPoolMXBean.class);
+    when(poolMxBean.getActiveConnections()).thenAnswer(invocation -> mActiveConnections.getOrDefault(username, 0));
+    HikariDataSource pool = mock(HikariDataSource.class);
+    try {
+      when(pool.getConnection()).thenReturn(mock(Connection.class));
+    }
+    catch (SQLException e) {
+      throw new IllegalStateException(e);
+    }
+    when(pool.getDataSource()).thenReturn(authenticatingDataSource);
+    when(pool.getHikariPoolMXBean()).thenReturn(poolMxBean);
+    // like the factory, which releases the refresher when the pool is closed
+    doAnswer(invocation -> {
+      mTokenRegistry.release(refresher);
+      return null;
+    }).when(pool).close();
+    mPools.put(username, pool);
+    return pool;
+  }
+
+}
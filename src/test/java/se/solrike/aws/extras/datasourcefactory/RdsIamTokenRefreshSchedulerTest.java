@@ -0,0 +1,92 @@
+/*
+ * Copyright © 2022 Lucas Persson. All Rights Reserved.
+ */
+package se.solrike.aws.extras.datasourcefactory;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.awaitility.Awaitility.await;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.awaitility.Durations;
+import org.junit.jupiter.api.Test;
+
+/**
+ *
+ */
+class RdsIamTokenRefreshSchedulerTest {
+
+  @Test
+  void testScheduleRunsOnDaemonThread() {
+    try (RdsIamTokenRefreshScheduler scheduler = new RdsIamTokenRefreshScheduler()) {
+      // given a scheduled task
+      AtomicReference<Thread> thread = new AtomicReference<>();
+      scheduler.schedule(() -> thread.set(Thread.currentThread()), 10, 100, TimeUnit.MILLISECONDS);
+
+      // then the task shall run on a daemon thread so it never blocks JVM shutdown
+      await().atMost(Durations.ONE_SECOND).untilAsserted(() -> assertThat(thread.get()).isNotNull());
+      assertThat(thread.get().isDaemon()).isTrue();
+      assertThat(thread.get().getName()).startsWith("rds-iam-token-refresher-");
+    }
+  }
+
+  @Test
+  void testCloseRegistration() throws InterruptedException {
+    try (RdsIamTokenRefreshScheduler scheduler = new RdsIamTokenRefreshScheduler()) {
+      // given a scheduled task
+      AtomicInteger count = new AtomicInteger();
+      RdsIamTokenRefreshScheduler.Registration registration = scheduler.schedule(count::incrementAndGet, 0, 10,
+          TimeUnit.MILLISECONDS);
+      assertThat(scheduler.getRegistrationCount()).isEqualTo(1);
+      await().atMost(Durations.ONE_SECOND).untilAsserted(() -> assertThat(count.get()).isPositive());
+
+      // when the registration is closed
+      registration.close();
+      int countAfterClose = count.get();
+      Thread.sleep(100);
+
+      // then the task shall not run anymore
+      assertThat(registration.isClosed()).isTrue();
+      assertThat(scheduler.getRegistrationCount()).isZero();
+      assertThat(count.get()).isLessThanOrEqualTo(countAfterClose + 1);
+    }
+  }
+
+  @Test
+  void testSharedInstance() {
+    assertThat(RdsIamTokenRefreshScheduler.getSharedInstance())
+        .isSameAs(RdsIamTokenRefreshScheduler.getSharedInstance());
+  }
+
+  @Test
+  void testSharedInstanceCanNotBeClosed() {
+    // given the shared scheduler
+    RdsIamTokenRefreshScheduler scheduler = RdsIamTokenRefreshScheduler.getSharedInstance();
+
+    // when it is closed, e.g. by a try-with-resources block
+    try (RdsIamTokenRefreshScheduler closedScheduler = scheduler) {
+      assertThat(closedScheduler.isClosed()).isFalse();
+    }
+
+    // then it shall still run the tasks
+    assertThat(scheduler.isClosed()).isFalse();
+    AtomicInteger count = new AtomicInteger();
+    RdsIamTokenRefreshScheduler.Registration registration = scheduler.schedule(count::incrementAndGet, 0, 1,
+        TimeUnit.HOURS);
+    await().atMost(Durations.ONE_SECOND).untilAsserted(() -> assertThat(count.get()).isEqualTo(1));
+    registration.close();
+  }
+
+  @Test
+  void testClose() {
+    // given a scheduler of its own
+    RdsIamTokenRefreshScheduler scheduler = new RdsIamTokenRefreshScheduler();
+
+    // when it is closed then it shall be stopped
+    scheduler.close();
+    assertThat(scheduler.isClosed()).isTrue();
+  }
+
+}
@@ -3,42 +3,177 @@
  */
 package se.solrike.aws.extras.datasourcefactory.sample;
 
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+
 import com.zaxxer.hikari.HikariConfig;
 import com.zaxxer.hikari.HikariDataSource;
 
-import se.solrike.aws.extras.datasourcefactory.AbstractRdsIamDatasourceFactory;
+import se.solrike.aws.extras.datasourcefactory.RdsIamClusterPoolManager;
+import se.solrike.aws.extras.datasourcefactory.RdsIamClusterTopologyProvider;
+import se.solrike.aws.extras.datasourcefactory.HikariConfigDatasourceFactory;
+import se.solrike.aws.extras.datasourcefactory.RdsIamDeferredDataSource;
+import se.solrike.aws.extras.datasourcefactory.RdsIamJdbcUrl;
+import se.solrike.aws.extras.datasourcefactory.RdsIamRoutingDataSource;
+import se.solrike.aws.extras.datasourcefactory.RdsIamTenantDataSourceRegistry;
+import software.amazon.awssdk.auth.credentials.AwsCredentialsProvider;
+import software.amazon.awssdk.regions.Region;
 import software.amazon.awssdk.services.rds.RdsUtilities;
 
 /**
- * Generic implementation to demonstrate the IAM authentication integration with Hikari.
+ * Generic implementation to demonstrate the IAM authentication integration with Hikari. The datasources are not
+ * started until the first call to getConnection(), it is better to connect directly in order to fail fast if
+ * something isn't correctly configured.
  */
-public class GenericRdsIamDatasourceFactory extends AbstractRdsIamDatasourceFactory<HikariConfig> {
+public class GenericRdsIamDatasourceFactory extends HikariConfigDatasourceFactory {
 
   private final RdsUtilities mRdsUtilities;
+  private final AwsCredentialsProvider mCredentialsProvider;
+  private final Region mRegion;
 
   public GenericRdsIamDatasourceFactory(RdsUtilities rdsUtilities) {
+    super(false);
     mRdsUtilities = rdsUtilities;
+    mCredentialsProvider = null;
+    mRegion = null;
+  }
+
+  /**
+   * Sign the tokens without creating a RdsClient.
+   *
+   * @param credentialsProvider
+   *          - credentials used to sign the token
+   * @param region
+   *          - region of the database, null to take it from the RDS hostname
+   */
+  public GenericRdsIamDatasourceFactory(AwsCredentialsProvider credentialsProvider, Region region) {
+    super(false);
+    mRdsUtilities = null;
+    mCredentialsProvider = credentialsProvider;
+    mRegion = region;
   }
 
   public HikariDataSource dataSource(HikariConfig datasourceConfiguration) {
+    if ((boolean) datasourceConfiguration.getDataSourceProperties()
+        .getOrDefault("iam-authentication-token-on-demand", false)) {
+      return onDemandTokenDataSource(datasourceConfiguration);
+    }
     int refreshIntervalInMinutes = (int) datasourceConfiguration.getDataSourceProperties()
         .getOrDefault("iam-authentication-token-refresh-interval-in-minutes", 14);
-    return createDatasource(mRdsUtilities, datasourceConfiguration.getJdbcUrl(), datasourceConfiguration.getUsername(),
-        refreshIntervalInMinutes, datasourceConfiguration);
+    if (mRdsUtilities == null) {
+      return createDatasource(mCredentialsProvider, mRegion, datasourceConfiguration.getJdbcUrl(),
+          datasourceConfiguration.getUsername(), refreshIntervalInMinutes, datasourceConfiguration);
+    }
+    return createDatasource(mRdsUtilities, datasourceConfiguration.getJdbcUrl(),
+        datasourceConfiguration.getUsername(), refreshIntervalInMinutes, datasourceConfiguration);
+  }
+
+  /**
+   * Create the datasource in the background. getConnection() waits for it at most
+   * iam-authentication-readiness-timeout-in-seconds.
+   *
+   * @param datasourceConfiguration
+   *          - datasource configuration properties
+   * @return datasource that is created in the background
+   */
+  public RdsIamDeferredDataSource deferredDataSource(HikariConfig datasourceConfiguration) {
+    int readinessTimeoutInSeconds = (int) datasourceConfiguration.getDataSourceProperties()
+        .getOrDefault("iam-authentication-readiness-timeout-in-seconds", 30);
+    return createDeferredDatasource(() -> dataSource(datasourceConfiguration),
+        Duration.ofSeconds(readinessTimeoutInSeconds));
+  }
+
+  /**
+   * Create one pool for the writer and one for each reader, all with the same configuration except for the JDBC URL.
+   * Read-only connections are taken from the readers.
+   *
+   * @param datasourceConfiguration
+   *          - datasource configuration properties with the JDBC URL of the writer
+   * @param readerJdbcUrls
+   *          - JDBC URLs of the readers
+   * @return datasource that routes to the writer and the readers
+   */
+  public RdsIamRoutingDataSource routingDataSource(HikariConfig datasourceConfiguration,
+      List<String> readerJdbcUrls) {
+    return createRoutingDatasource(datasourceConfiguration.getJdbcUrl(), readerJdbcUrls,
+        jdbcUrl -> dataSource(deriveConfiguration(datasourceConfiguration, jdbcUrl,
+            RdsIamJdbcUrl.parse(jdbcUrl).getHost().getHostname())));
+  }
+
+  /**
+   * Create one pool for each instance of the cluster and keep them in line with the topology of the cluster.
+   *
+   * @param datasourceConfiguration
+   *          - datasource configuration properties with the JDBC URL of the cluster endpoint
+   * @param topologyProvider
+   *          - discovers the instances of the cluster, e.g. a RdsIamDescribeClusterTopologyProvider
+   * @return manager of the pools, get the datasource from it
+   */
+  public RdsIamClusterPoolManager clusterDataSource(HikariConfig datasourceConfiguration,
+      RdsIamClusterTopologyProvider topologyProvider) {
+    return createClusterDatasource(topologyProvider,
+        member -> dataSource(deriveConfiguration(datasourceConfiguration,
+            member.getJdbcUrl(datasourceConfiguration.getJdbcUrl()), member.getInstanceIdentifier())),
+        RdsIamClusterPoolManager.DEFAULT_DISCOVERY_INTERVAL);
+  }
+
+  /**
+   * Create a pool per database user on first use, with the token on demand and a shared housekeeping thread.
+   *
+   * @param datasourceConfiguration
+   *          - datasource configuration properties shared by all tenants
+   * @return registry of pools with the database user as tenant key
+   */
+  public RdsIamTenantDataSourceRegistry<String> tenantDataSources(HikariConfig datasourceConfiguration) {
+    ScheduledThreadPoolExecutor housekeeping = new ScheduledThreadPoolExecutor(1, runnable -> {
+      Thread thread = new Thread(runnable, "tenant-pool-housekeeping");
+      thread.setDaemon(true);
+      return thread;
+    });
+    housekeeping.setRemoveOnCancelPolicy(true);
+    RdsIamTenantDataSourceRegistry<String> registry = createTenantDatasourceRegistry(username -> {
+      HikariConfig config = deriveConfiguration(datasourceConfiguration, datasourceConfiguration.getJdbcUrl(),
+          username);
+      config.setUsername(username);
+      config.setMinimumIdle(0);
+      config.setScheduledExecutor(housekeeping);
+      return onDemandTokenDataSource(config);
+    });
+    // Hikari doesn't shut down an executor it has been given
+    registry.addCloseAction(housekeeping::shutdown);
+    return registry;
   }
 
-  @Override
-  protected HikariDataSource doCreateDatasource(HikariConfig datasourceConfiguration) {
-    // create the datasource but do not start the pool. It will be started at first call to getConnection().
-    // it is better to try to connect directly in order to fail fast if something isn't correctly configured.
-    HikariDataSource hikariDataSource = new HikariDataSource();
-    datasourceConfiguration.copyStateTo(hikariDataSource);
-    return hikariDataSource;
+  /**
+   * Copy the configuration for another endpoint or user.
+   *
+   * @param datasourceConfiguration
+   *          - configuration to copy
+   * @param jdbcUrl
+   *          - JDBC URL of the endpoint
+   * @param poolNameSuffix
+   *          - appended to the pool name, if any, so each pool has its own name
+   * @return the configuration for the endpoint
+   */
+  protected HikariConfig deriveConfiguration(HikariConfig datasourceConfiguration, String jdbcUrl,
+      String poolNameSuffix) {
+    HikariConfig config = new HikariConfig();
+    datasourceConfiguration.copyStateTo(config);
+    config.setJdbcUrl(jdbcUrl);
+    if (datasourceConfiguration.getPoolName() != null) {
+      config.setPoolName(datasourceConfiguration.getPoolName() + "-" + poolNameSuffix);
+    }
+    return config;
   }
 
-  @Override
-  protected void setPassword(String password, HikariConfig datasourceConfiguration) {
-    datasourceConfiguration.setPassword(password);
+  private HikariDataSource onDemandTokenDataSource(HikariConfig datasourceConfiguration) {
+    if (mRdsUtilities == null) {
+      return createOnDemandTokenDatasource(mCredentialsProvider, mRegion, datasourceConfiguration.getJdbcUrl(),
+          datasourceConfiguration.getUsername(), datasourceConfiguration);
+    }
+    return createOnDemandTokenDatasource(mRdsUtilities, datasourceConfiguration.getJdbcUrl(),
+        datasourceConfiguration.getUsername(), datasourceConfiguration);
   }
 
 }
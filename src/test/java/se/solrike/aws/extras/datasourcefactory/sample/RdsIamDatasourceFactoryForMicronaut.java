@@ -3,6 +3,8 @@
  */
 package se.solrike.aws.extras.datasourcefactory.sample;
 
+import java.time.Duration;
+
 import javax.annotation.PreDestroy;
 import javax.sql.DataSource;
 
@@ -16,7 +18,7 @@ import io.micronaut.context.annotation.EachBean;
 import io.micronaut.context.annotation.Factory;
 import io.micronaut.context.annotation.Replaces;
 import se.solrike.aws.extras.datasourcefactory.AbstractRdsIamDatasourceFactory;
-import software.amazon.awssdk.services.rds.RdsClient;
+import software.amazon.awssdk.auth.credentials.DefaultCredentialsProvider;
 
 /**
  * Datasource factory that supports IAM DB authentication when using Hikari connection pool.
@@ -52,6 +54,11 @@ public class RdsIamDatasourceFactoryForMicronaut extends AbstractRdsIamDatasourc
    *     data-source-properties:
    *       iam-authentication: true
    *       iam-authentication-token-refresh-interval-in-minutes: 14
+   *       # generate the token when a connection is created instead of refreshing it at regular intervals
+   *       iam-authentication-token-on-demand: false
+   *       # create the datasource in the background and let the first connection wait at most 30 s for it
+   *       iam-authentication-deferred: false
+   *       iam-authentication-readiness-timeout-in-seconds: 30
    * </code>
    * </pre>
    *
@@ -62,18 +69,35 @@ public class RdsIamDatasourceFactoryForMicronaut extends AbstractRdsIamDatasourc
   @EachBean(DatasourceConfiguration.class)
   public DataSource dataSource(DatasourceConfiguration datasourceConfiguration) {
     if ((boolean) datasourceConfiguration.getDataSourceProperties().getOrDefault("iam-authentication", false)) {
-      int refreshIntervalInMinutes = (int) datasourceConfiguration.getDataSourceProperties()
-          .getOrDefault("iam-authentication-token-refresh-interval-in-minutes", 14);
-      try (RdsClient rdsClient = RdsClient.create()) {
-        return createDatasource(rdsClient.utilities(), datasourceConfiguration.getUrl(),
-            datasourceConfiguration.getConfiguredUsername(), refreshIntervalInMinutes, datasourceConfiguration);
+      if ((boolean) datasourceConfiguration.getDataSourceProperties()
+          .getOrDefault("iam-authentication-deferred", false)) {
+        int readinessTimeoutInSeconds = (int) datasourceConfiguration.getDataSourceProperties()
+            .getOrDefault("iam-authentication-readiness-timeout-in-seconds", 30);
+        return createDeferredDatasource(() -> iamDataSource(datasourceConfiguration),
+            Duration.ofSeconds(readinessTimeoutInSeconds));
       }
+      return iamDataSource(datasourceConfiguration);
     }
     else {
       return doCreateDatasource(datasourceConfiguration);
     }
   }
 
+  private HikariDataSource iamDataSource(DatasourceConfiguration datasourceConfiguration) {
+    boolean tokenOnDemand = (boolean) datasourceConfiguration.getDataSourceProperties()
+        .getOrDefault("iam-authentication-token-on-demand", false);
+    int refreshIntervalInMinutes = (int) datasourceConfiguration.getDataSourceProperties()
+        .getOrDefault("iam-authentication-token-refresh-interval-in-minutes", 14);
+    // the region is taken from the RDS hostname in the URL
+    if (tokenOnDemand) {
+      return createOnDemandTokenDatasource(DefaultCredentialsProvider.create(), null,
+          datasourceConfiguration.getUrl(), datasourceConfiguration.getConfiguredUsername(),
+          datasourceConfiguration);
+    }
+    return createDatasource(DefaultCredentialsProvider.create(), null, datasourceConfiguration.getUrl(),
+        datasourceConfiguration.getConfiguredUsername(), refreshIntervalInMinutes, datasourceConfiguration);
+  }
+
   @Override
   protected HikariDataSource doCreateDatasource(DatasourceConfiguration datasourceConfiguration) {
     return (HikariDataSource) mDatasourceFactory.dataSource(datasourceConfiguration);
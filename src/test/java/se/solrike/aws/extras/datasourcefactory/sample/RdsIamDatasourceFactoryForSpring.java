@@ -16,7 +16,7 @@ import org.springframework.context.annotation.Primary;
 import com.zaxxer.hikari.HikariDataSource;
 
 import se.solrike.aws.extras.datasourcefactory.AbstractRdsIamDatasourceFactory;
-import software.amazon.awssdk.services.rds.RdsClient;
+import software.amazon.awssdk.auth.credentials.DefaultCredentialsProvider;
 
 /**
  * Datasource factory that supports IAM DB authentication when using Hikari connection pool.
@@ -28,14 +28,17 @@ public class RdsIamDatasourceFactoryForSpring extends AbstractRdsIamDatasourceFa
 
   private final boolean mEnableIamAuthentication;
   private final int mRefreshIntervalInMinutes;
+  private final boolean mTokenOnDemand;
 
   // CHECKSTYLE:OFF
   @Autowired
   public RdsIamDatasourceFactoryForSpring(
       @Value("${spring.datasource.hikari.data-source-properties.iam-authentication:false}") boolean enableIamAuthentication,
-      @Value("${spring.datasource.hikari.data-source-properties.iam-authentication-token-refresh-interval-in-minutes:14}") int refreshIntervalInMinutes) {
+      @Value("${spring.datasource.hikari.data-source-properties.iam-authentication-token-refresh-interval-in-minutes:14}") int refreshIntervalInMinutes,
+      @Value("${spring.datasource.hikari.data-source-properties.iam-authentication-token-on-demand:false}") boolean tokenOnDemand) {
     mEnableIamAuthentication = enableIamAuthentication;
     mRefreshIntervalInMinutes = refreshIntervalInMinutes;
+    mTokenOnDemand = tokenOnDemand;
   }
   // CHECKSTYLE:ON
 
@@ -53,6 +56,7 @@ public class RdsIamDatasourceFactoryForSpring extends AbstractRdsIamDatasourceFa
    * spring.datasource.driver-class-name: com.mysql.cj.jdbc.Driver
    * spring.datasource.hikari.data-source-properties.iam-authentication: true
    * spring.datasource.hikari.data-source-properties.iam-authentication-token-refresh-interval-in-minutes: 14
+   * spring.datasource.hikari.data-source-properties.iam-authentication-token-on-demand: false
    * </code>
    * </pre>
    *
@@ -66,10 +70,13 @@ public class RdsIamDatasourceFactoryForSpring extends AbstractRdsIamDatasourceFa
   @ConfigurationProperties(prefix = "spring.datasource.hikari")
   public DataSource dataSource(DataSourceProperties dataSourceProperties) {
     if (mEnableIamAuthentication) {
-      try (RdsClient rdsClient = RdsClient.create()) {
-        return createDatasource(rdsClient.utilities(), dataSourceProperties.getUrl(),
-            dataSourceProperties.getUsername(), mRefreshIntervalInMinutes, dataSourceProperties);
+      // the region is taken from the RDS hostname in the URL
+      if (mTokenOnDemand) {
+        return createOnDemandTokenDatasource(DefaultCredentialsProvider.create(), null, dataSourceProperties.getUrl(),
+            dataSourceProperties.getUsername(), dataSourceProperties);
       }
+      return createDatasource(DefaultCredentialsProvider.create(), null, dataSourceProperties.getUrl(),
+          dataSourceProperties.getUsername(), mRefreshIntervalInMinutes, dataSourceProperties);
     }
     else {
       return doCreateDatasource(dataSourceProperties);
@@ -88,6 +95,13 @@ public class RdsIamDatasourceFactoryForSpring extends AbstractRdsIamDatasourceFa
     return datasource;
   }
 
+  @Override
+  protected boolean isStartedOnCreation() {
+    // the DataSourceBuilder creates a datasource that isn't started until the first connection, so with token on
+    // demand no token is generated until then
+    return false;
+  }
+
   @Override
   protected void setPassword(String password, DataSourceProperties datasourceConfiguration) {
     datasourceConfiguration.setPassword(password);
@@ -0,0 +1,109 @@
+/*
+ * Copyright © 2022 Lucas Persson. All Rights Reserved.
+ */
+package se.solrike.aws.extras.datasourcefactory;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+import software.amazon.awssdk.core.exception.SdkClientException;
+import software.amazon.awssdk.services.rds.RdsUtilities;
+import software.amazon.awssdk.services.rds.model.GenerateAuthenticationTokenRequest;
+
+/**
+ * RdsUtilities stand-in for load tests. The tokens look like real tokens, with <code>X-Amz-Date</code> and
+ * <code>X-Amz-Expires</code> parameters, but the lifetime can be compressed to seconds and the signing can be given
+ * latency and random failures.
+ */
+public class FakeRdsUtilities implements RdsUtilities {
+
+  private static final DateTimeFormatter AMZ_DATE_FORMAT = DateTimeFormatter.ofPattern("yyyyMMdd'T'HHmmss'Z'")
+      .withZone(ZoneOffset.UTC);
+
+  private final Clock mClock;
+  private final AtomicLong mTokenCount = new AtomicLong();
+  private final AtomicLong mFailureCount = new AtomicLong();
+  private volatile Duration mTokenLifetime = RdsIamAuthenticationToken.DEFAULT_LIFETIME;
+  private volatile Duration mLatency = Duration.ZERO;
+  private volatile double mFailureRate;
+
+  /**
+   * Create a fake that signs tokens that are valid for 15 minutes without latency or failures.
+   */
+  public FakeRdsUtilities() {
+    this(Clock.systemUTC());
+  }
+
+  /**
+   * @param clock
+   *          - clock used for the signing time of the tokens
+   */
+  public FakeRdsUtilities(Clock clock) {
+    mClock = clock;
+  }
+
+  @Override
+  public String generateAuthenticationToken(GenerateAuthenticationTokenRequest request) {
+    long latencyMillis = mLatency.toMillis();
+    if (latencyMillis > 0) {
+      try {
+        Thread.sleep(latencyMillis);
+      }
+      catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw SdkClientException.create("Interrupted while signing");
+      }
+    }
+    if (mFailureRate > 0 && ThreadLocalRandom.current().nextDouble() < mFailureRate) {
+      mFailureCount.incrementAndGet();
+      throw SdkClientException.create("Injected failure to load credentials");
+    }
+    long tokenNumber = mTokenCount.incrementAndGet();
+    return request.hostname() + ":" + request.port() + "/?Action=connect&DBUser=" + request.username()
+        + "&X-Amz-Date=" + AMZ_DATE_FORMAT.format(mClock.instant()) + "&X-Amz-Expires=" + mTokenLifetime.getSeconds()
+        + "&X-Amz-Signature=" + Long.toHexString(tokenNumber);
+  }
+
+  /**
+   * @param tokenLifetime
+   *          - lifetime of the generated tokens, whole seconds
+   */
+  public void setTokenLifetime(Duration tokenLifetime) {
+    mTokenLifetime = tokenLifetime;
+  }
+
+  /**
+   * @param latency
+   *          - time it takes to generate a token
+   */
+  public void setLatency(Duration latency) {
+    mLatency = latency;
+  }
+
+  /**
+   * @param failureRate
+   *          - probability [0-1] that generating a token fails
+   */
+  public void setFailureRate(double failureRate) {
+    mFailureRate = failureRate;
+  }
+
+  /**
+   * @return number of generated tokens
+   */
+  public long getTokenCount() {
+    return mTokenCount.get();
+  }
+
+  /**
+   * @return number of injected failures
+   */
+  public long getFailureCount() {
+    return mFailureCount.get();
+  }
+
+}
@@ -0,0 +1,41 @@
+/*
+ * Copyright © 2022 Lucas Persson. All Rights Reserved.
+ */
+package se.solrike.aws.extras.datasourcefactory;
+
+import com.zaxxer.hikari.HikariConfig;
+import com.zaxxer.hikari.HikariDataSource;
+
+/**
+ * Datasource factory that creates the Hikari datasources straight from a HikariConfig, for the tests, benchmarks and
+ * load tests. The createDatasource methods are protected, callers in this package or subclasses can use them.
+ */
+public class HikariConfigDatasourceFactory extends AbstractRdsIamDatasourceFactory<HikariConfig> {
+
+  private final boolean mStartedOnCreation;
+
+  /**
+   * @param startedOnCreation
+   *          - true to start the datasource when it is created, like in Micronaut, false to start it at the first
+   *          getConnection()
+   */
+  public HikariConfigDatasourceFactory(boolean startedOnCreation) {
+    mStartedOnCreation = startedOnCreation;
+  }
+
+  @Override
+  protected HikariDataSource doCreateDatasource(HikariConfig datasourceConfiguration) {
+    if (mStartedOnCreation) {
+      return new HikariDataSource(datasourceConfiguration);
+    }
+    HikariDataSource hikariDataSource = new HikariDataSource();
+    datasourceConfiguration.copyStateTo(hikariDataSource);
+    return hikariDataSource;
+  }
+
+  @Override
+  protected void setPassword(String password, HikariConfig datasourceConfiguration) {
+    datasourceConfiguration.setPassword(password);
+  }
+
+}
@@ -0,0 +1,161 @@
+/*
+ * Copyright © 2022 Lucas Persson. All Rights Reserved.
+ */
+package se.solrike.aws.extras.datasourcefactory;
+
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.Driver;
+import java.sql.DriverManager;
+import java.sql.DriverPropertyInfo;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.time.Duration;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * In-memory JDBC driver stand-in for benchmarks and load tests. It accepts URLs like
+ * <code>jdbc:stub://database1.crux4711.eu-north-1.rds.amazonaws.com:3306/database1</code> and returns connections
+ * that do nothing, after an optional simulated connect latency.
+ * <p>
+ * Use it with Hikari by setting the driver class name to this class.
+ */
+public class StubJdbcDriver implements Driver {
+
+  /**
+   * Prefix of the JDBC URLs accepted by the driver.
+   */
+  public static final String URL_PREFIX = "jdbc:stub:";
+
+  private static final AtomicLong sConnectCount = new AtomicLong();
+  private static final AtomicInteger sOpenConnectionCount = new AtomicInteger();
+  private static volatile Duration sConnectLatency = Duration.ZERO;
+
+  static {
+    try {
+      DriverManager.registerDriver(new StubJdbcDriver());
+    }
+    catch (SQLException e) {
+      throw new ExceptionInInitializerError(e);
+    }
+  }
+
+  /**
+   * @param connectLatency
+   *          - simulated time to create a connection, e.g. TCP and TLS handshake and authentication
+   */
+  public static void setConnectLatency(Duration connectLatency) {
+    sConnectLatency = connectLatency;
+  }
+
+  /**
+   * @return number of connections created since the start of the JVM
+   */
+  public static long getConnectCount() {
+    return sConnectCount.get();
+  }
+
+  /**
+   * @return number of connections that are created and not yet closed
+   */
+  public static int getOpenConnectionCount() {
+    return sOpenConnectionCount.get();
+  }
+
+  @Override
+  public Connection connect(String url, Properties info) throws SQLException {
+    if (!acceptsURL(url)) {
+      return null;
+    }
+    long latencyMillis = sConnectLatency.toMillis();
+    if (latencyMillis > 0) {
+      try {
+        Thread.sleep(latencyMillis);
+      }
+      catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new SQLException("Interrupted while connecting", e);
+      }
+    }
+    sConnectCount.incrementAndGet();
+    sOpenConnectionCount.incrementAndGet();
+    return createConnection();
+  }
+
+  @Override
+  public boolean acceptsURL(String url) {
+    return url != null && url.startsWith(URL_PREFIX);
+  }
+
+  @Override
+  public DriverPropertyInfo[] getPropertyInfo(String url, Properties info) {
+    return new DriverPropertyInfo[0];
+  }
+
+  @Override
+  public int getMajorVersion() {
+    return 1;
+  }
+
+  @Override
+  public int getMinorVersion() {
+    return 0;
+  }
+
+  @Override
+  public boolean jdbcCompliant() {
+    return false;
+  }
+
+  @Override
+  public Logger getParentLogger() throws SQLFeatureNotSupportedException {
+    throw new SQLFeatureNotSupportedException();
+  }
+
+  /*
+   * Every method returns the default value of its return type except isValid and isClosed that reflect the state of
+   * the connection.
+   */
+  private static Connection createConnection() {
+    AtomicInteger closed = new AtomicInteger();
+    return (Connection) Proxy.newProxyInstance(StubJdbcDriver.class.getClassLoader(),
+        new Class<?>[] { Connection.class }, (proxy, method, args) -> {
+          switch (method.getName()) {
+            case "close":
+              if (closed.compareAndSet(0, 1)) {
+                sOpenConnectionCount.decrementAndGet();
+              }
+              return null;
+            case "isClosed":
+              return closed.get() == 1;
+            case "isValid":
+              return closed.get() == 0;
+            case "equals":
+              return proxy == args[0];
+            case "hashCode":
+              return System.identityHashCode(proxy);
+            case "toString":
+              return "StubConnection@" + Integer.toHexString(System.identityHashCode(proxy));
+            default:
+              return getDefaultValue(method.getReturnType());
+          }
+        });
+  }
+
+  private static Object getDefaultValue(Class<?> type) {
+    if (type == boolean.class) {
+      return false;
+    }
+    if (type == int.class) {
+      return 0;
+    }
+    if (type == long.class) {
+      return 0L;
+    }
+    return null;
+  }
+
+}